@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+
+/***************************************
+ * Represents a repeated element
+ ***************************************/
+public class ArrayType extends InferredType {
+  public InferredType bodyType;
+  static AtomicInteger arrayCounter = new AtomicInteger();
+
+  public ArrayType() {
+  }
+  public ArrayType(InferredType bodyType) {
+    this.bodyType = bodyType;
+  }
+  public InferredType hoistUnions() {
+    return new ArrayType(bodyType.hoistUnions());
+  }
+  public boolean hasUnions() {
+    return bodyType.hasUnions();
+  }
+  Iterable<InferredType> variants() {
+    if (! hasUnions()) {
+      return Collections.singletonList((InferredType) this);
+    }
+    return new Iterable<InferredType>() {
+      public Iterator<InferredType> iterator() {
+        final Iterator<InferredType> bodies = bodyType.variants().iterator();
+        return new Iterator<InferredType>() {
+          public boolean hasNext() {
+            return bodies.hasNext();
+          }
+          public InferredType next() {
+            return new ArrayType(bodies.next());
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+  public InferredType duplicate() {
+    return new ArrayType(bodyType.duplicate());
+  }
+  protected Schema computeAvroSchema() {
+    return Schema.createArray(bodyType.getAvroSchema());
+  }
+  protected int computeSchemaHash() {
+    return 31 * Schema.Type.ARRAY.hashCode() + bodyType.getSchemaHash();
+  }
+  public String toString() {
+    return "(Array: " + bodyType.toString() + ") ";
+  }
+  public double getDescriptionCost() {
+    return CARD_COST + bodyType.getDescriptionCost();
+  }
+  public double getParseCost() {
+    return 1 + bodyType.getParseCost();
+  }
+  public InferredType refine(RefinementRule rules[]) {
+    InferredType newBodyType = bodyType.refine(rules);
+    return (newBodyType != bodyType ? new ArrayType(newBodyType) : this).applyRefinementRules(rules);
+  }
+  String createName() {
+    return "array_" + arrayCounter.getAndIncrement();
+  }
+  /**
+   * Parse the given string, return resulting data if appropriate.
+   */
+  public ParseResult internalParse(TokenMatcher m, int offset, boolean mustConsumeStr, Object reuse) {
+    Schema schema = getAvroSchema();
+    GenericData.Array gda;
+    if (reuse instanceof GenericData.Array && ((GenericData.Array) reuse).getSchema() == schema) {
+      gda = (GenericData.Array) reuse;
+      gda.clear();
+    } else {
+      gda = new GenericData.Array(5, schema);
+    }
+    int cur = offset;
+    int mark = m.getTrailMark();
+
+    while (true) {
+      int eltMark = m.getTrailMark();
+      ParseResult pr = bodyType.internalParse(m, cur, false, gda.peek());
+      if (pr == null || pr.getEnd() == cur) {
+        // Stop when the body fails, or when it consumes nothing and would repeat forever
+        m.cutTrail(eltMark);
+        break;
+      }
+      assert(pr.hasData());
+
+      gda.add(pr.getData());
+      cur = pr.getEnd();
+    }
+    if (mustConsumeStr && ! m.isBlankFrom(cur)) {
+      m.cutTrail(mark);
+      return null;
+    }
+    return new ParseResult(gda, true, cur);
+  }
+  Map<String, Set<Integer>> findCandidateUnionDecisions() {
+    return bodyType.findCandidateUnionDecisions();
+  }
+  void findUnions(Map<String, UnionType> unions) {
+    bodyType.findUnions(unions);
+  }
+  List<String> getBases() {
+    return bodyType.getBases();
+  }
+  boolean addFirstChars(BitSet first) {
+    // An array may have no elements
+    bodyType.addFirstChars(first);
+    return true;
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    bodyType = InferredType.readType(in);
+  }
+  public void write(DataOutput out) throws IOException {
+    out.write(ARRAY_TYPE);
+    bodyType.write(out);
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/*********************************************************
+ * AvroPartWriter writes emitted Avro data as a series of part files, named
+ * by LearnStructure.PART_FILENAME_FORMAT.  Each part is a complete Avro file
+ * with its own header and sync marker.  The caller starts the next part with
+ * roll(), either at fixed places or once isFull() says the current part has
+ * reached 'rollBytes' or 'rollRecords' (0 means no limit).
+ *
+ * Every input line is counted toward the part that was current when it was
+ * read, parsed or not, so the parts' line ranges cover the whole input.
+ * MANIFEST_FILENAME lists the parts that have been closed, in order, with
+ * their line ranges (0-based and inclusive), record counts, and sizes:
+ *
+ *   {"parts": [{"file": "data-00000.avro", "firstLine": 0, "lastLine": 4095,
+ *               "records": 4090, "bytes": 183411}, ...]}
+ *
+ * It is rewritten each time a part is closed, to a temporary file that is then
+ * renamed over it, so it is always complete.  A failed conversion can then be
+ * restarted from the first line after the last part in the manifest.
+ *
+ * Sizes are counted as the Avro writer flushes blocks, so a part filled record
+ * by record may pass 'rollBytes' by up to a block (see OutputSink's sync
+ * interval).
+ *********************************************************/
+public class AvroPartWriter {
+  public static String MANIFEST_FILENAME = "manifest.json";
+
+  /**
+   * Counts the bytes that reach the file
+   */
+  static class CountingStream extends FilterOutputStream {
+    long count = 0;
+    CountingStream(OutputStream out) {
+      super(out);
+    }
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+    public void write(byte b[], int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  static class Part {
+    String filename;
+    long firstLine = -1;
+    long lastLine = -1;
+    long numRecords = 0;
+    long numBytes = 0;
+  }
+
+  Schema schema;
+  OutputSink sink;
+  File dir;
+  long rollBytes;
+  long rollRecords;
+  List<Part> parts = new ArrayList<Part>();
+  Part cur;
+  CountingStream out;
+  DataFileWriter<GenericContainer> writer;
+
+  /**
+   * Opens the first part
+   */
+  public AvroPartWriter(Schema schema, OutputSink sink, File dir, long rollBytes, long rollRecords) throws IOException {
+    this.schema = schema;
+    this.sink = sink;
+    this.dir = dir;
+    this.rollBytes = rollBytes;
+    this.rollRecords = rollRecords;
+    roll();
+  }
+
+  /**
+   * The current part's writer.  It changes with every roll().
+   */
+  public DataFileWriter<GenericContainer> getWriter() {
+    return writer;
+  }
+
+  /**
+   * The current part's number, starting at 0
+   */
+  public int getPartNumber() {
+    return parts.size() - 1;
+  }
+
+  /**
+   * Finish the current part and start the next
+   */
+  public void roll() throws IOException {
+    closePart();
+    cur = new Part();
+    cur.filename = String.format(LearnStructure.PART_FILENAME_FORMAT, parts.size());
+    parts.add(cur);
+    out = new CountingStream(new BufferedOutputStream(new FileOutputStream(new File(dir, cur.filename))));
+    writer = sink.createAvroWriter(schema, out);
+  }
+  void closePart() throws IOException {
+    if (writer != null) {
+      writer.close();
+      cur.numBytes = out.count;
+      writer = null;
+      writeManifest();
+    }
+  }
+
+  /**
+   * Count input line 'lineNo' toward the current part.  'parsed' says whether
+   * it was written to getWriter() as a record.
+   */
+  public void addLine(long lineNo, boolean parsed) {
+    if (cur.firstLine < 0) {
+      cur.firstLine = lineNo;
+    }
+    cur.lastLine = lineNo;
+    if (parsed) {
+      cur.numRecords++;
+    }
+  }
+
+  /**
+   * Whether the current part has reached a limit.  A part with no records is
+   * never full, however big its header.
+   */
+  public boolean isFull() {
+    if (cur.numRecords == 0) {
+      return false;
+    }
+    return (rollRecords > 0 && cur.numRecords >= rollRecords) || (rollBytes > 0 && out.count >= rollBytes);
+  }
+
+  /**
+   * Whether adding this many records and bytes would take the current part past
+   * a limit.  A part with no records takes anything, so every part has some.
+   */
+  public boolean wouldOverflow(long numRecords, long numBytes) {
+    if (cur.numRecords == 0) {
+      return false;
+    }
+    return (rollRecords > 0 && cur.numRecords + numRecords > rollRecords) || (rollBytes > 0 && out.count + numBytes > rollBytes);
+  }
+
+  /**
+   * Append the records of an in-memory Avro file, which came from input lines
+   * 'firstLine' through 'lastLine', to the current part
+   */
+  public void appendAllFrom(byte avroBytes[], long numRecords, long firstLine, long lastLine) throws IOException {
+    DataFileStream<GenericContainer> in = new DataFileStream<GenericContainer>(new ByteArrayInputStream(avroBytes), new GenericDatumReader<GenericContainer>());
+    try {
+      writer.appendAllFrom(in, false);
+    } finally {
+      in.close();
+    }
+    // Push the blocks through, so the part's size is up to date
+    writer.flush();
+    if (cur.firstLine < 0) {
+      cur.firstLine = firstLine;
+    }
+    cur.lastLine = lastLine;
+    cur.numRecords += numRecords;
+  }
+
+  /**
+   * Close the last part.  When rolling, a last part that got no records (because
+   * the lines after the roll did not parse) is dropped, and its lines go to the
+   * part before.
+   */
+  public void close() throws IOException {
+    closePart();
+    boolean rolling = (rollBytes > 0 || rollRecords > 0);
+    if (rolling && parts.size() > 1 && cur.numRecords == 0) {
+      parts.remove(parts.size() - 1);
+      Part prev = parts.get(parts.size() - 1);
+      if (cur.lastLine >= 0) {
+        prev.lastLine = cur.lastLine;
+      }
+      writeManifest();
+      new File(dir, cur.filename).delete();
+    }
+  }
+
+  /**
+   * Replace the manifest with one that lists every part in 'parts', all of
+   * which are closed
+   */
+  void writeManifest() throws IOException {
+    File manifest = new File(dir, MANIFEST_FILENAME);
+    File tmp = new File(dir, MANIFEST_FILENAME + ".tmp");
+    JsonGenerator gen = new JsonFactory().createJsonGenerator(tmp, JsonEncoding.UTF8);
+    try {
+      gen.useDefaultPrettyPrinter();
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("parts");
+      long nextLine = 0;
+      for (Part part: parts) {
+        // A part that got no lines has an empty range where it would have started
+        long firstLine = (part.firstLine < 0) ? nextLine : part.firstLine;
+        long lastLine = (part.firstLine < 0) ? nextLine - 1 : part.lastLine;
+        gen.writeStartObject();
+        gen.writeStringField("file", part.filename);
+        gen.writeNumberField("firstLine", firstLine);
+        gen.writeNumberField("lastLine", lastLine);
+        gen.writeNumberField("records", part.numRecords);
+        gen.writeNumberField("bytes", part.numBytes);
+        gen.writeEndObject();
+        nextLine = lastLine + 1;
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    } finally {
+      gen.close();
+    }
+    // Some platforms will not rename over an existing file
+    if (! tmp.renameTo(manifest) && ! (manifest.delete() && tmp.renameTo(manifest))) {
+      throw new IOException("Could not replace " + manifest);
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+
+/***************************************
+ * A BaseType represents a bottom-level parsable object: string, int, ipaddr, date, etc.
+ ***************************************/
+public class BaseType extends InferredType {
+  int tokenClassIdentifier;
+  String tokenParameter;
+  List<String> sampleStrs = null;
+
+  static AtomicInteger fieldCounter = new AtomicInteger();
+  public BaseType() {
+  }
+  public BaseType(Token.AbstractToken token, List<String> sampleStrs) {
+    this.sampleStrs = sampleStrs;
+    this.tokenClassIdentifier = token.getClassId();
+    this.tokenParameter = token.getParameter();
+    //System.err.println("Token parameter: " + tokenParameter);
+  }
+  public BaseType(int tokenClassIdentifier, List<String> sampleStrs, String tokenParameter) {
+    this.sampleStrs = sampleStrs;
+    this.tokenClassIdentifier = tokenClassIdentifier;
+    this.tokenParameter = tokenParameter;
+    //System.err.println("Token parameter: " + tokenParameter);
+  }
+  public InferredType hoistUnions() {
+    return this;
+  }
+  Iterable<InferredType> variants() {
+    return Collections.singletonList((InferredType) this);
+  }
+  public boolean hasUnions() {
+    return false;
+  }
+  public InferredType duplicate() {
+    return new BaseType(tokenClassIdentifier, sampleStrs, tokenParameter);
+  }
+
+  protected Schema computeAvroSchema() {
+    return Token.AbstractToken.createAvroSchema(tokenClassIdentifier, tokenParameter, name);
+  }
+  protected int computeSchemaHash() {
+    // Base schemas are small
+    Schema s = getAvroSchema();
+    return (s == null) ? 0 : s.hashCode();
+  }
+  public String getDocString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("Example data: ");
+    for (Iterator<String> it = sampleStrs.iterator(); it.hasNext(); ) {
+      String tokStr = it.next();
+      buf.append("'" + tokStr + "'");
+      if (it.hasNext()) {
+        buf.append(", ");
+      }
+    }
+    return buf.toString();
+  }
+  public ParseResult internalParse(TokenMatcher m, int offset, boolean mustConsumeStr, Object reuse) {
+    int end = m.match(tokenClassIdentifier, tokenParameter, offset);
+    if (end < 0 || (mustConsumeStr && ! m.isBlankFrom(end))) {
+      return null;
+    }
+    return new ParseResult(getValue(m.input, offset, end, reuse), Token.AbstractToken.hasData(tokenClassIdentifier), end);
+  }
+
+  /**
+   * The value of this base's token, which occupies [start, end) of the line.  This
+   * is the same value that Tokenizer.attemptParse() would produce for that text,
+   * except that dates and times use this base's precomputed schema.  A date or time
+   * record with that schema can be passed as 'reuse' to be filled in place.
+   */
+  public Object getValue(CharSequence line, int start, int end, Object reuse) {
+    switch (tokenClassIdentifier) {
+    case Token.CHAR_TOKENCLASSID:
+      return line.charAt(start);
+    case Token.IPADDR_TOKENCLASSID:
+    case Token.PERMISSIONS_TOKENCLASSID:
+    case Token.STRING_TOKENCLASSID:
+      return new Utf8(line.subSequence(start, end).toString());
+    case Token.INT_TOKENCLASSID:
+      return new Token.IntToken(line.subSequence(start, end).toString()).get();
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(line.subSequence(start, end).toString()).get();
+    case Token.DATE_TOKENCLASSID:
+    case Token.TIME_TOKENCLASSID: {
+      List<Token.AbstractToken> outputToks = new ArrayList<Token.AbstractToken>();
+      Tokenizer.attemptParse(tokenClassIdentifier, tokenParameter, line.subSequence(start, end).toString(), outputToks);
+      GenericData.Record gdr = reusableRecord(reuse, getAvroSchema());
+      if (gdr == null) {
+        gdr = new GenericData.Record(getAvroSchema());
+      }
+      Token.AbstractToken tok = outputToks.get(0);
+      return (tok instanceof Token.DateToken) ? ((Token.DateToken) tok).fill(gdr) : ((Token.TimeToken) tok).fill(gdr);
+    }
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Write the value of the token in [start, end) with 'out', just as a
+   * GenericDatumWriter would write getValue().  Strings are copied into 'scratch'
+   * rather than into a new Utf8, and ints and times are parsed in place.  Dates
+   * still go through getValue(), which handles month names.  Tokens without data
+   * write nothing.
+   */
+  void encodeValue(CharSequence line, int start, int end, Encoder out, Utf8 scratch) throws IOException {
+    switch (tokenClassIdentifier) {
+    case Token.IPADDR_TOKENCLASSID:
+    case Token.PERMISSIONS_TOKENCLASSID:
+    case Token.STRING_TOKENCLASSID:
+      out.writeString(setUtf8(scratch, line, start, end));
+      break;
+    case Token.INT_TOKENCLASSID:
+      out.writeInt(parseInt(line, start, end));
+      break;
+    case Token.FLOAT_TOKENCLASSID:
+      out.writeDouble(Double.parseDouble(line.subSequence(start, end).toString()));
+      break;
+    case Token.TIME_TOKENCLASSID:
+      // Either hh:mm:ss or hh:mm (see Tokenizer.timePattern1 and timePattern2)
+      out.writeInt(parseInt(line, start, start + 2));
+      out.writeInt(parseInt(line, start + 3, start + 5));
+      out.writeInt((end - start > 5) ? parseInt(line, start + 6, start + 8) : 0);
+      break;
+    case Token.DATE_TOKENCLASSID: {
+      GenericData.Record gdr = (GenericData.Record) getValue(line, start, end, null);
+      for (int i = 0; i < 3; i++) {
+        out.writeInt((Integer) gdr.get(i));
+      }
+      break;
+    }
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Set 'utf8' to the UTF-8 encoding of [start, end) of the line
+   */
+  static Utf8 setUtf8(Utf8 utf8, CharSequence line, int start, int end) throws IOException {
+    utf8.setByteLength(3 * (end - start));
+    byte bytes[] = utf8.getBytes();
+    int len = 0;
+    for (int i = start; i < end; i++) {
+      char c = line.charAt(i);
+      if (c < 0x80) {
+        bytes[len++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[len++] = (byte) (0xc0 | (c >> 6));
+        bytes[len++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Let the JDK deal with surrogates, as the Utf8(String) constructor does
+        byte encoded[] = line.subSequence(start, end).toString().getBytes("UTF-8");
+        utf8.setByteLength(encoded.length);
+        System.arraycopy(encoded, 0, utf8.getBytes(), 0, encoded.length);
+        return utf8;
+      } else {
+        bytes[len++] = (byte) (0xe0 | (c >> 12));
+        bytes[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[len++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return utf8.setByteLength(len);
+  }
+
+  /**
+   * The same value as Token.IntToken, without creating a String in the usual case
+   */
+  static int parseInt(CharSequence line, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+      negative = (line.charAt(i) == '-');
+      i++;
+    }
+    long value = 0;
+    if (i == end || end - i > 10) {
+      return new Token.IntToken(line.subSequence(start, end).toString()).i;
+    }
+    for (; i < end; i++) {
+      value = value * 10 + (line.charAt(i) - '0');
+    }
+    value = negative ? -value : value;
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      return new Token.IntToken(line.subSequence(start, end).toString()).i;
+    }
+    return (int) value;
+  }
+
+  Map<String, Set<Integer>> findCandidateUnionDecisions() {
+    return new HashMap<String, Set<Integer>>();
+  }
+  void findUnions(Map<String, UnionType> unions) {
+  }
+  List<String> getBases() {
+    List<String> tr = new ArrayList<String>();
+    tr.add(toString());
+    return tr;
+  }
+  boolean addFirstChars(BitSet first) {
+    for (char c = 0; c < UnionType.NONASCII_SLOT; c++) {
+      if (TokenMatcher.canStartWith(tokenClassIdentifier, tokenParameter, c)) {
+        first.set(c);
+      }
+    }
+    if (TokenMatcher.canStartWithNonAscii(tokenClassIdentifier, tokenParameter)) {
+      first.set(UnionType.NONASCII_SLOT);
+    }
+    return false;
+  }
+  public String toString() {
+    return "Base: " + Token.AbstractToken.getStrDesc(tokenClassIdentifier, tokenParameter) + " ";
+  }
+  public double getDescriptionCost() {
+    return CARD_COST;
+  }
+  public double getParseCost() {
+    return 1;
+  }
+  public InferredType refine(RefinementRule rules[]) {
+    return applyRefinementRules(rules);
+  }
+  String createName() {
+    return "base_" + fieldCounter.getAndIncrement();
+  }
+  public void readFields(DataInput in) throws IOException {
+    readFields(in, in.readInt());
+  }
+  /**
+   * Read the rest of a base whose sample count has already been read
+   */
+  void readFields(DataInput in, int numSamples) throws IOException {
+    // instance-specific
+    this.sampleStrs = new ArrayList<String>();
+    for (int i = 0; i < numSamples; i++) {
+      sampleStrs.add(in.readUTF());
+    }
+    this.tokenClassIdentifier = in.readInt();
+    if (in.readBoolean()) {
+      this.tokenParameter = in.readUTF();
+    } else {
+      this.tokenParameter = null;
+    }
+  }
+  public void write(DataOutput out) throws IOException {
+    out.write(BASE_TYPE);
+    out.writeInt(sampleStrs.size());
+    for (int i = 0; i < sampleStrs.size(); i++) {
+      writeString(out, sampleStrs.get(i));
+    }
+    out.writeInt(tokenClassIdentifier);
+    out.writeBoolean(tokenParameter != null);
+    if (tokenParameter != null) {
+      writeString(out, tokenParameter);
+    }
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+
+/*********************************************************
+ * ColumnarReader reads a file written by ColumnarWriter.  Opening the file
+ * reads only the footer; a chunk's bytes are read when the chunk is scanned,
+ * so a scan touches only the columns it asks for.  The footer's min and max
+ * let a scan skip row groups without reading them at all.
+ *
+ * A file is not mapped as a whole, which would limit it to 2GB.  The header,
+ * the footer, and each chunk are mapped on their own as they are needed.  A
+ * reader opened on a file keeps it open until close().
+ *********************************************************/
+public class ColumnarReader {
+  Schema schema;
+  List<ColumnarWriter.Column> columns;
+  ColumnarWriter.RowGroupInfo rowGroups[];
+  FileInputStream in;
+  FileChannel channel;
+  ByteBuffer buf;
+
+  public ColumnarReader(File f) throws IOException {
+    this.in = new FileInputStream(f);
+    this.channel = in.getChannel();
+    try {
+      init(channel.size());
+    } catch (IOException iex) {
+      close();
+      throw iex;
+    }
+  }
+  public ColumnarReader(ByteBuffer buf) throws IOException {
+    this.buf = buf;
+    init(buf.limit());
+  }
+
+  /**
+   * The 'length' bytes at 'offset', mapped from the file or sliced from the buffer
+   */
+  ByteBuffer region(long offset, int length) throws IOException {
+    if (channel != null) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+    ByteBuffer src = buf.duplicate();
+    src.position((int) offset);
+    src.limit((int) offset + length);
+    return src.slice();
+  }
+
+  void init(long end) throws IOException {
+    if (end < 16) {
+      throw new IOException("Not a columnar data file");
+    }
+    ByteBuffer header = region(0, 8);
+    ByteBuffer trailer = region(end - 8, 8);
+    if (header.getInt(0) != ColumnarWriter.MAGIC || trailer.getInt(4) != ColumnarWriter.MAGIC) {
+      throw new IOException("Not a columnar data file");
+    }
+    int version = header.getInt(4);
+    if (version != ColumnarWriter.VERSION) {
+      throw new IOException("Unknown columnar file version: " + version);
+    }
+    int footerLength = trailer.getInt(0);
+    byte footerBytes[] = new byte[footerLength];
+    region(end - 8 - footerLength, footerLength).get(footerBytes);
+    DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBytes));
+
+    this.schema = Schema.parse(new String(readBytes(footer), "UTF-8"));
+    this.columns = ColumnarWriter.getColumns(schema);
+    this.rowGroups = new ColumnarWriter.RowGroupInfo[footer.readInt()];
+    for (int i = 0; i < rowGroups.length; i++) {
+      ColumnarWriter.RowGroupInfo rowGroup = new ColumnarWriter.RowGroupInfo();
+      rowGroup.numRows = footer.readLong();
+      rowGroup.chunks = new ColumnarWriter.ChunkInfo[columns.size()];
+      for (int j = 0; j < rowGroup.chunks.length; j++) {
+        ColumnarWriter.ChunkInfo chunk = new ColumnarWriter.ChunkInfo();
+        chunk.offset = footer.readLong();
+        chunk.length = footer.readInt();
+        chunk.numSlots = footer.readInt();
+        chunk.numValues = footer.readInt();
+        if (ColumnarWriter.hasStats(chunk, columns.get(j).type)) {
+          chunk.min = readStat(footer, columns.get(j).type);
+          chunk.max = readStat(footer, columns.get(j).type);
+        }
+        rowGroup.chunks[j] = chunk;
+      }
+      rowGroups[i] = rowGroup;
+    }
+  }
+
+  static Comparable<?> readStat(DataInput in, Schema.Type type) throws IOException {
+    switch (type) {
+    case INT:
+      return in.readInt();
+    case LONG:
+      return in.readLong();
+    case DOUBLE:
+      return in.readDouble();
+    default:
+      return new Utf8(readBytes(in));
+    }
+  }
+  static byte[] readBytes(DataInput in) throws IOException {
+    byte bytes[] = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+  public List<ColumnarWriter.Column> getColumns() {
+    return columns;
+  }
+
+  /**
+   * The index of the column with the given path, or -1
+   */
+  public int getColumnIndex(String path) {
+    for (int i = 0; i < columns.size(); i++) {
+      if (columns.get(i).path.equals(path)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getNumRowGroups() {
+    return rowGroups.length;
+  }
+  public long getNumRows(int rowGroup) {
+    return rowGroups[rowGroup].numRows;
+  }
+  public long getNumRows() {
+    long total = 0;
+    for (ColumnarWriter.RowGroupInfo rowGroup: rowGroups) {
+      total += rowGroup.numRows;
+    }
+    return total;
+  }
+
+  /**
+   * A chunk's value count, min, and max.  The min and max are null if the chunk
+   * has no values, or if its column is an empty record.  Strings are Utf8s.
+   */
+  public int getNumValues(int rowGroup, int column) {
+    return rowGroups[rowGroup].chunks[column].numValues;
+  }
+  public Comparable<?> getMin(int rowGroup, int column) {
+    return rowGroups[rowGroup].chunks[column].min;
+  }
+  public Comparable<?> getMax(int rowGroup, int column) {
+    return rowGroups[rowGroup].chunks[column].max;
+  }
+  public int getChunkLength(int rowGroup, int column) {
+    return rowGroups[rowGroup].chunks[column].length;
+  }
+
+  void readChunkBytes(ColumnarWriter.ChunkInfo chunk, byte bytes[]) throws IOException {
+    region(chunk.offset, chunk.length).get(bytes, 0, chunk.length);
+  }
+
+  /**
+   * Close the file, if the reader was opened on one
+   */
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+      in = null;
+      channel = null;
+    }
+  }
+
+  /**
+   * Start scanning one chunk
+   */
+  public ChunkScanner scan(int rowGroup, int column) throws IOException {
+    ColumnarWriter.ChunkInfo chunk = rowGroups[rowGroup].chunks[column];
+    byte bytes[] = new byte[chunk.length];
+    readChunkBytes(chunk, bytes);
+    return new ChunkScanner(columns.get(column), chunk.numSlots, bytes);
+  }
+
+  /**
+   * ChunkScanner steps through a chunk's slots.  After each successful
+   * next(), the slot's levels are available, and so is its value if
+   * hasValue() is true.
+   */
+  public static class ChunkScanner {
+    ColumnarWriter.Column column;
+    int numSlots;
+    int slot = -1;
+    int repLevels[];
+    int defLevels[];
+    BinaryDecoder decoder;
+    Object value;
+
+    ChunkScanner(ColumnarWriter.Column column, int numSlots, byte bytes[]) throws IOException {
+      this.column = column;
+      this.numSlots = numSlots;
+      this.decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+      // The levels come first, so expand them now; values are decoded as the scan reaches them
+      this.repLevels = (column.maxRep > 0) ? readLevels(decoder, numSlots) : null;
+      this.defLevels = (column.maxDef > 0) ? readLevels(decoder, numSlots) : null;
+    }
+    static int[] readLevels(BinaryDecoder decoder, int numSlots) throws IOException {
+      int levels[] = new int[numSlots];
+      int i = 0;
+      while (i < numSlots) {
+        int runLength = decoder.readInt();
+        int level = decoder.readInt();
+        Arrays.fill(levels, i, i + runLength, level);
+        i += runLength;
+      }
+      return levels;
+    }
+
+    public boolean next() throws IOException {
+      if (slot + 1 >= numSlots) {
+        return false;
+      }
+      slot++;
+      value = null;
+      if (hasValue()) {
+        switch (column.type) {
+        case NULL:
+          break;
+        case INT:
+          value = decoder.readInt();
+          break;
+        case LONG:
+          value = decoder.readLong();
+          break;
+        case DOUBLE:
+          value = decoder.readDouble();
+          break;
+        default:
+          value = decoder.readString(null);
+          break;
+        }
+      }
+      return true;
+    }
+    public int getRep() {
+      return (repLevels == null) ? 0 : repLevels[slot];
+    }
+    public int getDef() {
+      return (defLevels == null) ? 0 : defLevels[slot];
+    }
+    public boolean hasValue() {
+      return getDef() == column.maxDef;
+    }
+    public Object getValue() {
+      return value;
+    }
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+
+  /**
+   * main() describes a columnar file.  Given column paths, it also scans those
+   * columns, skipping row groups whose min and max rule out 'value' if one is
+   * given, and reports how much of the file the scan read.
+   */
+  public static void main(String argv[]) throws IOException {
+    if (argv.length < 1) {
+      System.err.println("Usage: ColumnarReader <data.columns> (-equals <value>) (columnPath ...)");
+      return;
+    }
+    File f = new File(argv[0]);
+    String target = null;
+    List<String> paths = new ArrayList<String>();
+    for (int i = 1; i < argv.length; i++) {
+      if ("-equals".equals(argv[i])) {
+        i++;
+        target = argv[i];
+      } else {
+        paths.add(argv[i]);
+      }
+    }
+    ColumnarReader reader = new ColumnarReader(f);
+    try {
+      describe(reader, f, target, paths);
+    } finally {
+      reader.close();
+    }
+  }
+  static void describe(ColumnarReader reader, File f, String target, List<String> paths) throws IOException {
+    System.err.println(reader.getNumRows() + " rows in " + reader.getNumRowGroups() + " row groups, " + f.length() + " bytes");
+    for (int j = 0; j < reader.getColumns().size(); j++) {
+      long length = 0;
+      for (int i = 0; i < reader.getNumRowGroups(); i++) {
+        length += reader.getChunkLength(i, j);
+      }
+      System.err.println("  " + reader.getColumns().get(j) + ": " + length + " bytes");
+    }
+
+    for (String path: paths) {
+      int column = reader.getColumnIndex(path);
+      if (column < 0) {
+        System.err.println("No column " + path);
+        continue;
+      }
+      long bytesRead = 0;
+      int numMatches = 0;
+      int numSkipped = 0;
+      for (int i = 0; i < reader.getNumRowGroups(); i++) {
+        if (target != null && ! mayContain(reader, i, column, target)) {
+          numSkipped++;
+          continue;
+        }
+        bytesRead += reader.getChunkLength(i, column);
+        ChunkScanner scanner = reader.scan(i, column);
+        while (scanner.next()) {
+          if (target == null) {
+            System.out.println("r=" + scanner.getRep() + " d=" + scanner.getDef() + (scanner.hasValue() ? " " + scanner.getValue() : ""));
+          } else if (scanner.hasValue() && target.equals(String.valueOf(scanner.getValue()))) {
+            numMatches++;
+          }
+        }
+      }
+      System.err.println("Scanned " + path + ": read " + bytesRead + " of " + f.length() + " bytes, skipped " + numSkipped + " row groups" +
+                         ((target != null) ? ", " + numMatches + " values equal " + target : ""));
+    }
+  }
+
+  /**
+   * Whether a chunk's min and max allow it to hold 'target'
+   */
+  static boolean mayContain(ColumnarReader reader, int rowGroup, int column, String target) {
+    Comparable<?> min = reader.getMin(rowGroup, column);
+    Comparable<?> max = reader.getMax(rowGroup, column);
+    if (min == null) {
+      return false;
+    }
+    Comparable<?> value;
+    try {
+      switch (reader.getColumns().get(column).type) {
+      case INT:
+        value = Integer.valueOf(target);
+        break;
+      case LONG:
+        value = Long.valueOf(target);
+        break;
+      case DOUBLE:
+        value = Double.valueOf(target);
+        break;
+      default:
+        value = new Utf8(target);
+        break;
+      }
+    } catch (NumberFormatException nfe) {
+      return false;
+    }
+    return ColumnarWriter.compareStats(value, min) >= 0 && ColumnarWriter.compareStats(value, max) <= 0;
+  }
+}
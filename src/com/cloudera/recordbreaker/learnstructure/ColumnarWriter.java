@@ -0,0 +1,583 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.IndexedRecord;
+
+/*********************************************************
+ * ColumnarWriter stores learned records column by column, so that a scan
+ * reads only the fields it needs (see ColumnarReader).
+ *
+ * Every leaf of the record schema is a column, and so is every record with no
+ * fields, whose column holds no values but says where the record is present
+ * (it may be a union branch).  Records are split into their
+ * columns as in Dremel: each slot in a column has a repetition level, which
+ * says which enclosing array it repeats in (0 starts a new record), and a
+ * definition level, which counts how many of its optional ancestors are present.
+ * Arrays and union branches are the optional ancestors; record fields are always
+ * present.  A slot only has a value if its definition level is the column's
+ * maximum.  An empty array, or a union that took another branch, still leaves
+ * one valueless slot in each column below it.
+ *
+ * Records are buffered into row groups of roughly 'rowGroupSize' bytes.  A row
+ * group has one chunk per column, and the footer records each chunk's place,
+ * slot and value counts, and the min and max of its values.  The file is:
+ *
+ *   magic (int), version (int)
+ *   chunks, row group by row group, each column in getColumns() order:
+ *     repetition levels (only if the column's maxRep > 0)
+ *     definition levels (only if the column's maxDef > 0)
+ *     the values, Avro binary encoded
+ *   Levels are run-length encoded, as Avro ints: a run's length, then its level.
+ *   footer:
+ *     schema JSON, as a byte length (int) and UTF-8 bytes
+ *     row group count (int), then for each row group a row count (long) and
+ *     for each chunk: offset (long), length (int), slot count (int),
+ *     value count (int), and min and max if the value count is nonzero
+ *   footer length (int), magic (int)
+ *
+ * The columns follow from the schema, so the footer does not list them.
+ *********************************************************/
+public class ColumnarWriter {
+  static int MAGIC = 0x52424346;  // "RBCF"
+  static int VERSION = 1;
+  static int DEFAULT_ROW_GROUP_SIZE = 8 * 1024 * 1024;
+  static int SIZE_CHECK_INTERVAL = 64;
+  public static String COLUMNS_FILENAME = "data.columns";
+
+  /**
+   * A column is one leaf of the schema, named by the field and union branch
+   * names on the way down from the root.
+   */
+  public static class Column {
+    String path;
+    Schema.Type type;
+    int maxRep;
+    int maxDef;
+
+    Column(String path, Schema.Type type, int maxRep, int maxDef) {
+      this.path = path;
+      this.type = type;
+      this.maxRep = maxRep;
+      this.maxDef = maxDef;
+    }
+    public String getPath() {
+      return path;
+    }
+    public Schema.Type getType() {
+      return type;
+    }
+    public int getMaxRep() {
+      return maxRep;
+    }
+    public int getMaxDef() {
+      return maxDef;
+    }
+    public String toString() {
+      return path + " " + type.toString().toLowerCase() + " r=" + maxRep + " d=" + maxDef;
+    }
+  }
+
+  /**
+   * The columns of 'schema', in the order they are stored
+   */
+  public static List<Column> getColumns(Schema schema) {
+    List<ChunkBuffer> chunks = new ArrayList<ChunkBuffer>();
+    buildShredder(schema, null, 0, 0, chunks);
+    List<Column> columns = new ArrayList<Column>();
+    for (ChunkBuffer chunk: chunks) {
+      columns.add(chunk.column);
+    }
+    return columns;
+  }
+
+  /**
+   * The footer's description of one chunk
+   */
+  static class ChunkInfo {
+    long offset;
+    int length;
+    int numSlots;
+    int numValues;
+    Comparable<?> min;
+    Comparable<?> max;
+  }
+  static class RowGroupInfo {
+    long numRows;
+    ChunkInfo chunks[];
+  }
+
+  //////////////////////////////////////////
+  // Shredding records into columns
+  //////////////////////////////////////////
+
+  /**
+   * Each node of the schema has a Shredder, which sends a datum at that node
+   * to the columns below it.  A Shredder knows its own definition level, so
+   * write() takes only the repetition level.
+   */
+  static abstract class Shredder {
+    abstract void write(Object datum, int rep) throws IOException;
+    abstract void writeNull(int rep, int def) throws IOException;
+  }
+
+  static class RecordShredder extends Shredder {
+    Shredder fields[];
+    RecordShredder(Shredder fields[]) {
+      this.fields = fields;
+    }
+    void write(Object datum, int rep) throws IOException {
+      IndexedRecord record = (IndexedRecord) datum;
+      for (int i = 0; i < fields.length; i++) {
+        fields[i].write(record.get(i), rep);
+      }
+    }
+    void writeNull(int rep, int def) throws IOException {
+      for (int i = 0; i < fields.length; i++) {
+        fields[i].writeNull(rep, def);
+      }
+    }
+  }
+
+  static class ArrayShredder extends Shredder {
+    Shredder body;
+    int elementRep;
+    int def;
+    ArrayShredder(Shredder body, int elementRep, int def) {
+      this.body = body;
+      this.elementRep = elementRep;
+      this.def = def;
+    }
+    void write(Object datum, int rep) throws IOException {
+      Collection<?> elts = (Collection<?>) datum;
+      if (elts.size() == 0) {
+        body.writeNull(rep, def);
+        return;
+      }
+      // The first element takes the enclosing level; the rest repeat at this array
+      for (Object elt: elts) {
+        body.write(elt, rep);
+        rep = elementRep;
+      }
+    }
+    void writeNull(int rep, int def) throws IOException {
+      body.writeNull(rep, def);
+    }
+  }
+
+  static class UnionShredder extends Shredder {
+    Schema schema;
+    Shredder branches[];
+    int def;
+    UnionShredder(Schema schema, Shredder branches[], int def) {
+      this.schema = schema;
+      this.branches = branches;
+      this.def = def;
+    }
+    void write(Object datum, int rep) throws IOException {
+      int branch = GenericData.get().resolveUnion(schema, datum);
+      for (int i = 0; i < branches.length; i++) {
+        if (i == branch) {
+          branches[i].write(datum, rep);
+        } else {
+          branches[i].writeNull(rep, def);
+        }
+      }
+    }
+    void writeNull(int rep, int def) throws IOException {
+      for (int i = 0; i < branches.length; i++) {
+        branches[i].writeNull(rep, def);
+      }
+    }
+  }
+
+  static class LeafShredder extends Shredder {
+    ChunkBuffer chunk;
+    LeafShredder(ChunkBuffer chunk) {
+      this.chunk = chunk;
+    }
+    void write(Object datum, int rep) throws IOException {
+      chunk.add(rep, datum);
+    }
+    void writeNull(int rep, int def) throws IOException {
+      chunk.addNull(rep, def);
+    }
+  }
+
+  /**
+   * Build the Shredder for 'schema', whose data sits at levels 'rep' and 'def',
+   * adding a chunk buffer for each column below it.
+   */
+  static Shredder buildShredder(Schema schema, String path, int rep, int def, List<ChunkBuffer> chunks) {
+    switch (schema.getType()) {
+    case RECORD: {
+      if (schema.getFields().size() == 0) {
+        return buildLeaf(schema, Schema.Type.NULL, path, rep, def, chunks);
+      }
+      List<Schema.Field> fields = schema.getFields();
+      Shredder fieldShredders[] = new Shredder[fields.size()];
+      for (int i = 0; i < fieldShredders.length; i++) {
+        Schema.Field field = fields.get(i);
+        fieldShredders[i] = buildShredder(field.schema(), childPath(path, field.name()), rep, def, chunks);
+      }
+      return new RecordShredder(fieldShredders);
+    }
+    case ARRAY:
+      return new ArrayShredder(buildShredder(schema.getElementType(), path, rep+1, def+1, chunks), rep+1, def);
+    case UNION: {
+      List<Schema> types = schema.getTypes();
+      Shredder branchShredders[] = new Shredder[types.size()];
+      for (int i = 0; i < branchShredders.length; i++) {
+        Schema branch = types.get(i);
+        branchShredders[i] = buildShredder(branch, childPath(path, branch.getName()), rep, def+1, chunks);
+      }
+      return new UnionShredder(schema, branchShredders, def);
+    }
+    case NULL:
+    case INT:
+    case LONG:
+    case DOUBLE:
+    case STRING:
+      return buildLeaf(schema, schema.getType(), path, rep, def, chunks);
+    default:
+      throw new IllegalArgumentException("Cannot store " + schema.getType() + " in a column at " + path);
+    }
+  }
+  static Shredder buildLeaf(Schema schema, Schema.Type type, String path, int rep, int def, List<ChunkBuffer> chunks) {
+    ChunkBuffer chunk = new ChunkBuffer(new Column(path, type, rep, def));
+    chunks.add(chunk);
+    return new LeafShredder(chunk);
+  }
+  static boolean hasStats(ChunkInfo chunk, Schema.Type type) {
+    return chunk.numValues > 0 && type != Schema.Type.NULL;
+  }
+  static String childPath(String path, String name) {
+    return (path == null) ? name : path + "." + name;
+  }
+
+  /**
+   * A column's repetition or definition levels in the current row group.  Most
+   * neighboring slots have the same levels, so they are stored as runs.
+   */
+  static class LevelRuns {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+    int level = -1;
+    int runLength = 0;
+
+    void add(int l) throws IOException {
+      if (l != level && runLength > 0) {
+        endRun();
+      }
+      level = l;
+      runLength++;
+    }
+    void endRun() throws IOException {
+      encoder.writeInt(runLength);
+      encoder.writeInt(level);
+      runLength = 0;
+    }
+
+    /**
+     * The encoded size so far, not counting the current run
+     */
+    int size() throws IOException {
+      encoder.flush();
+      return bytes.size();
+    }
+    void finish() throws IOException {
+      if (runLength > 0) {
+        endRun();
+      }
+      encoder.flush();
+    }
+    void writeTo(OutputStream out) throws IOException {
+      bytes.writeTo(out);
+      bytes.reset();
+      level = -1;
+    }
+  }
+
+  /**
+   * A column's slots in the current row group
+   */
+  static class ChunkBuffer {
+    Column column;
+    LevelRuns repLevels = new LevelRuns();
+    LevelRuns defLevels = new LevelRuns();
+    ByteArrayOutputStream values = new ByteArrayOutputStream();
+    BinaryEncoder encoder;
+    int numSlots;
+    int numValues;
+    Comparable<?> min;
+    Comparable<?> max;
+
+    ChunkBuffer(Column column) {
+      this.column = column;
+      this.encoder = EncoderFactory.get().binaryEncoder(values, null);
+    }
+
+    void add(int rep, Object datum) throws IOException {
+      addLevels(rep, column.maxDef);
+      Comparable<?> value;
+      switch (column.type) {
+      case NULL:
+        numValues++;
+        return;
+      case INT:
+        encoder.writeInt(((Integer) datum).intValue());
+        value = (Integer) datum;
+        break;
+      case LONG:
+        encoder.writeLong(((Long) datum).longValue());
+        value = (Long) datum;
+        break;
+      case DOUBLE:
+        encoder.writeDouble(((Double) datum).doubleValue());
+        value = (Double) datum;
+        break;
+      default: {
+        Utf8 utf8 = (datum instanceof Utf8) ? (Utf8) datum : new Utf8(datum.toString());
+        encoder.writeString(utf8);
+        value = utf8;
+        break;
+      }
+      }
+      if (numValues == 0 || compareStats(value, min) < 0) {
+        min = value;
+      }
+      if (numValues == 0 || compareStats(value, max) > 0) {
+        max = value;
+      }
+      numValues++;
+    }
+    void addNull(int rep, int def) throws IOException {
+      addLevels(rep, def);
+    }
+    void addLevels(int rep, int def) throws IOException {
+      if (column.maxRep > 0) {
+        repLevels.add(rep);
+      }
+      if (column.maxDef > 0) {
+        defLevels.add(def);
+      }
+      numSlots++;
+    }
+
+    int size() throws IOException {
+      encoder.flush();
+      return repLevels.size() + defLevels.size() + values.size();
+    }
+
+    /**
+     * Write the chunk at 'offset' in 'out' and describe it.  The buffer is then empty.
+     */
+    ChunkInfo writeTo(OutputStream out, long offset) throws IOException {
+      repLevels.finish();
+      defLevels.finish();
+      ChunkInfo info = new ChunkInfo();
+      info.offset = offset;
+      info.length = size();
+      info.numSlots = numSlots;
+      info.numValues = numValues;
+      info.min = min;
+      info.max = max;
+      repLevels.writeTo(out);
+      defLevels.writeTo(out);
+      values.writeTo(out);
+
+      values.reset();
+      numSlots = 0;
+      numValues = 0;
+      min = null;
+      max = null;
+      return info;
+    }
+  }
+
+  //////////////////////////////////////////
+  // The writer
+  //////////////////////////////////////////
+
+  Schema schema;
+  Shredder root;
+  List<ChunkBuffer> chunks = new ArrayList<ChunkBuffer>();
+  List<RowGroupInfo> rowGroups = new ArrayList<RowGroupInfo>();
+  DataOutputStream out;
+  long position;
+  long numBufferedRows = 0;
+  int rowGroupSize;
+
+  public ColumnarWriter(Schema schema, File f) throws IOException {
+    this(schema, new BufferedOutputStream(new FileOutputStream(f)), DEFAULT_ROW_GROUP_SIZE);
+  }
+
+  /**
+   * A 'rowGroupSize' of 0 means the default
+   */
+  public ColumnarWriter(Schema schema, OutputStream out, int rowGroupSize) throws IOException {
+    this.schema = schema;
+    this.root = buildShredder(schema, null, 0, 0, chunks);
+    this.out = new DataOutputStream(out);
+    this.rowGroupSize = (rowGroupSize > 0) ? rowGroupSize : DEFAULT_ROW_GROUP_SIZE;
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(VERSION);
+    this.position = 8;
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Add a record, which must have the writer's schema
+   */
+  public void append(GenericContainer record) throws IOException {
+    root.write(record, 0);
+    numBufferedRows++;
+    // Summing the chunk sizes means a pass over the columns, so only do it now and then
+    if (numBufferedRows % SIZE_CHECK_INTERVAL == 0) {
+      long size = 0;
+      for (ChunkBuffer chunk: chunks) {
+        size += chunk.size();
+      }
+      if (size >= rowGroupSize) {
+        flushRowGroup();
+      }
+    }
+  }
+
+  /**
+   * Write out the buffered records as a row group
+   */
+  public void flushRowGroup() throws IOException {
+    if (numBufferedRows == 0) {
+      return;
+    }
+    RowGroupInfo rowGroup = new RowGroupInfo();
+    rowGroup.numRows = numBufferedRows;
+    rowGroup.chunks = new ChunkInfo[chunks.size()];
+    for (int i = 0; i < rowGroup.chunks.length; i++) {
+      rowGroup.chunks[i] = chunks.get(i).writeTo(out, position);
+      position += rowGroup.chunks[i].length;
+    }
+    rowGroups.add(rowGroup);
+    numBufferedRows = 0;
+  }
+
+  /**
+   * Copy every row group of 'in', which must have this writer's schema, to
+   * the end of this file.  The chunks are copied as they are.
+   */
+  public void appendAllFrom(ColumnarReader in) throws IOException {
+    if (! schema.equals(in.getSchema())) {
+      throw new IOException("Schema from columnar file does not match");
+    }
+    flushRowGroup();
+    for (int i = 0; i < in.getNumRowGroups(); i++) {
+      RowGroupInfo src = in.rowGroups[i];
+      RowGroupInfo rowGroup = new RowGroupInfo();
+      rowGroup.numRows = src.numRows;
+      rowGroup.chunks = new ChunkInfo[src.chunks.length];
+      for (int j = 0; j < src.chunks.length; j++) {
+        ChunkInfo chunk = src.chunks[j];
+        byte bytes[] = new byte[chunk.length];
+        in.readChunkBytes(chunk, bytes);
+        out.write(bytes);
+
+        ChunkInfo copy = new ChunkInfo();
+        copy.offset = position;
+        copy.length = chunk.length;
+        copy.numSlots = chunk.numSlots;
+        copy.numValues = chunk.numValues;
+        copy.min = chunk.min;
+        copy.max = chunk.max;
+        rowGroup.chunks[j] = copy;
+        position += chunk.length;
+      }
+      rowGroups.add(rowGroup);
+    }
+  }
+
+  /**
+   * Write the last row group and the footer, and close the file
+   */
+  public void close() throws IOException {
+    flushRowGroup();
+    ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+    DataOutputStream footer = new DataOutputStream(footerBytes);
+    writeBytes(footer, schema.toString().getBytes("UTF-8"));
+    footer.writeInt(rowGroups.size());
+    for (RowGroupInfo rowGroup: rowGroups) {
+      footer.writeLong(rowGroup.numRows);
+      for (int i = 0; i < rowGroup.chunks.length; i++) {
+        ChunkInfo chunk = rowGroup.chunks[i];
+        footer.writeLong(chunk.offset);
+        footer.writeInt(chunk.length);
+        footer.writeInt(chunk.numSlots);
+        footer.writeInt(chunk.numValues);
+        if (hasStats(chunk, chunks.get(i).column.type)) {
+          writeStat(footer, chunks.get(i).column.type, chunk.min);
+          writeStat(footer, chunks.get(i).column.type, chunk.max);
+        }
+      }
+    }
+    footer.flush();
+    footerBytes.writeTo(out);
+    out.writeInt(footerBytes.size());
+    out.writeInt(MAGIC);
+    out.close();
+  }
+
+  /**
+   * Compare two stats from the same column, which have the same class
+   */
+  @SuppressWarnings("unchecked")
+  static int compareStats(Comparable<?> a, Comparable<?> b) {
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  static void writeStat(DataOutput out, Schema.Type type, Comparable<?> stat) throws IOException {
+    switch (type) {
+    case INT:
+      out.writeInt(((Integer) stat).intValue());
+      break;
+    case LONG:
+      out.writeLong(((Long) stat).longValue());
+      break;
+    case DOUBLE:
+      out.writeDouble(((Double) stat).doubleValue());
+      break;
+    default: {
+      Utf8 utf8 = (Utf8) stat;
+      out.writeInt(utf8.getByteLength());
+      out.write(utf8.getBytes(), 0, utf8.getByteLength());
+      break;
+    }
+    }
+  }
+  static void writeBytes(DataOutput out, byte bytes[]) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
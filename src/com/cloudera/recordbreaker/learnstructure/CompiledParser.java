@@ -0,0 +1,838 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+
+/*********************************************************
+ * CompiledParser is a learned InferredType tree, compiled into a flat program for a
+ * small backtracking machine.  It parses exactly what InferredType.parse() parses,
+ * and returns the same data, but it does not walk the object tree or allocate
+ * anything while matching a line.
+ *
+ * Each node of the tree becomes a subroutine.  A StructType calls its children in
+ * order; an ArrayType calls its body in a LOOP; a UnionType tries the branches that
+ * could start at the next character, in its current order (see UnionType.reorderBranches()),
+ * with a BRANCH_ALT instruction pushing a backtrack point before each attempt and COMMIT
+ * discarding it after a success.  Each line sees one snapshot of the union dispatch
+ * tables.  Union choices are committed once made,
+ * just as in InferredType.internalParse().  Lines that need a union to revisit its
+ * choice go to InferredType.backtrackingParse(), just as they do in InferredType.parse().
+ *
+ * The machine records what it matched (token offsets, union branches, array items)
+ * on an integer trail, which is cut back whenever it backtracks.  Avro objects
+ * are built from the trail only after a whole line has matched.  Alternatively,
+ * encode() writes the trail straight to an Avro Encoder, with no objects at all.
+ *
+ * A CompiledParser holds per-line scratch space, so it is not thread-safe.
+ *
+ * ParserGenerator subclasses CompiledParser with generated Java code that replaces
+ * run(); everything else, including the data that is built, stays the same.  The
+ * protected methods below are the generated code's view of the machine.
+ *********************************************************/
+public class CompiledParser {
+  //
+  // Opcodes.  Operands follow the opcode in the code array.
+  //
+  static final int MATCH_CLASS = 0;  // MATCH_CLASS baseIdx: match the base's token at the cursor
+  static final int CHECK_MORE = 1;   // fail if the cursor is at the end of the line
+  static final int CHECK_END = 2;    // fail unless only whitespace remains
+  static final int CALL = 3;         // CALL addr: run a child node's subroutine
+  static final int RETURN = 4;
+  static final int BRANCH = 5;       // BRANCH addr: push a backtrack point that resumes at addr
+  static final int COMMIT = 6;       // COMMIT addr: discard the top backtrack point, jump to addr
+  static final int LOOP = 7;         // LOOP addr: advance the top backtrack point to the cursor, jump to addr
+  static final int CALL_BRANCH = 8;  // CALL_BRANCH u j: record and call union u's j'th branch to try here, or fail
+  static final int MARK_ITEM = 9;    // record the start of an array element
+  static final int MARK_END = 10;    // record the end of an array
+  static final int HALT = 11;        // the line has been parsed
+  static final int BRANCH_ALT = 12;  // BRANCH_ALT u j addr: BRANCH to addr if union u has more than j+1 branches to try here, else to FAIL
+  static final int FAIL = 13;
+
+  static final int OPERAND_COUNTS[] = {1, 0, 0, 1, 0, 1, 1, 1, 2, 0, 0, 0, 3, 0};
+  static final String OPCODE_NAMES[] = {"MATCH_CLASS", "CHECK_MORE", "CHECK_END", "CALL", "RETURN", "BRANCH", "COMMIT", "LOOP", "CALL_BRANCH", "MARK_ITEM", "MARK_END", "HALT", "BRANCH_ALT", "FAIL"};
+
+  InferredType root;
+  int code[];
+  int baseClassIds[];
+  String baseParams[];
+  UnionType unions[];
+  Map<UnionType, Integer> unionIndices;
+  int unionBranchAddrs[][];
+  int failAddr;
+
+  //
+  // Per-line scratch space
+  //
+  TokenMatcher matcher = new TokenMatcher();
+  protected String line;
+  protected int len;
+  int stackAddr[] = new int[64];
+  int stackPos[] = new int[64];
+  int stackTrail[] = new int[64];
+  int trail[] = new int[3 * 64];
+  protected int trailLen;
+  int trailCursor;
+  boolean lastHasData;
+
+  //
+  // For encode()
+  //
+  boolean isDirectlyEncodable;
+  Utf8 scratchUtf8 = new Utf8();
+  GenericDatumWriter<Object> fallbackWriter = null;
+  protected int unionDispatch[][][];
+
+  /**
+   * Compile the given type tree
+   */
+  public CompiledParser(InferredType root) {
+    this.root = root;
+    // Builds every node's schema, field positions, and union branch indices
+    root.getAvroSchema();
+    Compiler c = new Compiler();
+    c.compileProgram(root);
+    this.code = c.finish();
+    this.baseClassIds = new int[c.bases.size()];
+    this.baseParams = new String[c.bases.size()];
+    for (int i = 0; i < c.bases.size(); i++) {
+      baseClassIds[i] = c.bases.get(i).tokenClassIdentifier;
+      baseParams[i] = c.bases.get(i).tokenParameter;
+    }
+    this.unions = c.unions.toArray(new UnionType[c.unions.size()]);
+    this.unionIndices = c.unionIndices;
+    this.unionBranchAddrs = c.unionBranchAddrs;
+    this.failAddr = c.failAddr;
+    this.unionDispatch = new int[unions.length][][];
+    this.isDirectlyEncodable = isDirectlyEncodable(root);
+  }
+
+  /**
+   * Compiler turns the type tree into code.  Every node gets one subroutine for each
+   * way it is called: with or without the obligation to consume the rest of the line.
+   * All jump targets are emitted as label numbers and patched once the code is complete.
+   */
+  class Compiler {
+    int buf[] = new int[256];
+    int size = 0;
+    List<Integer> labelAddrs = new ArrayList<Integer>();
+    List<Integer> fixups = new ArrayList<Integer>();
+    List<BaseType> bases = new ArrayList<BaseType>();
+    Map<BaseType, Integer> baseIndices = new IdentityHashMap<BaseType, Integer>();
+    List<UnionType> unions = new ArrayList<UnionType>();
+    Map<UnionType, Integer> unionIndices = new IdentityHashMap<UnionType, Integer>();
+    List<int[]> unionBranchLabels = new ArrayList<int[]>();
+    int unionBranchAddrs[][];
+    int failAddr;
+    List<Map<InferredType, Integer>> subroutines = new ArrayList<Map<InferredType, Integer>>();
+    LinkedList<InferredType> pendingNodes = new LinkedList<InferredType>();
+    LinkedList<Boolean> pendingConsume = new LinkedList<Boolean>();
+
+    Compiler() {
+      subroutines.add(new IdentityHashMap<InferredType, Integer>());
+      subroutines.add(new IdentityHashMap<InferredType, Integer>());
+    }
+
+    void emit(int x) {
+      if (size == buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+      buf[size++] = x;
+    }
+    void emitJump(int opcode, int label) {
+      emit(opcode);
+      fixups.add(size);
+      emit(label);
+    }
+    int newLabel() {
+      labelAddrs.add(-1);
+      return labelAddrs.size() - 1;
+    }
+    void placeLabel(int label) {
+      labelAddrs.set(label, size);
+    }
+
+    /**
+     * The label of the subroutine for 'node', queueing it for compilation if needed
+     */
+    int subroutine(InferredType node, boolean mustConsumeStr) {
+      Map<InferredType, Integer> labels = subroutines.get(mustConsumeStr ? 1 : 0);
+      Integer label = labels.get(node);
+      if (label == null) {
+        label = newLabel();
+        labels.put(node, label);
+        pendingNodes.add(node);
+        pendingConsume.add(mustConsumeStr);
+      }
+      return label;
+    }
+
+    void compileProgram(InferredType root) {
+      emitJump(CALL, subroutine(root, true));
+      emit(HALT);
+      failAddr = size;
+      emit(FAIL);
+      while (pendingNodes.size() > 0) {
+        InferredType node = pendingNodes.removeFirst();
+        boolean mustConsumeStr = pendingConsume.removeFirst();
+        placeLabel(subroutine(node, mustConsumeStr));
+        compileNode(node, mustConsumeStr);
+      }
+    }
+
+    void compileNode(InferredType node, boolean mustConsumeStr) {
+      if (node instanceof BaseType) {
+        BaseType bt = (BaseType) node;
+        Integer baseIdx = baseIndices.get(bt);
+        if (baseIdx == null) {
+          baseIdx = bases.size();
+          bases.add(bt);
+          baseIndices.put(bt, baseIdx);
+        }
+        emit(MATCH_CLASS);
+        emit(baseIdx);
+        if (mustConsumeStr) {
+          emit(CHECK_END);
+        }
+        emit(RETURN);
+      } else if (node instanceof StructType) {
+        List<InferredType> elts = ((StructType) node).structTypes;
+        for (int i = 0; i < elts.size(); i++) {
+          boolean isLast = (i == elts.size() - 1);
+          emit(CHECK_MORE);
+          emitJump(CALL, subroutine(elts.get(i), isLast && mustConsumeStr));
+        }
+        if (mustConsumeStr) {
+          emit(CHECK_END);
+        }
+        emit(RETURN);
+      } else if (node instanceof ArrayType) {
+        InferredType body = ((ArrayType) node).bodyType;
+        int top = newLabel();
+        int exit = newLabel();
+        emitJump(BRANCH, exit);
+        placeLabel(top);
+        emit(MARK_ITEM);
+        emitJump(CALL, subroutine(body, false));
+        emitJump(LOOP, top);
+        placeLabel(exit);
+        emit(MARK_END);
+        if (mustConsumeStr) {
+          emit(CHECK_END);
+        }
+        emit(RETURN);
+      } else if (node instanceof UnionType) {
+        UnionType ut = (UnionType) node;
+        int unionIdx = unionIndex(ut);
+        // Try each branch in order; the last one needs no backtrack point
+        int done = newLabel();
+        for (int j = 0; j < ut.unionTypes.size(); j++) {
+          boolean isLast = (j == ut.unionTypes.size() - 1);
+          int next = newLabel();
+          if (! isLast) {
+            emit(BRANCH_ALT);
+            emit(unionIdx);
+            emit(j);
+            fixups.add(size);
+            emit(next);
+          }
+          emit(CALL_BRANCH);
+          emit(unionIdx);
+          emit(j);
+          if (mustConsumeStr) {
+            emit(CHECK_END);
+          }
+          if (! isLast) {
+            emitJump(COMMIT, done);
+            placeLabel(next);
+          }
+        }
+        placeLabel(done);
+        emit(RETURN);
+      } else {
+        throw new IllegalArgumentException("Cannot compile " + node);
+      }
+    }
+
+    /**
+     * The index of the union, along with the subroutine labels of its branches
+     */
+    int unionIndex(UnionType ut) {
+      Integer unionIdx = unionIndices.get(ut);
+      if (unionIdx == null) {
+        unionIdx = unions.size();
+        unions.add(ut);
+        unionIndices.put(ut, unionIdx);
+        int labels[] = new int[ut.unionTypes.size()];
+        for (int i = 0; i < labels.length; i++) {
+          labels[i] = subroutine(ut.unionTypes.get(i), false);
+        }
+        unionBranchLabels.add(labels);
+      }
+      return unionIdx;
+    }
+
+    int[] finish() {
+      for (int pos: fixups) {
+        buf[pos] = labelAddrs.get(buf[pos]);
+      }
+      unionBranchAddrs = new int[unionBranchLabels.size()][];
+      for (int u = 0; u < unionBranchAddrs.length; u++) {
+        int labels[] = unionBranchLabels.get(u);
+        unionBranchAddrs[u] = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+          unionBranchAddrs[u][i] = labelAddrs.get(labels[i]);
+        }
+      }
+      return Arrays.copyOf(buf, size);
+    }
+  }
+
+  /**
+   * Parse a line, with the same results as InferredType.parse()
+   */
+  public GenericContainer parse(String str) {
+    return parse(str, null);
+  }
+
+  /**
+   * Parse a line, filling in 'reuse' where possible.  See InferredType.parse(String, GenericContainer).
+   */
+  public GenericContainer parse(String str, GenericContainer reuse) {
+    //
+    // Try the naive parse
+    //
+    if (run(str)) {
+      // The branches materialize() takes are counted only if the line has data
+      Object data = materialize(str, reuse);
+      if (lastHasData) {
+        matcher.countBranches();
+        return (GenericContainer) data;
+      }
+      matcher.cutTrail(0);
+    }
+
+    //
+    // Otherwise, let the unions revisit their choices
+    //
+    return root.backtrackingParse(matcher);
+  }
+
+  /**
+   * Run the program over the line.  Returns true if the whole line was matched,
+   * in which case the trail describes the parse.
+   */
+  protected boolean run(String line) {
+    startLine(line);
+    int pc = 0;
+    int pos = 0;
+    int sp = 0;
+    trailLen = 0;
+
+    while (true) {
+      boolean ok = true;
+      int op = code[pc];
+      switch (op) {
+      case MATCH_CLASS: {
+        int baseIdx = code[pc+1];
+        int end = matcher.match(baseClassIds[baseIdx], baseParams[baseIdx], pos);
+        if (end < 0) {
+          ok = false;
+        } else {
+          markMatch(pos, end);
+          pos = end;
+          pc += 2;
+        }
+        break;
+      }
+      case CHECK_MORE:
+        ok = (pos < len);
+        pc++;
+        break;
+      case CHECK_END:
+        ok = matcher.isBlankFrom(pos);
+        pc++;
+        break;
+      case CALL:
+        sp = push(sp, pc + 2, -1);
+        pc = code[pc+1];
+        break;
+      case RETURN:
+        sp--;
+        pc = stackAddr[sp];
+        break;
+      case BRANCH:
+        sp = push(sp, code[pc+1], pos);
+        pc += 2;
+        break;
+      case COMMIT:
+        sp--;
+        pc = code[pc+1];
+        break;
+      case LOOP: {
+        int top = sp - 1;
+        if (pos == stackPos[top]) {
+          // The body matched nothing; stop here rather than loop forever
+          trailLen = stackTrail[top];
+          pc = stackAddr[top];
+          sp--;
+        } else {
+          stackPos[top] = pos;
+          stackTrail[top] = trailLen;
+          pc = code[pc+1];
+        }
+        break;
+      }
+      case CALL_BRANCH: {
+        int unionIdx = code[pc+1];
+        int branches[] = unionDispatch[unionIdx][dispatchSlot(pos)];
+        if (code[pc+2] >= branches.length) {
+          ok = false;
+        } else {
+          int branchIdx = branches[code[pc+2]];
+          markBranch(branchIdx);
+          sp = push(sp, pc + 3, -1);
+          pc = unionBranchAddrs[unionIdx][branchIdx];
+        }
+        break;
+      }
+      case BRANCH_ALT: {
+        // Always push, so that the COMMIT after a success has a backtrack point to discard
+        boolean hasMore = code[pc+2] + 1 < unionDispatch[code[pc+1]][dispatchSlot(pos)].length;
+        sp = push(sp, hasMore ? code[pc+3] : failAddr, pos);
+        pc += 4;
+        break;
+      }
+      case FAIL:
+        ok = false;
+        break;
+      case MARK_ITEM:
+        markItem();
+        pc++;
+        break;
+      case MARK_END:
+        markEnd();
+        pc++;
+        break;
+      case HALT:
+        return true;
+      default:
+        throw new IllegalStateException("Bad opcode " + op + " at " + pc);
+      }
+
+      if (! ok) {
+        // Unwind to the most recent backtrack point
+        while (sp > 0 && stackPos[sp-1] < 0) {
+          sp--;
+        }
+        if (sp == 0) {
+          return false;
+        }
+        sp--;
+        pc = stackAddr[sp];
+        pos = stackPos[sp];
+        trailLen = stackTrail[sp];
+      }
+    }
+  }
+
+  /**
+   * Push a stack entry.  Return addresses have pos == -1; backtrack points have pos >= 0.
+   */
+  int push(int sp, int addr, int pos) {
+    if (sp == stackAddr.length) {
+      stackAddr = Arrays.copyOf(stackAddr, sp * 2);
+      stackPos = Arrays.copyOf(stackPos, sp * 2);
+      stackTrail = Arrays.copyOf(stackTrail, sp * 2);
+    }
+    stackAddr[sp] = addr;
+    stackPos[sp] = pos;
+    stackTrail[sp] = trailLen;
+    return sp + 1;
+  }
+
+  /**
+   * Machine primitives, shared with generated parsers
+   */
+  protected void startLine(String line) {
+    matcher.reset(line);
+    this.line = line;
+    this.len = line.length();
+    this.trailLen = 0;
+    for (int i = 0; i < unions.length; i++) {
+      unionDispatch[i] = unions[i].getDispatchOrders();
+    }
+  }
+  protected int dispatchSlot(int pos) {
+    return UnionType.dispatchSlot(line, len, pos);
+  }
+  protected int matchToken(int tokenClassId, String tokenParameter, int pos) {
+    return matcher.match(tokenClassId, tokenParameter, pos);
+  }
+  protected boolean isBlankFrom(int pos) {
+    return matcher.isBlankFrom(pos);
+  }
+  protected void markMatch(int start, int end) {
+    mark(MATCH_CLASS, start, end);
+  }
+  protected void markBranch(int branchIdx) {
+    mark(CALL_BRANCH, branchIdx, 0);
+  }
+  protected void markItem() {
+    mark(MARK_ITEM, 0, 0);
+  }
+  protected void markEnd() {
+    mark(MARK_END, 0, 0);
+  }
+  void mark(int kind, int a, int b) {
+    if (trailLen + 3 > trail.length) {
+      trail = Arrays.copyOf(trail, trail.length * 2);
+    }
+    trail[trailLen++] = kind;
+    trail[trailLen++] = a;
+    trail[trailLen++] = b;
+  }
+
+  /**
+   * Build the parsed data from the trail, following the type tree.  Records and
+   * arrays in 'reuse' with matching schemas are filled in place.  The union branches
+   * taken are added to the matcher's trail, for the caller to count.
+   */
+  Object materialize(String line, Object reuse) {
+    trailCursor = 0;
+    return materialize(root, line, reuse);
+  }
+  Object materialize(InferredType node, String line, Object reuse) {
+    if (node instanceof BaseType) {
+      BaseType bt = (BaseType) node;
+      int start = trail[trailCursor+1];
+      int end = trail[trailCursor+2];
+      trailCursor += 3;
+      lastHasData = Token.AbstractToken.hasData(bt.tokenClassIdentifier);
+      return bt.getValue(line, start, end, reuse);
+    } else if (node instanceof StructType) {
+      StructType st = (StructType) node;
+      GenericData.Record gdr = InferredType.reusableRecord(reuse, st.getAvroSchema());
+      if (gdr == null) {
+        gdr = new GenericData.Record(st.getAvroSchema());
+      }
+      boolean hasData = false;
+      for (int i = 0; i < st.structTypes.size(); i++) {
+        int pos = st.fieldPositions[i];
+        Object data = materialize(st.structTypes.get(i), line, (pos >= 0) ? gdr.get(pos) : null);
+        if (pos >= 0) {
+          gdr.put(pos, lastHasData ? data : null);
+        }
+        hasData |= lastHasData;
+      }
+      lastHasData = hasData;
+      return gdr;
+    } else if (node instanceof ArrayType) {
+      ArrayType at = (ArrayType) node;
+      GenericData.Array<Object> gda;
+      if (reuse instanceof GenericData.Array && ((GenericData.Array<?>) reuse).getSchema() == at.getAvroSchema()) {
+        @SuppressWarnings("unchecked")
+        GenericData.Array<Object> reuseArray = (GenericData.Array<Object>) reuse;
+        gda = reuseArray;
+        gda.clear();
+      } else {
+        gda = new GenericData.Array<Object>(5, at.getAvroSchema());
+      }
+      while (trail[trailCursor] == MARK_ITEM) {
+        trailCursor += 3;
+        gda.add(materialize(at.bodyType, line, gda.peek()));
+      }
+      trailCursor += 3;
+      lastHasData = true;
+      return gda;
+    } else {
+      UnionType ut = (UnionType) node;
+      int branchIdx = trail[trailCursor+1];
+      trailCursor += 3;
+      matcher.addBranch(ut, branchIdx);
+      return materialize(ut.unionTypes.get(branchIdx), line, reuse);
+    }
+  }
+
+  /**
+   * Parse a line and write it to each of 'outs', with exactly the calls that a
+   * GenericDatumWriter would make for what parse() returns.  Returns false, having
+   * written nothing, if the line does not parse.
+   *
+   * Values go straight from the line to the encoders; no records, arrays, or
+   * strings are created.  The exceptions are lines that need the backtracking
+   * fallback, and trees in which some parse could lack data (which the writer
+   * would reject as a null).  Those are parsed into objects and written as usual.
+   */
+  public boolean encode(String str, Encoder... outs) throws IOException {
+    GenericContainer gct = null;
+    if (isDirectlyEncodable) {
+      if (run(str)) {
+        for (int i = 0; i < outs.length; i++) {
+          trailCursor = 0;
+          encode(root, outs[i], i == 0);
+        }
+        return true;
+      }
+      gct = root.backtrackingParse(matcher);
+    } else {
+      gct = parse(str);
+    }
+    if (gct == null) {
+      return false;
+    }
+    if (fallbackWriter == null) {
+      fallbackWriter = new GenericDatumWriter<Object>(root.getAvroSchema());
+    }
+    for (Encoder out: outs) {
+      fallbackWriter.write(gct, out);
+    }
+    return true;
+  }
+
+  /**
+   * Write a node's part of the trail, following the same schema order as the writer
+   */
+  void encode(InferredType node, Encoder out, boolean countBranches) throws IOException {
+    if (node instanceof BaseType) {
+      ((BaseType) node).encodeValue(line, trail[trailCursor+1], trail[trailCursor+2], out, scratchUtf8);
+      trailCursor += 3;
+    } else if (node instanceof StructType) {
+      for (InferredType subelt: ((StructType) node).structTypes) {
+        encode(subelt, out, countBranches);
+      }
+    } else if (node instanceof ArrayType) {
+      InferredType body = ((ArrayType) node).bodyType;
+      out.writeArrayStart();
+      out.setItemCount(countItems(body));
+      while (trail[trailCursor] == MARK_ITEM) {
+        trailCursor += 3;
+        out.startItem();
+        encode(body, out, countBranches);
+      }
+      trailCursor += 3;
+      out.writeArrayEnd();
+    } else {
+      UnionType ut = (UnionType) node;
+      int branchIdx = trail[trailCursor+1];
+      trailCursor += 3;
+      if (countBranches) {
+        ut.countBranch(branchIdx);
+      }
+      out.writeIndex(ut.branchSchemaIndices[branchIdx]);
+      encode(ut.unionTypes.get(branchIdx), out, countBranches);
+    }
+  }
+
+  /**
+   * The number of elements in the array that starts at the trail cursor.  The
+   * cursor is left where it was.
+   */
+  int countItems(InferredType body) {
+    int start = trailCursor;
+    int numItems = 0;
+    while (trail[trailCursor] == MARK_ITEM) {
+      trailCursor += 3;
+      skip(body);
+      numItems++;
+    }
+    trailCursor = start;
+    return numItems;
+  }
+  void skip(InferredType node) {
+    if (node instanceof BaseType) {
+      trailCursor += 3;
+    } else if (node instanceof StructType) {
+      for (InferredType subelt: ((StructType) node).structTypes) {
+        skip(subelt);
+      }
+    } else if (node instanceof ArrayType) {
+      while (trail[trailCursor] == MARK_ITEM) {
+        trailCursor += 3;
+        skip(((ArrayType) node).bodyType);
+      }
+      trailCursor += 3;
+    } else {
+      int branchIdx = trail[trailCursor+1];
+      trailCursor += 3;
+      skip(((UnionType) node).unionTypes.get(branchIdx));
+    }
+  }
+
+  /**
+   * True if encode() writes lines that parse without forced decisions straight
+   * from the trail
+   */
+  public boolean isDirectlyEncodable() {
+    return isDirectlyEncodable;
+  }
+
+  /**
+   * True if every parse of the node has data, and so does every value inside it.
+   * Then every value in the trail has a place in the schema, and can be encoded directly.
+   */
+  static boolean isDirectlyEncodable(InferredType node) {
+    if (node instanceof BaseType) {
+      return Token.AbstractToken.hasData(((BaseType) node).tokenClassIdentifier);
+    } else if (node instanceof StructType) {
+      StructType st = (StructType) node;
+      boolean hasData = false;
+      for (int i = 0; i < st.structTypes.size(); i++) {
+        if (st.fieldPositions[i] >= 0) {
+          if (! isDirectlyEncodable(st.structTypes.get(i))) {
+            return false;
+          }
+          hasData = true;
+        }
+      }
+      return hasData;
+    } else if (node instanceof ArrayType) {
+      return isDirectlyEncodable(((ArrayType) node).bodyType);
+    } else {
+      for (InferredType branch: ((UnionType) node).unionTypes) {
+        if (! isDirectlyEncodable(branch)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A reusable buffer for one binary-encoded record, in the form that
+   * DataFileWriter.appendEncoded() takes.  Call reset() before each record.
+   */
+  public static class EncodeBuffer extends ByteArrayOutputStream {
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(this, null);
+    ByteBuffer byteBuffer = null;
+
+    public BinaryEncoder getEncoder() {
+      return encoder;
+    }
+    public ByteBuffer getByteBuffer() {
+      if (byteBuffer == null || byteBuffer.array() != buf) {
+        byteBuffer = ByteBuffer.wrap(buf);
+      }
+      byteBuffer.limit(count);
+      byteBuffer.position(0);
+      return byteBuffer;
+    }
+  }
+
+  /**
+   * A readable listing of the program
+   */
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    int pc = 0;
+    while (pc < code.length) {
+      int op = code[pc];
+      int numOperands = OPERAND_COUNTS[op];
+      buf.append(pc + ":\t" + OPCODE_NAMES[op]);
+      for (int i = 1; i <= numOperands; i++) {
+        buf.append(" " + code[pc+i]);
+      }
+      if (op == MATCH_CLASS) {
+        int baseIdx = code[pc+1];
+        buf.append("\t(" + Token.AbstractToken.getStrDesc(baseClassIds[baseIdx], baseParams[baseIdx]) + ")");
+      }
+      buf.append("\n");
+      pc += 1 + numOperands;
+    }
+    return buf.toString();
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+  /**
+   * main() times the compiled parser against InferredType.parse() on a data file.
+   * TestCompiledParser checks that they agree.
+   */
+  public static void main(String argv[]) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("Usage: CompiledParser <parser.dat> <datafile> (-dump)");
+      return;
+    }
+    InferredType typeTree = ParserFile.read(new File(argv[0]));
+    CompiledParser cp = new CompiledParser(typeTree);
+    if (argv.length > 2 && "-dump".equals(argv[2])) {
+      System.err.println(cp);
+    }
+
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(new File(argv[1])));
+    try {
+      String s = reader.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+
+    GenericDatumWriter<Object> writer = new GenericDatumWriter<Object>(typeTree.getAvroSchema());
+    EncodeBuffer expectedBuf = new EncodeBuffer();
+    EncodeBuffer encodeBuf = new EncodeBuffer();
+
+    int numRounds = Math.max(1, 100000 / Math.max(1, lines.size()));
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      for (String line: lines) {
+        typeTree.parse(line);
+      }
+    }
+    long middle = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      for (String line: lines) {
+        cp.parse(line);
+      }
+    }
+    long end = System.currentTimeMillis();
+    System.err.println("Tree parser: " + ((middle - start) / 1000.0) + "s, compiled parser: " + ((end - middle) / 1000.0) + "s, for " + numRounds + " rounds");
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      GenericContainer reuse = null;
+      for (String line: lines) {
+        GenericContainer gct = cp.parse(line, reuse);
+        if (gct != null) {
+          reuse = gct;
+          expectedBuf.reset();
+          writer.write(gct, expectedBuf.getEncoder());
+        }
+      }
+    }
+    middle = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      for (String line: lines) {
+        encodeBuf.reset();
+        cp.encode(line, encodeBuf.getEncoder());
+      }
+    }
+    end = System.currentTimeMillis();
+    System.err.println("Parse and write: " + ((middle - start) / 1000.0) + "s, direct encoding: " + ((end - middle) / 1000.0) + "s, for " + numRounds + " rounds");
+  }
+}
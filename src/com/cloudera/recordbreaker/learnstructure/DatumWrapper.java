@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+/*********************************************************
+ * DatumWrapper holds one Avro datum as a MapReduce key or value, in the manner
+ * of avro-mapred's AvroWrapper.  It is not a Writable: it carries parsed records
+ * from LearnedStructureInputFormat to a mapper, and is not meant to be shuffled.
+ *********************************************************/
+public class DatumWrapper<T> {
+  T datum;
+
+  public DatumWrapper() {
+    this(null);
+  }
+  public DatumWrapper(T datum) {
+    this.datum = datum;
+  }
+
+  public T datum() {
+    return datum;
+  }
+  public void datum(T datum) {
+    this.datum = datum;
+  }
+
+  public String toString() {
+    return String.valueOf(datum);
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/*********************************************************
+ * DistributedConvert turns a directory of text into Avro data with a learned
+ * parser.  It is the MapReduce counterpart of LearnStructure's emit step, for
+ * input that is too large to convert on one machine.
+ *
+ * The job is map-only.  Each map task parses its split and writes the records
+ * to its own Avro file, named by LearnStructure.PART_FILENAME_FORMAT after the
+ * task's number, with the parser's schema.  Lines that do not parse are copied
+ * as they are to UNPARSED_FILENAME_FORMAT, created only if the split has any.
+ * The files are written to the task's work directory, so only successful task
+ * attempts reach the output directory.  The driver adds the schema when the
+ * job is done:
+ *
+ *   <outdir>/schema.json
+ *   <outdir>/data-00000.avro
+ *   <outdir>/unparsed-00000.txt
+ *   ...
+ *
+ * The mappers report ConvertCounters, from which the driver reports throughput.
+ *********************************************************/
+@SuppressWarnings("deprecation")
+public class DistributedConvert extends Configured implements Tool {
+  static String UNPARSED_FILENAME_FORMAT = "unparsed-%05d.txt";
+  static String CODEC_KEY = "recordbreaker.convert.codec";
+  static String SYNC_INTERVAL_KEY = "recordbreaker.convert.syncinterval";
+
+  /**
+   * Counters reported by the mappers
+   */
+  public static enum ConvertCounters {
+    PARSED_LINES,
+    UNPARSED_LINES,
+    INPUT_BYTES,
+    AVRO_BYTES,
+    MAP_MILLIS
+  }
+
+  /**
+   * Parse each line and write it to the task's Avro file, or to its unparsed
+   * file.  This is a MapRunnable rather than a Mapper so that the task's byte
+   * count and time are reported with the reporter it is handed, even for a split
+   * with no lines.
+   */
+  public static class ConvertMapRunner implements MapRunnable<LongWritable, Text, NullWritable, NullWritable> {
+    JobConf job;
+    LearnedParser parser;
+    OutputSink sink;
+    int taskNumber;
+
+    public void configure(JobConf job) {
+      this.job = job;
+      this.taskNumber = job.getInt("mapred.task.partition", 0);
+      this.sink = new OutputSink(OutputSink.Format.AVRO, job.get(CODEC_KEY, "null"), job.getInt(SYNC_INTERVAL_KEY, 0));
+      try {
+        this.parser = LearnedStructureInputFormat.getParser(job);
+      } catch (IOException iex) {
+        throw new RuntimeException("Cannot load parser", iex);
+      }
+    }
+
+    /**
+     * A file in the task's work directory
+     */
+    OutputStream createOutput(String filenameFormat) throws IOException {
+      Path p = new Path(FileOutputFormat.getWorkOutputPath(job), String.format(filenameFormat, taskNumber));
+      return p.getFileSystem(job).create(p, false);
+    }
+
+    public void run(RecordReader<LongWritable, Text> input, OutputCollector<NullWritable, NullWritable> out, Reporter reporter) throws IOException {
+      long startTime = System.currentTimeMillis();
+      // Every split gets a part, even if it had no lines
+      AvroPartWriter.CountingStream avroOut = new AvroPartWriter.CountingStream(new BufferedOutputStream(createOutput(LearnStructure.PART_FILENAME_FORMAT)));
+      DataFileWriter<GenericContainer> avroWriter = sink.createAvroWriter(parser.getSchema(), avroOut);
+      OutputStream unparsedOut = null;
+      try {
+        LongWritable key = input.createKey();
+        Text value = input.createValue();
+        GenericContainer reuse = null;
+        while (input.next(key, value)) {
+          reporter.incrCounter(ConvertCounters.INPUT_BYTES, value.getLength() + 1);
+          GenericContainer record = parser.parseInto(value.toString(), reuse);
+          if (record == null) {
+            reporter.incrCounter(ConvertCounters.UNPARSED_LINES, 1);
+            if (unparsedOut == null) {
+              unparsedOut = new BufferedOutputStream(createOutput(UNPARSED_FILENAME_FORMAT));
+            }
+            // The line's original bytes, whatever their encoding
+            unparsedOut.write(value.getBytes(), 0, value.getLength());
+            unparsedOut.write('\n');
+            continue;
+          }
+          reporter.incrCounter(ConvertCounters.PARSED_LINES, 1);
+          avroWriter.append(record);
+          reuse = record;
+        }
+      } finally {
+        avroWriter.close();
+        if (unparsedOut != null) {
+          unparsedOut.close();
+        }
+      }
+      reporter.incrCounter(ConvertCounters.AVRO_BYTES, avroOut.count);
+      reporter.incrCounter(ConvertCounters.MAP_MILLIS, System.currentTimeMillis() - startTime);
+    }
+  }
+
+  String codecName = "null";
+  int syncInterval = 0;
+
+  /**
+   * Set the codec and sync interval of the Avro files, as for OutputSink
+   */
+  public void setAvroOptions(String codecName, int syncInterval) {
+    OutputSink.parseCodec(codecName);
+    this.codecName = codecName;
+    this.syncInterval = syncInterval;
+  }
+
+  /**
+   * Run the conversion job over 'inputPath' with the parser in 'parserFile',
+   * writing to 'outdir', which must not exist yet.  Returns the job's counters.
+   */
+  public Counters convert(Path parserFile, Path inputPath, Path outdir) throws IOException {
+    JobConf job = new JobConf(getConf(), DistributedConvert.class);
+    if (outdir.getFileSystem(job).exists(outdir)) {
+      throw new IOException("Output directory already exists: " + outdir);
+    }
+    job.setJobName("Convert: " + inputPath);
+    LearnedStructureInputFormat.setParserFile(job, parserFile);
+    job.set(CODEC_KEY, codecName);
+    job.setInt(SYNC_INTERVAL_KEY, syncInterval);
+
+    FileInputFormat.setInputPaths(job, inputPath);
+    job.setInputFormat(TextInputFormat.class);
+    job.setMapRunnerClass(ConvertMapRunner.class);
+    job.setNumReduceTasks(0);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(NullWritable.class);
+    // The mappers write their own files; the output path is where they are committed
+    job.setOutputFormat(NullOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, outdir);
+
+    long start = System.currentTimeMillis();
+    RunningJob result = JobClient.runJob(job);
+    long end = System.currentTimeMillis();
+
+    Schema s = LearnedStructureInputFormat.getSchema(job);
+    FileSystem fs = outdir.getFileSystem(job);
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(outdir, LearnStructure.SCHEMA_FILENAME))));
+    try {
+      out.write(s.toString(true));
+    } finally {
+      out.close();
+    }
+
+    Counters counters = result.getCounters();
+    long numParsed = counters.getCounter(ConvertCounters.PARSED_LINES);
+    long numUnparsed = counters.getCounter(ConvertCounters.UNPARSED_LINES);
+    long inputBytes = counters.getCounter(ConvertCounters.INPUT_BYTES);
+    long mapMillis = counters.getCounter(ConvertCounters.MAP_MILLIS);
+    double elapsed = Math.max(end - start, 1) / 1000.0;
+    System.err.println("Parsed lines: " + numParsed + ", unparsed lines: " + numUnparsed);
+    System.err.println("Input bytes: " + inputBytes + ", Avro bytes: " + counters.getCounter(ConvertCounters.AVRO_BYTES));
+    System.err.println("Elapsed job time: " + elapsed + ", " + (long) ((numParsed + numUnparsed) / elapsed) + " lines/s, " +
+                       String.format("%.2f", inputBytes / elapsed / (1024 * 1024)) + " MB/s");
+    if (mapMillis > 0) {
+      System.err.println("Per-task rate: " + String.format("%.2f", inputBytes / (mapMillis / 1000.0) / (1024 * 1024)) + " MB/s");
+    }
+    return counters;
+  }
+
+  public int run(String argv[]) throws IOException {
+    if (argv.length < 3) {
+      System.err.println("Usage: DistributedConvert <parser.dat> <input-path> <outdir> (-codec <null|deflate|deflate:N|snappy>) (-syncInterval <bytes>)");
+      return -1;
+    }
+    Path parserFile = new Path(argv[0]);
+    Path inputPath = new Path(argv[1]);
+    Path outdir = new Path(argv[2]);
+    String codecName = "null";
+    int syncInterval = 0;
+    for (int i = 3; i < argv.length; i++) {
+      if ("-codec".equals(argv[i])) {
+        i++;
+        codecName = argv[i];
+      } else if ("-syncInterval".equals(argv[i])) {
+        i++;
+        syncInterval = Integer.parseInt(argv[i]);
+      }
+    }
+    System.err.println("Parser file: " + parserFile);
+    System.err.println("Input path: " + inputPath);
+    System.err.println("Output directory: " + outdir);
+    setAvroOptions(codecName, syncInterval);
+    convert(parserFile, inputPath, outdir);
+    return 0;
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+  public static void main(String argv[]) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new DistributedConvert(), argv));
+  }
+}
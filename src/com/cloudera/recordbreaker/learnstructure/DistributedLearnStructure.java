@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/*********************************************************
+ * DistributedLearnStructure learns a record format from input that is too large
+ * for a single JVM.  It is the MapReduce counterpart of LearnStructure.
+ *
+ * Mappers tokenize their split and emit one count per token-shape (the sequence of
+ * token types in a line), plus partial counts for the top-level token-type histograms.
+ * Combiners and reducers merge the counts.  The driver then runs TypeInference
+ * over the distinct shapes, each weighted by its count, and writes the usual
+ * schema and parser files to the output directory.
+ *
+ * Because only distinct shapes reach the driver, the driver's memory use depends
+ * on how varied the data is, not on how large it is.
+ *********************************************************/
+@SuppressWarnings("deprecation")
+public class DistributedLearnStructure extends Configured implements Tool {
+  static String COUNTS_DIRNAME = "shapecounts";
+  static String SHAPE_PREFIX = "S\t";
+  static String HISTOGRAM_PREFIX = "H\t";
+
+  boolean verbose = false;
+
+  /**
+   * Counters reported by the mappers
+   */
+  public static enum LineCounters {
+    TOKENIZED_LINES,
+    EMPTY_LINES,
+    UNTOKENIZABLE_LINES
+  }
+
+  /**
+   * ShapeCount is the intermediate value: how many lines had a given shape (or histogram
+   * bucket), along with a few example lines so the driver can rebuild the tokens.
+   */
+  public static class ShapeCount implements Writable {
+    long count;
+    List<String> samples = new ArrayList<String>();
+
+    public ShapeCount() {
+    }
+    public ShapeCount(long count, String sample) {
+      this.count = count;
+      if (sample != null) {
+        samples.add(sample);
+      }
+    }
+    void merge(ShapeCount other) {
+      count += other.count;
+      for (String sample: other.samples) {
+        if (samples.size() >= TypeInference.MAX_SAMPLES) {
+          break;
+        }
+        samples.add(sample);
+      }
+    }
+    public long getCount() {
+      return count;
+    }
+    public List<String> getSamples() {
+      return samples;
+    }
+    public void readFields(DataInput in) throws IOException {
+      this.count = in.readLong();
+      this.samples = new ArrayList<String>();
+      int numSamples = in.readInt();
+      for (int i = 0; i < numSamples; i++) {
+        samples.add(Text.readString(in));
+      }
+    }
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(count);
+      out.writeInt(samples.size());
+      for (String sample: samples) {
+        Text.writeString(out, sample);
+      }
+    }
+  }
+
+  /**
+   * Tokenize each line and emit its shape.  The task's contribution to the token-type
+   * histograms is accumulated locally and emitted once, after the last line.  This is a
+   * MapRunnable rather than a Mapper so that the final emit uses the collector it is
+   * handed, rather than one saved from an earlier map() call.
+   */
+  public static class ShapeCountMapRunner implements MapRunnable<LongWritable, Text, Text, ShapeCount> {
+    public void configure(JobConf job) {
+    }
+
+    public void run(RecordReader<LongWritable, Text> input, OutputCollector<Text, ShapeCount> out, Reporter reporter) throws IOException {
+      HistogramAccumulator histograms = new HistogramAccumulator();
+      LongWritable key = input.createKey();
+      Text value = input.createValue();
+      while (input.next(key, value)) {
+        String line = value.toString();
+        List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+        if (chunk == null) {
+          reporter.incrCounter(LineCounters.UNTOKENIZABLE_LINES, 1);
+          continue;
+        }
+        if (chunk.size() == 0) {
+          // TypeInference ignores empty chunks
+          reporter.incrCounter(LineCounters.EMPTY_LINES, 1);
+          continue;
+        }
+        reporter.incrCounter(LineCounters.TOKENIZED_LINES, 1);
+
+        StringBuffer shape = new StringBuffer(SHAPE_PREFIX);
+        TypeInference.DiscoveryCache.appendShape(chunk, shape);
+        out.collect(new Text(shape.toString()), new ShapeCount(1, line));
+        histograms.add(chunk);
+      }
+
+      for (int typeId = 0; typeId < histograms.getTypeIdLimit(); typeId++) {
+        long freqCounts[] = histograms.getFrequencyCounts(typeId);
+        if (freqCounts == null) {
+          continue;
+        }
+        for (int freq = 1; freq < freqCounts.length; freq++) {
+          if (freqCounts[freq] != 0) {
+            out.collect(new Text(HISTOGRAM_PREFIX + typeId + "\t" + freq), new ShapeCount(freqCounts[freq], null));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Merge counts.  Used as both the combiner and the reducer.
+   */
+  public static class ShapeCountReducer extends MapReduceBase implements Reducer<Text, ShapeCount, Text, ShapeCount> {
+    public void reduce(Text key, Iterator<ShapeCount> values, OutputCollector<Text, ShapeCount> out, Reporter reporter) throws IOException {
+      ShapeCount total = new ShapeCount();
+      while (values.hasNext()) {
+        total.merge(values.next());
+      }
+      out.collect(key, total);
+    }
+  }
+
+  /**
+   * Also report inference statistics, such as discovery cache hits
+   */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  /**
+   * Run the counting job over 'inputPath', infer the structure, and write the
+   * schema and parser to 'outdir'.
+   */
+  public InferredType inferRecordFormat(Path inputPath, Path outdir) throws IOException {
+    JobConf job = new JobConf(getConf(), DistributedLearnStructure.class);
+    job.setJobName("LearnStructure: " + inputPath);
+    Path countsDir = new Path(outdir, COUNTS_DIRNAME);
+
+    FileInputFormat.setInputPaths(job, inputPath);
+    job.setInputFormat(TextInputFormat.class);
+    job.setMapRunnerClass(ShapeCountMapRunner.class);
+    job.setCombinerClass(ShapeCountReducer.class);
+    job.setReducerClass(ShapeCountReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(ShapeCount.class);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, countsDir);
+
+    long startJob = System.currentTimeMillis();
+    JobClient.runJob(job);
+
+    //
+    // Gather the merged counts.  Each shape becomes one weighted chunk per sample line.
+    //
+    long startInfer = System.currentTimeMillis();
+    FileSystem fs = outdir.getFileSystem(job);
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    HistogramAccumulator histograms = new HistogramAccumulator();
+
+    FileStatus parts[] = fs.listStatus(countsDir, new PathFilter() {
+        public boolean accept(Path p) {
+          return p.getName().startsWith("part-");
+        }
+      });
+    for (FileStatus part: parts) {
+      SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), job);
+      try {
+        Text key = new Text();
+        ShapeCount val = new ShapeCount();
+        while (reader.next(key, val)) {
+          String keyStr = key.toString();
+          if (keyStr.startsWith(SHAPE_PREFIX)) {
+            histograms.addChunkCount(val.getCount());
+            chunks.addAll(createWeightedChunks(val));
+          } else if (keyStr.startsWith(HISTOGRAM_PREFIX)) {
+            int splitIndex = keyStr.lastIndexOf('\t');
+            int typeId = Integer.parseInt(keyStr.substring(HISTOGRAM_PREFIX.length(), splitIndex));
+            int perChunkFrequency = Integer.parseInt(keyStr.substring(splitIndex + 1));
+            histograms.addCounts(typeId, perChunkFrequency, val.getCount());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (chunks.size() == 0) {
+      throw new IOException("No tokenizable lines found in " + inputPath);
+    }
+
+    System.err.println("Number of chunks: " + histograms.getNumChunks());
+    System.err.println("Number of distinct chunk shapes: " + chunks.size());
+    TypeInference.DiscoveryCache cache = new TypeInference.DiscoveryCache();
+    InferredType typeTree = TypeInference.infer(chunks, cache, histograms.finish());
+    long end = System.currentTimeMillis();
+    System.err.println("Elapsed counting-job time: " + ((startInfer - startJob) / 1000.0));
+    System.err.println("Elapsed inference time: " + ((end - startInfer) / 1000.0));
+    if (verbose) {
+      System.err.println(cache);
+    }
+
+    //
+    // Dump the results, just as LearnStructure does
+    //
+    Schema s = typeTree.getAvroSchema();
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(outdir, LearnStructure.SCHEMA_FILENAME))));
+    try {
+      out.write(s.toString(true));
+    } finally {
+      out.close();
+    }
+    DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(fs.create(new Path(outdir, LearnStructure.PARSER_FILENAME))));
+    try {
+      ParserFile.write(typeTree, outd);
+    } finally {
+      outd.close();
+    }
+    return typeTree;
+  }
+
+  /**
+   * Spread a shape's count across its sample lines.  The samples all have the same
+   * shape, so this does not change any statistics, but it gives BaseTypes more varied examples.
+   */
+  static List<List<Token.AbstractToken>> createWeightedChunks(ShapeCount val) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    List<String> samples = val.getSamples();
+    for (int i = 0; i < samples.size(); i++) {
+      long weight = val.getCount() / samples.size() + ((i < val.getCount() % samples.size()) ? 1 : 0);
+      if (weight == 0) {
+        continue;
+      }
+      chunks.add(new WeightedChunk(Tokenizer.tokenize(samples.get(i)), weight));
+    }
+    return chunks;
+  }
+
+  public int run(String argv[]) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("Usage: DistributedLearnStructure <input-path> <outdir> (-verbose true|(false))");
+      return -1;
+    }
+    Path inputPath = new Path(argv[0]);
+    Path outdir = new Path(argv[1]);
+    for (int i = 2; i < argv.length; i++) {
+      if ("-verbose".equals(argv[i])) {
+        i++;
+        setVerbose("true".equals(argv[i]));
+      }
+    }
+    System.err.println("Input path: " + inputPath);
+    System.err.println("Output directory: " + outdir);
+    if (outdir.getFileSystem(getConf()).exists(outdir)) {
+      throw new IOException("Output directory already exists: " + outdir);
+    }
+    inferRecordFormat(inputPath, outdir);
+    return 0;
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+  public static void main(String argv[]) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new DistributedLearnStructure(), argv));
+  }
+}
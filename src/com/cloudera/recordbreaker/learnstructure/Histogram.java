@@ -15,6 +15,7 @@
 package com.cloudera.recordbreaker.learnstructure;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /*********************************************************
  * Histogram statistically summarizes the contents of a set of chunks.
@@ -24,34 +25,35 @@ public class Histogram {
   ///////////////////////////////////////////////////
   // static members
   ///////////////////////////////////////////////////
-  static double CLUSTER_TOLERANCE = 0.01;
+  public final static double CLUSTER_TOLERANCE = 0.01;
   static double MAX_RESIDUAL_MASS = 0.1;
   static double MIN_COVERAGE_FACTOR = 0.2;
+  static volatile int NUM_HISTOGRAM_THREADS = Integer.getInteger("recordbreaker.histogram.threads", Runtime.getRuntime().availableProcessors());
+  static volatile int MIN_CHUNKS_PER_THREAD = Integer.getInteger("recordbreaker.histogram.minChunksPerThread", 10000);
+  static ExecutorService histogramPool = null;
 
   ///////////////////////////////////////////////////
   // static classes
   ///////////////////////////////////////////////////
   static class FrequencyPair implements Comparable {
     int perChunkFrequency;
-    int overallChunkCount;
-    public FrequencyPair(int perChunkFrequency, int overallChunkCount) {
+    long overallChunkCount;
+    public FrequencyPair(int perChunkFrequency, long overallChunkCount) {
       this.perChunkFrequency = perChunkFrequency;
       this.overallChunkCount = overallChunkCount;
     }
     public int compareTo(Object o) {
       FrequencyPair other = (FrequencyPair) o;
-      int cmp = overallChunkCount - other.overallChunkCount;
-      if (cmp != 0) {
-        return -1 * cmp;
+      if (overallChunkCount != other.overallChunkCount) {
+        return (overallChunkCount > other.overallChunkCount) ? -1 : 1;
       } else {
-        cmp = perChunkFrequency - other.perChunkFrequency;
-        return cmp;
+        return perChunkFrequency - other.perChunkFrequency;
       }
     }
     public int getPerChunkFrequency() {
       return perChunkFrequency;
     }
-    public int getCount() {
+    public long getCount() {
       return overallChunkCount;
     }
   }
@@ -69,77 +71,137 @@ public class Histogram {
    * than the number of potential token types.  However, it can take awhile to compute
    * if the input data size is huge.  
    *
-   * REMIND mjc - This fn may be a good candidate for runtime-perf optimization
+   * Large chunksets are split into ranges that are counted in parallel, each by its
+   * own HistogramAccumulator.  The partial counts are then merged and normalized once.
+   * See setParallelism() for what counts as large.
    */
   public static List<Histogram> computeNormalizedHistograms(List<List<Token.AbstractToken>> chunks) {
-    Map<String, Map<Integer, Integer>> allHistograms = new TreeMap<String, Map<Integer, Integer>>();
-    List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
-
     //
-    // 1.  Compute some per-chunk statistics
+    // 1.  Compute some per-chunk statistics.  A WeightedChunk counts as 'weight' identical chunks.
     //
-    for (List<Token.AbstractToken> chunk: chunks) {
-      // Compute frequencies of token-type within this chunk
-      HashMap<String, Integer> localFreq = new HashMap<String, Integer>();
-      for (Token.AbstractToken tok: chunk) {
-        Integer count = (Integer) localFreq.get(tok.getId());
-        if (count == null) {
-          localFreq.put(tok.getId(), 1);
-        } else {
-          localFreq.put(tok.getId(), count.intValue() + 1);
-        }
-      }
+    int numTasks = Math.min(NUM_HISTOGRAM_THREADS, chunks.size() / MIN_CHUNKS_PER_THREAD);
+    if (numTasks <= 1) {
+      HistogramAccumulator acc = new HistogramAccumulator();
+      acc.addAll(chunks, 0, chunks.size());
+      return acc.finish();
+    }
 
-      // Now adjust the "histogram of frequencies" associated with each token type
-      for (String tokenId: localFreq.keySet()) {
-        Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-        if (perTokenTypeHistogram == null) {
-          perTokenTypeHistogram = new HashMap<Integer, Integer>();
-          allHistograms.put(tokenId, perTokenTypeHistogram);
-        }
-        Integer currentTokenTypeCount = localFreq.get(tokenId);
-        Integer countSoFar = perTokenTypeHistogram.get(currentTokenTypeCount);
-        if (countSoFar == null) {
-          perTokenTypeHistogram.put(currentTokenTypeCount, 1);
-        } else {
-          perTokenTypeHistogram.put(currentTokenTypeCount, countSoFar.intValue() + 1);
-        }
+    List<Future<HistogramAccumulator>> partials = new ArrayList<Future<HistogramAccumulator>>();
+    for (int i = 0; i < numTasks; i++) {
+      final List<List<Token.AbstractToken>> taskChunks = chunks;
+      final int start = (int) ((long) chunks.size() * i / numTasks);
+      final int end = (int) ((long) chunks.size() * (i + 1) / numTasks);
+      partials.add(getHistogramPool().submit(new Callable<HistogramAccumulator>() {
+          public HistogramAccumulator call() {
+            HistogramAccumulator acc = new HistogramAccumulator();
+            acc.addAll(taskChunks, start, end);
+            return acc;
+          }
+        }));
+    }
+    try {
+      HistogramAccumulator total = partials.get(0).get();
+      for (int i = 1; i < partials.size(); i++) {
+        total.merge(partials.get(i).get());
       }
+      return total.finish();
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(iex);
+    } catch (ExecutionException eex) {
+      throw new RuntimeException(eex.getCause());
     }
+  }
+
+  /**
+   * Count chunksets in up to 'numThreads' ranges at once, but give each range at least
+   * 'minChunksPerThread' chunks; smaller chunksets are counted on the calling thread.
+   * The defaults are one thread per processor and 10000 chunks, and can also be set
+   * with the recordbreaker.histogram.threads and .minChunksPerThread system properties.
+   */
+  public static synchronized void setParallelism(int numThreads, int minChunksPerThread) {
+    if (histogramPool != null && numThreads != NUM_HISTOGRAM_THREADS) {
+      histogramPool.shutdown();
+      histogramPool = null;
+    }
+    NUM_HISTOGRAM_THREADS = Math.max(1, numThreads);
+    MIN_CHUNKS_PER_THREAD = Math.max(1, minChunksPerThread);
+  }
+  public static int getNumThreads() {
+    return NUM_HISTOGRAM_THREADS;
+  }
+  public static int getMinChunksPerThread() {
+    return MIN_CHUNKS_PER_THREAD;
+  }
+
+  /**
+   * Whether any chunkset has been counted in parallel since the pool was last
+   * replaced by setParallelism()
+   */
+  public static synchronized boolean hasHistogramPool() {
+    return histogramPool != null;
+  }
+
+  /**
+   * The shared pool of daemon threads used for histogram computation
+   */
+  static synchronized ExecutorService getHistogramPool() {
+    if (histogramPool == null) {
+      histogramPool = Executors.newFixedThreadPool(NUM_HISTOGRAM_THREADS, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "histogram");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return histogramPool;
+  }
+
+  /**
+   * Turn raw per-token-type counts into normalized Histograms.  'allHistograms' maps each
+   * token type to a histogram of (per-chunk frequency -> number of chunks with that frequency),
+   * for all frequencies greater than zero.  'numChunks' is the size of the whole chunkset.
+   *
+   * This is separate from computeNormalizedHistograms() so that counts gathered elsewhere
+   * (e.g., merged from many mappers) can be normalized the same way.  The input is modified.
+   */
+  public static List<Histogram> normalizeHistograms(SortedMap<String, Map<Integer, Long>> allHistograms, long numChunks) {
+    List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
 
     //
     // 2.  Now for each per-token-type histogram, compute how many times the
     //     token was observed in *no chunk at all*.
     //
     for (String tokenId: allHistograms.keySet()) {
-      Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-      int numberOfChunksForObservedTokenTypeCount = 0;
+      Map<Integer, Long> perTokenTypeHistogram = allHistograms.get(tokenId);
+      long numberOfChunksForObservedTokenTypeCount = 0;
       for (Integer currentTokenTypeCount: perTokenTypeHistogram.keySet()) {
         numberOfChunksForObservedTokenTypeCount += perTokenTypeHistogram.get(currentTokenTypeCount);
       }
-      perTokenTypeHistogram.put(0, chunks.size() - numberOfChunksForObservedTokenTypeCount);
+      perTokenTypeHistogram.put(0, numChunks - numberOfChunksForObservedTokenTypeCount);
     }
 
     //
     // 3.  Normalize the per-token-type histograms
     //
-    for (Map.Entry<String, Map<Integer, Integer>> e1: allHistograms.entrySet()) {
+    for (Map.Entry<String, Map<Integer, Long>> e1: allHistograms.entrySet()) {
       String tokenId = e1.getKey();
-      Map<Integer, Integer> perTokenTypeHistogram = e1.getValue();
+      Map<Integer, Long> perTokenTypeHistogram = e1.getValue();
       double coverage = 0;
       double totalMass = 0;
 
       // 3.1.  Compute the histogram's normal form: all the counts in descending order of prevalence in the chunk set.
       //       Also, compute some metainfo stats along the way
       SortedSet<FrequencyPair> sorter = new TreeSet<FrequencyPair>();
-      for (Map.Entry<Integer, Integer> e2: perTokenTypeHistogram.entrySet()) {
+      for (Map.Entry<Integer, Long> e2: perTokenTypeHistogram.entrySet()) {
         Integer perChunkFrequency = e2.getKey();
-        Integer overallChunkCount = e2.getValue();
+        Long overallChunkCount = e2.getValue();
         if (perChunkFrequency.intValue() != 0) {
-          coverage += overallChunkCount.intValue();
+          coverage += overallChunkCount.longValue();
           sorter.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
         }
-        totalMass += overallChunkCount.intValue();
+        totalMass += overallChunkCount.longValue();
       }
       List<FrequencyPair> normalForm = new ArrayList<FrequencyPair>();
       for (FrequencyPair p: sorter) {
@@ -166,6 +228,13 @@ public class Histogram {
    * c) The distance between two clusters is determined by the *minimum distance between any two members of the cluster*.
    *    This is sometimes called "single link" clustering.  The resulting cluster quality is not as good as computing 
    *    distance based on the average of the members of a cluster, but it is more efficient.
+   *
+   * With a fixed tolerance, the single-link clusters are just the connected components of the
+   * "distance < CLUSTER_TOLERANCE" graph, so we build them with union-find.  To avoid computing
+   * the entropy for every pair, we sort by the count at normal-form position 1 and sweep; 
+   * entropyLowerBound() lets us stop the sweep (or skip a pair) when the tolerance is out of reach.
+   *
+   * Clusters are returned in order of their lowest-indexed member; members keep their input order.
    */
   public static List<List<Histogram>> clusterHistograms(List<Histogram> inputHistograms) {
     // 1.  Handle degenerate case of size(input) == 1
@@ -175,86 +244,100 @@ public class Histogram {
       return clusters;
     }
 
-    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
-    class Score implements Comparable {
-      double s;
-      int i;
-      int j;
-      public Score(double s, int i, int j) {
-        this.s = s;
-        this.i = i;
-        this.j = j;
-      }
-      public int getIndex1() {
-        return i;
-      }
-      public int getIndex2() {
-        return j;
-      }
-      public int compareTo(Object o) {
-        Score other = (Score) o;
-        if (this.s < other.s) {
-          return -1;
-        } else if (this.s > other.s) {
-          return 1;
-        } else {
-          int cmp = this.i - other.i;
-          if (cmp == 0) {
-            cmp = this.j - other.j;
-          }
-          return cmp;
+    // 2.  Sort by the dominant count, then find all pairs under the tolerance
+    int n = inputHistograms.size();
+    Histogram hs[] = inputHistograms.toArray(new Histogram[n]);
+    Integer order[] = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    final Histogram sortHs[] = hs;
+    Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer i1, Integer i2) {
+          return Double.compare(sortHs[i1].getDominantCount(), sortHs[i2].getDominantCount());
         }
-      }
+      });
+
+    int parent[] = new int[n];
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
     }
-    SortedSet<Score> scores = new TreeSet<Score>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      for (int j = i+1; j < inputHistograms.size(); j++) {
-        Histogram h1 = inputHistograms.get(i);
-        Histogram h2 = inputHistograms.get(j);
-        double sre = h1.computeSymmetricRelativeEntropy(h2);
-        if (sre < CLUSTER_TOLERANCE) {
-          scores.add(new Score(sre, i, j));
+    for (int x = 0; x < n; x++) {
+      Histogram h1 = hs[order[x]];
+      for (int y = x+1; y < n; y++) {
+        Histogram h2 = hs[order[y]];
+        // The bound grows with the gap in dominant counts, and the gap only grows as we sweep
+        if (dominantCountBound(h1.getDominantCount(), h2.getDominantCount()) >= CLUSTER_TOLERANCE) {
+          break;
+        }
+        int root1 = findRoot(parent, order[x]);
+        int root2 = findRoot(parent, order[y]);
+        if (root1 == root2) {
+          continue;
+        }
+        if (h1.entropyLowerBound(h2) >= CLUSTER_TOLERANCE) {
+          continue;
+        }
+        if (h1.computeSymmetricRelativeEntropy(h2) < CLUSTER_TOLERANCE) {
+          // Lower index becomes the root, so that each cluster's root is its first member
+          parent[Math.max(root1, root2)] = Math.min(root1, root2);
         }
       }
     }
 
-    // Initialize clusters
-    Map<Integer, Integer> histogramToCluster = new TreeMap<Integer, Integer>();
-    Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      histogramToCluster.put(i, i);
-      Set<Integer> containedHistograms = new HashSet<Integer>();
-      containedHistograms.add(i);
-      clusterToHistograms.put(i, containedHistograms);
-    } 
-    // Start merging clusters
-    for (Score s: scores) {
-      int idx1 = s.getIndex1();
-      int idx2 = s.getIndex2();
-      int cluster1 = histogramToCluster.get(idx1);
-      int cluster2 = histogramToCluster.get(idx2);
-
-      if (cluster1 == cluster2) {
-        continue;
-      }
-      for (Integer histogramId: clusterToHistograms.get(cluster2)) {
-        histogramToCluster.put(histogramId, cluster1);
+    // 3.  Build the clustered histogram list.
+    List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
+    int clusterIndex[] = new int[n];
+    for (int i = 0; i < n; i++) {
+      int root = findRoot(parent, i);
+      if (root == i) {
+        clusterIndex[i] = clusters.size();
+        clusters.add(new ArrayList<Histogram>());
       }
-      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.get(cluster2));
-      clusterToHistograms.remove(cluster2);
+      clusters.get(clusterIndex[root]).add(hs[i]);
     }
+    return clusters;
+  }
 
-    // Build the clustered histogram list.
-    List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
-    for (Map.Entry<Integer, Set<Integer>> entry: clusterToHistograms.entrySet()) {
-      Integer clusterId = entry.getKey();
-      Set<Integer> histograms = entry.getValue();
+  /**
+   * Union-find lookup, with path halving
+   */
+  static int findRoot(int parent[], int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
 
-      List<Histogram> curCluster = new ArrayList<Histogram>();
-      for (Integer histogramIndex: histograms) {
-        curCluster.add(inputHistograms.get(histogramIndex));
+  /**
+   * Unpruned clustering that scores every pair.  Used by main() to check and
+   * benchmark clusterHistograms().
+   */
+  public static List<List<Histogram>> clusterHistogramsExhaustive(List<Histogram> inputHistograms) {
+    int n = inputHistograms.size();
+    int parent[] = new int[n];
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
+    }
+    for (int i = 0; i < n; i++) {
+      for (int j = i+1; j < n; j++) {
+        if (inputHistograms.get(i).computeSymmetricRelativeEntropy(inputHistograms.get(j)) < CLUSTER_TOLERANCE) {
+          int root1 = findRoot(parent, i);
+          int root2 = findRoot(parent, j);
+          parent[Math.max(root1, root2)] = Math.min(root1, root2);
+        }
+      }
+    }
+    List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
+    int clusterIndex[] = new int[n];
+    for (int i = 0; i < n; i++) {
+      int root = findRoot(parent, i);
+      if (root == i) {
+        clusterIndex[i] = clusters.size();
+        clusters.add(new ArrayList<Histogram>());
       }
-      clusters.add(curCluster);
+      clusters.get(clusterIndex[root]).add(inputHistograms.get(i));
     }
     return clusters;
   }
@@ -268,6 +351,10 @@ public class Histogram {
   double residualMass;
   double coverage;
 
+  // normalForm's counts, and the sum of counts from position i onward
+  double counts[];
+  double tailMass[];
+
   //////////////////////////////////////////////////////////////
   // Methods
   //////////////////////////////////////////////////////////////
@@ -277,12 +364,21 @@ public class Histogram {
     this.width = width;
     this.residualMass = residualMass;
     this.coverage = coverage;
+
+    this.counts = new double[normalForm.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = normalForm.get(i).getCount();
+    }
+    this.tailMass = new double[counts.length + 1];
+    for (int i = counts.length - 1; i >= 0; i--) {
+      tailMass[i] = tailMass[i+1] + counts[i];
+    }
   }
 
-  public boolean passStructStatisticalTest(int numChunks) {
+  public boolean passStructStatisticalTest(long numChunks) {
     return residualMass < MAX_RESIDUAL_MASS && coverage > MIN_COVERAGE_FACTOR * numChunks;
   }
-  public boolean passArrayStatisticalTest(int numChunks) {
+  public boolean passArrayStatisticalTest(long numChunks) {
     return width > 3 && coverage > MIN_COVERAGE_FACTOR * numChunks;
   }
   public String getHistogramType() {
@@ -311,35 +407,113 @@ public class Histogram {
   /**
    * The relative entropy score is used for clustering.  However, we can't compute
    * it directly, as histograms do not always contain the same components.  Instead,
-   * we preprocess the data with computeSymmetricRelativeEntropy(), then pass the resulting
-   * averaged values into this pretty generic method.
+   * we average the two histograms' counts at each position of the normal form (a position
+   * that only one histogram has is averaged with zero) and compute each histogram's
+   * relative entropy against the averages.
+   *
+   * Position 0 holds the no-appearance count and does not contribute.
    */
-  double computeRelativeEntropy(List<Double> avgCounts) {
-    double total = 0;
-    for (int i = 1; i < normalForm.size(); i++) {
-      double selfOverallChunkCount = normalForm.get(i).getCount();
-      double otherOverallChunkCount = avgCounts.get(i);
-      total += selfOverallChunkCount * Math.log(selfOverallChunkCount / otherOverallChunkCount);
+  public double computeSymmetricRelativeEntropy(Histogram other) {
+    double selfTotal = 0;
+    double otherTotal = 0;
+    int len = Math.max(counts.length, other.counts.length);
+    for (int i = 1; i < len; i++) {
+      double selfCount = (i < counts.length) ? counts[i] : 0;
+      double otherCount = (i < other.counts.length) ? other.counts[i] : 0;
+      double avgCount = (selfCount + otherCount) / 2.0;
+      if (i < counts.length) {
+        selfTotal += selfCount * Math.log(selfCount / avgCount);
+      }
+      if (i < other.counts.length) {
+        otherTotal += otherCount * Math.log(otherCount / avgCount);
+      }
     }
-    return total;
+    return 0.5 * selfTotal + 0.5 * otherTotal;
   }
 
   /**
-   * The point of this method is to preprocess the data from two input Histograms,
-   * getting it ready for the relative entropy computation.  Without this preprocessing,
-   * the rel-entropy computation would be sensitive to varying numbers of components in each histogram.
+   * The count at normal-form position 1, i.e., the number of chunks with the
+   * most-common nonzero frequency.
    */
-  double computeSymmetricRelativeEntropy(Histogram other) {
-    List<Double> avgCounts = new ArrayList<Double>();
-    for (int i = 0; i < Math.max(normalForm.size(), other.normalForm.size()); i++) {
-      if ((i < normalForm.size()) && (i < other.normalForm.size())) {
-        avgCounts.add((normalForm.get(i).getCount() + other.normalForm.get(i).getCount()) / 2.0);
-      } else if (i < normalForm.size()) {
-        avgCounts.add(normalForm.get(i).getCount() * 0.5);
-      } else {
-        avgCounts.add(other.normalForm.get(i).getCount() * 0.5);
+  double getDominantCount() {
+    return counts[1];
+  }
+
+  /**
+   * A cheap lower bound on computeSymmetricRelativeEntropy().
+   *
+   * The symmetric score is half the sum, over positions, of a*log(2a/(a+b)) + b*log(2b/(a+b)).
+   * Each of these terms is nonnegative, so any subset of them is a lower bound:
+   * 1) Position 1.  The term is (a+b) times the KL divergence of Bernoulli(a/(a+b)) from
+   *    Bernoulli(1/2), so by Pinsker's inequality it is at least (a-b)^2 / (2(a+b)).
+   * 2) Positions that only the longer histogram has.  Each contributes c*log(2).
+   */
+  static double dominantCountBound(double a, double b) {
+    return 0.5 * ((a - b) * (a - b) / (2 * (a + b)));
+  }
+  double entropyLowerBound(Histogram other) {
+    double bound = dominantCountBound(counts[1], other.counts[1]);
+    if (counts.length > other.counts.length) {
+      bound += 0.5 * Math.log(2) * tailMass[other.counts.length];
+    } else if (other.counts.length > counts.length) {
+      bound += 0.5 * Math.log(2) * other.tailMass[counts.length];
+    }
+    return bound;
+  }
+
+  ///////////////////////////////////////////////////
+  // main() benchmarks histogram clustering
+  ///////////////////////////////////////////////////
+  public static void main(String argv[]) {
+    int numTypes = (argv.length > 0) ? Integer.parseInt(argv[0]) : 400;
+    int numChunks = (argv.length > 1) ? Integer.parseInt(argv[1]) : 5000;
+    int numTrials = 5;
+
+    //
+    // Synthesize chunks over 'numTypes' distinct CHAR tokens.  Types are arranged in
+    // groups that share a frequency pattern, so that there are real clusters to find.
+    //
+    Random r = new Random(0);
+    int numGroups = Math.max(1, numTypes / 8);
+    int groupRate[] = new int[numGroups];
+    int groupMaxFreq[] = new int[numGroups];
+    for (int g = 0; g < numGroups; g++) {
+      groupRate[g] = 1 + r.nextInt(100);
+      groupMaxFreq[g] = 1 + r.nextInt(4);
+    }
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (int i = 0; i < numChunks; i++) {
+      List<Token.AbstractToken> chunk = new ArrayList<Token.AbstractToken>();
+      for (int g = 0; g < numGroups; g++) {
+        if (r.nextInt(100) < groupRate[g]) {
+          int freq = 1 + r.nextInt(groupMaxFreq[g]);
+          for (int t = g; t < numTypes; t += numGroups) {
+            for (int k = 0; k < freq; k++) {
+              chunk.add(new Token.CharToken((char) (0x100 + t)));
+            }
+          }
+        }
       }
+      chunks.add(chunk);
+    }
+    List<Histogram> histograms = computeNormalizedHistograms(chunks);
+    System.err.println("Histograms: " + histograms.size() + ", chunks: " + numChunks);
+
+    List<List<Histogram>> exhaustiveClusters = null;
+    List<List<Histogram>> sweepClusters = null;
+    long startExhaustive = System.nanoTime();
+    for (int i = 0; i < numTrials; i++) {
+      exhaustiveClusters = clusterHistogramsExhaustive(histograms);
     }
-    return 0.5 * this.computeRelativeEntropy(avgCounts) + 0.5 * other.computeRelativeEntropy(avgCounts);
+    long startSweep = System.nanoTime();
+    for (int i = 0; i < numTrials; i++) {
+      sweepClusters = clusterHistograms(histograms);
+    }
+    long end = System.nanoTime();
+
+    System.err.println("Clusters found: " + sweepClusters.size());
+    System.err.println("Clusters match exhaustive version: " + exhaustiveClusters.equals(sweepClusters));
+    System.err.println("Exhaustive clustering (ms/trial): " + ((startSweep - startExhaustive) / (1000000.0 * numTrials)));
+    System.err.println("Pruned clustering (ms/trial): " + ((end - startSweep) / (1000000.0 * numTrials)));
   }
 }
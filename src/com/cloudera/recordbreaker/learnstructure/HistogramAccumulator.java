@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * HistogramAccumulator gathers the raw counts behind Histogram.computeNormalizedHistograms().
+ * For each token type, it keeps a "histogram of frequencies": how many chunks contained
+ * the token type exactly N times.
+ *
+ * Accumulators are not thread-safe, but they are cheap and mergeable.  The usual pattern
+ * is one accumulator per thread (or per mapper), each fed a disjoint part of the chunkset,
+ * followed by merge() and a single finish().
+ *
+ * Everything is indexed by the dense token type id (see Token.AbstractToken.getTypeId()),
+ * so adding a chunk does no hashing, no boxing, and no allocation once the arrays
+ * have grown to fit the data.
+ *********************************************************/
+public class HistogramAccumulator {
+  // freqCounts[typeId][perChunkFrequency] is the number of chunks with that frequency,
+  // or null if the type has not been seen.  Entry 0 is derived from numChunks in finish().
+  long freqCounts[][] = new long[0][];
+  long numChunks = 0;
+
+  // Per-chunk scratch space.  localFreq is all-zero between chunks; 'touched' lists
+  // the type ids that the current chunk has made nonzero.
+  int localFreq[] = new int[0];
+  int touched[] = new int[16];
+
+  public HistogramAccumulator() {
+  }
+
+  /**
+   * Record that 'count' chunks contained the given token type 'perChunkFrequency' times.
+   * This does not change the number of chunks; see addChunkCount().
+   */
+  public void addCounts(int typeId, int perChunkFrequency, long count) {
+    if (typeId >= freqCounts.length) {
+      freqCounts = Arrays.copyOf(freqCounts, Math.max(freqCounts.length * 2, typeId + 1));
+    }
+    long counts[] = freqCounts[typeId];
+    if (counts == null) {
+      counts = new long[Math.max(4, perChunkFrequency + 1)];
+      freqCounts[typeId] = counts;
+    } else if (perChunkFrequency >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(counts.length * 2, perChunkFrequency + 1));
+      freqCounts[typeId] = counts;
+    }
+    counts[perChunkFrequency] += count;
+  }
+  public void addChunkCount(long count) {
+    numChunks += count;
+  }
+
+  /**
+   * Add a single chunk.  A WeightedChunk counts as 'weight' identical chunks.
+   */
+  public void add(List<Token.AbstractToken> chunk) {
+    long weight = WeightedChunk.getWeight(chunk);
+    int numTouched = 0;
+    if (touched.length < chunk.size()) {
+      touched = new int[Math.max(touched.length * 2, chunk.size())];
+    }
+
+    // Compute frequencies of token-type within this chunk
+    for (int i = 0; i < chunk.size(); i++) {
+      int typeId = chunk.get(i).getTypeId();
+      if (typeId >= localFreq.length) {
+        localFreq = Arrays.copyOf(localFreq, Math.max(localFreq.length * 2, typeId + 1));
+      }
+      if (localFreq[typeId]++ == 0) {
+        touched[numTouched++] = typeId;
+      }
+    }
+
+    // Now adjust the "histogram of frequencies" associated with each token type,
+    // and reset the scratch space for the next chunk.
+    for (int i = 0; i < numTouched; i++) {
+      int typeId = touched[i];
+      addCounts(typeId, localFreq[typeId], weight);
+      localFreq[typeId] = 0;
+    }
+    numChunks += weight;
+  }
+
+  /**
+   * Add chunks [start, end) of the given chunkset
+   */
+  public void addAll(List<List<Token.AbstractToken>> chunks, int start, int end) {
+    for (int i = start; i < end; i++) {
+      add(chunks.get(i));
+    }
+  }
+
+  /**
+   * Fold another accumulator's counts into this one.
+   */
+  public void merge(HistogramAccumulator other) {
+    for (int typeId = 0; typeId < other.freqCounts.length; typeId++) {
+      long otherCounts[] = other.freqCounts[typeId];
+      if (otherCounts == null) {
+        continue;
+      }
+      for (int freq = otherCounts.length - 1; freq >= 1; freq--) {
+        if (otherCounts[freq] != 0) {
+          addCounts(typeId, freq, otherCounts[freq]);
+        }
+      }
+    }
+    numChunks += other.numChunks;
+  }
+
+  /**
+   * Accessors, used to ship the counts elsewhere (e.g., out of a mapper).
+   * Type ids run from 0 up to (but not including) getTypeIdLimit().
+   */
+  public long getNumChunks() {
+    return numChunks;
+  }
+  public int getTypeIdLimit() {
+    return freqCounts.length;
+  }
+  public long[] getFrequencyCounts(int typeId) {
+    return (typeId < freqCounts.length) ? freqCounts[typeId] : null;
+  }
+
+  /**
+   * Compute the normalized Histograms for everything accumulated so far.
+   */
+  public List<Histogram> finish() {
+    SortedMap<String, Map<Integer, Long>> allHistograms = new TreeMap<String, Map<Integer, Long>>();
+    for (int typeId = 0; typeId < freqCounts.length; typeId++) {
+      long counts[] = freqCounts[typeId];
+      if (counts == null) {
+        continue;
+      }
+      Map<Integer, Long> perTokenTypeHistogram = new HashMap<Integer, Long>();
+      for (int freq = 1; freq < counts.length; freq++) {
+        if (counts[freq] != 0) {
+          perTokenTypeHistogram.put(freq, counts[freq]);
+        }
+      }
+      allHistograms.put(Token.AbstractToken.getTypeDesc(typeId), perTokenTypeHistogram);
+    }
+    return Histogram.normalizeHistograms(allHistograms, numChunks);
+  }
+}
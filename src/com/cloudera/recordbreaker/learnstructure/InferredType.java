@@ -16,12 +16,16 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.io.*;
 import java.util.regex.*;
 import org.apache.hadoop.io.*;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
 import org.codehaus.jackson.JsonNode;
 
 /*********************************************************
@@ -33,14 +37,32 @@ public abstract class InferredType implements Writable {
   static byte STRUCT_TYPE = 2;
   static byte ARRAY_TYPE = 3;
   static byte UNION_TYPE = 4;
+  static byte COUNTED_UNION_TYPE = 5;
   static double CARD_COST = Math.log(24);
 
   static int BASE_NOOP = 1;
 
+  // A line that parses under no combination of union decisions makes backtrackingParse()
+  // try them all, and the combinations grow exponentially with the ambiguous unions.
+  // It gives up on a line after this many parses.
+  static int MAX_BACKTRACKING_PARSES = 1024;
+
   String name;
 
+  //
+  // The Avro schema is built on first use and then cached.  Building a node's schema
+  // builds its children's first, so one call on the root prepares the whole tree.
+  // schemaHash is a structural hash of the schema, also built on first use.
+  //
+  private Schema schema = null;
+  private volatile boolean hasSchema = false;
+  private int schemaHash;
+  private volatile boolean hasSchemaHash = false;
+
   /**
-   * Super constructor
+   * Super constructor.  Each subclass numbers its names with an atomic counter,
+   * so trees may be built or loaded on several threads at once.  A tree is never
+   * changed once built, so parsing is thread-safe; see LearnedParser.
    */
   public InferredType() {
     name = createName();
@@ -60,7 +82,17 @@ public abstract class InferredType implements Writable {
     } else if (b == ARRAY_TYPE) {
       it = new ArrayType();
     } else if (b == UNION_TYPE) {
-      it = new UnionType();
+      it = new UnionType(false);
+    } else if (b == COUNTED_UNION_TYPE) {
+      it = new UnionType(true);
+    } else if (b == 0) {
+      //
+      // BaseType.write() used to leave out the kind byte, so in files from then a
+      // base starts with its sample count.  We have just read that int's high byte.
+      //
+      BaseType bt = new BaseType();
+      bt.readFields(in, (in.readUnsignedByte() << 16) | in.readUnsignedShort());
+      return bt;
     } else {
       throw new IOException("No type found: " + b);
     }
@@ -69,633 +101,324 @@ public abstract class InferredType implements Writable {
   }
 
   /**
-   * Use the type tree to parse the given input string
+   * Use the type tree to parse the given input string.  Parsing moves a cursor
+   * along the original string; 'end' is where this result stopped.
    */
-  class ParseResult {
+  public class ParseResult {
     Object data;
     boolean hasData;
-    String s;
+    int end;
 
     /**
      */
-    ParseResult(Object data, boolean hasData, String s) {
+    ParseResult(Object data, boolean hasData, int end) {
       this.data = data;
       this.hasData = hasData;
-      this.s = s;
+      this.end = end;
     }
-    String getRemainingString() {
-      return s;
+    public int getEnd() {
+      return end;
     }
-    Object getData() {
+    public Object getData() {
       return data;
     }
-    boolean hasData() {
+    public boolean hasData() {
       return hasData;
     }
   }
+  /**
+   * Each thread keeps one TokenMatcher, which holds the current line
+   */
+  static ThreadLocal<TokenMatcher> tokenMatchers = new ThreadLocal<TokenMatcher>() {
+    protected TokenMatcher initialValue() {
+      return new TokenMatcher();
+    }
+  };
+
   public GenericContainer parse(String str) {
+    return parse(str, null);
+  }
+
+  /**
+   * Parse the given string, filling in 'reuse' where possible, as with Avro's
+   * DatumReader.read(reuse, ...).  Records and arrays in 'reuse' whose schemas match
+   * the parse are overwritten in place; anything else is allocated fresh.  The caller
+   * must use the returned object, which may not be 'reuse'.  If the parse fails,
+   * 'reuse' may have been partly overwritten.
+   */
+  public GenericContainer parse(String str, GenericContainer reuse) {
+    TokenMatcher m = tokenMatchers.get();
+    m.reset(str);
+
     //
     // Try the naive parse
     //
-    ParseResult pr = internalParse(str, null, true);
+    ParseResult pr = internalParse(m, 0, true, reuse);
     if (pr != null && pr.hasData()) {
+      m.countBranches();
       return (GenericContainer) pr.getData();
     }
 
     //
     // Otherwise, we need to consider other union-options.
-    // Unfold the candidate decisions into a series of target decisions
-    //
-    Map<String, Set<Integer>> candidateUnionDecisions = findCandidateUnionDecisions();
-
-    List<HashMap<String, Integer>> allUnionDecisions = new ArrayList<HashMap<String, Integer>>();
-    for (Map.Entry<String, Set<Integer>> pair: candidateUnionDecisions.entrySet()) {
-      String k = pair.getKey();
-      Set<Integer> indices = pair.getValue();
-
-      if (allUnionDecisions.size() == 0) {
-        for (Integer index: indices) {
-          HashMap<String, Integer> newMap = new HashMap<String, Integer>();
-          newMap.put(k, index);
-          allUnionDecisions.add(newMap);
-        }
-      } else {
-        List<HashMap<String, Integer>> newUnionDecisions = new ArrayList<HashMap<String, Integer>>();
-        for (HashMap<String, Integer> curUnionDecisions: allUnionDecisions) {
-          for (Integer index: indices) {
-            HashMap<String, Integer> newMap = (HashMap<String, Integer>) curUnionDecisions.clone();
-            newMap.put(k, index);
-            newUnionDecisions.add(newMap);
-          }
-        }
-        allUnionDecisions = newUnionDecisions;
-      }
-    }
-
-    //
-    // Now execute all possible union decisions
     //
-    for (Map<String, Integer> targetUnionDecisions: allUnionDecisions) {
-      pr = internalParse(str, targetUnionDecisions, true);
-      if (pr != null && pr.hasData()) {
-        return (GenericContainer) pr.getData();
-      }
-    }
-    //System.err.println("Blargh!!  Failed on " + str);
-    return null;
+    return backtrackingParse(m);
   }
-  abstract ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr);
-  abstract Map<String, Set<Integer>> findCandidateUnionDecisions();
-  abstract List<String> getBases();
 
   /**
-   * Read/write to disk
+   * Parse the string with forced union decisions.  Each union whose branches could be
+   * confused (see findCandidateUnionDecisions()) is made to take one branch, and every
+   * combination of those choices is tried in turn; the first that parses wins.
+   *
+   * A parse only looks at the decisions of the unions it reaches, so when it fails,
+   * every combination that agrees on the decisions up to the last one it looked at
+   * fails the same way.  We skip straight past those, which gives the same first
+   * success as trying the whole product, usually in far fewer parses.
+   *
+   * A line that does not parse can still reach every decision on every try, so the
+   * search stops after MAX_BACKTRACKING_PARSES parses and treats the line as unparsed.
    */
-  public abstract void readFields(DataInput in) throws IOException;
-  public abstract void write(DataOutput out) throws IOException;
-
-  /**
-   * Used for auto-refining the type description
-   */
-  public abstract double getDescriptionCost();
-  //public abstract InferredType refine(RefinementRule rules[]);
-
-  /**
-   * Accessors
-   */
-  public abstract Schema getAvroSchema();
-  public abstract InferredType hoistUnions();
-  public abstract List<InferredType> materializeWithoutUnions();
-  abstract InferredType duplicate();
-  public String getDocString() {
-    return "";
-  }
-  public String getName() {
-    return name;
-  }
-  public JsonNode getDefaultValue() {
-    return null;
-  }
-}
-
-/***************************************
- * A BaseType represents a bottom-level parsable object: string, int, ipaddr, date, etc.
- ***************************************/
-class BaseType extends InferredType {
-  int tokenClassIdentifier;
-  String tokenParameter;
-  Schema schema = null;
-  List<String> sampleStrs = null;
-
-  static int fieldCounter = 0;
-  public BaseType() {
-  }
-  public BaseType(Token.AbstractToken token, List<String> sampleStrs) {
-    this.sampleStrs = sampleStrs;
-    this.tokenClassIdentifier = token.getClassId();
-    this.tokenParameter = token.getParameter();
-    //System.err.println("Token parameter: " + tokenParameter);
-    this.schema = computeAvroSchema();
-  }
-  public BaseType(int tokenClassIdentifier, List<String> sampleStrs, String tokenParameter) {
-    this.sampleStrs = sampleStrs;
-    this.tokenClassIdentifier = tokenClassIdentifier;
-    this.tokenParameter = tokenParameter;
-    //System.err.println("Token parameter: " + tokenParameter);
-    this.schema = computeAvroSchema();
-  }
-  public InferredType hoistUnions() {
-    return this;
-  }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> toReturn = new ArrayList<InferredType>();
-    toReturn.add(this.duplicate());
-    return toReturn;
-  }
-  InferredType duplicate() {
-    return new BaseType(tokenClassIdentifier, sampleStrs, tokenParameter);
-  }
-
-  Schema computeAvroSchema() {
-    return Token.AbstractToken.createAvroSchema(tokenClassIdentifier, tokenParameter, name);
-  }
-  public Schema getAvroSchema() {
-    return schema;
-  }
-  public String getDocString() {
-    StringBuffer buf = new StringBuffer();
-    buf.append("Example data: ");
-    for (Iterator<String> it = sampleStrs.iterator(); it.hasNext(); ) {
-      String tokStr = it.next();
-      buf.append("'" + tokStr + "'");
-      if (it.hasNext()) {
-        buf.append(", ");
-      }
-    }
-    return buf.toString();
-  }
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    List<Token.AbstractToken> outputToks = new ArrayList<Token.AbstractToken>();
-    String newStr = Tokenizer.attemptParse(tokenClassIdentifier, tokenParameter, s, outputToks);
-    if (newStr == null || (mustConsumeStr && newStr.trim().length()!=0)) {
+  public GenericContainer backtrackingParse(TokenMatcher m) {
+    UnionDecisions ud = getUnionDecisions();
+    int numDecisions = ud.unions.length;
+    if (numDecisions == 0) {
       return null;
     }
-    assert(outputToks.size()==1);
-    // outputToks should contain just one result.
-    return new ParseResult(outputToks.get(0).get(), Token.AbstractToken.hasData(tokenClassIdentifier), newStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    return new HashMap<String, Set<Integer>>();
-  }
-  List<String> getBases() {
-    List<String> tr = new ArrayList<String>();
-    tr.add(toString());
-    return tr;
-  }
-  public String toString() {
-    return "Base: " + Token.AbstractToken.getStrDesc(tokenClassIdentifier, tokenParameter) + " ";
-  }
-  public double getDescriptionCost() {
-    return CARD_COST;
-  }
-  String createName() {
-    return "base_" + fieldCounter++;
-  }
-  public void readFields(DataInput in) throws IOException {
-    // instance-specific
-    this.sampleStrs = new ArrayList<String>();
-    int numSamples = in.readInt();
-    for (int i = 0; i < numSamples; i++) {
-      sampleStrs.add(UTF8.readString(in).toString());
-    }
-    this.tokenClassIdentifier = in.readInt();
-    if (in.readBoolean()) {
-      this.tokenParameter = UTF8.readString(in);
-    } else {
-      this.tokenParameter = null;
-    }
-    this.schema = computeAvroSchema();
-  }
-  public void write(DataOutput out) throws IOException {
-    out.writeInt(sampleStrs.size());
-    for (int i = 0; i < sampleStrs.size(); i++) {
-      UTF8.writeString(out, sampleStrs.get(i));
-    }
-    out.writeInt(tokenClassIdentifier);
-    out.writeBoolean(tokenParameter != null);
-    if (tokenParameter != null) {
-      UTF8.writeString(out, tokenParameter);
-    }
-  }
-  //public InferredType refine(RefinementRule rules[]) {
-  //InferredType candidates[] = new InferredType[rules.length];
-//}
-}
-
-/***************************************
- * Represents a record
- ****************************************/
-class StructType extends InferredType {
-  List<InferredType> structTypes;
-  static int recordCounter = 0;
-  Schema schema;
-
-  public StructType() {
-  }
-  public StructType(List<InferredType> structTypes) {
-    this.structTypes = structTypes;
-    this.schema = computeAvroSchema();
-  }
-  void addElt(InferredType structElt) {
-    this.structTypes.add(structElt);
-  }
-  public InferredType hoistUnions() {
-    List<InferredType> newStructTypes = new ArrayList<InferredType>();
-    for (InferredType it: structTypes) {
-      newStructTypes.add(it.hoistUnions());
-    }
-    return new StructType(newStructTypes);
-  }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> newStructs = new ArrayList<InferredType>();
-
-    for (int i = 0; i < structTypes.size(); i++) {
-      List<InferredType> curTrees = structTypes.get(i).materializeWithoutUnions();
-
-      if (i == 0) {
-        for (int j = 0; j < curTrees.size(); j++) {
-          List<InferredType> curTypeList = new ArrayList<InferredType>();
-          curTypeList.add(curTrees.get(j));
-          newStructs.add(new StructType(curTypeList));
+    int choices[] = new int[numDecisions];
+    m.setDecisions(ud, choices);
+    try {
+      for (int numParses = 0; numParses < MAX_BACKTRACKING_PARSES; numParses++) {
+        m.maxDecisionConsulted = -1;
+        m.cutTrail(0);
+        ParseResult pr = internalParse(m, 0, true, null);
+        if (pr != null && pr.hasData()) {
+          m.countBranches();
+          return (GenericContainer) pr.getData();
         }
-      } else {
-        List<InferredType> evenNewerStructs = new ArrayList<InferredType>();
-        evenNewerStructs.addAll(newStructs);
-        for (int j = 1; j < curTrees.size(); j++) {         
-          for (int k = 0; k < newStructs.size(); k++) {
-            evenNewerStructs.add(newStructs.get(k).duplicate());
-          }
+
+        // Advance the last decision consulted, carrying into earlier ones
+        int k = m.maxDecisionConsulted;
+        while (k >= 0 && ++choices[k] == ud.candidates[k].length) {
+          k--;
         }
-        for (int j = 0; j < curTrees.size(); j++) {
-          for (int k = 0; k < evenNewerStructs.size(); k++) {
-            ((StructType) evenNewerStructs.get(k)).addElt(curTrees.get(j));
-          }
+        if (k < 0) {
+          return null;
         }
-        newStructs = evenNewerStructs;
+        Arrays.fill(choices, k+1, numDecisions, 0);
       }
+      return null;
+    } finally {
+      m.setDecisions(null, null);
     }
-    return newStructs;
-  }
-  InferredType duplicate() {
-    List<InferredType> newElts = new ArrayList<InferredType>();
-    for (InferredType elt: structTypes) {
-      newElts.add(elt.duplicate());
-    }
-    return new StructType(newElts);
   }
 
-  public Schema getAvroSchema() {
-    return schema;
-  }
-  Schema computeAvroSchema() {
-    List<Schema.Field> fields = new ArrayList<Schema.Field>();
-    for (InferredType it: structTypes) {
-      Schema itS = it.getAvroSchema();
-      if (itS == null) {
-        continue;
+  /**
+   * The unions that backtrackingParse() forces, in the order their decisions are
+   * enumerated (the first varies slowest), with the branches to try for each.
+   * This depends only on the tree, so it is computed once.
+   */
+  public static class UnionDecisions {
+    public UnionType unions[];
+    public int candidates[][];
+    Map<UnionType, Integer> positions = new IdentityHashMap<UnionType, Integer>();
+
+    UnionDecisions(InferredType root) {
+      Map<String, UnionType> unionsByName = new HashMap<String, UnionType>();
+      root.findUnions(unionsByName);
+      Map<String, Set<Integer>> candidateUnionDecisions = root.findCandidateUnionDecisions();
+      this.unions = new UnionType[candidateUnionDecisions.size()];
+      this.candidates = new int[candidateUnionDecisions.size()][];
+      int k = 0;
+      for (Map.Entry<String, Set<Integer>> pair: candidateUnionDecisions.entrySet()) {
+        unions[k] = unionsByName.get(pair.getKey());
+        candidates[k] = new int[pair.getValue().size()];
+        int j = 0;
+        for (Integer index: pair.getValue()) {
+          candidates[k][j++] = index;
+        }
+        positions.put(unions[k], k);
+        k++;
       }
-      fields.add(new Schema.Field(it.getName(), it.getAvroSchema(), it.getDocString(), it.getDefaultValue()));
     }
-    Schema s = Schema.createRecord(name, "RECORD", "", false);
-    s.setFields(fields);
-    return s;
   }
-
-  public String toString() {
-    StringBuffer buf = new StringBuffer();
-    buf.append("(Struct: ");
-    for (InferredType it: structTypes) {
-      buf.append(it.toString() + ", ");
-    }
-    buf.append(") ");
-    return buf.toString();
-  }
-  public double getDescriptionCost() {
-    double dc = CARD_COST;
-    for (InferredType it: structTypes) {
-      dc += it.getDescriptionCost();
-    }
-    return dc;
-  }
-  String createName() {
-    return "record_" + recordCounter++;
-  }
-  public void readFields(DataInput in) throws IOException {
-    int numStructTypes = in.readInt();
-    structTypes = new ArrayList<InferredType>();
-    for (int i = 0; i < numStructTypes; i++) {
-      structTypes.add(InferredType.readType(in));
-    }
-    this.schema = computeAvroSchema();
-  }
-  public void write(DataOutput out) throws IOException {
-    out.write(STRUCT_TYPE);
-    out.writeInt(structTypes.size());
-    for (InferredType it: structTypes) {
-      it.write(out);
+  volatile UnionDecisions unionDecisions = null;
+  public UnionDecisions getUnionDecisions() {
+    UnionDecisions ud = unionDecisions;
+    if (ud == null) {
+      ud = new UnionDecisions(this);
+      unionDecisions = ud;
     }
+    return ud;
   }
 
   /**
-   * Parse the given string, return resulting data if appropriate.
+   * 'reuse' as a record with the given schema, or null if it is not one
    */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    boolean hasData = false;
-    GenericData.Record gdr = new GenericData.Record(getAvroSchema());
-    String currentStr = s;
-
-    for (InferredType subelt: structTypes) {
-      if (currentStr.length() == 0) {
-        return null;
-      }
-      ParseResult pr = subelt.internalParse(currentStr, targetUnionDecisions, false);
-      if (pr == null) {
-        return null;
-      }
-      if (pr.hasData()) {
-        hasData = true;
-        gdr.put(subelt.getName(), pr.getData());
-      }
-      currentStr = pr.getRemainingString();
-    }
-    if (mustConsumeStr && currentStr.trim().length() != 0) {
-      return null;
+  static GenericData.Record reusableRecord(Object reuse, Schema schema) {
+    if (reuse instanceof GenericData.Record && ((GenericData.Record) reuse).getSchema() == schema) {
+      return (GenericData.Record) reuse;
     }
-    return new ParseResult(gdr, hasData, currentStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
-    for (InferredType subelt: structTypes) {
-      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
-    }
-    return candidateUnionDecisions;
-  }
-  List<String> getBases() {
-    List<String> tr = new ArrayList<String>();
-    for (InferredType subelt: structTypes) {
-      tr.addAll(subelt.getBases());
-    }
-    return tr;
+    return null;
   }
-}
-
-class ArrayType extends InferredType {
-  InferredType bodyType;
-  static int arrayCounter = 0;
-  Schema schema = null;
 
-  public ArrayType() {
-  }
-  public ArrayType(InferredType bodyType) {
-    this.bodyType = bodyType;
-    this.schema = computeAvroSchema();
-  }
-  public InferredType hoistUnions() {
-    return new ArrayType(bodyType.hoistUnions());
-  }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> newArrays = new ArrayList<InferredType>();
-    for (InferredType subtype: bodyType.materializeWithoutUnions()) {
-      newArrays.add(new ArrayType(subtype));
-    }
-    return newArrays;
-  }
-  InferredType duplicate() {
-    return new ArrayType(bodyType);
-  }
-  public Schema getAvroSchema() {
-    return schema;
-  }
-  Schema computeAvroSchema() {
-    return Schema.createArray(bodyType.getAvroSchema());
-  }
-  public String toString() {
-    return "(Array: " + bodyType.toString() + ") ";
-  }
-  public double getDescriptionCost() {
-    return CARD_COST + bodyType.getDescriptionCost();
-  }
-  String createName() {
-    return "array_" + arrayCounter++;
-  }
+  public abstract ParseResult internalParse(TokenMatcher m, int offset, boolean mustConsumeStr, Object reuse);
   /**
-   * Parse the given string, return resulting data if appropriate.
+   * For each union in this subtree whose branches could be confused, the branches
+   * that backtrackingParse() should try, keyed by union name.
    */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    boolean hasData = false;
-    Schema localSchema = getAvroSchema();
-    GenericData.Array gda = new GenericData.Array(5, localSchema);
-    Map<String, Integer> curUnionDecisions = new HashMap<String, Integer>();
-    String currentStr = s;
-
-    while (true) {
-      ParseResult pr = bodyType.internalParse(s, targetUnionDecisions, false);
-      if (pr == null) {
-        break;
-      }
-      assert(pr.hasData());
-
-      gda.add(pr.getData());
-      currentStr = pr.getRemainingString();
-    }
-    if (mustConsumeStr && currentStr.trim().length() != 0) {
-      return null;
-    }
-    return new ParseResult(gda, true, currentStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    return bodyType.findCandidateUnionDecisions();
-  }
-  List<String> getBases() {
-    return bodyType.getBases();
-  }
+  abstract Map<String, Set<Integer>> findCandidateUnionDecisions();
+  /**
+   * Add every union in this subtree to 'unions', by name
+   */
+  abstract void findUnions(Map<String, UnionType> unions);
+  abstract List<String> getBases();
 
-  public void readFields(DataInput in) throws IOException {
-    bodyType = InferredType.readType(in);
-    this.schema = computeAvroSchema();
-  }
-  public void write(DataOutput out) throws IOException {
-    out.write(ARRAY_TYPE);
-    bodyType.write(out);
-  }
-}
+  /**
+   * Add to 'first' the dispatch slot (see UnionType.dispatchSlot()) of every character
+   * that this node could start with.  Returns true if the node could also match
+   * without consuming anything, in which case whatever follows it could start there too.
+   */
+  abstract boolean addFirstChars(BitSet first);
 
-class UnionType extends InferredType {
-  List<InferredType> unionTypes;
-  static int unionCounter = 0;
-  Schema schema = null;
+  /**
+   * Read/write to disk.  This is the original parser.dat format; ParserFile
+   * now writes a faster-loading one, but reads this one too.
+   */
+  public abstract void readFields(DataInput in) throws IOException;
+  public abstract void write(DataOutput out) throws IOException;
 
-  public UnionType() {
-  }
-  public UnionType(List<InferredType> unionTypes) {
-    this.unionTypes = unionTypes;
-    this.schema = computeAvroSchema();
-  }
-  public InferredType hoistUnions() {
-    List<InferredType> newUnionTypes = new ArrayList<InferredType>();
-    for (InferredType it: unionTypes) {
-      if (it instanceof UnionType) {
-        UnionType subUnion = (UnionType) it;
-        for (InferredType it2: subUnion.unionTypes) {
-          newUnionTypes.add(it2.hoistUnions());
-        }
-      } else {
-        newUnionTypes.add(it.hoistUnions());
-      }
+  /**
+   * Strings are in DataOutput.writeUTF() form, which is what Hadoop's old UTF8 class
+   * wrote.  As with UTF8, long strings are truncated to fit.
+   */
+  static void writeString(DataOutput out, String s) throws IOException {
+    if (s.length() > 0xffff / 3) {
+      s = s.substring(0, 0xffff / 3);
     }
-    return new UnionType(newUnionTypes);
+    out.writeUTF(s);
   }
 
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> allOptions = new ArrayList<InferredType>();
-    for (InferredType branch: unionTypes) {
-      allOptions.addAll(branch.materializeWithoutUnions());
-    }
-    return allOptions;
-  }
+  /**
+   * Used for auto-refining the type description
+   */
+  public abstract double getDescriptionCost();
+  public abstract double getParseCost();
+  public abstract InferredType refine(RefinementRule rules[]);
 
-  InferredType duplicate() {
-    List<InferredType> newBranches = new ArrayList<InferredType>();
-    for (InferredType branch: unionTypes) {
-      newBranches.add(branch.duplicate());
-    }
-    return new UnionType(newBranches);
+  /**
+   * The refinement score combines how expensive the type is to describe with how
+   * much work it takes to parse a line with it.  Lower is better.
+   */
+  public double getRefinementScore() {
+    return getDescriptionCost() + getParseCost();
   }
 
-  public Schema getAvroSchema() {
-    return schema;
-  }
-  Schema computeAvroSchema() {
-    HashSet<String> observedSchemas = new HashSet<String>();
-    List<Schema> fields = new ArrayList<Schema>();
-    for (InferredType it: unionTypes) {
-      Schema itS = it.getAvroSchema();
-      if (itS == null) {
-        continue;
-      }
-      String schemaDesc = itS.toString();
-      if (! observedSchemas.contains(schemaDesc)) {
-        observedSchemas.add(schemaDesc);
-        fields.add(it.getAvroSchema());
+  /**
+   * Repeatedly apply the given rules to this node, keeping a rewrite only when it
+   * lowers the refinement score.  Subclasses call this after refining their children.
+   * Each accepted rewrite strictly lowers the score, so this terminates.
+   */
+  InferredType applyRefinementRules(RefinementRule rules[]) {
+    InferredType cur = this;
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (RefinementRule rule: rules) {
+        InferredType candidate = rule.apply(cur);
+        if (candidate == null) {
+          continue;
+        }
+        // The rewrite may have created new nodes that can be refined further
+        candidate = candidate.refine(rules);
+        if (candidate.getRefinementScore() < cur.getRefinementScore()) {
+          cur = candidate;
+          improved = true;
+        }
       }
     }
-    return Schema.createUnion(fields);
+    return cur;
   }
+
   /**
-   * Parse the given string, return resulting data if appropriate.
+   * The node's Avro schema, or null if it produces no data
    */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    //
-    // If there's no target decision, then go ahead and try all branches.
-    //
-    if (targetUnionDecisions == null || targetUnionDecisions.get(name) == null) {
-      for (InferredType subelt: unionTypes) {
-        ParseResult pr = subelt.internalParse(s, targetUnionDecisions, false);
-        if (pr != null && (!mustConsumeStr || (mustConsumeStr && pr.getRemainingString().trim().length() == 0))) {
-          return new ParseResult(pr.getData(), pr.hasData(), pr.getRemainingString());
+  public Schema getAvroSchema() {
+    if (! hasSchema) {
+      synchronized (this) {
+        if (! hasSchema) {
+          this.schema = computeAvroSchema();
+          hasSchema = true;
         }
       }
-      return null;
     }
+    return schema;
+  }
+  protected abstract Schema computeAvroSchema();
 
-    //
-    // If there is a target decision, then carry it out.
-    //
-    InferredType subelt = unionTypes.get(targetUnionDecisions.get(name));
-    ParseResult pr = subelt.internalParse(s, targetUnionDecisions, false);
-    if (pr != null && (!mustConsumeStr || (mustConsumeStr && pr.getRemainingString().trim().length() == 0))) {
-      return new ParseResult(pr.getData(), pr.hasData(), pr.getRemainingString());
-    }
-    return null;
+  /**
+   * For ParserFile, which hands out the parts of a precomputed schema.  Struct
+   * and union nodes also need their field positions and branch indices set.
+   */
+  synchronized void setAvroSchema(Schema schema) {
+    this.schema = schema;
+    hasSchema = true;
   }
 
   /**
+   * A hash of the node's schema.  Nodes with equal schemas have equal hashes, so
+   * this can stand in for comparing whole schemas.  It is cheaper than
+   * Schema.hashCode(), which walks the whole schema on every call.
    */
-  boolean isPrefixOf(List<String> a, List<String> b) {
-    for (int i = 0; i < a.size(); i++) {
-      if (i >= b.size() || a.get(i).compareTo(b.get(i)) != 0) {
-        return false;
-      }
+  public int getSchemaHash() {
+    if (! hasSchemaHash) {
+      schemaHash = computeSchemaHash();
+      hasSchemaHash = true;
     }
-    return true;
+    return schemaHash;
   }
- 
+  protected abstract int computeSchemaHash();
+
   /**
+   * Every union-free variant of this type, one for each combination of union branches.
+   * See iterateWithoutUnions(), which produces the same variants one at a time.
    */
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    HashSet<Integer> curDecisions = new HashSet<Integer>();
-    for (int i = 0; i < unionTypes.size(); i++) {
-      for (int j = i+1; j < unionTypes.size(); j++) {
-        List<String> iBases = unionTypes.get(i).getBases();
-        List<String> jBases = unionTypes.get(j).getBases();
-        if (isPrefixOf(iBases, jBases) || isPrefixOf(jBases, iBases)) {
-          curDecisions.add(i);
-          curDecisions.add(j);
-        }
-      }
-    }
-    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
-    for (InferredType subelt: unionTypes) {
-      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
-    }
-    if (curDecisions.size() > 0) {
-      candidateUnionDecisions.put(name, curDecisions);
+  public List<InferredType> materializeWithoutUnions() {
+    List<InferredType> variants = new ArrayList<InferredType>();
+    for (Iterator<InferredType> it = iterateWithoutUnions(); it.hasNext(); ) {
+      variants.add(it.next());
     }
-    return candidateUnionDecisions;
+    return variants;
   }
 
   /**
+   * Produce the union-free variants of this type on demand, so the caller can stop
+   * early, e.g., at the first variant that parses a line.  The number of variants
+   * grows exponentially with the number of unions, but only the current one is held.
+   * Parts of the tree without unions are shared with this one, not copied.  In a
+   * struct, the earliest element with a union varies fastest.
    */
-  List<String> getBases() {
-    // We stop the base-evaluation when we hit a union.
-    return new ArrayList<String>();
+  public Iterator<InferredType> iterateWithoutUnions() {
+    return variants().iterator();
   }
+  abstract Iterable<InferredType> variants();
 
-  public String toString() {
-    StringBuffer buf = new StringBuffer();
-    buf.append("(Union (" + unionTypes.size() + "): ");
-    for (InferredType it: unionTypes) {
-      buf.append(it.toString() + ", ");
-    }
-    buf.append(") ");
-    return buf.toString();
-  }
-  public double getDescriptionCost() {
-    double dc = CARD_COST;
-    for (InferredType it: unionTypes) {
-      dc += it.getDescriptionCost();
-    }
-    return dc;
-  }
-  String createName() {
-    return "union_" + unionCounter++;
+  /**
+   * True if there is a union anywhere in this type
+   */
+  public abstract boolean hasUnions();
+
+  /**
+   * Accessors
+   */
+  public abstract InferredType hoistUnions();
+  public abstract InferredType duplicate();
+  public String getDocString() {
+    return "";
   }
-  public void readFields(DataInput in) throws IOException {
-    int numUnionElts = in.readInt();
-    this.unionTypes = new ArrayList<InferredType>();
-    for (int i = 0; i < numUnionElts; i++) {
-      unionTypes.add(InferredType.readType(in));
-    }
-    this.schema = computeAvroSchema();
+  public String getName() {
+    return name;
   }
-  public void write(DataOutput out) throws IOException {
-    out.write(UNION_TYPE);
-    out.writeInt(unionTypes.size());
-    for (InferredType it: unionTypes) {
-      it.write(out);
-    }
+  public JsonNode getDefaultValue() {
+    return null;
   }
 }
-
-
-
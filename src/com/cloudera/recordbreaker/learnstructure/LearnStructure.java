@@ -15,13 +15,15 @@
 package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import org.apache.avro.Schema;
-import org.apache.avro.io.JsonEncoder;
-import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.DataFileStream;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericContainer;
-import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericDatumReader;
 
 /*********************************************************
  * LearnStructure is the main file for figuring out pattern-extractors and schemas for a text file.
@@ -33,16 +35,94 @@ import org.apache.avro.generic.GenericDatumWriter;
  *********************************************************/
 public class LearnStructure {
   static String SCHEMA_FILENAME = "schema.json";
-  static String JSONDATA_FILENAME = "data.avro.json";
-  static String DATA_FILENAME = "data.avro";
-  static String PARSER_FILENAME = "parser.dat";
+  public final static String JSONDATA_FILENAME = "data.avro.json";
+  public final static String DATA_FILENAME = "data.avro";
+  public final static String PARSER_FILENAME = "parser.dat";
+  public final static String PART_FILENAME_FORMAT = "data-%05d.avro";
+  public static int EMIT_BATCH_SIZE = 4096;
+
+  int numEmitThreads = 1;
+  boolean emitPartFiles = false;
+  OutputSink outputSink = new OutputSink();
+  boolean partitionByBranch = false;
+  String partitionField = null;
+  long rollBytes = 0;
+  long rollRecords = 0;
+  boolean verbose = false;
+
+  /**
+   * Parse and emit the data with this many threads.  Records keep their input order.
+   */
+  public void setNumEmitThreads(int numEmitThreads) {
+    this.numEmitThreads = Math.max(1, numEmitThreads);
+  }
+
+  /**
+   * Leave the emitted data as one Avro file per emit thread (see PART_FILENAME_FORMAT),
+   * each holding a contiguous range of input lines, instead of a single data.avro.
+   * The parts are listed in a manifest (see AvroPartWriter).
+   */
+  public void setEmitPartFiles(boolean emitPartFiles) {
+    this.emitPartFiles = emitPartFiles;
+  }
+
+  /**
+   * Which files the emitted data goes to, and how Avro files are compressed
+   */
+  public void setOutputSink(OutputSink outputSink) {
+    this.outputSink = outputSink;
+  }
+
+  /**
+   * Write the Avro data as one file per top-level union branch, under PARTITION_DIRNAME,
+   * instead of a single data.avro.  If 'partitionField' is not null, each branch is
+   * split further by that field's value (see PartitionedWriter).  Partitioned data
+   * is not also split into part files; main() rejects that combination.
+   */
+  public void setPartitioning(boolean partitionByBranch, String partitionField) {
+    this.partitionByBranch = partitionByBranch || (partitionField != null);
+    this.partitionField = partitionField;
+  }
+
+  /**
+   * Write the Avro data as part files, starting a new one whenever the current
+   * part reaches 'rollBytes' bytes or 'rollRecords' records (0 means no limit),
+   * and list them in a manifest (see AvroPartWriter).  This takes the place of
+   * emitPartFiles.
+   */
+  public void setRolling(long rollBytes, long rollRecords) {
+    this.rollBytes = Math.max(0, rollBytes);
+    this.rollRecords = Math.max(0, rollRecords);
+  }
+  boolean isRolling() {
+    return rollBytes > 0 || rollRecords > 0;
+  }
+
+  /**
+   * Also report inference statistics, such as discovery cache hits
+   */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
 
   /**
    *
    */
   public void inferRecordFormat(File f, File outdir, boolean emitAvro) throws IOException {
+    inferRecordFormat(f, outdir, emitAvro, false, false);
+  }
+  public void inferRecordFormat(File f, File outdir, boolean emitAvro, boolean generateParser) throws IOException {
+    inferRecordFormat(f, outdir, emitAvro, generateParser, false);
+  }
+
+  /**
+   * If 'generateParser' is set, the data is emitted by a generated and compiled
+   * parser class (see ParserGenerator), which is cached next to the parser file.
+   * If 'directEncode' is set, the parser writes each line straight to the Avro
+   * encoders (see CompiledParser.encode()) instead of building records first.
+   */
+  public void inferRecordFormat(File f, File outdir, boolean emitAvro, boolean generateParser, boolean directEncode) throws IOException {
     File schemaFile = new File(outdir, SCHEMA_FILENAME);
-    File jsonDataFile = new File(outdir, JSONDATA_FILENAME);
     File dataFile = new File(outdir, DATA_FILENAME);
     File parseTreeFile = new File(outdir, PARSER_FILENAME);
 
@@ -56,6 +136,7 @@ public class LearnStructure {
     // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
     //
     long startRead = System.currentTimeMillis();
+    int numLines = 0;
     BufferedReader in = new BufferedReader(new FileReader(f));
     try {
       String s = in.readLine();
@@ -72,6 +153,7 @@ public class LearnStructure {
         s = in.readLine();
         lineno++;
       }
+      numLines = lineno;
     } finally {
       in.close();
     }
@@ -81,7 +163,8 @@ public class LearnStructure {
     //
     long start = System.currentTimeMillis();
     System.err.println("Number of chunks: " + allChunks.size());
-    InferredType typeTree = TypeInference.infer(allChunks);
+    TypeInference.DiscoveryCache cache = new TypeInference.DiscoveryCache();
+    InferredType typeTree = TypeInference.infer(allChunks, cache);
     long end = System.currentTimeMillis();
     double loadTime = (start - startRead) / 1000.0;
     double inferTime = (end - start) / 1000.0;
@@ -89,6 +172,9 @@ public class LearnStructure {
     System.err.println("Elapsed load time: " + loadTime);
     System.err.println("Elapsed inference time: " + inferTime);
     System.err.println("Total execution time: " + totalTime);
+    if (verbose) {
+      System.err.println(cache);
+    }
 
     //
     // The existing type tree is now correct, but could probably be more succinct.
@@ -105,6 +191,10 @@ public class LearnStructure {
     // 1) A JSON/Avro schema
     // 2) A serialized parser program that can consume data and emit Avro files using the given schema
     //
+    // The parser is written last.  If we parse the input below, the parser file then
+    // records how often each union branch was taken, and a parser loaded from it
+    // starts out trying the most frequent branches first.
+    //
     Schema s = typeTree.getAvroSchema();
     BufferedWriter out = new BufferedWriter(new FileWriter(schemaFile));
     try {
@@ -112,58 +202,324 @@ public class LearnStructure {
     } finally {
       out.close();
     }
-    DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parseTreeFile)));
-    try {
-      typeTree.write(outd);
-    } finally {
-      outd.close();
-    }
 
     //
     // Apply the typetree's parser.
     //
     if (emitAvro) {
-      int numGoodParses = 0;
-      int lineno = 0;
       Schema schema = typeTree.getAvroSchema();
-      GenericDatumWriter jsonGDWriter = new GenericDatumWriter(schema);
-      BufferedOutputStream outJson = new BufferedOutputStream(new FileOutputStream(jsonDataFile));
-      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
-
-      GenericDatumWriter gdWriter = new GenericDatumWriter(schema);
-      DataFileWriter outData = new DataFileWriter(gdWriter);
-      outData = outData.create(schema, dataFile);
+      if (numEmitThreads > 1 || emitPartFiles) {
+        emitParallel(f, numLines, typeTree, parseTreeFile, outdir, generateParser, directEncode);
+      } else {
+        int numGoodParses = 0;
+        int lineno = 0;
+        CompiledParser parser = generateParser ? ParserGenerator.loadParser(typeTree, parseTreeFile) : new CompiledParser(typeTree);
+        RecordEmitter emitter = new RecordEmitter(parser, schema, directEncode, outputSink);
+        OutputStream outJson = null;
+        if (outputSink.writesJson()) {
+          outJson = new BufferedOutputStream(new FileOutputStream(new File(outdir, outputSink.getJsonFilename())));
+        }
+        DataFileWriter<GenericContainer> outData = null;
+        AvroPartWriter outParts = null;
+        PartitionedWriter outPartitions = null;
+        if (outputSink.writesAvro()) {
+          if (partitionByBranch) {
+            outPartitions = new PartitionedWriter(schema, partitionField, outputSink, new File(outdir, PartitionedWriter.PARTITION_DIRNAME));
+          } else if (isRolling()) {
+            outParts = new AvroPartWriter(schema, outputSink, outdir, rollBytes, rollRecords);
+          } else {
+            outData = outputSink.createAvroWriter(schema, dataFile);
+          }
+        }
+        ColumnarWriter outColumns = null;
+        if (outputSink.writesColumns()) {
+          outColumns = outputSink.createColumnarWriter(schema, new File(outdir, ColumnarWriter.COLUMNS_FILENAME));
+        }
+        emitter.setOutputs(outJson, (outParts != null) ? outParts.getWriter() : outData, outColumns, outPartitions);
 
-      try {
-        in = new BufferedReader(new FileReader(f));
         try {
-          //System.err.println("Type tree root is " + typeTree);
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-
-            if (gct != null) {
-              numGoodParses++;
-              jsonGDWriter.write(gct, encoder);
-              outData.append(gct);
-              //System.err.println("Good parse " + numGoodParses);
-            } else {
-              System.err.println("unparsed line: '" + str + "'");
+          in = new BufferedReader(new FileReader(f));
+          try {
+            String str = in.readLine();
+            while (str != null) {
+              if (outParts != null && outParts.isFull()) {
+                outParts.roll();
+                emitter.setAvroOutput(outParts.getWriter());
+              }
+              boolean parsed = emitter.emit(str);
+              if (parsed) {
+                numGoodParses++;
+              } else {
+                System.err.println("unparsed line: '" + str + "'");
+              }
+              if (outParts != null) {
+                outParts.addLine(lineno, parsed);
+              }
+              str = in.readLine();
+              lineno++;
             }
-            str = in.readLine();
-            lineno++;
-          }      
+          } finally {
+            in.close();
+          }
         } finally {
-          in.close();
+          emitter.flush();
+          if (outJson != null) {
+            outputSink.finishJson(outJson, numGoodParses == 0);
+            outJson.close();
+          }
+          if (outData != null) {
+            outData.close();
+          }
+          if (outParts != null) {
+            outParts.close();
+          }
+          if (outColumns != null) {
+            outColumns.close();
+          }
+          if (outPartitions != null) {
+            outPartitions.close();
+          }
+        }
+        System.err.println();
+        System.err.println("Total # input lines: " + lineno);
+        System.err.println("Total # lines parsed correctly: " + numGoodParses);
+        reportPartitions(outPartitions);
+      }
+    }
+    DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parseTreeFile)));
+    try {
+      ParserFile.write(typeTree, outd);
+    } finally {
+      outd.close();
+    }
+  }
+
+  /**
+   * A range of input lines, parsed by one of emitParallel()'s workers into an
+   * in-memory Avro, partitioned, or columnar file and JSON text.
+   */
+  static class EmitBatch {
+    int part;
+    int firstLineNo;
+    List<String> lines = new ArrayList<String>();
+    ByteArrayOutputStream avroBytes = new ByteArrayOutputStream();
+    int avroHeaderSize = 0;
+    ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream columnBytes = new ByteArrayOutputStream();
+    PartitionedWriter partitions;
+    List<Integer> unparsedLineNos = new ArrayList<Integer>();
+    int numGoodParses = 0;
+
+    EmitBatch(int part, int firstLineNo) {
+      this.part = part;
+      this.firstLineNo = firstLineNo;
+    }
+    /**
+     * If 'outPartitions' is not null, Avro data is partitioned like it rather than
+     * written to 'avroBytes'
+     */
+    void emit(RecordEmitter emitter, Schema schema, OutputSink sink, PartitionedWriter outPartitions) throws IOException {
+      DataFileWriter<GenericContainer> outData = null;
+      if (sink.writesAvro()) {
+        if (outPartitions != null) {
+          partitions = outPartitions.createBuffer();
+        } else {
+          outData = sink.createAvroWriter(schema, avroBytes);
+          avroHeaderSize = avroBytes.size();
+        }
+      }
+      ColumnarWriter outColumns = sink.writesColumns() ? sink.createColumnarWriter(schema, columnBytes) : null;
+      emitter.setOutputs(sink.writesJson() ? jsonBytes : null, outData, outColumns, partitions);
+      try {
+        for (int i = 0; i < lines.size(); i++) {
+          if (emitter.emit(lines.get(i))) {
+            numGoodParses++;
+          } else {
+            unparsedLineNos.add(firstLineNo + i);
+          }
         }
       } finally {
-        encoder.flush();
+        emitter.flush();
+        if (outData != null) {
+          outData.close();
+        }
+        if (outColumns != null) {
+          outColumns.close();
+        }
+        if (partitions != null) {
+          partitions.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse and emit the data with 'numEmitThreads' workers, each with its own parser.
+   * This thread reads the input in batches of lines and hands them out.  Each worker
+   * parses its batch into an in-memory Avro file, and this thread appends those
+   * blocks, in input order, to the output with DataFileWriter.appendAllFrom().
+   * Columnar output works the same way, with each batch becoming a row group.
+   *
+   * Batches never straddle a part boundary, so with 'emitPartFiles' each part gets
+   * a contiguous range of lines.  When rolling, a batch is never larger than a part's
+   * record limit, and a new part starts before any batch that would overflow the
+   * current one.  Columnar output always goes to a single file, and partitioned
+   * output to its own files.  Unparsed lines are reported in input order, just as
+   * the single-threaded loop does.
+   */
+  void emitParallel(File f, int numLines, InferredType typeTree, File parseTreeFile, File outdir, boolean generateParser, boolean directEncode) throws IOException {
+    final Schema schema = typeTree.getAvroSchema();
+    final BlockingQueue<RecordEmitter> emitters = new ArrayBlockingQueue<RecordEmitter>(numEmitThreads);
+    // The generated class is loaded once; each worker gets its own instance
+    Constructor<? extends CompiledParser> parserConstructor = generateParser ? ParserGenerator.loadParserClass(typeTree, parseTreeFile) : null;
+    for (int i = 0; i < numEmitThreads; i++) {
+      CompiledParser parser = ParserGenerator.newParser(parserConstructor, typeTree);
+      emitters.add(new RecordEmitter(parser, schema, directEncode, outputSink));
+    }
+    int numParts = (emitPartFiles && ! isRolling()) ? numEmitThreads : 1;
+    int batchSize = (rollRecords > 0) ? (int) Math.min(EMIT_BATCH_SIZE, rollRecords) : EMIT_BATCH_SIZE;
+    int numGoodParses = 0;
+    int lineno = 0;
+    boolean jsonEmpty = true;
+    OutputStream outJson = null;
+    if (outputSink.writesJson()) {
+      outJson = new BufferedOutputStream(new FileOutputStream(new File(outdir, outputSink.getJsonFilename())));
+    }
+    ColumnarWriter outColumns = null;
+    if (outputSink.writesColumns()) {
+      outColumns = outputSink.createColumnarWriter(schema, new File(outdir, ColumnarWriter.COLUMNS_FILENAME));
+    }
+    final PartitionedWriter outPartitions;
+    if (outputSink.writesAvro() && partitionByBranch) {
+      outPartitions = new PartitionedWriter(schema, partitionField, outputSink, new File(outdir, PartitionedWriter.PARTITION_DIRNAME));
+    } else {
+      outPartitions = null;
+    }
+    DataFileWriter<GenericContainer> outData = null;
+    AvroPartWriter outParts = null;
+    if (outputSink.writesAvro() && outPartitions == null) {
+      if (numParts > 1 || isRolling()) {
+        outParts = new AvroPartWriter(schema, outputSink, outdir, rollBytes, rollRecords);
+      } else {
+        outData = outputSink.createAvroWriter(schema, new File(outdir, DATA_FILENAME));
+      }
+    }
+    LinkedList<Future<EmitBatch>> pending = new LinkedList<Future<EmitBatch>>();
+    ExecutorService workers = Executors.newFixedThreadPool(numEmitThreads);
+
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String str = in.readLine();
+      while (str != null || pending.size() > 0) {
+        //
+        // Hand out the next batch, unless enough are already in flight
+        //
+        if (str != null && pending.size() < 2 * numEmitThreads) {
+          int part = (numLines == 0) ? 0 : (int) Math.min(numParts - 1, (long) lineno * numParts / numLines);
+          long partEnd = (part == numParts - 1) ? Long.MAX_VALUE : ((long) (part + 1) * numLines + numParts - 1) / numParts;
+          final EmitBatch batch = new EmitBatch(part, lineno);
+          while (str != null && batch.lines.size() < batchSize && lineno < partEnd) {
+            batch.lines.add(str);
+            str = in.readLine();
+            lineno++;
+          }
+          pending.add(workers.submit(new Callable<EmitBatch>() {
+              public EmitBatch call() throws Exception {
+                RecordEmitter emitter = emitters.take();
+                try {
+                  batch.emit(emitter, schema, outputSink, outPartitions);
+                } finally {
+                  emitters.add(emitter);
+                }
+                return batch;
+              }
+            }));
+          continue;
+        }
+
+        //
+        // Otherwise, write out the oldest batch
+        //
+        EmitBatch batch;
+        try {
+          batch = pending.removeFirst().get();
+        } catch (InterruptedException iex) {
+          throw new IOException("Interrupted while emitting data: " + iex);
+        } catch (ExecutionException eex) {
+          throw (IOException) new IOException("Could not emit data: " + eex.getCause()).initCause(eex.getCause());
+        }
+        if (outPartitions != null) {
+          outPartitions.appendAllFrom(batch.partitions);
+        } else if (outParts != null) {
+          while (outParts.getPartNumber() < batch.part) {
+            outParts.roll();
+          }
+          if (isRolling() && outParts.wouldOverflow(batch.numGoodParses, batch.avroBytes.size() - batch.avroHeaderSize)) {
+            outParts.roll();
+          }
+          outParts.appendAllFrom(batch.avroBytes.toByteArray(), batch.numGoodParses, batch.firstLineNo, batch.firstLineNo + batch.lines.size() - 1);
+        } else if (outData != null) {
+          DataFileStream<GenericContainer> batchData = new DataFileStream<GenericContainer>(new ByteArrayInputStream(batch.avroBytes.toByteArray()), new GenericDatumReader<GenericContainer>());
+          try {
+            outData.appendAllFrom(batchData, false);
+          } finally {
+            batchData.close();
+          }
+        }
+        if (outColumns != null) {
+          outColumns.appendAllFrom(new ColumnarReader(ByteBuffer.wrap(batch.columnBytes.toByteArray())));
+        }
+        if (batch.jsonBytes.size() > 0) {
+          if (! jsonEmpty) {
+            outJson.write(outputSink.getJsonSeparator());
+          }
+          batch.jsonBytes.writeTo(outJson);
+          jsonEmpty = false;
+        }
+        for (int lineNo: batch.unparsedLineNos) {
+          System.err.println("unparsed line: '" + batch.lines.get(lineNo - batch.firstLineNo) + "'");
+        }
+        numGoodParses += batch.numGoodParses;
+      }
+
+      // Every part exists, even if it got no lines
+      while (outParts != null && outParts.getPartNumber() < numParts - 1) {
+        outParts.roll();
+      }
+    } finally {
+      workers.shutdownNow();
+      in.close();
+      if (outJson != null) {
+        outputSink.finishJson(outJson, jsonEmpty);
         outJson.close();
+      }
+      if (outData != null) {
         outData.close();
       }
-      System.err.println();
-      System.err.println("Total # input lines: " + lineno);
-      System.err.println("Total # lines parsed correctly: " + numGoodParses);
+      if (outParts != null) {
+        outParts.close();
+      }
+      if (outColumns != null) {
+        outColumns.close();
+      }
+      if (outPartitions != null) {
+        outPartitions.close();
+      }
+    }
+    System.err.println();
+    System.err.println("Total # input lines: " + lineno);
+    System.err.println("Total # lines parsed correctly: " + numGoodParses);
+    reportPartitions(outPartitions);
+  }
+
+  void reportPartitions(PartitionedWriter outPartitions) {
+    if (outPartitions == null) {
+      return;
+    }
+    Map<String, Long> counts = outPartitions.getRecordCounts();
+    System.err.println("Total # partitions: " + counts.size());
+    for (Map.Entry<String, Long> e: counts.entrySet()) {
+      System.err.println("  " + e.getKey() + ": " + e.getValue() + " records");
     }
   }
 
@@ -172,10 +528,22 @@ public class LearnStructure {
   //////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 2) {
-      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false)");
+      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false) (-generateParser true|(false)) (-directEncode true|(false)) (-numEmitThreads <n>) (-emitPartFiles true|(false)) (-output avro|(avro+json)|ndjson|columnar) (-codec (null)|deflate|deflate:<level>|snappy) (-syncInterval <bytes>) (-partitionByBranch true|(false)) (-partitionField <fieldname>|@date) (-rollBytes <bytes>) (-rollRecords <n>) (-verbose true|(false))");
       return;
     }
     boolean emitAvro = true;
+    boolean generateParser = false;
+    boolean directEncode = false;
+    int numEmitThreads = 1;
+    boolean emitPartFiles = false;
+    OutputSink.Format outputFormat = OutputSink.Format.AVRO_JSON;
+    String codecName = "null";
+    int syncInterval = 0;
+    boolean partitionByBranch = false;
+    String partitionField = null;
+    long rollBytes = 0;
+    long rollRecords = 0;
+    boolean verbose = false;
     int i = 0;
     File f = new File(argv[i++]).getCanonicalFile();
     File outdir = new File(argv[i++]).getCanonicalFile();
@@ -183,9 +551,49 @@ public class LearnStructure {
       if ("-emitAvro".equals(argv[i])) {
         i++;
         emitAvro = "true".equals(argv[i]);
+      } else if ("-generateParser".equals(argv[i])) {
+        i++;
+        generateParser = "true".equals(argv[i]);
+      } else if ("-directEncode".equals(argv[i])) {
+        i++;
+        directEncode = "true".equals(argv[i]);
+      } else if ("-numEmitThreads".equals(argv[i])) {
+        i++;
+        numEmitThreads = Integer.parseInt(argv[i]);
+      } else if ("-emitPartFiles".equals(argv[i])) {
+        i++;
+        emitPartFiles = "true".equals(argv[i]);
+      } else if ("-output".equals(argv[i])) {
+        i++;
+        outputFormat = OutputSink.parseFormat(argv[i]);
+      } else if ("-codec".equals(argv[i])) {
+        i++;
+        codecName = argv[i];
+      } else if ("-syncInterval".equals(argv[i])) {
+        i++;
+        syncInterval = Integer.parseInt(argv[i]);
+      } else if ("-partitionByBranch".equals(argv[i])) {
+        i++;
+        partitionByBranch = "true".equals(argv[i]);
+      } else if ("-partitionField".equals(argv[i])) {
+        i++;
+        partitionField = argv[i];
+      } else if ("-rollBytes".equals(argv[i])) {
+        i++;
+        rollBytes = Long.parseLong(argv[i]);
+      } else if ("-rollRecords".equals(argv[i])) {
+        i++;
+        rollRecords = Long.parseLong(argv[i]);
+      } else if ("-verbose".equals(argv[i])) {
+        i++;
+        verbose = "true".equals(argv[i]);
       }
     }
 
+    if ((partitionByBranch || partitionField != null) && (emitPartFiles || rollBytes > 0 || rollRecords > 0)) {
+      throw new IllegalArgumentException("-partitionByBranch and -partitionField cannot be used with -emitPartFiles, -rollBytes or -rollRecords");
+    }
+
     System.err.println("Input file: " + f.getCanonicalPath());
     System.err.println("Output directory: " + outdir.getCanonicalPath());
     if (outdir.exists()) {
@@ -194,6 +602,12 @@ public class LearnStructure {
     outdir.mkdirs();
 
     LearnStructure ls = new LearnStructure();
-    ls.inferRecordFormat(f, outdir, emitAvro);
+    ls.setNumEmitThreads(numEmitThreads);
+    ls.setEmitPartFiles(emitPartFiles);
+    ls.setOutputSink(new OutputSink(outputFormat, codecName, syncInterval));
+    ls.setPartitioning(partitionByBranch, partitionField);
+    ls.setRolling(rollBytes, rollRecords);
+    ls.setVerbose(verbose);
+    ls.inferRecordFormat(f, outdir, emitAvro, generateParser, directEncode);
   }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericContainer;
+
+/*********************************************************
+ * LearnedParser is a learned record format, ready to parse text.  One instance
+ * can be shared by any number of threads.
+ *
+ * The type tree is never changed after loading.  The only state that parsing
+ * updates is each union's branch counts and dispatch order (see
+ * UnionType.reorderBranches()), and those are atomic or replaced whole.  All
+ * per-line scratch space lives in a CompiledParser that each calling thread
+ * creates the first time it parses.
+ *********************************************************/
+public final class LearnedParser {
+  final InferredType root;
+  final Schema schema;
+  final ThreadLocal<CompiledParser> parsers = new ThreadLocal<CompiledParser>() {
+    protected CompiledParser initialValue() {
+      return new CompiledParser(root);
+    }
+  };
+
+  /**
+   * Load a parser file written by LearnStructure (see ParserFile)
+   */
+  public static LearnedParser load(File parserFile) throws IOException {
+    return new LearnedParser(ParserFile.read(parserFile));
+  }
+  public static LearnedParser load(InputStream in) throws IOException {
+    return new LearnedParser(ParserFile.read(in));
+  }
+
+  /**
+   * The caller must not change 'root' afterwards
+   */
+  public LearnedParser(InferredType root) {
+    this.root = root;
+    this.schema = root.getAvroSchema();
+  }
+
+  /**
+   * The schema of every record that parse() returns
+   */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * The learned type tree.  Callers must not change it.
+   */
+  public InferredType getTypeTree() {
+    return root;
+  }
+
+  /**
+   * The calling thread's scratch parser, created on first use
+   */
+  public CompiledParser getThreadParser() {
+    return parsers.get();
+  }
+
+  /**
+   * Parse a line.  Returns null if the line does not fit the learned format.
+   */
+  public GenericContainer parse(CharSequence line) {
+    return parseInto(line, null);
+  }
+
+  /**
+   * Parse a line, filling in 'reuse' where possible.  As with
+   * InferredType.parse(String, GenericContainer), the caller must use the returned
+   * object, which may not be 'reuse'.  'reuse' must not be shared between threads.
+   */
+  public GenericContainer parseInto(CharSequence line, GenericContainer reuse) {
+    return getThreadParser().parse(line.toString(), reuse);
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+
+  /**
+   * main() times several threads sharing one LearnedParser on a file.
+   * TestLearnedParser checks that they get the same records as a single thread.
+   */
+  public static void main(String argv[]) throws Exception {
+    if (argv.length < 2) {
+      System.err.println("Usage: LearnedParser <parser.dat> <datafile> (numThreads)");
+      return;
+    }
+    final LearnedParser parser = LearnedParser.load(new File(argv[0]));
+    int numThreads = (argv.length > 2) ? Integer.parseInt(argv[2]) : 4;
+
+    final List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(argv[1])));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+
+    final AtomicInteger numParsed = new AtomicInteger();
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    long start = System.currentTimeMillis();
+    for (int t = 0; t < numThreads; t++) {
+      results.add(workers.submit(new Runnable() {
+          public void run() {
+            GenericContainer reuse = null;
+            for (int i = 0; i < lines.size(); i++) {
+              GenericContainer gc = parser.parseInto(lines.get(i), reuse);
+              if (gc != null) {
+                numParsed.incrementAndGet();
+                reuse = gc;
+              }
+            }
+          }
+        }));
+    }
+    for (Future<?> result: results) {
+      result.get();
+    }
+    long end = System.currentTimeMillis();
+    workers.shutdown();
+    System.err.println("Parsed " + lines.size() + " lines in each of " + numThreads + " threads in " + ((end - start) / 1000.0) + "s, " + numParsed.get() + " parses");
+  }
+}
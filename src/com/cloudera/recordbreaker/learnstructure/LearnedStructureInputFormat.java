@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.net.URI;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.LineRecordReader;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/*********************************************************
+ * LearnedStructureInputFormat reads raw text with a parser learned by
+ * LearnStructure or DistributedLearnStructure.  Files are split into lines just
+ * as TextInputFormat splits them.  Each line is parsed, and the mapper gets the
+ * line's byte offset as the key and the parsed record as the value.  Lines that
+ * do not fit the learned format are skipped, and counted.
+ *
+ * The job names its parser with setParserFile(), which also puts the file in
+ * the distributed cache.  A task loads the parser once, from its local copy if
+ * there is one (the local job runner does not make one) and otherwise from the
+ * parser file's filesystem, and shares it among the task's readers.  Only the
+ * last parser loaded is kept, so a JVM that runs many jobs does not fill up
+ * with old parsers.
+ *
+ * As with TextInputFormat, the reader reuses the value's record from one line to
+ * the next, so a mapper that keeps records must copy them.
+ *********************************************************/
+@SuppressWarnings("deprecation")
+public class LearnedStructureInputFormat extends FileInputFormat<LongWritable, DatumWrapper<GenericContainer>> implements JobConfigurable {
+  public static String PARSER_FILE_KEY = "recordbreaker.learnstructure.parser.file";
+
+  /**
+   * Counters reported by the record readers
+   */
+  public static enum ParseCounters {
+    PARSED_LINES,
+    UNPARSED_LINES
+  }
+
+  /**
+   * The parser last loaded in this JVM, and its parser file and modification
+   * time.  The local job runner runs every job in one JVM, and a parser file may
+   * be rewritten between jobs.
+   */
+  static Object parserLock = new Object();
+  static String loadedParserKey = null;
+  static LearnedParser loadedParser = null;
+
+  /**
+   * Parse the job's input with the parser file at 'parserFile'
+   */
+  public static void setParserFile(JobConf job, Path parserFile) throws IOException {
+    Path qualified = parserFile.makeQualified(parserFile.getFileSystem(job));
+    job.set(PARSER_FILE_KEY, qualified.toString());
+    DistributedCache.addCacheFile(qualified.toUri(), job);
+  }
+
+  /**
+   * The job's parser, loaded on first use
+   */
+  public static LearnedParser getParser(JobConf job) throws IOException {
+    String parserName = job.get(PARSER_FILE_KEY);
+    if (parserName == null) {
+      throw new IOException("No parser file set; see LearnedStructureInputFormat.setParserFile()");
+    }
+    Path parserFile = new Path(parserName);
+    String cacheKey = parserName + "@" + parserFile.getFileSystem(job).getFileStatus(parserFile).getModificationTime();
+    synchronized (parserLock) {
+      if (! cacheKey.equals(loadedParserKey)) {
+        // Drop the old parser before loading the new one
+        loadedParserKey = null;
+        loadedParser = null;
+        loadedParser = loadParser(job, parserFile);
+        loadedParserKey = cacheKey;
+      }
+      return loadedParser;
+    }
+  }
+  static LearnedParser loadParser(JobConf job, Path parserFile) throws IOException {
+    // The local copies are listed in the same order as the cached files
+    URI cacheFiles[] = DistributedCache.getCacheFiles(job);
+    Path localFiles[] = DistributedCache.getLocalCacheFiles(job);
+    if (cacheFiles != null && localFiles != null) {
+      for (int i = 0; i < cacheFiles.length && i < localFiles.length; i++) {
+        if (parserFile.toUri().equals(cacheFiles[i])) {
+          return LearnedParser.load(new File(localFiles[i].toUri().getPath()));
+        }
+      }
+    }
+    FileSystem fs = parserFile.getFileSystem(job);
+    InputStream in = new BufferedInputStream(fs.open(parserFile));
+    try {
+      return LearnedParser.load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The schema of every record the job's readers produce
+   */
+  public static Schema getSchema(JobConf job) throws IOException {
+    return getParser(job).getSchema();
+  }
+
+  CompressionCodecFactory compressionCodecs = null;
+
+  public void configure(JobConf job) {
+    this.compressionCodecs = new CompressionCodecFactory(job);
+  }
+
+  protected boolean isSplitable(FileSystem fs, Path file) {
+    return compressionCodecs.getCodec(file) == null;
+  }
+
+  public RecordReader<LongWritable, DatumWrapper<GenericContainer>> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+    reporter.setStatus(split.toString());
+    return new LearnedStructureRecordReader(getParser(job), new LineRecordReader(job, (FileSplit) split), reporter);
+  }
+
+  /**
+   * Reads lines with a LineRecordReader and returns the ones that parse
+   */
+  public static class LearnedStructureRecordReader implements RecordReader<LongWritable, DatumWrapper<GenericContainer>> {
+    LearnedParser parser;
+    LineRecordReader lines;
+    Reporter reporter;
+    Text line = new Text();
+
+    public LearnedStructureRecordReader(LearnedParser parser, LineRecordReader lines, Reporter reporter) {
+      this.parser = parser;
+      this.lines = lines;
+      this.reporter = reporter;
+    }
+
+    public boolean next(LongWritable key, DatumWrapper<GenericContainer> value) throws IOException {
+      while (lines.next(key, line)) {
+        GenericContainer record = parser.parseInto(line.toString(), value.datum());
+        if (record == null) {
+          reporter.incrCounter(ParseCounters.UNPARSED_LINES, 1);
+          continue;
+        }
+        reporter.incrCounter(ParseCounters.PARSED_LINES, 1);
+        value.datum(record);
+        return true;
+      }
+      return false;
+    }
+
+    public LongWritable createKey() {
+      return lines.createKey();
+    }
+    public DatumWrapper<GenericContainer> createValue() {
+      return new DatumWrapper<GenericContainer>();
+    }
+    public long getPos() throws IOException {
+      return lines.getPos();
+    }
+    public float getProgress() throws IOException {
+      return lines.getProgress();
+    }
+    public void close() throws IOException {
+      lines.close();
+    }
+  }
+}
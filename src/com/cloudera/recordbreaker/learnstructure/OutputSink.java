@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+
+/*********************************************************
+ * OutputSink says where emitted records go, and creates the writers for them.
+ *
+ *   AVRO: data.avro only
+ *   AVRO_JSON: data.avro, plus the same records as Avro JSON in data.avro.json (the default)
+ *   NDJSON: data.json only, one plain JSON record per line (see PlainJsonWriter)
+ *   COLUMNAR: data.columns only, stored column by column (see ColumnarWriter)
+ *
+ * Avro files use the sink's codec ("null", "deflate", "deflate:<level>", or "snappy")
+ * and sync interval, which is the approximate number of bytes in each block.  For
+ * columnar output, the sync interval is the approximate size of each row group.
+ *********************************************************/
+public class OutputSink {
+  public final static String NDJSON_FILENAME = "data.json";
+
+  public static enum Format {
+    AVRO,
+    AVRO_JSON,
+    NDJSON,
+    COLUMNAR
+  }
+
+  Format format;
+  String codecName;
+  CodecFactory codec;
+  int syncInterval;
+
+  /**
+   * The default sink: Avro and Avro JSON, uncompressed, with Avro's default sync interval
+   */
+  public OutputSink() {
+    this(Format.AVRO_JSON, "null", 0);
+  }
+
+  /**
+   * A 'syncInterval' of 0 leaves Avro's default in place
+   */
+  public OutputSink(Format format, String codecName, int syncInterval) {
+    this.format = format;
+    this.codecName = codecName;
+    this.codec = parseCodec(codecName);
+    this.syncInterval = syncInterval;
+  }
+
+  /**
+   * Parse a format name: "avro", "avro+json", "ndjson", or "columnar"
+   */
+  public static Format parseFormat(String name) {
+    if ("avro".equals(name)) {
+      return Format.AVRO;
+    } else if ("avro+json".equals(name)) {
+      return Format.AVRO_JSON;
+    } else if ("ndjson".equals(name)) {
+      return Format.NDJSON;
+    } else if ("columnar".equals(name)) {
+      return Format.COLUMNAR;
+    }
+    throw new IllegalArgumentException("Unknown output format: " + name);
+  }
+
+  /**
+   * Parse a codec name: "null", "deflate", "deflate:<level>", or "snappy"
+   */
+  public static CodecFactory parseCodec(String name) {
+    if ("null".equals(name)) {
+      return CodecFactory.nullCodec();
+    } else if ("deflate".equals(name)) {
+      return CodecFactory.deflateCodec(6);
+    } else if (name.startsWith("deflate:")) {
+      return CodecFactory.deflateCodec(Integer.parseInt(name.substring("deflate:".length())));
+    } else if ("snappy".equals(name)) {
+      return CodecFactory.snappyCodec();
+    }
+    throw new IllegalArgumentException("Unknown codec: " + name);
+  }
+
+  public boolean writesAvro() {
+    return format == Format.AVRO || format == Format.AVRO_JSON;
+  }
+  public boolean writesJson() {
+    return format == Format.AVRO_JSON || format == Format.NDJSON;
+  }
+  public boolean writesColumns() {
+    return format == Format.COLUMNAR;
+  }
+  /**
+   * True if the JSON output is plain JSON, written by a PlainJsonWriter.  Otherwise
+   * it is Avro JSON, written by a JsonEncoder.
+   */
+  public boolean writesPlainJson() {
+    return format == Format.NDJSON;
+  }
+
+  /**
+   * The JSON output's filename, or null if there is none
+   */
+  public String getJsonFilename() {
+    switch (format) {
+    case AVRO_JSON:
+      return LearnStructure.JSONDATA_FILENAME;
+    case NDJSON:
+      return NDJSON_FILENAME;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * What separates one JSON record from the next.  NDJSON also ends with it.
+   */
+  public byte getJsonSeparator() {
+    return (format == Format.NDJSON) ? (byte) '\n' : (byte) ' ';
+  }
+  public void finishJson(OutputStream out, boolean isEmpty) throws IOException {
+    if (format == Format.NDJSON && ! isEmpty) {
+      out.write(getJsonSeparator());
+    }
+  }
+
+  /**
+   * An Avro data file writer with this sink's codec and sync interval
+   */
+  public DataFileWriter<GenericContainer> createAvroWriter(Schema schema, OutputStream out) throws IOException {
+    return configure(new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(schema))).create(schema, out);
+  }
+  public DataFileWriter<GenericContainer> createAvroWriter(Schema schema, File f) throws IOException {
+    return configure(new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(schema))).create(schema, f);
+  }
+  DataFileWriter<GenericContainer> configure(DataFileWriter<GenericContainer> writer) {
+    writer.setCodec(codec);
+    if (syncInterval > 0) {
+      writer.setSyncInterval(syncInterval);
+    }
+    return writer;
+  }
+
+  /**
+   * A columnar writer whose row groups are about the sink's sync interval in size
+   */
+  public ColumnarWriter createColumnarWriter(Schema schema, OutputStream out) throws IOException {
+    return new ColumnarWriter(schema, out, syncInterval);
+  }
+  public ColumnarWriter createColumnarWriter(Schema schema, File f) throws IOException {
+    return createColumnarWriter(schema, new BufferedOutputStream(new FileOutputStream(f)));
+  }
+
+  /**
+   * Point an Avro JSON encoder at 'out', creating it if 'reuse' is null
+   */
+  public JsonEncoder createJsonEncoder(JsonEncoder reuse, Schema schema, OutputStream out) throws IOException {
+    return (reuse == null) ? EncoderFactory.get().jsonEncoder(schema, out) : reuse.configure(out);
+  }
+
+  /**
+   * A writer for plain JSON output to 'out'
+   */
+  public PlainJsonWriter createPlainJsonWriter(Schema schema, OutputStream out) throws IOException {
+    return new PlainJsonWriter(schema, out);
+  }
+
+  public String toString() {
+    return format + " codec=" + codecName + (syncInterval > 0 ? " syncInterval=" + syncInterval : "");
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+
+  /**
+   * A counting sink for the benchmark, so disk speed does not enter into it
+   */
+  static class CountingOutputStream extends OutputStream {
+    long count = 0;
+    public void write(int b) {
+      count++;
+    }
+    public void write(byte b[], int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * main() compares emit throughput across sink configurations.  Each configuration
+   * parses the whole data file, 'repeat' times over, with both the object and the
+   * direct-encoding emitters, and writes to memory.
+   */
+  public static void main(String argv[]) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("Usage: OutputSink <parser.dat> <datafile> (repeat)");
+      return;
+    }
+    InferredType typeTree = ParserFile.read(new File(argv[0]));
+    int repeat = (argv.length > 2) ? Integer.parseInt(argv[2]) : 10;
+    Schema schema = typeTree.getAvroSchema();
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(argv[1])));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+
+    List<OutputSink> sinks = new ArrayList<OutputSink>();
+    sinks.add(new OutputSink(Format.AVRO_JSON, "null", 0));
+    sinks.add(new OutputSink(Format.AVRO, "null", 0));
+    sinks.add(new OutputSink(Format.AVRO, "null", 1024 * 1024));
+    sinks.add(new OutputSink(Format.AVRO, "deflate:1", 0));
+    sinks.add(new OutputSink(Format.AVRO, "deflate:6", 0));
+    sinks.add(new OutputSink(Format.AVRO, "deflate:9", 0));
+    sinks.add(new OutputSink(Format.AVRO, "snappy", 0));
+    sinks.add(new OutputSink(Format.NDJSON, "null", 0));
+    sinks.add(new OutputSink(Format.COLUMNAR, "null", 0));
+
+    for (boolean directEncode: new boolean[] {false, true}) {
+      for (OutputSink sink: sinks) {
+        RecordEmitter emitter = new RecordEmitter(new CompiledParser(typeTree), schema, directEncode, sink);
+        // Once to warm up, then for real
+        for (int pass = 0; pass < 2; pass++) {
+          CountingOutputStream avroOut = new CountingOutputStream();
+          CountingOutputStream jsonOut = new CountingOutputStream();
+          DataFileWriter<GenericContainer> outData = sink.writesAvro() ? sink.createAvroWriter(schema, avroOut) : null;
+          ColumnarWriter outColumns = sink.writesColumns() ? sink.createColumnarWriter(schema, avroOut) : null;
+          emitter.setOutputs(sink.writesJson() ? jsonOut : null, outData, outColumns, null);
+          long start = System.currentTimeMillis();
+          int numParsed = 0;
+          for (int i = 0; i < repeat; i++) {
+            for (String line: lines) {
+              if (emitter.emit(line)) {
+                numParsed++;
+              }
+            }
+          }
+          emitter.flush();
+          if (outData != null) {
+            outData.close();
+          }
+          if (outColumns != null) {
+            outColumns.close();
+          }
+          long end = System.currentTimeMillis();
+          if (pass == 1) {
+            double secs = Math.max(end - start, 1) / 1000.0;
+            System.err.println((directEncode ? "direct " : "object ") + sink + ": " + numParsed + " records in " + secs + "s (" +
+                               Math.round(numParsed / secs) + " records/s), " + avroOut.count + " Avro or columnar bytes, " + jsonOut.count + " JSON bytes");
+          }
+        }
+      }
+    }
+  }
+}
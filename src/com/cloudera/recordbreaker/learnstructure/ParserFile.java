@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import org.apache.avro.Schema;
+
+/*********************************************************
+ * ParserFile reads and writes parser.dat, the serialized InferredType tree.
+ *
+ * The file is laid out so that it loads quickly:
+ *
+ *   magic (int), version (int), node count (int)
+ *   string table: count (int), then each string as a byte length (int) and UTF-8 bytes
+ *   nodes, in preorder, so node 0 is the root and children come after their parents
+ *   the root's Avro schema JSON, as a string index (-1 if there is none)
+ *
+ * Each node is a kind byte and its name's string index, followed by:
+ *   BASE_TYPE: token class id, parameter's string index (or -1), sample count, sample string indices
+ *   STRUCT_TYPE: child count, then each child's node index and field position (or -1)
+ *   ARRAY_TYPE: the body's node index
+ *   UNION_TYPE: child count, then each child's node index, schema index (or -1), and branch count (long)
+ *
+ * Loading maps the file into memory, parses the schema once, and hands each node
+ * its part of it, so no node recomputes its schema.  Files without the magic number
+ * are in the older format written by InferredType.write(), and are read with
+ * InferredType.readType().  That format has no node names, so a tree loaded from
+ * it has fresh ones, and its schema differs from the original in names only.
+ *********************************************************/
+public class ParserFile {
+  public final static int MAGIC = 0x52425046;  // "RBPF"
+  public final static int VERSION = 1;
+
+  /**
+   * Serialize the tree rooted at 'root'
+   */
+  public static void write(InferredType root, DataOutput out) throws IOException {
+    List<InferredType> nodes = new ArrayList<InferredType>();
+    IdentityHashMap<InferredType, Integer> nodeIndices = new IdentityHashMap<InferredType, Integer>();
+    addNodes(root, nodes, nodeIndices);
+
+    //
+    // Gather the strings first, so the table can precede the nodes
+    //
+    Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+    Schema schema = root.getAvroSchema();
+    String schemaStr = (schema == null) ? null : schema.toString();
+    addString(schemaStr, strings, stringIndices);
+    for (InferredType it: nodes) {
+      addString(it.getName(), strings, stringIndices);
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        addString(bt.tokenParameter, strings, stringIndices);
+        for (String sample: bt.sampleStrs) {
+          addString(sample, strings, stringIndices);
+        }
+      }
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(nodes.size());
+    out.writeInt(strings.size());
+    for (String str: strings) {
+      byte bytes[] = str.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    for (InferredType it: nodes) {
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        out.writeByte(InferredType.BASE_TYPE);
+        out.writeInt(stringIndex(it.getName(), stringIndices));
+        out.writeInt(bt.tokenClassIdentifier);
+        out.writeInt(stringIndex(bt.tokenParameter, stringIndices));
+        out.writeInt(bt.sampleStrs.size());
+        for (String sample: bt.sampleStrs) {
+          out.writeInt(stringIndex(sample, stringIndices));
+        }
+      } else if (it instanceof StructType) {
+        StructType st = (StructType) it;
+        out.writeByte(InferredType.STRUCT_TYPE);
+        out.writeInt(stringIndex(it.getName(), stringIndices));
+        out.writeInt(st.structTypes.size());
+        for (int i = 0; i < st.structTypes.size(); i++) {
+          out.writeInt(nodeIndices.get(st.structTypes.get(i)));
+          out.writeInt(st.fieldPositions[i]);
+        }
+      } else if (it instanceof ArrayType) {
+        out.writeByte(InferredType.ARRAY_TYPE);
+        out.writeInt(stringIndex(it.getName(), stringIndices));
+        out.writeInt(nodeIndices.get(((ArrayType) it).bodyType));
+      } else {
+        UnionType ut = (UnionType) it;
+        out.writeByte(InferredType.UNION_TYPE);
+        out.writeInt(stringIndex(it.getName(), stringIndices));
+        out.writeInt(ut.unionTypes.size());
+        for (int i = 0; i < ut.unionTypes.size(); i++) {
+          out.writeInt(nodeIndices.get(ut.unionTypes.get(i)));
+          out.writeInt(ut.branchSchemaIndices[i]);
+          out.writeLong(ut.branchCounts.get(i));
+        }
+      }
+    }
+    out.writeInt(stringIndex(schemaStr, stringIndices));
+  }
+  static void addNodes(InferredType it, List<InferredType> nodes, IdentityHashMap<InferredType, Integer> nodeIndices) {
+    nodeIndices.put(it, nodes.size());
+    nodes.add(it);
+    if (it instanceof StructType) {
+      for (InferredType child: ((StructType) it).structTypes) {
+        addNodes(child, nodes, nodeIndices);
+      }
+    } else if (it instanceof ArrayType) {
+      addNodes(((ArrayType) it).bodyType, nodes, nodeIndices);
+    } else if (it instanceof UnionType) {
+      for (InferredType child: ((UnionType) it).unionTypes) {
+        addNodes(child, nodes, nodeIndices);
+      }
+    }
+  }
+  static void addString(String str, List<String> strings, Map<String, Integer> stringIndices) {
+    if (str != null && ! stringIndices.containsKey(str)) {
+      stringIndices.put(str, strings.size());
+      strings.add(str);
+    }
+  }
+  static int stringIndex(String str, Map<String, Integer> stringIndices) {
+    return (str == null) ? -1 : stringIndices.get(str);
+  }
+
+  /**
+   * Load a parser file in either format.  The file is mapped, not read.
+   */
+  public static InferredType read(File f) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel channel = in.getChannel();
+      return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Load a parser file in either format from a stream, such as one opened on HDFS
+   */
+  public static InferredType read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte buf[] = new byte[64 * 1024];
+    int numRead;
+    while ((numRead = in.read(buf)) > 0) {
+      bytes.write(buf, 0, numRead);
+    }
+    return read(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  public static InferredType read(ByteBuffer buf) throws IOException {
+    if (buf.remaining() < 4 || buf.getInt(buf.position()) != MAGIC) {
+      byte bytes[] = new byte[buf.remaining()];
+      buf.get(bytes);
+      return InferredType.readType(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+    buf.getInt();
+    int version = buf.getInt();
+    if (version > VERSION) {
+      throw new IOException("Parser file version " + version + " is newer than this code, which reads up to version " + VERSION);
+    }
+    int numNodes = buf.getInt();
+    String strings[] = new String[buf.getInt()];
+    byte bytes[] = new byte[256];
+    for (int i = 0; i < strings.length; i++) {
+      int len = buf.getInt();
+      if (len > bytes.length) {
+        bytes = new byte[Math.max(len, bytes.length * 2)];
+      }
+      buf.get(bytes, 0, len);
+      strings[i] = new String(bytes, 0, len, "UTF-8");
+    }
+
+    //
+    // Create the nodes.  Children always have higher indices than their parents.
+    //
+    InferredType nodes[] = new InferredType[numNodes];
+    int children[][] = new int[numNodes][];
+    int schemaIndices[][] = new int[numNodes][];
+    long counts[][] = new long[numNodes][];
+    for (int i = 0; i < numNodes; i++) {
+      byte kind = buf.get();
+      String name = strings[buf.getInt()];
+      if (kind == InferredType.BASE_TYPE) {
+        BaseType bt = new BaseType();
+        bt.tokenClassIdentifier = buf.getInt();
+        bt.tokenParameter = getString(strings, buf.getInt());
+        bt.sampleStrs = new ArrayList<String>();
+        int numSamples = buf.getInt();
+        for (int j = 0; j < numSamples; j++) {
+          bt.sampleStrs.add(strings[buf.getInt()]);
+        }
+        nodes[i] = bt;
+      } else if (kind == InferredType.STRUCT_TYPE) {
+        int numChildren = buf.getInt();
+        children[i] = new int[numChildren];
+        schemaIndices[i] = new int[numChildren];
+        for (int j = 0; j < numChildren; j++) {
+          children[i][j] = buf.getInt();
+          schemaIndices[i][j] = buf.getInt();
+        }
+        nodes[i] = new StructType();
+      } else if (kind == InferredType.ARRAY_TYPE) {
+        children[i] = new int[] {buf.getInt()};
+        nodes[i] = new ArrayType();
+      } else if (kind == InferredType.UNION_TYPE) {
+        int numChildren = buf.getInt();
+        children[i] = new int[numChildren];
+        schemaIndices[i] = new int[numChildren];
+        counts[i] = new long[numChildren];
+        for (int j = 0; j < numChildren; j++) {
+          children[i][j] = buf.getInt();
+          schemaIndices[i][j] = buf.getInt();
+          counts[i][j] = buf.getLong();
+        }
+        nodes[i] = new UnionType(true);
+      } else {
+        throw new IOException("No type found: " + kind);
+      }
+      nodes[i].name = name;
+    }
+    String schemaStr = getString(strings, buf.getInt());
+
+    //
+    // Link the nodes, and hand out the schema from the top down
+    //
+    if (numNodes > 0 && schemaStr != null) {
+      nodes[0].setAvroSchema(Schema.parse(schemaStr));
+    }
+    for (int i = 0; i < numNodes; i++) {
+      InferredType it = nodes[i];
+      if (it instanceof StructType) {
+        StructType st = (StructType) it;
+        st.structTypes = new ArrayList<InferredType>();
+        st.fieldPositions = schemaIndices[i];
+        for (int j = 0; j < children[i].length; j++) {
+          InferredType child = nodes[children[i][j]];
+          st.structTypes.add(child);
+          if (st.fieldPositions[j] >= 0) {
+            child.setAvroSchema(st.getAvroSchema().getFields().get(st.fieldPositions[j]).schema());
+          }
+        }
+      } else if (it instanceof ArrayType) {
+        ArrayType at = (ArrayType) it;
+        at.bodyType = nodes[children[i][0]];
+        at.bodyType.setAvroSchema(at.getAvroSchema().getElementType());
+      } else if (it instanceof UnionType) {
+        UnionType ut = (UnionType) it;
+        ut.unionTypes = new ArrayList<InferredType>();
+        ut.branchSchemaIndices = schemaIndices[i];
+        for (int j = 0; j < children[i].length; j++) {
+          InferredType child = nodes[children[i][j]];
+          ut.unionTypes.add(child);
+          if (ut.branchSchemaIndices[j] >= 0) {
+            child.setAvroSchema(ut.getAvroSchema().getTypes().get(ut.branchSchemaIndices[j]));
+          }
+        }
+      }
+    }
+
+    // Union branch orders depend on the branches, so set them up from the bottom up
+    for (int i = numNodes - 1; i >= 0; i--) {
+      if (nodes[i] instanceof UnionType) {
+        UnionType ut = (UnionType) nodes[i];
+        ut.initBranchOrder(counts[i]);
+        ut.reorderBranches();
+      }
+    }
+    return (numNodes > 0) ? nodes[0] : null;
+  }
+  static String getString(String strings[], int index) {
+    return (index < 0) ? null : strings[index];
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+
+  /**
+   * main() rewrites a parser file in the current format and times loading both files
+   */
+  public static void main(String argv[]) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("Usage: ParserFile <in-parser.dat> <out-parser.dat>");
+      return;
+    }
+    File inFile = new File(argv[0]);
+    File outFile = new File(argv[1]);
+    long start = System.currentTimeMillis();
+    InferredType typeTree = read(inFile);
+    long end = System.currentTimeMillis();
+    System.err.println("Loaded " + inFile + " in " + ((end - start) / 1000.0) + "s");
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+    try {
+      write(typeTree, out);
+    } finally {
+      out.close();
+    }
+    start = System.currentTimeMillis();
+    InferredType reloaded = read(outFile);
+    end = System.currentTimeMillis();
+    System.err.println("Loaded " + outFile + " in " + ((end - start) / 1000.0) + "s");
+    if (! typeTree.getAvroSchema().equals(reloaded.getAvroSchema())) {
+      System.err.println("Schemas differ!");
+    }
+  }
+}
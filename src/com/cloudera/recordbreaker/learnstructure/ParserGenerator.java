@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/*********************************************************
+ * ParserGenerator writes a Java class that parses exactly what a learned InferredType
+ * parses, compiles it in-process with javax.tools.JavaCompiler, and loads it.
+ *
+ * The generated class has one method per tree node, with token classes and
+ * parameters inlined as constants, so the JIT sees straight-line, monomorphic code.
+ * Unions switch on their current dispatch order, so the order can still adapt.
+ * It extends CompiledParser and replaces only run(); the backtracking fallback
+ * and the construction of Avro objects are inherited, so the results are
+ * the same as CompiledParser's.
+ *
+ * Compiled classes are cached in a directory next to parser.dat.  The class name
+ * includes a SHA-256 digest of the generated source, so a changed parser gets a new class.
+ * If no compiler is available (e.g., when running on a JRE), or the class cannot be
+ * built or loaded, loadParser() falls back to the interpreted CompiledParser.
+ *********************************************************/
+public class ParserGenerator {
+  public final static String CLASSES_DIRNAME = "parser.classes";
+  public final static String CLASSNAME_PREFIX = "GeneratedParser";
+  public final static String PACKAGE_NAME = ParserGenerator.class.getPackage().getName();
+
+  CompiledParser interpreter;
+  StringBuffer methods = new StringBuffer();
+  List<Map<InferredType, String>> methodNames = new ArrayList<Map<InferredType, String>>();
+  LinkedList<InferredType> pendingNodes = new LinkedList<InferredType>();
+  LinkedList<Boolean> pendingConsume = new LinkedList<Boolean>();
+
+  ParserGenerator(CompiledParser interpreter) {
+    this.interpreter = interpreter;
+    methodNames.add(new IdentityHashMap<InferredType, String>());
+    methodNames.add(new IdentityHashMap<InferredType, String>());
+  }
+
+  /**
+   * Load the parser for the given tree, generating and compiling it if the cache
+   * next to 'parserFile' does not have it yet.  If the generated parser cannot be
+   * built or loaded for any reason, this returns the interpreted CompiledParser.
+   */
+  public static CompiledParser loadParser(InferredType typeTree, File parserFile) {
+    return newParser(loadParserClass(typeTree, parserFile), typeTree);
+  }
+
+  /**
+   * Load the generated parser class for the given tree, as loadParser() does, and
+   * return its constructor.  Callers that need several parsers, e.g. one per thread,
+   * load the class once and call newParser() for each.  Returns null if the class
+   * cannot be built or loaded.
+   */
+  public static Constructor<? extends CompiledParser> loadParserClass(InferredType typeTree, File parserFile) {
+    ParserGenerator gen = new ParserGenerator(new CompiledParser(typeTree));
+    String body = gen.generateBody();
+    String className;
+    try {
+      className = CLASSNAME_PREFIX + sourceDigest(body);
+    } catch (IOException iex) {
+      System.err.println("Could not name generated parser; using the interpreted parser: " + iex);
+      return null;
+    }
+
+    File classesDir = new File(parserFile.getAbsoluteFile().getParentFile(), CLASSES_DIRNAME);
+    File packageDir = new File(classesDir, PACKAGE_NAME.replace('.', File.separatorChar));
+    File classFile = new File(packageDir, className + ".class");
+    try {
+      if (! classFile.exists()) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+          System.err.println("No Java compiler available; using the interpreted parser");
+          return null;
+        }
+        if (! compile(compiler, gen.generateClass(className, body), className, classesDir)) {
+          return null;
+        }
+      }
+      ClassLoader loader = new URLClassLoader(new URL[] {classesDir.toURI().toURL()}, ParserGenerator.class.getClassLoader());
+      Class<? extends CompiledParser> parserClass = loader.loadClass(PACKAGE_NAME + "." + className).asSubclass(CompiledParser.class);
+      return parserClass.getConstructor(InferredType.class);
+    } catch (Exception ex) {
+      System.err.println("Could not load generated parser " + className + "; using the interpreted parser: " + ex);
+      return null;
+    } catch (LinkageError le) {
+      // E.g., a truncated or corrupt class file in the cache
+      System.err.println("Could not load generated parser " + className + "; using the interpreted parser: " + le);
+      return null;
+    }
+  }
+
+  /**
+   * A new parser for the given tree from a constructor that loadParserClass()
+   * returned.  If 'parserConstructor' is null or fails, this returns the
+   * interpreted CompiledParser.
+   */
+  public static CompiledParser newParser(Constructor<? extends CompiledParser> parserConstructor, InferredType typeTree) {
+    if (parserConstructor != null) {
+      String className = parserConstructor.getDeclaringClass().getSimpleName();
+      try {
+        return parserConstructor.newInstance(typeTree);
+      } catch (Exception ex) {
+        System.err.println("Could not create generated parser " + className + "; using the interpreted parser: " + ex);
+      } catch (LinkageError le) {
+        // E.g., a corrupt class file that fails verification when first used
+        System.err.println("Could not create generated parser " + className + "; using the interpreted parser: " + le);
+      }
+    }
+    return new CompiledParser(typeTree);
+  }
+
+  /**
+   * A hex SHA-256 digest of the generated source
+   */
+  static String sourceDigest(String body) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IOException("SHA-256 is not available: " + nsae);
+    }
+    byte digest[] = md.digest(body.getBytes("UTF-8"));
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < digest.length; i++) {
+      buf.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+      buf.append(Integer.toHexString(digest[i] & 0xf));
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Compile the generated source into a private temporary directory, then rename
+   * the class files into 'classesDir'.  Another process that is loading the same
+   * parser sees either no class file or a complete one.
+   */
+  static boolean compile(JavaCompiler compiler, String source, String className, File classesDir) throws IOException {
+    File packageDir = new File(classesDir, PACKAGE_NAME.replace('.', File.separatorChar));
+    packageDir.mkdirs();
+    File tmpDir = File.createTempFile(className, ".tmp", classesDir);
+    if (! tmpDir.delete() || ! tmpDir.mkdir()) {
+      throw new IOException("Could not create temporary directory " + tmpDir);
+    }
+    try {
+      File sourceFile = new File(tmpDir, className + ".java");
+      Writer out = new OutputStreamWriter(new FileOutputStream(sourceFile), "UTF-8");
+      try {
+        out.write(source);
+      } finally {
+        out.close();
+      }
+      String classpath = System.getProperty("java.class.path");
+      URL ourLocation = ParserGenerator.class.getProtectionDomain().getCodeSource().getLocation();
+      if (ourLocation != null && "file".equals(ourLocation.getProtocol())) {
+        classpath = new File(ourLocation.getPath()).getPath() + File.pathSeparator + classpath;
+      }
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      int result = compiler.run(null, null, errors, "-nowarn", "-encoding", "UTF-8", "-classpath", classpath, "-d", tmpDir.getPath(), sourceFile.getPath());
+      if (result != 0) {
+        System.err.println("Could not compile generated parser; using the interpreted parser");
+        System.err.println(errors.toString());
+        return false;
+      }
+
+      // Move any nested classes first, so that the main class file appears last
+      File tmpPackageDir = new File(tmpDir, PACKAGE_NAME.replace('.', File.separatorChar));
+      File compiled[] = tmpPackageDir.listFiles();
+      Arrays.sort(compiled, new Comparator<File>() {
+          public int compare(File f1, File f2) {
+            return f2.getName().length() - f1.getName().length();
+          }
+        });
+      for (File f: compiled) {
+        File target = new File(packageDir, f.getName());
+        if (! f.renameTo(target) && ! target.exists()) {
+          throw new IOException("Could not move " + f + " to " + target);
+        }
+      }
+      return true;
+    } finally {
+      deleteAll(tmpDir);
+    }
+  }
+
+  static void deleteAll(File f) {
+    File children[] = f.listFiles();
+    if (children != null) {
+      for (File child: children) {
+        deleteAll(child);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * The complete source for the generated class
+   */
+  String generateClass(String className, String body) {
+    StringBuffer buf = new StringBuffer();
+    buf.append("package " + PACKAGE_NAME + ";\n\n");
+    buf.append("/**\n * Generated by ParserGenerator from a learned InferredType.  Do not edit.\n */\n");
+    buf.append("public class " + className + " extends CompiledParser {\n");
+    buf.append("  public " + className + "(InferredType root) {\n");
+    buf.append("    super(root);\n");
+    buf.append("  }\n");
+    buf.append(body);
+    buf.append("}\n");
+    return buf.toString();
+  }
+
+  /**
+   * run() plus one method per (node, mustConsumeStr) pair.  Each method takes the
+   * cursor and returns the new cursor, or -1 on failure.
+   */
+  String generateBody() {
+    String rootMethod = methodName(interpreter.root, true);
+    methods.append("  protected boolean run(String line) {\n");
+    methods.append("    startLine(line);\n");
+    methods.append("    return " + rootMethod + "(0) >= 0;\n");
+    methods.append("  }\n");
+    while (pendingNodes.size() > 0) {
+      InferredType node = pendingNodes.removeFirst();
+      boolean mustConsumeStr = pendingConsume.removeFirst();
+      methods.append("  private int " + methodName(node, mustConsumeStr) + "(int pos) {\n");
+      generateNode(node, mustConsumeStr);
+      methods.append("  }\n");
+    }
+    return methods.toString();
+  }
+
+  String methodName(InferredType node, boolean mustConsumeStr) {
+    Map<InferredType, String> names = methodNames.get(mustConsumeStr ? 1 : 0);
+    String name = names.get(node);
+    if (name == null) {
+      name = "n" + (methodNames.get(0).size() + methodNames.get(1).size()) + (mustConsumeStr ? "c" : "");
+      names.put(node, name);
+      pendingNodes.add(node);
+      pendingConsume.add(mustConsumeStr);
+    }
+    return name;
+  }
+
+  void line(String s) {
+    methods.append("    " + s + "\n");
+  }
+
+  void generateNode(InferredType node, boolean mustConsumeStr) {
+    if (node instanceof BaseType) {
+      BaseType bt = (BaseType) node;
+      String param = bt.tokenParameter;
+      if (bt.tokenClassIdentifier == Token.CHAR_TOKENCLASSID && param != null && param.length() == 1 && ! TokenMatcher.isRegexSpace(param.charAt(0))) {
+        line("int end = (pos < len && line.charAt(pos) == " + ((int) param.charAt(0)) + ") ? pos + 1 : -1;");
+      } else if (bt.tokenClassIdentifier == Token.CHAR_TOKENCLASSID && param != null && param.length() > 1) {
+        line("int end = line.startsWith(" + quote(param) + ", pos) ? pos + " + param.length() + " : -1;");
+      } else {
+        line("int end = matchToken(" + bt.tokenClassIdentifier + ", " + quote(param) + ", pos);");
+      }
+      line("if (end < 0) return -1;");
+      line("markMatch(pos, end);");
+      if (mustConsumeStr) {
+        line("if (! isBlankFrom(end)) return -1;");
+      }
+      line("return end;");
+    } else if (node instanceof StructType) {
+      List<InferredType> elts = ((StructType) node).structTypes;
+      for (int i = 0; i < elts.size(); i++) {
+        boolean isLast = (i == elts.size() - 1);
+        line("if (pos >= len) return -1;");
+        line("pos = " + methodName(elts.get(i), isLast && mustConsumeStr) + "(pos);");
+        line("if (pos < 0) return -1;");
+      }
+      if (mustConsumeStr) {
+        line("if (! isBlankFrom(pos)) return -1;");
+      }
+      line("return pos;");
+    } else if (node instanceof ArrayType) {
+      String body = methodName(((ArrayType) node).bodyType, false);
+      line("while (true) {");
+      line("  int t = trailLen;");
+      line("  markItem();");
+      line("  int end = " + body + "(pos);");
+      line("  if (end < 0 || end == pos) {");
+      line("    trailLen = t;");
+      line("    break;");
+      line("  }");
+      line("  pos = end;");
+      line("}");
+      line("markEnd();");
+      if (mustConsumeStr) {
+        line("if (! isBlankFrom(pos)) return -1;");
+      }
+      line("return pos;");
+    } else if (node instanceof UnionType) {
+      // Branches that could start here are tried in the union's current order, as CALL_BRANCH does
+      List<InferredType> branches = ((UnionType) node).unionTypes;
+      String check = mustConsumeStr ? "end >= 0 && isBlankFrom(end)" : "end >= 0";
+      line("int t = trailLen;");
+      line("int order[] = unionDispatch[" + interpreter.unionIndices.get(node) + "][dispatchSlot(pos)];");
+      line("for (int j = 0; j < order.length; j++) {");
+      line("  int end;");
+      line("  markBranch(order[j]);");
+      line("  switch (order[j]) {");
+      for (int i = 0; i < branches.size(); i++) {
+        line("  case " + i + ": end = " + methodName(branches.get(i), false) + "(pos); break;");
+      }
+      line("  default: end = -1;");
+      line("  }");
+      line("  if (" + check + ") return end;");
+      line("  trailLen = t;");
+      line("}");
+      line("return -1;");
+    } else {
+      throw new IllegalArgumentException("Cannot generate code for " + node);
+    }
+  }
+
+  /**
+   * A Java literal for the given string
+   */
+  static String quote(String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuffer buf = new StringBuffer("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        buf.append('\\').append(c);
+      } else if (c < ' ' || c > '~') {
+        buf.append(String.format("\\u%04x", (int) c));
+      } else {
+        buf.append(c);
+      }
+    }
+    buf.append("\"");
+    return buf.toString();
+  }
+
+  //////////////////////////////////////////
+  // main()
+  //////////////////////////////////////////
+  /**
+   * main() generates the parser for a parser.dat, and times it against the interpreted
+   * CompiledParser on a data file.  TestParserGenerator checks that they agree.
+   */
+  public static void main(String argv[]) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("Usage: ParserGenerator <parser.dat> <datafile>");
+      return;
+    }
+    File parserFile = new File(argv[0]);
+    InferredType typeTree = ParserFile.read(parserFile);
+    long startLoad = System.currentTimeMillis();
+    CompiledParser generated = loadParser(typeTree, parserFile);
+    long endLoad = System.currentTimeMillis();
+    CompiledParser interpreter = new CompiledParser(typeTree);
+    System.err.println("Loaded " + generated.getClass().getName() + " in " + ((endLoad - startLoad) / 1000.0) + "s");
+
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(new File(argv[1])));
+    try {
+      String s = reader.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+
+    int numRounds = Math.max(1, 100000 / Math.max(1, lines.size()));
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      for (String line: lines) {
+        interpreter.parse(line);
+      }
+    }
+    long middle = System.currentTimeMillis();
+    for (int i = 0; i < numRounds; i++) {
+      for (String line: lines) {
+        generated.parse(line);
+      }
+    }
+    long end = System.currentTimeMillis();
+    System.err.println("Interpreted: " + ((middle - start) / 1000.0) + "s, generated: " + ((end - middle) / 1000.0) + "s, for " + numRounds + " rounds");
+  }
+}
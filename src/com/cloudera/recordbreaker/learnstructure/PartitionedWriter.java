@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.IndexedRecord;
+
+/*********************************************************
+ * PartitionedWriter splits emitted records into Avro files, one for each
+ * branch of the top-level union.  Each file has just its branch's schema,
+ * so a reader of one kind of line never decodes the others.
+ *
+ * Each branch can be split further by the value of one of its fields.  The
+ * field is found by name among the branch's fields and those of its nested
+ * records (not inside arrays or unions).  DATE_FIELD stands for the branch's
+ * first date.  Dates are written yyyy-mm-dd (or --mm-dd without a year), and
+ * other values as text, with any character that does not belong in a filename
+ * replaced.  The files are:
+ *
+ *   <dir>/branch_<hash>/data.avro
+ *   <dir>/branch_<hash>/<field>=<value>/data.avro   (when splitting by a field)
+ *
+ * The hash is of the branch's structure without its names (see getBranchKey()),
+ * so a branch keeps its directory when the input is learned again and nodes are
+ * numbered differently, or when the union's branches come out in another order.
+ * Branches with the same structure, which differ only in their literal text,
+ * are told apart by a suffix in union order.
+ *
+ * Branches without the field go in a partition with the value NO_VALUE.
+ * At most MAX_OPEN_FILES files are open at once; others are reopened for append
+ * when they get another record.
+ *
+ * A PartitionedWriter with no directory keeps its files in memory.  Parallel
+ * emit gives one to each batch and merges them with appendAllFrom().
+ *********************************************************/
+public class PartitionedWriter {
+  public static String PARTITION_DIRNAME = "partitions";
+  public static String DATE_FIELD = "@date";
+  static String NO_VALUE = "_none_";
+  public static int MAX_OPEN_FILES = 64;
+  static int MAX_VALUE_LENGTH = 64;
+
+  /**
+   * A branch of the top-level union, and where its partition field is
+   */
+  static class Branch {
+    String key;
+    Schema schema;
+    int fieldPath[];
+    Schema fieldSchema;
+
+    Branch(String key, Schema schema, String partitionField) {
+      this.key = key;
+      this.schema = schema;
+      if (partitionField != null) {
+        List<Integer> path = new ArrayList<Integer>();
+        this.fieldSchema = findField(schema, partitionField, path);
+        if (fieldSchema != null) {
+          this.fieldPath = new int[path.size()];
+          for (int i = 0; i < fieldPath.length; i++) {
+            fieldPath[i] = path.get(i);
+          }
+        }
+      }
+    }
+
+    /**
+     * The partition value of 'datum', which has this branch's schema
+     */
+    String getValue(Object datum) {
+      if (fieldSchema == null) {
+        return NO_VALUE;
+      }
+      for (int i = 0; i < fieldPath.length; i++) {
+        datum = ((IndexedRecord) datum).get(fieldPath[i]);
+      }
+      if (isDate(fieldSchema)) {
+        // Dates without a year have year -1, and are written as in ISO 8601
+        IndexedRecord date = (IndexedRecord) datum;
+        if (((Integer) date.get(2)).intValue() < 0) {
+          return String.format("--%02d-%02d", date.get(0), date.get(1));
+        }
+        return String.format("%04d-%02d-%02d", date.get(2), date.get(0), date.get(1));
+      }
+      StringBuffer buf = new StringBuffer();
+      String str = String.valueOf(datum);
+      for (int i = 0; i < str.length() && buf.length() < MAX_VALUE_LENGTH; i++) {
+        char c = str.charAt(i);
+        buf.append((Character.isLetterOrDigit(c) || c == '-' || c == '.') ? c : '_');
+      }
+      return (buf.length() == 0) ? NO_VALUE : buf.toString();
+    }
+  }
+
+  /**
+   * Find the field called 'fieldName' (or the first date, for DATE_FIELD) in
+   * 'schema' and its nested records, depth first.  Fills in the positions of
+   * the fields on the way down and returns the field's schema, or null.
+   */
+  static Schema findField(Schema schema, String fieldName, List<Integer> path) {
+    if (schema.getType() != Schema.Type.RECORD) {
+      return null;
+    }
+    for (Schema.Field field: schema.getFields()) {
+      path.add(field.pos());
+      if (DATE_FIELD.equals(fieldName) ? isDate(field.schema()) : fieldName.equals(field.name())) {
+        return field.schema();
+      }
+      Schema found = findField(field.schema(), fieldName, path);
+      if (found != null) {
+        return found;
+      }
+      path.remove(path.size() - 1);
+    }
+    return null;
+  }
+
+  /**
+   * The directory name of a branch: "branch_" and a hex hash of its shape
+   */
+  static String getBranchKey(Schema schema) throws IOException {
+    StringBuffer shape = new StringBuffer();
+    appendShape(schema, shape);
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IOException("SHA-256 is not available: " + nsae);
+    }
+    byte digest[] = md.digest(shape.toString().getBytes("UTF-8"));
+    StringBuffer buf = new StringBuffer("branch_");
+    for (int i = 0; i < 8; i++) {
+      buf.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+      buf.append(Integer.toHexString(digest[i] & 0xf));
+    }
+    return buf.toString();
+  }
+
+  /**
+   * The structure of 'schema', without record or field names
+   */
+  static void appendShape(Schema schema, StringBuffer buf) {
+    switch (schema.getType()) {
+    case RECORD:
+      buf.append("{");
+      for (Schema.Field field: schema.getFields()) {
+        appendShape(field.schema(), buf);
+        buf.append(",");
+      }
+      buf.append("}");
+      break;
+    case ARRAY:
+      buf.append("[");
+      appendShape(schema.getElementType(), buf);
+      buf.append("]");
+      break;
+    case UNION:
+      buf.append("(");
+      for (Schema branch: schema.getTypes()) {
+        appendShape(branch, buf);
+        buf.append("|");
+      }
+      buf.append(")");
+      break;
+    default:
+      buf.append(schema.getType().toString().toLowerCase());
+      break;
+    }
+  }
+
+  /**
+   * Whether 'schema' is a date, as built by Token.createAvroSchema()
+   */
+  static boolean isDate(Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD || schema.getFields().size() != 3) {
+      return false;
+    }
+    return "month".equals(schema.getFields().get(0).name()) &&
+      "day".equals(schema.getFields().get(1).name()) &&
+      "year".equals(schema.getFields().get(2).name());
+  }
+
+  /**
+   * One output file
+   */
+  static class Partition {
+    String key;
+    Schema schema;
+    File file;
+    ByteArrayOutputStream bytes;
+    DataFileWriter<GenericContainer> writer;
+    boolean created = false;
+    long numRecords = 0;
+
+    Partition(String key, Schema schema, File file) {
+      this.key = key;
+      this.schema = schema;
+      this.file = file;
+    }
+  }
+
+  Schema schema;
+  String partitionField;
+  OutputSink sink;
+  File dir;
+  Branch branches[];
+  Map<String, Partition> partitions = new TreeMap<String, Partition>();
+  LinkedHashMap<String, Partition> openPartitions = new LinkedHashMap<String, Partition>(16, 0.75f, true);
+
+  /**
+   * Partition records with the given schema into files under 'dir', or in
+   * memory if 'dir' is null.  'partitionField' may be null.  Files are written
+   * with the sink's codec and sync interval.
+   */
+  public PartitionedWriter(Schema schema, String partitionField, OutputSink sink, File dir) throws IOException {
+    this.schema = schema;
+    this.partitionField = partitionField;
+    this.sink = sink;
+    this.dir = dir;
+    List<Schema> types = (schema.getType() == Schema.Type.UNION) ? schema.getTypes() : Collections.singletonList(schema);
+    this.branches = new Branch[types.size()];
+    Map<String, Integer> keyCounts = new HashMap<String, Integer>();
+    for (int i = 0; i < branches.length; i++) {
+      String key = getBranchKey(types.get(i));
+      Integer count = keyCounts.get(key);
+      keyCounts.put(key, (count == null) ? 1 : count + 1);
+      if (count != null) {
+        key = key + "-" + (count + 1);
+      }
+      branches[i] = new Branch(key, types.get(i), partitionField);
+    }
+  }
+
+  /**
+   * An in-memory writer that partitions the same way as this one
+   */
+  public PartitionedWriter createBuffer() throws IOException {
+    return new PartitionedWriter(schema, partitionField, sink, null);
+  }
+
+  /**
+   * Add a record with the writer's schema to its partition
+   */
+  public void append(GenericContainer record) throws IOException {
+    int branchIdx = (schema.getType() == Schema.Type.UNION) ? GenericData.get().resolveUnion(schema, record) : 0;
+    Branch branch = branches[branchIdx];
+    Partition p = getPartition(branch, (partitionField == null) ? null : branch.getValue(record));
+    getWriter(p).append(record);
+    p.numRecords++;
+  }
+
+  Partition getPartition(Branch branch, String value) {
+    String fieldName = DATE_FIELD.equals(partitionField) ? "date" : partitionField;
+    String key = (value == null) ? branch.key : branch.key + "/" + fieldName + "=" + value;
+    return getPartition(key, branch.schema);
+  }
+  Partition getPartition(String key, Schema partitionSchema) {
+    Partition p = partitions.get(key);
+    if (p == null) {
+      File file = (dir == null) ? null : new File(new File(dir, key), LearnStructure.DATA_FILENAME);
+      p = new Partition(key, partitionSchema, file);
+      partitions.put(key, p);
+    }
+    return p;
+  }
+
+  DataFileWriter<GenericContainer> getWriter(Partition p) throws IOException {
+    if (p.writer != null) {
+      if (dir != null) {
+        // Mark it recently used
+        openPartitions.get(p.key);
+      }
+      return p.writer;
+    }
+    if (dir == null) {
+      p.bytes = new ByteArrayOutputStream();
+      p.writer = sink.createAvroWriter(p.schema, p.bytes);
+      return p.writer;
+    }
+    if (openPartitions.size() >= MAX_OPEN_FILES) {
+      Iterator<Partition> it = openPartitions.values().iterator();
+      Partition eldest = it.next();
+      it.remove();
+      eldest.writer.close();
+      eldest.writer = null;
+    }
+    if (p.created) {
+      // The sync interval is the sink's; Avro takes the codec from the file, at its default level
+      p.writer = sink.configure(new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(p.schema))).appendTo(p.file);
+    } else {
+      p.file.getParentFile().mkdirs();
+      p.writer = sink.createAvroWriter(p.schema, p.file);
+      p.created = true;
+    }
+    openPartitions.put(p.key, p);
+    return p.writer;
+  }
+
+  /**
+   * Append the records of an in-memory writer that has been closed,
+   * partition by partition.  Each partition's records keep their order.
+   */
+  public void appendAllFrom(PartitionedWriter buffer) throws IOException {
+    for (Partition src: buffer.partitions.values()) {
+      Partition p = getPartition(src.key, src.schema);
+      DataFileStream<GenericContainer> in = new DataFileStream<GenericContainer>(new ByteArrayInputStream(src.bytes.toByteArray()), new GenericDatumReader<GenericContainer>());
+      try {
+        getWriter(p).appendAllFrom(in, false);
+      } finally {
+        in.close();
+      }
+      p.numRecords += src.numRecords;
+    }
+  }
+
+  /**
+   * The directory name of each union branch, in branch order
+   */
+  public List<String> getBranchKeys() {
+    List<String> keys = new ArrayList<String>();
+    for (Branch branch: branches) {
+      keys.add(branch.key);
+    }
+    return keys;
+  }
+
+  /**
+   * The number of records in each partition, by partition name
+   */
+  public Map<String, Long> getRecordCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Partition p: partitions.values()) {
+      counts.put(p.key, p.numRecords);
+    }
+    return counts;
+  }
+
+  public void close() throws IOException {
+    for (Partition p: partitions.values()) {
+      if (p.writer != null) {
+        p.writer.close();
+        p.writer = null;
+      }
+    }
+    openPartitions.clear();
+  }
+}
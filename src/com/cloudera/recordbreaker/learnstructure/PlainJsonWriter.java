@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.IndexedRecord;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+/*********************************************************
+ * PlainJsonWriter writes records as plain JSON values, one per line, for
+ * tools that read newline-delimited JSON.
+ *
+ * Unlike Avro's JsonEncoder, a union's value is written as it is, not
+ * wrapped in {"type": value}, so a reader does not need the schema.  A record
+ * is an object of its fields, an array is an array, and a map is an object.
+ * Bytes and fixed values are strings of ISO-8859-1 characters, as Avro JSON
+ * writes them.  Records are separated by newlines, with none after the last;
+ * see OutputSink.finishJson().
+ *********************************************************/
+public class PlainJsonWriter {
+  static JsonFactory jsonFactory = new JsonFactory();
+
+  Schema schema;
+  JsonGenerator out;
+
+  public PlainJsonWriter(Schema schema, OutputStream out) throws IOException {
+    this.schema = schema;
+    this.out = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+    MinimalPrettyPrinter pp = new MinimalPrettyPrinter();
+    pp.setRootValueSeparator("\n");
+    this.out.setPrettyPrinter(pp);
+  }
+
+  public void write(Object datum) throws IOException {
+    write(schema, datum);
+  }
+
+  void write(Schema s, Object datum) throws IOException {
+    switch (s.getType()) {
+    case RECORD: {
+      IndexedRecord r = (IndexedRecord) datum;
+      out.writeStartObject();
+      for (Schema.Field f: s.getFields()) {
+        out.writeFieldName(f.name());
+        write(f.schema(), r.get(f.pos()));
+      }
+      out.writeEndObject();
+      break;
+    }
+    case ARRAY:
+      out.writeStartArray();
+      for (Object elt: (Collection<?>) datum) {
+        write(s.getElementType(), elt);
+      }
+      out.writeEndArray();
+      break;
+    case MAP:
+      out.writeStartObject();
+      for (Map.Entry<?, ?> entry: ((Map<?, ?>) datum).entrySet()) {
+        out.writeFieldName(entry.getKey().toString());
+        write(s.getValueType(), entry.getValue());
+      }
+      out.writeEndObject();
+      break;
+    case UNION:
+      write(s.getTypes().get(GenericData.get().resolveUnion(s, datum)), datum);
+      break;
+    case STRING:
+    case ENUM:
+      out.writeString(datum.toString());
+      break;
+    case BYTES: {
+      ByteBuffer buf = (ByteBuffer) datum;
+      out.writeString(new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), "ISO-8859-1"));
+      break;
+    }
+    case FIXED:
+      out.writeString(new String(((GenericData.Fixed) datum).bytes(), "ISO-8859-1"));
+      break;
+    case INT:
+      out.writeNumber(((Integer) datum).intValue());
+      break;
+    case LONG:
+      out.writeNumber(((Long) datum).longValue());
+      break;
+    case FLOAT:
+      out.writeNumber(((Float) datum).floatValue());
+      break;
+    case DOUBLE:
+      out.writeNumber(((Double) datum).doubleValue());
+      break;
+    case BOOLEAN:
+      out.writeBoolean(((Boolean) datum).booleanValue());
+      break;
+    case NULL:
+      out.writeNull();
+      break;
+    default:
+      throw new IOException("Cannot write " + s.getType() + " as JSON");
+    }
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+}
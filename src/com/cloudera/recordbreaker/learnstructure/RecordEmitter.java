@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import org.apache.avro.Schema;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+
+/*********************************************************
+ * RecordEmitter parses lines of text with a CompiledParser and writes the
+ * resulting records to the outputs of an OutputSink: a JSON stream, an Avro
+ * data file (or a PartitionedWriter in its place), or both, or a columnar file.
+ *
+ * Plain JSON output needs the parsed record, so with an NDJSON sink lines are
+ * never encoded directly.
+ *
+ * An emitter owns its parser and scratch space, so it is not thread-safe.
+ * It can be pointed at new outputs with setOutputs(), which lets one emitter
+ * serve many batches of input in turn.
+ *********************************************************/
+class RecordEmitter {
+  CompiledParser parser;
+  Schema schema;
+  boolean directEncode;
+  OutputSink sink;
+  GenericDatumWriter<GenericContainer> jsonGDWriter;
+  JsonEncoder jsonEncoder;
+  PlainJsonWriter plainJsonWriter;
+  boolean writesJson;
+  DataFileWriter<GenericContainer> outData;
+  ColumnarWriter outColumns;
+  PartitionedWriter outPartitions;
+  CompiledParser.EncodeBuffer encodedRecord = new CompiledParser.EncodeBuffer();
+  Encoder directOuts[];
+  GenericContainer reuse = null;
+
+  public RecordEmitter(CompiledParser parser, Schema schema, boolean directEncode) {
+    this(parser, schema, directEncode, new OutputSink());
+  }
+
+  /**
+   * If 'directEncode' is set, the parser writes each line straight to the Avro
+   * encoders (see CompiledParser.encode()) instead of building records first.
+   */
+  public RecordEmitter(CompiledParser parser, Schema schema, boolean directEncode, OutputSink sink) {
+    this.parser = parser;
+    this.schema = schema;
+    this.directEncode = directEncode;
+    this.sink = sink;
+    this.jsonGDWriter = new GenericDatumWriter<GenericContainer>(schema);
+  }
+
+  /**
+   * Send records to the given outputs from now on.  Any may be null if the
+   * sink does not write it.  The caller flushes and closes them.
+   */
+  public void setOutputs(OutputStream jsonOut, DataFileWriter<GenericContainer> outData) throws IOException {
+    setOutputs(jsonOut, outData, null, null);
+  }
+  public void setOutputs(OutputStream jsonOut, DataFileWriter<GenericContainer> outData, ColumnarWriter outColumns, PartitionedWriter outPartitions) throws IOException {
+    this.writesJson = (jsonOut != null);
+    this.plainJsonWriter = null;
+    if (writesJson) {
+      if (sink.writesPlainJson()) {
+        plainJsonWriter = sink.createPlainJsonWriter(schema, jsonOut);
+      } else {
+        jsonEncoder = sink.createJsonEncoder(jsonEncoder, schema, jsonOut);
+      }
+    }
+    this.outData = outData;
+    this.outColumns = outColumns;
+    this.outPartitions = outPartitions;
+
+    List<Encoder> outs = new ArrayList<Encoder>();
+    if (writesJson && plainJsonWriter == null) {
+      outs.add(jsonEncoder);
+    }
+    if (outData != null) {
+      outs.add(encodedRecord.getEncoder());
+    }
+    this.directOuts = outs.toArray(new Encoder[outs.size()]);
+  }
+
+  /**
+   * Send Avro records to a new data file, leaving the other outputs alone.
+   * This moves from one part file to the next; there must already be an
+   * Avro output.
+   */
+  public void setAvroOutput(DataFileWriter<GenericContainer> outData) {
+    this.outData = outData;
+  }
+
+  public void flush() throws IOException {
+    if (plainJsonWriter != null) {
+      plainJsonWriter.flush();
+    } else if (writesJson) {
+      jsonEncoder.flush();
+    }
+  }
+
+  /**
+   * Parse and write a single line.  Returns false, and writes nothing, if
+   * the line cannot be parsed.  Columnar, partitioned and plain JSON output need
+   * the parsed record, so they always take the record-building path.
+   */
+  public boolean emit(String str) throws IOException {
+    if (directEncode && outColumns == null && outPartitions == null && plainJsonWriter == null) {
+      encodedRecord.reset();
+      if (! parser.encode(str, directOuts)) {
+        return false;
+      }
+      if (outData != null) {
+        outData.appendEncoded(encodedRecord.getByteBuffer());
+      }
+    } else {
+      // Each record is written out before the next line is parsed, so it can be reused
+      GenericContainer gct = parser.parse(str, reuse);
+      if (gct == null) {
+        return false;
+      }
+      reuse = gct;
+      if (plainJsonWriter != null) {
+        plainJsonWriter.write(gct);
+      } else if (writesJson) {
+        jsonGDWriter.write(gct, jsonEncoder);
+      }
+      if (outData != null) {
+        outData.append(gct);
+      }
+      if (outColumns != null) {
+        outColumns.append(gct);
+      }
+      if (outPartitions != null) {
+        outPartitions.append(gct);
+      }
+    }
+    return true;
+  }
+}
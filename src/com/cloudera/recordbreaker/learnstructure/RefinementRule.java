@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * RefinementRule is a single rewrite step applied to a learned InferredType
+ * tree after TypeInference has discovered it.  A rule looks only at the
+ * top of the node it is given and returns a rewritten node, or null if
+ * it does not apply.
+ *
+ * InferredType.refine() decides whether to keep the rewrite: a candidate
+ * is accepted only if it lowers the node's combined description-plus-parse
+ * cost.  This file contains the superclass as well as the standard rules.
+ *********************************************************/
+public abstract class RefinementRule {
+  /**
+   * Return a rewritten version of 't', or null if the rule does not apply.
+   * The input node must not be modified.
+   */
+  public abstract InferredType apply(InferredType t);
+
+  /**
+   * The rules applied by default at the end of TypeInference.infer()
+   */
+  public static RefinementRule[] getDefaultRules() {
+    return new RefinementRule[] {new CollapseSingleUnionRule(),
+                                 new FlattenStructRule(),
+                                 new MergeConstantCharsRule(),
+                                 new FactorUnionPrefixRule()};
+  }
+
+  /**
+   * A union with a single branch is just that branch.
+   */
+  public static class CollapseSingleUnionRule extends RefinementRule {
+    public InferredType apply(InferredType t) {
+      if (t instanceof UnionType) {
+        UnionType ut = (UnionType) t;
+        if (ut.unionTypes.size() == 1) {
+          return ut.unionTypes.get(0);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A struct that directly contains another struct can absorb the inner
+   * struct's elements.  The inner record disappears from the schema.
+   */
+  public static class FlattenStructRule extends RefinementRule {
+    public InferredType apply(InferredType t) {
+      if (! (t instanceof StructType)) {
+        return null;
+      }
+      StructType st = (StructType) t;
+      boolean foundNested = false;
+      List<InferredType> newStructTypes = new ArrayList<InferredType>();
+      for (InferredType it: st.structTypes) {
+        if (it instanceof StructType) {
+          newStructTypes.addAll(((StructType) it).structTypes);
+          foundNested = true;
+        } else {
+          newStructTypes.add(it);
+        }
+      }
+      if (! foundNested) {
+        return null;
+      }
+      return new StructType(newStructTypes);
+    }
+  }
+
+  /**
+   * Adjacent constant chars in a struct (e.g., "-" followed by "-") carry no data,
+   * so they can be matched as a single literal.
+   */
+  public static class MergeConstantCharsRule extends RefinementRule {
+    boolean isConstantChar(InferredType it) {
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        return bt.tokenClassIdentifier == Token.CHAR_TOKENCLASSID && bt.tokenParameter != null;
+      }
+      return false;
+    }
+    public InferredType apply(InferredType t) {
+      if (! (t instanceof StructType)) {
+        return null;
+      }
+      StructType st = (StructType) t;
+      boolean foundAdjacent = false;
+      List<InferredType> newStructTypes = new ArrayList<InferredType>();
+      for (InferredType it: st.structTypes) {
+        int last = newStructTypes.size() - 1;
+        if (last >= 0 && isConstantChar(it) && isConstantChar(newStructTypes.get(last))) {
+          BaseType prev = (BaseType) newStructTypes.get(last);
+          BaseType cur = (BaseType) it;
+          List<String> sampleStrs = new ArrayList<String>();
+          sampleStrs.add(prev.tokenParameter + cur.tokenParameter);
+          newStructTypes.set(last, new BaseType(Token.CHAR_TOKENCLASSID, sampleStrs, prev.tokenParameter + cur.tokenParameter));
+          foundAdjacent = true;
+        } else {
+          newStructTypes.add(it);
+        }
+      }
+      if (! foundAdjacent) {
+        return null;
+      }
+      return new StructType(newStructTypes);
+    }
+  }
+
+  /**
+   * If every branch of a union starts with the same sequence of elements,
+   * parse that prefix once and push the union down to the differing suffixes.
+   * E.g., Union(Struct(a, b, x), Struct(a, b, y)) becomes Struct(a, b, Union(x, y))
+   *
+   * We only factor when every branch keeps a non-empty suffix, so the new union never
+   * needs an "empty" branch.
+   */
+  public static class FactorUnionPrefixRule extends RefinementRule {
+    /**
+     * True if the two nodes parse exactly the same text, i.e., they have the same
+     * shape and the same token class and parameter at every base.  Names and
+     * sample strings are ignored.
+     */
+    public static boolean sameType(InferredType a, InferredType b) {
+      if (a == b) {
+        return true;
+      }
+      if (a instanceof BaseType && b instanceof BaseType) {
+        BaseType x = (BaseType) a;
+        BaseType y = (BaseType) b;
+        boolean sameParam = (x.tokenParameter == null) ? (y.tokenParameter == null) : x.tokenParameter.equals(y.tokenParameter);
+        return x.tokenClassIdentifier == y.tokenClassIdentifier && sameParam;
+      } else if (a instanceof StructType && b instanceof StructType) {
+        return sameTypes(((StructType) a).structTypes, ((StructType) b).structTypes);
+      } else if (a instanceof ArrayType && b instanceof ArrayType) {
+        return sameType(((ArrayType) a).bodyType, ((ArrayType) b).bodyType);
+      } else if (a instanceof UnionType && b instanceof UnionType) {
+        return sameTypes(((UnionType) a).unionTypes, ((UnionType) b).unionTypes);
+      }
+      return false;
+    }
+    static boolean sameTypes(List<InferredType> a, List<InferredType> b) {
+      if (a.size() != b.size()) {
+        return false;
+      }
+      for (int i = 0; i < a.size(); i++) {
+        if (! sameType(a.get(i), b.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    List<InferredType> getElements(InferredType it) {
+      if (it instanceof StructType) {
+        return ((StructType) it).structTypes;
+      }
+      List<InferredType> elts = new ArrayList<InferredType>();
+      elts.add(it);
+      return elts;
+    }
+    public InferredType apply(InferredType t) {
+      if (! (t instanceof UnionType)) {
+        return null;
+      }
+      UnionType ut = (UnionType) t;
+      if (ut.unionTypes.size() < 2) {
+        return null;
+      }
+      List<List<InferredType>> branchElts = new ArrayList<List<InferredType>>();
+      int minLength = Integer.MAX_VALUE;
+      for (InferredType branch: ut.unionTypes) {
+        List<InferredType> elts = getElements(branch);
+        branchElts.add(elts);
+        minLength = Math.min(minLength, elts.size());
+      }
+
+      // Find the longest shared prefix that leaves something behind in every branch
+      int prefixLength = 0;
+      while (prefixLength < minLength - 1) {
+        InferredType first = branchElts.get(0).get(prefixLength);
+        boolean allMatch = true;
+        for (List<InferredType> elts: branchElts) {
+          if (! sameType(first, elts.get(prefixLength))) {
+            allMatch = false;
+            break;
+          }
+        }
+        if (! allMatch) {
+          break;
+        }
+        prefixLength++;
+      }
+      if (prefixLength == 0) {
+        return null;
+      }
+
+      List<InferredType> newUnionTypes = new ArrayList<InferredType>();
+      for (List<InferredType> elts: branchElts) {
+        List<InferredType> suffix = new ArrayList<InferredType>(elts.subList(prefixLength, elts.size()));
+        if (suffix.size() == 1) {
+          newUnionTypes.add(suffix.get(0));
+        } else {
+          newUnionTypes.add(new StructType(suffix));
+        }
+      }
+      List<InferredType> newStructTypes = new ArrayList<InferredType>(branchElts.get(0).subList(0, prefixLength));
+      newStructTypes.add(new UnionType(newUnionTypes));
+      return new StructType(newStructTypes);
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+
+/***************************************
+ * Represents a record
+ ****************************************/
+public class StructType extends InferredType {
+  public List<InferredType> structTypes;
+  static AtomicInteger recordCounter = new AtomicInteger();
+  // fieldPositions[i] is the position of element i's field in the schema, or -1 if it has none
+  int fieldPositions[];
+
+  public StructType() {
+  }
+  public StructType(List<InferredType> structTypes) {
+    this.structTypes = structTypes;
+  }
+  public InferredType hoistUnions() {
+    List<InferredType> newStructTypes = new ArrayList<InferredType>();
+    for (InferredType it: structTypes) {
+      newStructTypes.add(it.hoistUnions());
+    }
+    return new StructType(newStructTypes);
+  }
+  public boolean hasUnions() {
+    for (InferredType it: structTypes) {
+      if (it.hasUnions()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Step through every combination of the elements' variants, like an odometer
+   * whose first wheel turns fastest.
+   */
+  Iterable<InferredType> variants() {
+    if (! hasUnions()) {
+      return Collections.singletonList((InferredType) this);
+    }
+    return new Iterable<InferredType>() {
+      public Iterator<InferredType> iterator() {
+        return new VariantIterator();
+      }
+    };
+  }
+  class VariantIterator implements Iterator<InferredType> {
+    List<Iterator<InferredType>> wheels = new ArrayList<Iterator<InferredType>>();
+    InferredType current[] = new InferredType[structTypes.size()];
+    boolean hasNext = true;
+
+    VariantIterator() {
+      for (int i = 0; i < structTypes.size(); i++) {
+        wheels.add(structTypes.get(i).variants().iterator());
+        if (! wheels.get(i).hasNext()) {
+          // An element with no variants, such as an empty union
+          hasNext = false;
+          return;
+        }
+        current[i] = wheels.get(i).next();
+      }
+    }
+    public boolean hasNext() {
+      return hasNext;
+    }
+    public InferredType next() {
+      if (! hasNext) {
+        throw new NoSuchElementException();
+      }
+      InferredType variant = new StructType(new ArrayList<InferredType>(Arrays.asList(current)));
+
+      // Advance the first wheel that can move, and reset the ones before it
+      hasNext = false;
+      for (int i = 0; i < wheels.size(); i++) {
+        if (wheels.get(i).hasNext()) {
+          current[i] = wheels.get(i).next();
+          hasNext = true;
+          break;
+        }
+        wheels.set(i, structTypes.get(i).variants().iterator());
+        current[i] = wheels.get(i).next();
+      }
+      return variant;
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+  public InferredType duplicate() {
+    List<InferredType> newElts = new ArrayList<InferredType>();
+    for (InferredType elt: structTypes) {
+      newElts.add(elt.duplicate());
+    }
+    return new StructType(newElts);
+  }
+
+  protected Schema computeAvroSchema() {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    this.fieldPositions = new int[structTypes.size()];
+    for (int i = 0; i < structTypes.size(); i++) {
+      InferredType it = structTypes.get(i);
+      Schema itS = it.getAvroSchema();
+      if (itS == null) {
+        fieldPositions[i] = -1;
+        continue;
+      }
+      fieldPositions[i] = fields.size();
+      fields.add(new Schema.Field(it.getName(), it.getAvroSchema(), it.getDocString(), it.getDefaultValue()));
+    }
+    Schema s = Schema.createRecord(name, "RECORD", "", false);
+    s.setFields(fields);
+    return s;
+  }
+  protected int computeSchemaHash() {
+    int h = name.hashCode();
+    for (InferredType it: structTypes) {
+      if (it.getAvroSchema() != null) {
+        h = 31 * (31 * h + it.getName().hashCode()) + it.getSchemaHash();
+      }
+    }
+    return h;
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("(Struct: ");
+    for (InferredType it: structTypes) {
+      buf.append(it.toString() + ", ");
+    }
+    buf.append(") ");
+    return buf.toString();
+  }
+  public double getDescriptionCost() {
+    double dc = CARD_COST;
+    for (InferredType it: structTypes) {
+      dc += it.getDescriptionCost();
+    }
+    return dc;
+  }
+  public double getParseCost() {
+    double pc = 1;
+    for (InferredType it: structTypes) {
+      pc += it.getParseCost();
+    }
+    return pc;
+  }
+  public InferredType refine(RefinementRule rules[]) {
+    List<InferredType> newStructTypes = new ArrayList<InferredType>();
+    boolean changed = false;
+    for (InferredType it: structTypes) {
+      InferredType newIt = it.refine(rules);
+      changed |= (newIt != it);
+      newStructTypes.add(newIt);
+    }
+    // An unchanged node is kept, along with its name and schema
+    return (changed ? new StructType(newStructTypes) : this).applyRefinementRules(rules);
+  }
+  String createName() {
+    return "record_" + recordCounter.getAndIncrement();
+  }
+  public void readFields(DataInput in) throws IOException {
+    int numStructTypes = in.readInt();
+    structTypes = new ArrayList<InferredType>();
+    for (int i = 0; i < numStructTypes; i++) {
+      structTypes.add(InferredType.readType(in));
+    }
+  }
+  public void write(DataOutput out) throws IOException {
+    out.write(STRUCT_TYPE);
+    out.writeInt(structTypes.size());
+    for (InferredType it: structTypes) {
+      it.write(out);
+    }
+  }
+
+  /**
+   * Parse the given string, return resulting data if appropriate.
+   */
+  public ParseResult internalParse(TokenMatcher m, int offset, boolean mustConsumeStr, Object reuse) {
+    boolean hasData = false;
+    GenericData.Record reuseRecord = reusableRecord(reuse, getAvroSchema());
+    Object values[] = new Object[structTypes.size()];
+    int cur = offset;
+    int mark = m.getTrailMark();
+
+    for (int i = 0; i < structTypes.size(); i++) {
+      InferredType subelt = structTypes.get(i);
+      if (cur >= m.len) {
+        m.cutTrail(mark);
+        return null;
+      }
+      // The final element must consume whatever the struct must consume.  This lets a
+      // trailing union keep trying branches until one reaches the end of the string.
+      boolean isLast = (i == structTypes.size() - 1);
+      Object eltReuse = (reuseRecord != null && fieldPositions[i] >= 0) ? reuseRecord.get(fieldPositions[i]) : null;
+      ParseResult pr = subelt.internalParse(m, cur, isLast && mustConsumeStr, eltReuse);
+      if (pr == null) {
+        m.cutTrail(mark);
+        return null;
+      }
+      if (pr.hasData()) {
+        hasData = true;
+        values[i] = pr.getData();
+      }
+      cur = pr.getEnd();
+    }
+    if (mustConsumeStr && ! m.isBlankFrom(cur)) {
+      m.cutTrail(mark);
+      return null;
+    }
+
+    // Build the record only once the whole struct has parsed
+    GenericData.Record gdr = (reuseRecord != null) ? reuseRecord : new GenericData.Record(getAvroSchema());
+    for (int i = 0; i < values.length; i++) {
+      if (fieldPositions[i] >= 0) {
+        gdr.put(fieldPositions[i], values[i]);
+      }
+    }
+    return new ParseResult(gdr, hasData, cur);
+  }
+  Map<String, Set<Integer>> findCandidateUnionDecisions() {
+    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
+    for (InferredType subelt: structTypes) {
+      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
+    }
+    return candidateUnionDecisions;
+  }
+  void findUnions(Map<String, UnionType> unions) {
+    for (InferredType subelt: structTypes) {
+      subelt.findUnions(unions);
+    }
+  }
+  List<String> getBases() {
+    List<String> tr = new ArrayList<String>();
+    for (InferredType subelt: structTypes) {
+      tr.addAll(subelt.getBases());
+    }
+    return tr;
+  }
+  boolean addFirstChars(BitSet first) {
+    for (InferredType subelt: structTypes) {
+      if (! subelt.addFirstChars(first)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -29,20 +29,25 @@ import org.apache.avro.generic.GenericData;
 public class Token {
   static int EPOCH_START_YEAR = 1970;
 
-  final static int META_TOKENCLASSID = 0;
-  final static int CHAR_TOKENCLASSID = 1;
-  final static int IPADDR_TOKENCLASSID = 2;
-  final static int PERMISSIONS_TOKENCLASSID = 3;
-  final static int DATE_TOKENCLASSID = 4;
-  final static int TIME_TOKENCLASSID = 5;
-  final static int INT_TOKENCLASSID = 6;
-  final static int FLOAT_TOKENCLASSID = 7;
-  final static int STRING_TOKENCLASSID = 8;
-  final static int EOL_TOKENCLASSID = 9;
-  final static int WHITESPACE_TOKENCLASSID = 10;
-  final static int NOOP_TOKENCLASSID = 11;
+  public final static int META_TOKENCLASSID = 0;
+  public final static int CHAR_TOKENCLASSID = 1;
+  public final static int IPADDR_TOKENCLASSID = 2;
+  public final static int PERMISSIONS_TOKENCLASSID = 3;
+  public final static int DATE_TOKENCLASSID = 4;
+  public final static int TIME_TOKENCLASSID = 5;
+  public final static int INT_TOKENCLASSID = 6;
+  public final static int FLOAT_TOKENCLASSID = 7;
+  public final static int STRING_TOKENCLASSID = 8;
+  public final static int EOL_TOKENCLASSID = 9;
+  public final static int WHITESPACE_TOKENCLASSID = 10;
+  public final static int NOOP_TOKENCLASSID = 11;
+  public final static int NUM_TOKENCLASSIDS = 12;
+
+  // Built once, rather than for every date or time value
+  public final static Schema DATE_SCHEMA = AbstractToken.createAvroSchema(DATE_TOKENCLASSID, null, "date");
+  public final static Schema TIME_SCHEMA = AbstractToken.createAvroSchema(TIME_TOKENCLASSID, null, "timestamp");
   
-  static abstract class AbstractToken {
+  public static abstract class AbstractToken {
     public static boolean hasData(int tokenClassIdentifier) {
     switch (tokenClassIdentifier) {
     case META_TOKENCLASSID:
@@ -155,15 +160,41 @@ public class Token {
       return getClassStr(classId) + ((tokenParameter != null) ? tokenParameter : "");
     }
 
+    /**
+     * A token's type id is a small dense integer that identifies the same thing as getId():
+     * the class id for most tokens, and one id per character for CHAR tokens.  It lets
+     * statistics code index arrays by token type instead of hashing strings.
+     */
+    public static int getTypeId(int classId, String tokenParameter) {
+      if (classId == CHAR_TOKENCLASSID && tokenParameter != null && tokenParameter.length() == 1) {
+        return NUM_TOKENCLASSIDS + tokenParameter.charAt(0);
+      }
+      return classId;
+    }
+    /**
+     * The inverse of getTypeId(): returns the same string as getId()
+     */
+    public static String getTypeDesc(int typeId) {
+      if (typeId >= NUM_TOKENCLASSIDS) {
+        return getStrDesc(CHAR_TOKENCLASSID, "" + (char) (typeId - NUM_TOKENCLASSIDS));
+      }
+      return getStrDesc(typeId, null);
+    }
+
     int classId;
     String tokenParameter;
+    int typeId;
     public AbstractToken(int classId, String tokenParameter) {
       this.classId = classId;
       this.tokenParameter = tokenParameter;
+      this.typeId = getTypeId(classId, tokenParameter);
     }
     public int getClassId() {
       return classId;
     }
+    public int getTypeId() {
+      return typeId;
+    }
     public String getParameter() {
       return tokenParameter;
     }
@@ -174,7 +205,7 @@ public class Token {
     public abstract String getSampleString();
   }
 
-  static class MetaToken extends AbstractToken {
+  public static class MetaToken extends AbstractToken {
     CharToken start;
     CharToken end;
     List<AbstractToken> contents;
@@ -220,7 +251,7 @@ public class Token {
     }
   }
 
-  static class CharToken extends AbstractToken {
+  public static class CharToken extends AbstractToken {
     char c;
     public CharToken(char c) {
       super(CHAR_TOKENCLASSID, "" + c);
@@ -240,7 +271,7 @@ public class Token {
     }
   }
 
-  static class IPAddrToken extends AbstractToken {
+  public static class IPAddrToken extends AbstractToken {
     String s;
     public IPAddrToken(String s) {
       super(IPADDR_TOKENCLASSID, null);
@@ -257,7 +288,7 @@ public class Token {
     }
   }
 
-  static class PermissionBits extends AbstractToken {
+  public static class PermissionBits extends AbstractToken {
     String s;
     public PermissionBits(String s) {
       super(PERMISSIONS_TOKENCLASSID, null);
@@ -274,7 +305,7 @@ public class Token {
     }
   }
 
-  static class DateToken extends AbstractToken {
+  public static class DateToken extends AbstractToken {
     int month;
     int day;
     int year;
@@ -361,22 +392,20 @@ public class Token {
       return "(" + day + ", " + month + ", " + year + ")";
     }
     public Object get() {
-      List<Schema.Field> fields = new ArrayList<Schema.Field>();
-      fields.add(new Schema.Field("month", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("day", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("year", Schema.create(Schema.Type.INT), "", null));
-      Schema newSchema = Schema.createRecord("date", "", "", false);
-      newSchema.setFields(fields);
-      GenericData.Record gdr = new GenericData.Record(newSchema);
-
-      gdr.put("month", month);
-      gdr.put("day", day);
-      gdr.put("year", year);
+      return fill(new GenericData.Record(DATE_SCHEMA));
+    }
+    /**
+     * Store this date in a record with the date schema (or a copy of it, under another name)
+     */
+    public GenericData.Record fill(GenericData.Record gdr) {
+      gdr.put(0, month);
+      gdr.put(1, day);
+      gdr.put(2, year);
       return gdr;
     }
   }
 
-  static class TimeToken extends AbstractToken {
+  public static class TimeToken extends AbstractToken {
     int hr;
     int min;
     int sec;
@@ -397,22 +426,20 @@ public class Token {
       return "(" + hr + ", " + min + ", " + sec + ")";
     }
     public Object get() {
-      List<Schema.Field> fields = new ArrayList<Schema.Field>();
-      fields.add(new Schema.Field("hrs", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("mins", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("secs", Schema.create(Schema.Type.INT), "", null));
-      Schema newSchema = Schema.createRecord("timestamp", "", "", false);
-      newSchema.setFields(fields);
-      GenericData.Record gdr = new GenericData.Record(newSchema);
-
-      gdr.put("hrs", hr);
-      gdr.put("mins", min);
-      gdr.put("secs", sec);
+      return fill(new GenericData.Record(TIME_SCHEMA));
+    }
+    /**
+     * Store this time in a record with the time schema (or a copy of it, under another name)
+     */
+    public GenericData.Record fill(GenericData.Record gdr) {
+      gdr.put(0, hr);
+      gdr.put(1, min);
+      gdr.put(2, sec);
       return gdr;
     }
   }
 
-  static class IntToken extends AbstractToken {
+  public static class IntToken extends AbstractToken {
     int i;
     public IntToken(String s) {
       super(INT_TOKENCLASSID, null);
@@ -433,7 +460,7 @@ public class Token {
     }
   }
 
-  static class FloatToken extends AbstractToken {
+  public static class FloatToken extends AbstractToken {
     double f;
     public FloatToken(String s) {
       super(FLOAT_TOKENCLASSID, null);
@@ -454,7 +481,7 @@ public class Token {
     }
   }
 
-  static class StringToken extends AbstractToken {
+  public static class StringToken extends AbstractToken {
     String s;
     public StringToken(String s) {
       super(STRING_TOKENCLASSID, null);
@@ -471,7 +498,7 @@ public class Token {
     }
   }
 
-  static class EOLToken extends AbstractToken {
+  public static class EOLToken extends AbstractToken {
     public EOLToken() {
       super(EOL_TOKENCLASSID, null);
     }
@@ -486,7 +513,7 @@ public class Token {
     }
   }
 
-  static class WhitespaceToken extends AbstractToken {
+  public static class WhitespaceToken extends AbstractToken {
     public WhitespaceToken() {
       super(WHITESPACE_TOKENCLASSID, null);
     }
@@ -501,7 +528,7 @@ public class Token {
     }
   }
 
-  static class NoopToken extends AbstractToken {
+  public static class NoopToken extends AbstractToken {
     public NoopToken() {
       super(NOOP_TOKENCLASSID, null);
     }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.regex.*;
+
+/*********************************************************
+ * TokenMatcher matches a single token of a given class at an offset into a line.
+ * It is the cursor-based counterpart of Tokenizer.attemptParse(): it accepts exactly
+ * the same text, but creates no substrings and no Token objects.
+ *
+ * Each instance keeps its own reusable Matchers, so it is not thread-safe.
+ * Call reset() once per line, then match() as often as needed.
+ *********************************************************/
+public class TokenMatcher {
+  CharSequence input;
+  int len;
+
+  Matcher ipAddrMatcher = Tokenizer.ipAddrPattern.matcher("");
+  Matcher permissionBitMatcher = Tokenizer.permissionBitPattern.matcher("");
+  Matcher timeMatcher1 = Tokenizer.timePattern1.matcher("");
+  Matcher timeMatcher2 = Tokenizer.timePattern2.matcher("");
+  Matcher intMatcher = Tokenizer.intPattern.matcher("");
+  Matcher floatMatcher = Tokenizer.floatPattern.matcher("");
+  Matcher stringMatcher = Tokenizer.stringPattern.matcher("");
+  Matcher monthFirstMatchers[] = createMatchers(Tokenizer.monthFirstPatterns);
+  Matcher yearFirstMatchers[] = createMatchers(Tokenizer.yearFirstPatterns);
+  Matcher dayFirstMatchers[] = createMatchers(Tokenizer.dayFirstPatterns);
+  List<Matcher> allMatchers = new ArrayList<Matcher>();
+
+  // Union decisions forced by InferredType.backtrackingParse(), if any.  The union at
+  // position k takes branch decisions.candidates[k][decisionChoices[k]].
+  InferredType.UnionDecisions decisions = null;
+  int decisionChoices[] = null;
+  int maxDecisionConsulted = -1;
+
+  // The union branches taken by the current parse, as (union, branch) pairs.  A parse
+  // that fails cuts the trail back to where it started, so once the whole line has
+  // parsed, the trail holds exactly the branches the result uses.  CompiledParser
+  // records the branches of the data it builds here too.
+  UnionType trailUnions[] = new UnionType[16];
+  int trailBranches[] = new int[16];
+  int trailSize = 0;
+
+  public TokenMatcher() {
+    allMatchers.addAll(Arrays.asList(ipAddrMatcher, permissionBitMatcher, timeMatcher1, timeMatcher2, intMatcher, floatMatcher, stringMatcher));
+    allMatchers.addAll(Arrays.asList(monthFirstMatchers));
+    allMatchers.addAll(Arrays.asList(yearFirstMatchers));
+    allMatchers.addAll(Arrays.asList(dayFirstMatchers));
+    reset("");
+  }
+  static Matcher[] createMatchers(List<Pattern> patterns) {
+    Matcher matchers[] = new Matcher[patterns.size()];
+    for (int i = 0; i < matchers.length; i++) {
+      matchers[i] = patterns.get(i).matcher("");
+    }
+    return matchers;
+  }
+
+  /**
+   * Prepare to match against a new line
+   */
+  public void reset(CharSequence input) {
+    this.input = input;
+    this.len = input.length();
+    setDecisions(null, null);
+    cutTrail(0);
+    for (Matcher m: allMatchers) {
+      m.reset(input);
+    }
+  }
+
+  /**
+   * Force the decisions of the unions in 'decisions', or stop forcing them if null
+   */
+  public void setDecisions(InferredType.UnionDecisions decisions, int decisionChoices[]) {
+    this.decisions = decisions;
+    this.decisionChoices = decisionChoices;
+    this.maxDecisionConsulted = -1;
+  }
+
+  /**
+   * The branch that the union must take, or -1 if it is free to try them all.
+   * Notes how far into the decisions the current parse has looked.
+   */
+  int getDecision(UnionType u) {
+    if (decisions == null) {
+      return -1;
+    }
+    Integer pos = decisions.positions.get(u);
+    if (pos == null) {
+      return -1;
+    }
+    maxDecisionConsulted = Math.max(maxDecisionConsulted, pos);
+    return decisions.candidates[pos][decisionChoices[pos]];
+  }
+
+  int getTrailMark() {
+    return trailSize;
+  }
+  void cutTrail(int mark) {
+    for (int i = mark; i < trailSize; i++) {
+      trailUnions[i] = null;
+    }
+    trailSize = mark;
+  }
+  void addBranch(UnionType u, int branchIdx) {
+    if (trailSize == trailUnions.length) {
+      trailUnions = Arrays.copyOf(trailUnions, trailSize * 2);
+      trailBranches = Arrays.copyOf(trailBranches, trailSize * 2);
+    }
+    trailUnions[trailSize] = u;
+    trailBranches[trailSize] = branchIdx;
+    trailSize++;
+  }
+
+  /**
+   * The line has parsed: count each union branch on the trail as a success
+   */
+  void countBranches() {
+    for (int i = 0; i < trailSize; i++) {
+      trailUnions[i].countBranch(trailBranches[i]);
+    }
+    cutTrail(0);
+  }
+
+  /**
+   * Java's \s, which Tokenizer's patterns use
+   */
+  static boolean isRegexSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * True if a token of the given class could begin with 'c'.  This is conservative:
+   * it may say yes for a character that never starts a match, but never says no for
+   * one that does.
+   */
+  static boolean canStartWith(int tokenClassId, String tokenParameter, char c) {
+    boolean isDigit = (c >= '0' && c <= '9');
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID:
+      return isDigit || c == '*';
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return c == 'd' || c == 'r' || c == 'w' || c == 'x' || c == '-';
+    case Token.DATE_TOKENCLASSID:
+      // Days, years, and numeric months, or the name of a month
+      return isDigit || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    case Token.TIME_TOKENCLASSID:
+      return isDigit;
+    case Token.CHAR_TOKENCLASSID:
+      if (tokenParameter != null && tokenParameter.length() > 0) {
+        return c == tokenParameter.charAt(0);
+      }
+      return ! isRegexSpace(c);
+    case Token.FLOAT_TOKENCLASSID:
+      return isDigit || c == '+' || c == '-' || c == '.';
+    case Token.INT_TOKENCLASSID:
+      return isDigit || c == '+' || c == '-';
+    case Token.STRING_TOKENCLASSID:
+      return ! isRegexSpace(c) && "\",;|[]{}<>()'".indexOf(c) < 0;
+    case Token.EOL_TOKENCLASSID:
+      return c == '\n';
+    case Token.WHITESPACE_TOKENCLASSID:
+      return isRegexSpace(c);
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * True if a token of the given class could begin with a non-ASCII character
+   */
+  static boolean canStartWithNonAscii(int tokenClassId, String tokenParameter) {
+    if (tokenClassId == Token.CHAR_TOKENCLASSID) {
+      return tokenParameter == null || tokenParameter.length() == 0 || tokenParameter.charAt(0) >= 128;
+    }
+    return tokenClassId == Token.STRING_TOKENCLASSID;
+  }
+
+  /**
+   * True if some character could begin a token of either class
+   */
+  static boolean canStartAlike(int classIdA, String paramA, int classIdB, String paramB) {
+    for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+      if (canStartWith(classIdA, paramA, (char) c) && canStartWith(classIdB, paramB, (char) c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * True if everything from 'start' onward would be removed by String.trim()
+   */
+  public boolean isBlankFrom(int start) {
+    for (int i = start; i < len; i++) {
+      if (input.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Try to match a token of the given class at 'start'.  Returns the offset just past
+   * the token, or -1 if there is no match.  This mirrors Tokenizer.attemptParse().
+   */
+  public int match(int tokenClassId, String tokenParameter, int start) {
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID:
+      return lookingAt(ipAddrMatcher, start);
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return lookingAt(permissionBitMatcher, start);
+    case Token.DATE_TOKENCLASSID:
+      return matchDate(start);
+    case Token.TIME_TOKENCLASSID: {
+      int end = lookingAt(timeMatcher1, start);
+      if (end < 0) {
+        end = lookingAt(timeMatcher2, start);
+      }
+      return end;
+    }
+    case Token.CHAR_TOKENCLASSID: {
+      if (tokenParameter != null && tokenParameter.length() > 1) {
+        // A run of constant chars, merged during type refinement
+        if (start + tokenParameter.length() > len) {
+          return -1;
+        }
+        for (int i = 0; i < tokenParameter.length(); i++) {
+          if (input.charAt(start + i) != tokenParameter.charAt(i)) {
+            return -1;
+          }
+        }
+        return start + tokenParameter.length();
+      }
+      if (start >= len || isRegexSpace(input.charAt(start))) {
+        return -1;
+      }
+      if (tokenParameter != null && (tokenParameter.length() != 1 || tokenParameter.charAt(0) != input.charAt(start))) {
+        return -1;
+      }
+      return start + 1;
+    }
+    case Token.FLOAT_TOKENCLASSID:
+      return lookingAt(floatMatcher, start);
+    case Token.INT_TOKENCLASSID:
+      return lookingAt(intMatcher, start);
+    case Token.STRING_TOKENCLASSID:
+      return lookingAt(stringMatcher, start);
+    case Token.EOL_TOKENCLASSID:
+      return (start < len && input.charAt(start) == '\n') ? start + 1 : -1;
+    case Token.WHITESPACE_TOKENCLASSID: {
+      int end = start;
+      while (end < len && isRegexSpace(input.charAt(end))) {
+        end++;
+      }
+      return (end > start) ? end : -1;
+    }
+    default:
+      return -1;
+    }
+  }
+
+  int lookingAt(Matcher m, int start) {
+    m.region(start, len);
+    if (m.lookingAt()) {
+      return m.end(m.groupCount());
+    }
+    return -1;
+  }
+
+  /**
+   * Dates are tried in the same pattern order as Tokenizer.attemptParse(), with the
+   * same validity checks that Token.DateToken's constructor applies.
+   */
+  int matchDate(int start) {
+    for (Matcher m: monthFirstMatchers) {
+      m.region(start, len);
+      if (m.lookingAt() && isValidDay(m, 2) && (m.groupCount() == 2 || isValidYear(m, 3))) {
+        return m.end(m.groupCount());
+      }
+    }
+    for (Matcher m: yearFirstMatchers) {
+      m.region(start, len);
+      if (m.lookingAt() && isValidDay(m, 3) && isValidYear(m, 1)) {
+        return m.end(m.groupCount());
+      }
+    }
+    for (Matcher m: dayFirstMatchers) {
+      m.region(start, len);
+      if (m.lookingAt() && isValidDay(m, 1) && (m.groupCount() == 2 || isValidYear(m, 3))) {
+        return m.end(m.groupCount());
+      }
+    }
+    return -1;
+  }
+  int groupValue(Matcher m, int group) {
+    int value = 0;
+    for (int i = m.start(group); i < m.end(group); i++) {
+      value = value * 10 + (input.charAt(i) - '0');
+    }
+    return value;
+  }
+  boolean isValidDay(Matcher m, int group) {
+    int day = groupValue(m, group);
+    return day >= 1 && day <= 31;
+  }
+  boolean isValidYear(Matcher m, int group) {
+    return groupValue(m, group) >= Token.EPOCH_START_YEAR;
+  }
+}
@@ -62,8 +62,9 @@ public class Tokenizer {
    * that can be correctly parsed.  This is what happens inside tokenize() below.
    *
    * For case #2, we expect that the parse-tree will contain a specific token-type that *must* be
-   * parsed, or else that branch of the parse-tree is invalid.  This is what happens inside
-   * InferredType.BaseType.internalParse().
+   * parsed, or else that branch of the parse-tree is invalid.  Guided parsing now uses
+   * TokenMatcher, which accepts the same text without copying the rest of the line;
+   * attemptParse() is still used to build Date and Time values.
    */
   public static String attemptParse(int tokenClassId, String tokenParameter, String inputStr, List<Token.AbstractToken> outputToks) {
     switch (tokenClassId) {
@@ -154,6 +155,17 @@ public class Tokenizer {
       return null;
     }
     case Token.CHAR_TOKENCLASSID: {
+      // A multi-char parameter is a run of constant chars, merged during type refinement
+      if (tokenParameter != null && tokenParameter.length() > 1) {
+        if (inputStr.startsWith(tokenParameter)) {
+          // One token per char, just as tokenize() would have produced
+          for (int i = 0; i < tokenParameter.length(); i++) {
+            outputToks.add(new Token.CharToken(tokenParameter.charAt(i)));
+          }
+          return inputStr.substring(tokenParameter.length());
+        }
+        return null;
+      }
       Matcher m = charPattern.matcher(inputStr);
       if (m.lookingAt()) {
         if (tokenParameter != null && ! tokenParameter.equals("" + m.group(1).charAt(0))) {
@@ -87,6 +87,251 @@ public class TypeInference {
     }
   }
 
+  /**
+   * DiscoveryCache memoizes discover() results.  The recursion often reaches chunksets
+   * with identical shape through different paths (e.g., the same bracketed payload inside
+   * several union branches).  Chunksets are keyed by the multiset of their token-shapes,
+   * which decides the subtree's structure.  A hit returns a duplicate of the earlier
+   * subtree, so every node still gets a fresh name, and its bases take their samples
+   * from the corresponding tokens of the current chunkset.
+   */
+  public static class DiscoveryCache {
+    Map<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+    // The tokens that each base built during this inference took its samples from
+    Map<BaseType, List<Token.AbstractToken>> sampleTokens = new IdentityHashMap<BaseType, List<Token.AbstractToken>>();
+    int hits = 0;
+    int misses = 0;
+
+    public DiscoveryCache() {
+    }
+
+    /**
+     * A discovered subtree, with where each of its bases' samples lie in the chunkset
+     * it came from: one list per base, in the order of getBases().  A null location
+     * is a sample that is not one of the chunkset's tokens.
+     */
+    static class CacheEntry {
+      InferredType typeTree;
+      List<List<SampleLocation>> sampleLocations;
+      CacheEntry(InferredType typeTree, List<List<SampleLocation>> sampleLocations) {
+        this.typeTree = typeTree;
+        this.sampleLocations = sampleLocations;
+      }
+    }
+
+    /**
+     * A token's place in a chunkset: the 'rank'th chunk with the given shape, then
+     * 'path' into that chunk.  Each step of the path indexes a chunk, except that
+     * after a MetaToken, START and END pick its delimiters and any other step
+     * indexes its middle chunk.  Chunksets with the same fingerprint have the
+     * same shaped chunks, so the location can be found in either.
+     */
+    static class SampleLocation {
+      static int START = -1;
+      static int END = -2;
+      String shape;
+      int rank;
+      int path[];
+      SampleLocation(String shape, int rank, int path[]) {
+        this.shape = shape;
+        this.rank = rank;
+        this.path = path;
+      }
+      Token.AbstractToken find(List<Token.AbstractToken> chunk) {
+        Token.AbstractToken tok = chunk.get(path[0]);
+        for (int i = 1; i < path.length; i++) {
+          Token.MetaToken mtok = (Token.MetaToken) tok;
+          if (path[i] == START) {
+            tok = mtok.getStartToken();
+          } else if (path[i] == END) {
+            tok = mtok.getEndToken();
+          } else {
+            tok = mtok.getMiddleChunk().get(path[i]);
+          }
+        }
+        return tok;
+      }
+    }
+
+    /**
+     * A duplicate of the subtree learned from an earlier chunkset with this
+     * fingerprint, with samples from 'chunks', or null if there is none
+     */
+    InferredType get(String fingerprint, List<List<Token.AbstractToken>> chunks, List<String> shapes) {
+      CacheEntry entry = cache.get(fingerprint);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+
+      Map<String, List<List<Token.AbstractToken>>> chunksByShape = new HashMap<String, List<List<Token.AbstractToken>>>();
+      for (int i = 0; i < chunks.size(); i++) {
+        List<List<Token.AbstractToken>> sameShape = chunksByShape.get(shapes.get(i));
+        if (sameShape == null) {
+          sameShape = new ArrayList<List<Token.AbstractToken>>();
+          chunksByShape.put(shapes.get(i), sameShape);
+        }
+        sameShape.add(chunks.get(i));
+      }
+      InferredType typeTree = entry.typeTree.duplicate();
+      List<BaseType> bases = getBases(typeTree);
+      for (int i = 0; i < bases.size(); i++) {
+        BaseType bt = bases.get(i);
+        List<SampleLocation> locations = entry.sampleLocations.get(i);
+        List<String> sampleStrs = new ArrayList<String>();
+        List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>();
+        for (int j = 0; j < locations.size(); j++) {
+          SampleLocation loc = locations.get(j);
+          List<List<Token.AbstractToken>> sameShape = (loc == null) ? null : chunksByShape.get(loc.shape);
+          // Weighted chunksets can match with different numbers of chunks per shape
+          if (sameShape == null || loc.rank >= sameShape.size()) {
+            sampleStrs.add(bt.sampleStrs.get(j));
+            toks.add(null);
+          } else {
+            Token.AbstractToken tok = loc.find(sameShape.get(loc.rank));
+            sampleStrs.add(tok.getSampleString());
+            toks.add(tok);
+          }
+        }
+        bt.sampleStrs = sampleStrs;
+        sampleTokens.put(bt, toks);
+      }
+      return typeTree;
+    }
+
+    /**
+     * Remember the subtree learned from 'chunks', and where its samples came from
+     */
+    void put(String fingerprint, List<List<Token.AbstractToken>> chunks, List<String> shapes, InferredType typeTree) {
+      Map<Token.AbstractToken, SampleLocation> tokenLocations = new IdentityHashMap<Token.AbstractToken, SampleLocation>();
+      Map<String, Integer> shapeCounts = new HashMap<String, Integer>();
+      for (int i = 0; i < chunks.size(); i++) {
+        Integer rank = shapeCounts.get(shapes.get(i));
+        rank = (rank == null) ? 0 : rank + 1;
+        shapeCounts.put(shapes.get(i), rank);
+        locateTokens(chunks.get(i), shapes.get(i), rank, new int[0], tokenLocations);
+      }
+      List<List<SampleLocation>> sampleLocations = new ArrayList<List<SampleLocation>>();
+      for (BaseType bt: getBases(typeTree)) {
+        List<Token.AbstractToken> toks = sampleTokens.get(bt);
+        List<SampleLocation> locations = new ArrayList<SampleLocation>();
+        for (int i = 0; i < bt.sampleStrs.size(); i++) {
+          locations.add((toks == null || toks.get(i) == null) ? null : tokenLocations.get(toks.get(i)));
+        }
+        sampleLocations.add(locations);
+      }
+      cache.put(fingerprint, new CacheEntry(typeTree, sampleLocations));
+    }
+    static void locateTokens(List<Token.AbstractToken> chunk, String shape, int rank, int path[], Map<Token.AbstractToken, SampleLocation> tokenLocations) {
+      for (int i = 0; i < chunk.size(); i++) {
+        Token.AbstractToken tok = chunk.get(i);
+        int tokPath[] = Arrays.copyOf(path, path.length + 1);
+        tokPath[path.length] = i;
+        addLocation(tok, new SampleLocation(shape, rank, tokPath), tokenLocations);
+        if (tok instanceof Token.MetaToken) {
+          Token.MetaToken mtok = (Token.MetaToken) tok;
+          int startPath[] = Arrays.copyOf(tokPath, tokPath.length + 1);
+          startPath[tokPath.length] = SampleLocation.START;
+          addLocation(mtok.getStartToken(), new SampleLocation(shape, rank, startPath), tokenLocations);
+          int endPath[] = Arrays.copyOf(tokPath, tokPath.length + 1);
+          endPath[tokPath.length] = SampleLocation.END;
+          addLocation(mtok.getEndToken(), new SampleLocation(shape, rank, endPath), tokenLocations);
+          locateTokens(mtok.getMiddleChunk(), shape, rank, tokPath, tokenLocations);
+        }
+      }
+    }
+    static void addLocation(Token.AbstractToken tok, SampleLocation loc, Map<Token.AbstractToken, SampleLocation> tokenLocations) {
+      if (! tokenLocations.containsKey(tok)) {
+        tokenLocations.put(tok, loc);
+      }
+    }
+
+    /**
+     * The bases of a subtree, in a fixed order that duplicate() preserves
+     */
+    static List<BaseType> getBases(InferredType typeTree) {
+      List<BaseType> bases = new ArrayList<BaseType>();
+      addBases(typeTree, bases);
+      return bases;
+    }
+    static void addBases(InferredType t, List<BaseType> bases) {
+      if (t instanceof BaseType) {
+        bases.add((BaseType) t);
+      } else if (t instanceof StructType) {
+        for (InferredType elt: ((StructType) t).structTypes) {
+          addBases(elt, bases);
+        }
+      } else if (t instanceof ArrayType) {
+        addBases(((ArrayType) t).bodyType, bases);
+      } else if (t instanceof UnionType) {
+        for (InferredType branch: ((UnionType) t).unionTypes) {
+          addBases(branch, bases);
+        }
+      }
+    }
+
+    public int getHits() {
+      return hits;
+    }
+    public int getMisses() {
+      return misses;
+    }
+    public String toString() {
+      return "DiscoveryCache: " + hits + " hits, " + misses + " misses";
+    }
+
+    /**
+     * The shape of each chunk, in order
+     */
+    static List<String> getShapes(List<List<Token.AbstractToken>> chunks) {
+      List<String> shapes = new ArrayList<String>();
+      for (List<Token.AbstractToken> chunk: chunks) {
+        StringBuffer buf = new StringBuffer();
+        appendShape(chunk, buf);
+        shapes.add(buf.toString());
+      }
+      return shapes;
+    }
+
+    /**
+     * Compute a canonical fingerprint for the chunkset: each distinct chunk-shape with
+     * its count, in sorted order.  Chunk order does not matter to the oracle.
+     */
+    public static String fingerprint(List<List<Token.AbstractToken>> chunks) {
+      return fingerprint(chunks, getShapes(chunks));
+    }
+    static String fingerprint(List<List<Token.AbstractToken>> chunks, List<String> shapes) {
+      Map<String, Long> shapeCounts = new HashMap<String, Long>();
+      for (int i = 0; i < chunks.size(); i++) {
+        String shape = shapes.get(i);
+        Long count = shapeCounts.get(shape);
+        long weight = WeightedChunk.getWeight(chunks.get(i));
+        shapeCounts.put(shape, (count == null) ? weight : count.longValue() + weight);
+      }
+      List<String> sortedShapes = new ArrayList<String>(shapeCounts.keySet());
+      Collections.sort(sortedShapes);
+      StringBuffer fp = new StringBuffer();
+      for (String shape: sortedShapes) {
+        fp.append(shapeCounts.get(shape) + "x" + shape + "\n");
+      }
+      return fp.toString();
+    }
+    static void appendShape(List<Token.AbstractToken> chunk, StringBuffer buf) {
+      for (Token.AbstractToken tok: chunk) {
+        // Length-prefix the token desc, since CHAR parameters can be any punctuation
+        String desc = Token.AbstractToken.getStrDesc(tok.getClassId(), tok.getParameter());
+        buf.append(desc.length() + ":" + desc);
+        if (tok instanceof Token.MetaToken) {
+          buf.append("(");
+          appendShape(((Token.MetaToken) tok).getMiddleChunk(), buf);
+          buf.append(")");
+        }
+        buf.append(",");
+      }
+    }
+  }
+
   /////////////////////////////////////
   // Public methods and support methods
   /////////////////////////////////////
@@ -99,16 +344,33 @@ public class TypeInference {
    * This is the core of the LearnPADS algorithm.
    */
   public static InferredType infer(List<List<Token.AbstractToken>> chunks) {
-    InferredType typeTree = discover(chunks);
+    return infer(chunks, new DiscoveryCache());
+  }
+
+  /**
+   * Same as above, but records memoization statistics in the given cache.
+   */
+  public static InferredType infer(List<List<Token.AbstractToken>> chunks, DiscoveryCache cache) {
+    return infer(chunks, cache, null);
+  }
+
+  /**
+   * Same as above, but the top-level histograms have already been computed elsewhere
+   * (e.g., merged from partial counts by DistributedLearnStructure).  They must describe
+   * exactly the non-empty chunks in 'chunks'.
+   */
+  public static InferredType infer(List<List<Token.AbstractToken>> chunks, DiscoveryCache cache, List<Histogram> topLevelHistograms) {
+    InferredType typeTree = discover(chunks, cache, topLevelHistograms);
     typeTree = typeTree.hoistUnions();
     //typeTree.ensureParsability();
+    typeTree = typeTree.refine(RefinementRule.getDefaultRules());
     return typeTree;
   }
 
   /**
    * The oracle() function attempts to predict the best type for the data given by 'chunks'.
    */
-  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks) {
+  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks, List<Histogram> precomputedHistograms) {
     //////////////////////////////////////////////////////////////
     // Phase 1: Handling chunks that appear homogenous (at this meta-level, at least)
     //////////////////////////////////////////////////////////////
@@ -172,7 +434,7 @@ public class TypeInference {
 
         List<List<Token.AbstractToken>> middleChunkList = new ArrayList<List<Token.AbstractToken>>();
         for (List<Token.AbstractToken> chunk: chunks) {
-          middleChunkList.add(((Token.MetaToken) chunk.get(0)).getMiddleChunk());
+          middleChunkList.add(WeightedChunk.createChunk(chunk, ((Token.MetaToken) chunk.get(0)).getMiddleChunk()));
         }
 
         List<List<Token.AbstractToken>> endChunkList = new ArrayList<List<Token.AbstractToken>>();
@@ -192,16 +454,17 @@ public class TypeInference {
     // Phase 2: Handling heterogeneous chunks
     //////////////////////////////////////////////////////////////
     // As usual, start by gathering some statistics
-    List<Histogram> normalizedHistograms = Histogram.computeNormalizedHistograms(chunks);
+    List<Histogram> normalizedHistograms = precomputedHistograms;
+    if (normalizedHistograms == null) {
+      normalizedHistograms = Histogram.computeNormalizedHistograms(chunks);
+    }
     List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
 
     //
     // CONDITION: Does a Struct exist?
     //
-    SortedSet<List<Histogram>> structHistogramClusters = new TreeSet<List<Histogram>>(new Comparator() {
-      public int compare(Object o1, Object o2) {
-        List<Histogram> cluster1 = (List<Histogram>) o1;
-        List<Histogram> cluster2 = (List<Histogram>) o2;
+    SortedSet<List<Histogram>> structHistogramClusters = new TreeSet<List<Histogram>>(new Comparator<List<Histogram>>() {
+      public int compare(List<Histogram> cluster1, List<Histogram> cluster2) {
 
         double minResidualMass1 = Double.MAX_VALUE;
         double minResidualMass2 = Double.MAX_VALUE;
@@ -216,14 +479,14 @@ public class TypeInference {
         } else if (minResidualMass1 > minResidualMass2) {
           return 1;
         } else {
-          return o1.hashCode() - o2.hashCode();
+          return compareTypes(cluster1, cluster2);
         }
       }
     });
     for (List<Histogram> histogramCluster: clusteredHistograms) {
       boolean allHistogramsPass = true;
       for (Histogram h: histogramCluster) {
-        if (! h.passStructStatisticalTest(chunks.size())) {
+        if (! h.passStructStatisticalTest(WeightedChunk.getTotalWeight(chunks))) {
           allHistogramsPass = false;
         }
       }
@@ -317,7 +580,7 @@ public class TypeInference {
                 preludeChunkList = new ArrayList<List<Token.AbstractToken>>();
                 structChunks.put(2*i, preludeChunkList);
               }
-              List<Token.AbstractToken> preludeChunk = new ArrayList<Token.AbstractToken>();
+              List<Token.AbstractToken> preludeChunk = WeightedChunk.createChunk(chunk);
               for (int j = lastIdentifiedIndex+1; j < i; j++) {
                 preludeChunk.add(chunk.get(j));
               }
@@ -328,7 +591,7 @@ public class TypeInference {
                 identifiedChunkList = new ArrayList<List<Token.AbstractToken>>();
                 structChunks.put(2 * i + 1, identifiedChunkList);
               }
-              List<Token.AbstractToken> identifiedChunk = new ArrayList<Token.AbstractToken>();
+              List<Token.AbstractToken> identifiedChunk = WeightedChunk.createChunk(chunk);
               identifiedChunk.add(chunk.get(i));
               identifiedChunkList.add(identifiedChunk);
 
@@ -340,7 +603,7 @@ public class TypeInference {
             suffixChunkList = new ArrayList<List<Token.AbstractToken>>();
             structChunks.put(2 * chunk.size() + 1, suffixChunkList);
           }
-          List<Token.AbstractToken> suffixChunk = new ArrayList<Token.AbstractToken>();
+          List<Token.AbstractToken> suffixChunk = WeightedChunk.createChunk(chunk);
           for (int j = lastIdentifiedIndex+1; j < chunk.size(); j++) {
             suffixChunk.add(chunk.get(j));
           }
@@ -372,7 +635,7 @@ public class TypeInference {
         // It's a UNION.
         // A UnionProphecy requires a number of chunklists, one for each type profile
         //System.err.println("UNION-1");
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
+        Map<String, List<List<Token.AbstractToken>>> unionMap = new TreeMap<String, List<List<Token.AbstractToken>>>();
         for (List<Token.AbstractToken> chunk: chunks) {
           StringBuffer curTypeProfile = new StringBuffer();
           StringBuffer curField = new StringBuffer();
@@ -412,10 +675,8 @@ public class TypeInference {
       //
       // It might be an ARRAY....
       //
-      SortedSet<List<Histogram>> arrayHistogramClusters = new TreeSet<List<Histogram>>(new Comparator() {
-        public int compare(Object o1, Object o2) {
-          List<Histogram> cluster1 = (List<Histogram>) o1;
-          List<Histogram> cluster2 = (List<Histogram>) o2;
+      SortedSet<List<Histogram>> arrayHistogramClusters = new TreeSet<List<Histogram>>(new Comparator<List<Histogram>>() {
+        public int compare(List<Histogram> cluster1, List<Histogram> cluster2) {
 
           double maxCoverage1 = 0;
           double maxCoverage2 = 0;
@@ -432,14 +693,14 @@ public class TypeInference {
           } else if (maxCoverage1 > maxCoverage2) {
             return -1;
           } else {
-            return o1.hashCode() - o2.hashCode();
+            return compareTypes(cluster1, cluster2);
           }
         }
       });
       for (List<Histogram> histogramCluster: clusteredHistograms) {
         boolean allHistogramsPass = true;
         for (Histogram h: histogramCluster) {
-          if (! h.passArrayStatisticalTest(chunks.size())) {
+          if (! h.passArrayStatisticalTest(WeightedChunk.getTotalWeight(chunks))) {
             allHistogramsPass = false;
           }
         }
@@ -466,10 +727,10 @@ public class TypeInference {
         // For each chunk of input...
         // 
         for (List<Token.AbstractToken> chunk: chunks) {
-          List<Token.AbstractToken> preamble = new ArrayList<Token.AbstractToken>();
+          List<Token.AbstractToken> preamble = WeightedChunk.createChunk(chunk);
           List<List<Token.AbstractToken>> middleGroup = new ArrayList<List<Token.AbstractToken>>();
-          List<Token.AbstractToken> curMiddle = new ArrayList<Token.AbstractToken>();
-          List<Token.AbstractToken> postamble = new ArrayList<Token.AbstractToken>();
+          List<Token.AbstractToken> curMiddle = WeightedChunk.createChunk(chunk);
+          List<Token.AbstractToken> postamble = WeightedChunk.createChunk(chunk);
           Set<String> observedClusterTypes = new HashSet<String>();
           int mode = 0;
 
@@ -491,7 +752,7 @@ public class TypeInference {
               curMiddle.add(tok);
               if (curMiddle.size() == bestClusterTypes.size()) {
                 middleGroup.add(curMiddle);
-                curMiddle = new ArrayList<Token.AbstractToken>();
+                curMiddle = WeightedChunk.createChunk(chunk);
               }
             } else {
               if (curMiddle != null) {
@@ -551,7 +812,7 @@ public class TypeInference {
         // Now that we have computed 'neededTokens', we can proceed to partition the input chunks using
         // the first 'neededTokens' from each chunk.
         //
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
+        Map<String, List<List<Token.AbstractToken>>> unionMap = new TreeMap<String, List<List<Token.AbstractToken>>>();
         for (List<Token.AbstractToken> chunk: chunks) {
           StringBuffer curTypeProfile = new StringBuffer();
           for (int i = 0; i < neededTokens; i++) {
@@ -580,8 +841,28 @@ public class TypeInference {
   }
 
   /**
+   * Break ties between histogram clusters by their token types, so that the choice
+   * does not depend on the order of the chunks or on identity hash codes.  Distinct
+   * clusters never share a type.
    */
-  private static InferredType discover(List<List<Token.AbstractToken>> chunks) {
+  static int compareTypes(List<Histogram> cluster1, List<Histogram> cluster2) {
+    return getTypes(cluster1).compareTo(getTypes(cluster2));
+  }
+  static String getTypes(List<Histogram> cluster) {
+    List<String> types = new ArrayList<String>();
+    for (Histogram h: cluster) {
+      types.add(h.getHistogramType());
+    }
+    Collections.sort(types);
+    return types.toString();
+  }
+
+  /**
+   */
+  private static InferredType discover(List<List<Token.AbstractToken>> chunks, DiscoveryCache cache) {
+    return discover(chunks, cache, null);
+  }
+  private static InferredType discover(List<List<Token.AbstractToken>> chunks, DiscoveryCache cache, List<Histogram> precomputedHistograms) {
     // Remove chunks that are empty.  These should never get passed-in
     for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
       List<Token.AbstractToken> chunk = it.next();
@@ -593,10 +874,25 @@ public class TypeInference {
     // Error testing
     assert(chunks.size() > 0);
 
+    // Have we seen a chunkset of this shape before?
+    List<String> shapes = DiscoveryCache.getShapes(chunks);
+    String fingerprint = DiscoveryCache.fingerprint(chunks, shapes);
+    InferredType cachedType = cache.get(fingerprint, chunks, shapes);
+    if (cachedType != null) {
+      return cachedType;
+    }
+    InferredType discoveredType = discoverUncached(chunks, cache, precomputedHistograms);
+    cache.put(fingerprint, chunks, shapes, discoveredType);
+    return discoveredType;
+  }
+
+  /**
+   */
+  private static InferredType discoverUncached(List<List<Token.AbstractToken>> chunks, DiscoveryCache cache, List<Histogram> precomputedHistograms) {
     //
     // Type predictions from the oracle come in one of four flavors: Base, Struct, Array, or Union
     //
-    TypeProphecy typePrediction = oracle(chunks);
+    TypeProphecy typePrediction = oracle(chunks, precomputedHistograms);
     if (typePrediction instanceof BaseProphecy) {
       BaseProphecy bp = (BaseProphecy) typePrediction;
       List<String> sampleStrs = new ArrayList<String>();
@@ -604,14 +900,16 @@ public class TypeInference {
         Token.AbstractToken tok = it.next();
         sampleStrs.add(tok.getSampleString());
       }
-      return new BaseType(bp.getToken(), sampleStrs);
+      BaseType bt = new BaseType(bp.getToken(), sampleStrs);
+      cache.sampleTokens.put(bt, bp.getSamples());
+      return bt;
 
     } else if (typePrediction instanceof StructProphecy) {
       StructProphecy sp = (StructProphecy) typePrediction;
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
       int i = 0;
       for (List<List<Token.AbstractToken>> structElt: sp.getStructElts()) {
-        structDataTypes.add(discover(structElt));
+        structDataTypes.add(discover(structElt, cache));
       }
       return new StructType(structDataTypes);
 
@@ -621,11 +919,11 @@ public class TypeInference {
 
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
       if (ap.getFirst().size() > 0) {
-        structDataTypes.add(discover(ap.getFirst()));
+        structDataTypes.add(discover(ap.getFirst(), cache));
       }
-      structDataTypes.add(new ArrayType(discover(ap.getBody())));
+      structDataTypes.add(new ArrayType(discover(ap.getBody(), cache)));
       if (ap.getLast().size() > 0) {
-        structDataTypes.add(discover(ap.getLast()));
+        structDataTypes.add(discover(ap.getLast(), cache));
       }
       return new StructType(structDataTypes);
 
@@ -634,7 +932,7 @@ public class TypeInference {
       List<InferredType> unionDataTypes = new ArrayList<InferredType>();
       
       for (List<List<Token.AbstractToken>> unionElt: up.getUnionElements()) {
-        unionDataTypes.add(discover(unionElt));
+        unionDataTypes.add(discover(unionElt, cache));
       }
       return new UnionType(unionDataTypes);
     }
@@ -692,7 +990,8 @@ public class TypeInference {
     // Infer type structure from the tokenized chunks
     //
     long start = System.currentTimeMillis();
-    InferredType typeTree = TypeInference.infer(allChunks);
+    DiscoveryCache cache = new DiscoveryCache();
+    InferredType typeTree = TypeInference.infer(allChunks, cache);
     long end = System.currentTimeMillis();
     double loadTime = (start - startRead) / 1000.0;
     double inferTime = (end - start) / 1000.0;
@@ -701,6 +1000,9 @@ public class TypeInference {
     System.err.println("Elapsed load time: " + loadTime);
     System.err.println("Elapsed inference time: " + inferTime);
     System.err.println("Ratio load-to-inference: " + (loadTime / inferTime));
+    if (verbose) {
+      System.err.println(cache);
+    }
 
     //
     // Dump type structure for debugging
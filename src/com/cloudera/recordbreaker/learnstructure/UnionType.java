@@ -0,0 +1,543 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.io.*;
+import org.apache.avro.Schema;
+
+/***************************************
+ * Represents a choice between several types
+ ***************************************/
+public class UnionType extends InferredType {
+  public static int REORDER_INTERVAL = 1024;
+
+  public List<InferredType> unionTypes;
+  static AtomicInteger unionCounter = new AtomicInteger();
+  int branchSchemaIndices[];
+
+  //
+  // Branches are tried in the order given by 'branchOrder', which is recomputed from
+  // the success counts every REORDER_INTERVAL successes.  The counters are atomic and
+  // the order is replaced, never modified, so parsing threads need no locks.
+  //
+  boolean hasBranchCounts;
+  AtomicLongArray branchCounts;
+  AtomicInteger countsSinceReorder = new AtomicInteger();
+  int branchOrder[];
+  boolean mustPrecede[][] = null;
+
+  //
+  // Branches are only tried where they could start.  A dispatch slot stands for the
+  // next character in the line: slots 0-127 are ASCII characters, NONASCII_SLOT is any
+  // other character, and END_SLOT is the end of the line.  branchStarts[slot][i] says
+  // whether branch i could start there, and dispatchOrders[slot] is 'branchOrder' less
+  // the branches that could not.
+  //
+  public final static int NONASCII_SLOT = 128;
+  public final static int END_SLOT = 129;
+  public final static int NUM_SLOTS = 130;
+  boolean branchStarts[][] = null;
+  volatile int dispatchOrders[][] = null;
+
+  /**
+   * For readType(); 'hasBranchCounts' says whether the serialized form has counts
+   */
+  UnionType(boolean hasBranchCounts) {
+    this.hasBranchCounts = hasBranchCounts;
+  }
+  public UnionType(List<InferredType> unionTypes) {
+    this.unionTypes = unionTypes;
+    initBranchOrder(new long[unionTypes.size()]);
+  }
+  public InferredType hoistUnions() {
+    List<InferredType> newUnionTypes = new ArrayList<InferredType>();
+    for (InferredType it: unionTypes) {
+      if (it instanceof UnionType) {
+        UnionType subUnion = (UnionType) it;
+        for (InferredType it2: subUnion.unionTypes) {
+          newUnionTypes.add(it2.hoistUnions());
+        }
+      } else {
+        newUnionTypes.add(it.hoistUnions());
+      }
+    }
+    return new UnionType(newUnionTypes);
+  }
+
+  public boolean hasUnions() {
+    return true;
+  }
+
+  /**
+   * Each branch's variants in turn
+   */
+  Iterable<InferredType> variants() {
+    return new Iterable<InferredType>() {
+      public Iterator<InferredType> iterator() {
+        return new Iterator<InferredType>() {
+          int nextBranch = 0;
+          Iterator<InferredType> branchVariants = null;
+
+          public boolean hasNext() {
+            while ((branchVariants == null || ! branchVariants.hasNext()) && nextBranch < unionTypes.size()) {
+              branchVariants = unionTypes.get(nextBranch++).variants().iterator();
+            }
+            return branchVariants != null && branchVariants.hasNext();
+          }
+          public InferredType next() {
+            if (! hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return branchVariants.next();
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  public InferredType duplicate() {
+    List<InferredType> newBranches = new ArrayList<InferredType>();
+    for (InferredType branch: unionTypes) {
+      newBranches.add(branch.duplicate());
+    }
+    return new UnionType(newBranches);
+  }
+
+  /**
+   * The position of each branch's schema in the union's schema, or -1 for a
+   * branch with none (see computeAvroSchema())
+   */
+  public int[] getBranchSchemaIndices() {
+    getAvroSchema();
+    return branchSchemaIndices;
+  }
+
+  /**
+   * Identical branch schemas appear once in the union.  branchSchemaIndices[i] is the
+   * position of branch i's schema in the union, or -1 if the branch has none.
+   * Branches are grouped by their schema hashes, and only branches with the same
+   * hash have their schemas compared.
+   */
+  protected Schema computeAvroSchema() {
+    HashMap<Integer, List<Integer>> positionsByHash = new HashMap<Integer, List<Integer>>();
+    List<Schema> fields = new ArrayList<Schema>();
+    this.branchSchemaIndices = new int[unionTypes.size()];
+    for (int i = 0; i < unionTypes.size(); i++) {
+      InferredType it = unionTypes.get(i);
+      Schema itS = it.getAvroSchema();
+      if (itS == null) {
+        branchSchemaIndices[i] = -1;
+        continue;
+      }
+      List<Integer> positions = positionsByHash.get(it.getSchemaHash());
+      if (positions == null) {
+        positions = new ArrayList<Integer>();
+        positionsByHash.put(it.getSchemaHash(), positions);
+      }
+      branchSchemaIndices[i] = -1;
+      for (int pos: positions) {
+        if (fields.get(pos) == itS || fields.get(pos).equals(itS)) {
+          branchSchemaIndices[i] = pos;
+          break;
+        }
+      }
+      if (branchSchemaIndices[i] < 0) {
+        branchSchemaIndices[i] = fields.size();
+        positions.add(fields.size());
+        fields.add(itS);
+      }
+    }
+    return Schema.createUnion(fields);
+  }
+  protected int computeSchemaHash() {
+    // Each distinct branch schema, in union order
+    getAvroSchema();
+    int h = Schema.Type.UNION.hashCode();
+    int nextPos = 0;
+    for (int i = 0; i < unionTypes.size(); i++) {
+      if (branchSchemaIndices[i] == nextPos) {
+        h = 31 * h + unionTypes.get(i).getSchemaHash();
+        nextPos++;
+      }
+    }
+    return h;
+  }
+  /**
+   * Parse the given string, return resulting data if appropriate.
+   */
+  public ParseResult internalParse(TokenMatcher m, int offset, boolean mustConsumeStr, Object reuse) {
+    //
+    // If backtrackingParse() has a target decision, then carry it out.
+    //
+    // The branch is only counted once the whole line has parsed; see TokenMatcher.countBranches()
+    int mark = m.getTrailMark();
+    int targetBranch = m.getDecision(this);
+    if (targetBranch >= 0) {
+      ParseResult pr = unionTypes.get(targetBranch).internalParse(m, offset, false, reuse);
+      if (pr != null && (!mustConsumeStr || m.isBlankFrom(pr.getEnd()))) {
+        m.addBranch(this, targetBranch);
+        return pr;
+      }
+      m.cutTrail(mark);
+      return null;
+    }
+
+    //
+    // Otherwise, try the branches that could start here.
+    //
+    for (int branchIdx: getDispatchOrders()[dispatchSlot(m.input, m.len, offset)]) {
+      ParseResult pr = unionTypes.get(branchIdx).internalParse(m, offset, false, reuse);
+      if (pr != null && (!mustConsumeStr || m.isBlankFrom(pr.getEnd()))) {
+        m.addBranch(this, branchIdx);
+        return pr;
+      }
+      m.cutTrail(mark);
+    }
+    return null;
+  }
+
+  /**
+   */
+  boolean isPrefixOf(List<String> a, List<String> b) {
+    for (int i = 0; i < a.size(); i++) {
+      if (i >= b.size() || a.get(i).compareTo(b.get(i)) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+ 
+  /**
+   */
+  Map<String, Set<Integer>> findCandidateUnionDecisions() {
+    HashSet<Integer> curDecisions = new HashSet<Integer>();
+    for (int i = 0; i < unionTypes.size(); i++) {
+      for (int j = i+1; j < unionTypes.size(); j++) {
+        List<String> iBases = unionTypes.get(i).getBases();
+        List<String> jBases = unionTypes.get(j).getBases();
+        if (isPrefixOf(iBases, jBases) || isPrefixOf(jBases, iBases)) {
+          curDecisions.add(i);
+          curDecisions.add(j);
+        }
+      }
+    }
+    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
+    for (InferredType subelt: unionTypes) {
+      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
+    }
+    if (curDecisions.size() > 0) {
+      candidateUnionDecisions.put(name, curDecisions);
+    }
+    return candidateUnionDecisions;
+  }
+  void findUnions(Map<String, UnionType> unions) {
+    unions.put(name, this);
+    for (InferredType subelt: unionTypes) {
+      subelt.findUnions(unions);
+    }
+  }
+
+  /**
+   */
+  List<String> getBases() {
+    // We stop the base-evaluation when we hit a union.
+    return new ArrayList<String>();
+  }
+
+  boolean addFirstChars(BitSet first) {
+    boolean canBeEmpty = false;
+    for (InferredType it: unionTypes) {
+      canBeEmpty |= it.addFirstChars(first);
+    }
+    return canBeEmpty;
+  }
+
+  /**
+   * The dispatch slot for the character at 'pos'
+   */
+  public static int dispatchSlot(CharSequence line, int len, int pos) {
+    if (pos >= len) {
+      return END_SLOT;
+    }
+    char c = line.charAt(pos);
+    return (c < NONASCII_SLOT) ? c : NONASCII_SLOT;
+  }
+
+  /**
+   * Set up the counters and try order.  Branches with higher counts are tried
+   * first, where that cannot change the result.  The dispatch table is built when
+   * first needed.
+   */
+  void initBranchOrder(long counts[]) {
+    this.branchCounts = new AtomicLongArray(counts);
+    int order[] = new int[counts.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    this.branchOrder = order;
+  }
+
+  /**
+   * Record that a branch parsed successfully
+   */
+  void countBranch(int branchIdx) {
+    branchCounts.incrementAndGet(branchIdx);
+    if (countsSinceReorder.incrementAndGet() >= REORDER_INTERVAL) {
+      countsSinceReorder.set(0);
+      reorderBranches();
+    }
+  }
+
+  /**
+   * How many times a branch has parsed successfully
+   */
+  public long getBranchCount(int branchIdx) {
+    return branchCounts.get(branchIdx);
+  }
+
+  /**
+   * The order branches are tried in.  Callers must not modify it.
+   */
+  public int[] getBranchOrder() {
+    return branchOrder;
+  }
+
+  /**
+   * The branches to try, in order, for each dispatch slot.  Callers must not modify it.
+   */
+  public int[][] getDispatchOrders() {
+    int orders[][] = dispatchOrders;
+    if (orders == null) {
+      reorderBranches();
+      orders = dispatchOrders;
+    }
+    return orders;
+  }
+
+  /**
+   * Replace the slots each branch may start at, as computed by reorderBranches(),
+   * and rebuild the dispatch table from them
+   */
+  public synchronized void setBranchStarts(boolean starts[][]) {
+    branchStarts = starts;
+    reorderBranches();
+  }
+
+  /**
+   * Sort the branches by how often they have succeeded.  A parse returns the first
+   * branch that succeeds, so a branch may only move ahead of an earlier one if the two
+   * can never both succeed on the same text; otherwise the earlier branch stays
+   * ahead.  Among the branches that are free to go next, the most frequent goes first.
+   */
+  synchronized void reorderBranches() {
+    int n = unionTypes.size();
+    if (branchStarts == null) {
+      boolean starts[][] = new boolean[NUM_SLOTS][n];
+      for (int i = 0; i < n; i++) {
+        BitSet first = new BitSet(NUM_SLOTS);
+        boolean canBeEmpty = unionTypes.get(i).addFirstChars(first);
+        for (int slot = 0; slot < END_SLOT; slot++) {
+          starts[slot][i] = canBeEmpty || first.get(slot);
+        }
+        starts[END_SLOT][i] = canBeEmpty;
+      }
+      branchStarts = starts;
+    }
+    if (mustPrecede == null) {
+      boolean precede[][] = new boolean[n][n];
+      for (int i = 0; i < n; i++) {
+        for (int j = i + 1; j < n; j++) {
+          precede[i][j] = mayStartAlike(i, j) && mayBothParse(unionTypes.get(i), unionTypes.get(j));
+        }
+      }
+      mustPrecede = precede;
+    }
+    int order[] = new int[n];
+    boolean placed[] = new boolean[n];
+    for (int k = 0; k < n; k++) {
+      int best = -1;
+      for (int j = 0; j < n; j++) {
+        if (placed[j] || (best >= 0 && branchCounts.get(j) <= branchCounts.get(best))) {
+          continue;
+        }
+        boolean isFree = true;
+        for (int i = 0; i < j; i++) {
+          if (mustPrecede[i][j] && ! placed[i]) {
+            isFree = false;
+            break;
+          }
+        }
+        if (isFree) {
+          best = j;
+        }
+      }
+      placed[best] = true;
+      order[k] = best;
+    }
+    int orders[][] = new int[NUM_SLOTS][];
+    for (int slot = 0; slot < NUM_SLOTS; slot++) {
+      int numStarts = 0;
+      for (int i = 0; i < n; i++) {
+        numStarts += branchStarts[slot][i] ? 1 : 0;
+      }
+      orders[slot] = new int[numStarts];
+      numStarts = 0;
+      for (int branchIdx: order) {
+        if (branchStarts[slot][branchIdx]) {
+          orders[slot][numStarts++] = branchIdx;
+        }
+      }
+    }
+    this.branchOrder = order;
+    this.dispatchOrders = orders;
+  }
+
+  /**
+   * Could branches i and j start at the same place?  If not, at most one can parse.
+   */
+  boolean mayStartAlike(int i, int j) {
+    for (int slot = 0; slot < NUM_SLOTS; slot++) {
+      if (branchStarts[slot][i] && branchStarts[slot][j]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Could both branches parse the same text?  Branches whose getBases() are
+   * mutually non-prefix start with different token sequences, but different token
+   * classes can still match the same text (a string can be all digits), so we
+   * compare the bases that each branch must match first.  Identical bases match the
+   * same text, so we skip past them; at the first pair that differs, the branches
+   * are distinct only if no character can start both.  Anything else, including
+   * reaching an array or union, counts as a possible overlap.
+   */
+  static boolean mayBothParse(InferredType a, InferredType b) {
+    List<BaseType> basesA = new ArrayList<BaseType>();
+    List<BaseType> basesB = new ArrayList<BaseType>();
+    getLeadingBases(a, basesA);
+    getLeadingBases(b, basesB);
+    for (int i = 0; i < basesA.size() && i < basesB.size(); i++) {
+      BaseType x = basesA.get(i);
+      BaseType y = basesB.get(i);
+      boolean sameParam = (x.tokenParameter == null) ? (y.tokenParameter == null) : x.tokenParameter.equals(y.tokenParameter);
+      if (x.tokenClassIdentifier == y.tokenClassIdentifier && sameParam) {
+        continue;
+      }
+      return TokenMatcher.canStartAlike(x.tokenClassIdentifier, x.tokenParameter, y.tokenClassIdentifier, y.tokenParameter);
+    }
+    return true;
+  }
+
+  /**
+   * The bases that must match, in order, at the start of the node.  Returns false
+   * if the sequence stops early because of an array or union.
+   */
+  static boolean getLeadingBases(InferredType node, List<BaseType> bases) {
+    if (node instanceof BaseType) {
+      bases.add((BaseType) node);
+      return true;
+    } else if (node instanceof StructType) {
+      for (InferredType subelt: ((StructType) node).structTypes) {
+        if (! getLeadingBases(subelt, bases)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("(Union (" + unionTypes.size() + "): ");
+    for (InferredType it: unionTypes) {
+      buf.append(it.toString() + ", ");
+    }
+    buf.append(") ");
+    return buf.toString();
+  }
+  public double getDescriptionCost() {
+    double dc = CARD_COST;
+    for (InferredType it: unionTypes) {
+      dc += it.getDescriptionCost();
+    }
+    return dc;
+  }
+  public double getParseCost() {
+    // In the worst case, every branch is attempted
+    double pc = 1;
+    for (InferredType it: unionTypes) {
+      pc += it.getParseCost();
+    }
+    return pc;
+  }
+  public InferredType refine(RefinementRule rules[]) {
+    List<InferredType> newUnionTypes = new ArrayList<InferredType>();
+    boolean changed = false;
+    for (InferredType it: unionTypes) {
+      InferredType newIt = it.refine(rules);
+      changed |= (newIt != it);
+      newUnionTypes.add(newIt);
+    }
+    return (changed ? new UnionType(newUnionTypes) : this).applyRefinementRules(rules);
+  }
+  String createName() {
+    return "union_" + unionCounter.getAndIncrement();
+  }
+  public void readFields(DataInput in) throws IOException {
+    int numUnionElts = in.readInt();
+    long counts[] = new long[numUnionElts];
+    if (hasBranchCounts) {
+      for (int i = 0; i < numUnionElts; i++) {
+        counts[i] = in.readLong();
+      }
+    }
+    this.unionTypes = new ArrayList<InferredType>();
+    for (int i = 0; i < numUnionElts; i++) {
+      unionTypes.add(InferredType.readType(in));
+    }
+    initBranchOrder(counts);
+    reorderBranches();
+  }
+
+  /**
+   * If any branch has been counted, the counts are written too, so that a parser
+   * loaded from disk starts out in a good order.
+   */
+  public void write(DataOutput out) throws IOException {
+    boolean writeCounts = false;
+    for (int i = 0; i < branchCounts.length(); i++) {
+      writeCounts |= (branchCounts.get(i) != 0);
+    }
+    out.write(writeCounts ? COUNTED_UNION_TYPE : UNION_TYPE);
+    out.writeInt(unionTypes.size());
+    if (writeCounts) {
+      for (int i = 0; i < branchCounts.length(); i++) {
+        out.writeLong(branchCounts.get(i));
+      }
+    }
+    for (InferredType it: unionTypes) {
+      it.write(out);
+    }
+  }
+}
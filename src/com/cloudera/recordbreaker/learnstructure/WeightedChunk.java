@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * A WeightedChunk is a chunk of Tokens that stands in for 'weight' identical
+ * chunks of input.  It lets TypeInference run over pre-aggregated token-shapes
+ * (e.g., the output of DistributedLearnStructure) without expanding them.
+ *
+ * Ordinary chunk lists are treated as having weight 1.  Any chunk derived from
+ * a WeightedChunk during inference inherits its weight.
+ *********************************************************/
+public class WeightedChunk extends ArrayList<Token.AbstractToken> {
+  private static final long serialVersionUID = 1L;
+  long weight;
+
+  public WeightedChunk(long weight) {
+    this.weight = weight;
+  }
+  public WeightedChunk(Collection<Token.AbstractToken> toks, long weight) {
+    super(toks);
+    this.weight = weight;
+  }
+  public long getWeight() {
+    return weight;
+  }
+
+  /**
+   * The weight of any chunk
+   */
+  public static long getWeight(List<Token.AbstractToken> chunk) {
+    if (chunk instanceof WeightedChunk) {
+      return ((WeightedChunk) chunk).getWeight();
+    }
+    return 1;
+  }
+
+  /**
+   * The total weight of a chunkset, i.e., how many input chunks it stands for
+   */
+  public static long getTotalWeight(List<List<Token.AbstractToken>> chunks) {
+    long total = 0;
+    for (List<Token.AbstractToken> chunk: chunks) {
+      total += getWeight(chunk);
+    }
+    return total;
+  }
+
+  /**
+   * Create a new, empty chunk derived from 'parent'.
+   */
+  static List<Token.AbstractToken> createChunk(List<Token.AbstractToken> parent) {
+    if (parent instanceof WeightedChunk) {
+      return new WeightedChunk(((WeightedChunk) parent).getWeight());
+    }
+    return new ArrayList<Token.AbstractToken>();
+  }
+
+  /**
+   * Wrap existing tokens (e.g., the contents of a MetaToken) as a chunk derived from 'parent'.
+   */
+  static List<Token.AbstractToken> createChunk(List<Token.AbstractToken> parent, List<Token.AbstractToken> contents) {
+    if (parent instanceof WeightedChunk) {
+      return new WeightedChunk(contents, ((WeightedChunk) parent).getWeight());
+    }
+    return contents;
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.hadoop.fs.FileUtil;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.cloudera.recordbreaker.learnstructure.AvroPartWriter;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.OutputSink;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+
+/**
+ * Tests that AvroPartWriter rolls parts by record count and by size, that each
+ * part is a complete Avro file, and that the manifest's line ranges cover the
+ * input and is kept up to date as parts close.
+ */
+public class TestAvroPartWriter extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "avropartwriter");
+  ObjectMapper mapper = new ObjectMapper();
+  Schema schema;
+  int savedBatchSize;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+    savedBatchSize = LearnStructure.EMIT_BATCH_SIZE;
+    schema = Schema.createRecord("line", "", "", false);
+    schema.setFields(Arrays.asList(new Schema.Field("lineno", Schema.create(Schema.Type.LONG), "", null)));
+  }
+  protected void tearDown() {
+    LearnStructure.EMIT_BATCH_SIZE = savedBatchSize;
+  }
+
+  static List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static class ManifestPart {
+    String filename;
+    long firstLine;
+    long lastLine;
+    long numRecords;
+    long numBytes;
+  }
+
+  List<ManifestPart> readManifest(File dir) throws IOException {
+    JsonNode manifest;
+    InputStream in = new FileInputStream(new File(dir, AvroPartWriter.MANIFEST_FILENAME));
+    try {
+      manifest = mapper.readTree(in);
+    } finally {
+      in.close();
+    }
+    List<ManifestPart> parts = new ArrayList<ManifestPart>();
+    for (JsonNode node: manifest.get("parts")) {
+      ManifestPart part = new ManifestPart();
+      part.filename = node.get("file").getTextValue();
+      part.firstLine = node.get("firstLine").getLongValue();
+      part.lastLine = node.get("lastLine").getLongValue();
+      part.numRecords = node.get("records").getLongValue();
+      part.numBytes = node.get("bytes").getLongValue();
+      parts.add(part);
+    }
+    return parts;
+  }
+
+  /**
+   * Check that the manifest lists the part files in order, that their line
+   * ranges run from line 0 through 'numLines' - 1 without gaps, and that each
+   * part is an Avro file of 'expectedSchema' with the records and size the
+   * manifest says.  Returns the records of all the parts.
+   */
+  List<GenericContainer> checkParts(File dir, List<ManifestPart> parts, long numLines, Schema expectedSchema) throws IOException {
+    List<GenericContainer> records = new ArrayList<GenericContainer>();
+    long nextLine = 0;
+    for (int i = 0; i < parts.size(); i++) {
+      ManifestPart part = parts.get(i);
+      assertEquals(String.format(LearnStructure.PART_FILENAME_FORMAT, i), part.filename);
+      assertEquals(nextLine, part.firstLine);
+      assertTrue(part.lastLine >= part.firstLine);
+      assertTrue(part.numRecords > 0);
+      nextLine = part.lastLine + 1;
+
+      File f = new File(dir, part.filename);
+      assertEquals(f.length(), part.numBytes);
+      DataFileStream<GenericContainer> in = new DataFileStream<GenericContainer>(new FileInputStream(f), new GenericDatumReader<GenericContainer>());
+      try {
+        if (expectedSchema != null) {
+          assertEquals(expectedSchema, in.getSchema());
+        }
+        long numRecords = 0;
+        while (in.hasNext()) {
+          records.add(in.next());
+          numRecords++;
+        }
+        assertEquals(part.numRecords, numRecords);
+      } finally {
+        in.close();
+      }
+    }
+    assertEquals(numLines, nextLine);
+    assertFalse(new File(dir, String.format(LearnStructure.PART_FILENAME_FORMAT, parts.size())).exists());
+    assertFalse(new File(dir, AvroPartWriter.MANIFEST_FILENAME + ".tmp").exists());
+    return records;
+  }
+
+  /**
+   * Write lines 'firstLine' up to 'endLine' the way LearnStructure does, where
+   * every seventh line does not parse.  Each record holds its line number.
+   */
+  void writeLines(AvroPartWriter pw, long firstLine, long endLine) throws IOException {
+    for (long i = firstLine; i < endLine; i++) {
+      if (pw.isFull()) {
+        pw.roll();
+      }
+      boolean parsed = (i % 7 != 3);
+      if (parsed) {
+        GenericData.Record r = new GenericData.Record(schema);
+        r.put("lineno", i);
+        pw.getWriter().append(r);
+      }
+      pw.addLine(i, parsed);
+    }
+  }
+
+  /**
+   * Each part's records come from lines in its range
+   */
+  static void checkLineNumbers(List<ManifestPart> parts, List<GenericContainer> records) {
+    int next = 0;
+    for (ManifestPart part: parts) {
+      for (long i = 0; i < part.numRecords; i++) {
+        long lineno = (Long) ((GenericData.Record) records.get(next++)).get("lineno");
+        assertTrue(lineno >= part.firstLine && lineno <= part.lastLine);
+      }
+    }
+    assertEquals(records.size(), next);
+  }
+
+  public void testRollRecords() throws IOException {
+    long numLines = 1000;
+    long rollRecords = 100;
+    File dir = new File(testDir, "records");
+    dir.mkdirs();
+    AvroPartWriter pw = new AvroPartWriter(schema, new OutputSink(), dir, 0, rollRecords);
+    writeLines(pw, 0, numLines);
+    pw.close();
+
+    List<ManifestPart> parts = readManifest(dir);
+    List<GenericContainer> records = checkParts(dir, parts, numLines, schema);
+    assertEquals(numLines - (numLines + 3) / 7, records.size());
+    checkLineNumbers(parts, records);
+    for (int i = 0; i < parts.size(); i++) {
+      if (i < parts.size() - 1) {
+        assertEquals(rollRecords, parts.get(i).numRecords);
+      } else {
+        assertTrue(parts.get(i).numRecords <= rollRecords);
+      }
+    }
+  }
+
+  public void testRollBytes() throws IOException {
+    long numLines = 5000;
+    long rollBytes = 2000;
+    File dir = new File(testDir, "bytes");
+    dir.mkdirs();
+    AvroPartWriter pw = new AvroPartWriter(schema, new OutputSink(OutputSink.Format.AVRO, "null", 64), dir, rollBytes, 0);
+    writeLines(pw, 0, numLines);
+    pw.close();
+
+    List<ManifestPart> parts = readManifest(dir);
+    List<GenericContainer> records = checkParts(dir, parts, numLines, schema);
+    checkLineNumbers(parts, records);
+    assertTrue(parts.size() > 5);
+    for (int i = 0; i < parts.size() - 1; i++) {
+      assertTrue(parts.get(i).numBytes >= rollBytes);
+      assertTrue(parts.get(i).numBytes < rollBytes + 200);
+    }
+  }
+
+  /**
+   * The manifest lists the parts closed so far, before the writer is closed
+   */
+  public void testManifestWhileWriting() throws IOException {
+    File dir = new File(testDir, "partial");
+    dir.mkdirs();
+    AvroPartWriter pw = new AvroPartWriter(schema, new OutputSink(), dir, 0, 10);
+    assertFalse(new File(dir, AvroPartWriter.MANIFEST_FILENAME).exists());
+    // Lines 0 through 11 fill the first part, which is not closed until line 12
+    writeLines(pw, 0, 12);
+    assertEquals(0, pw.getPartNumber());
+    assertFalse(new File(dir, AvroPartWriter.MANIFEST_FILENAME).exists());
+
+    writeLines(pw, 12, 40);
+    assertEquals(3, pw.getPartNumber());
+    List<ManifestPart> parts = readManifest(dir);
+    assertEquals(3, parts.size());
+    assertEquals(0, parts.get(0).firstLine);
+    assertEquals(11, parts.get(0).lastLine);
+    assertEquals(10, parts.get(0).numRecords);
+    assertFalse(new File(dir, AvroPartWriter.MANIFEST_FILENAME + ".tmp").exists());
+
+    pw.close();
+    checkParts(dir, readManifest(dir), 40, schema);
+  }
+
+  /**
+   * Lines after the last roll that do not parse go to the last part, rather
+   * than to a part with no records
+   */
+  public void testTrailingUnparsed() throws IOException {
+    File dir = new File(testDir, "trailing");
+    dir.mkdirs();
+    AvroPartWriter pw = new AvroPartWriter(schema, new OutputSink(), dir, 0, 6);
+    // Lines 0 through 13 hold 12 records
+    writeLines(pw, 0, 14);
+    pw.roll();
+    pw.addLine(14, false);
+    pw.addLine(15, false);
+    pw.close();
+
+    List<ManifestPart> parts = readManifest(dir);
+    checkParts(dir, parts, 16, schema);
+    assertEquals(2, parts.size());
+    assertEquals(15, parts.get(1).lastLine);
+  }
+
+  /**
+   * LearnStructure rolls by record count, serially and in parallel, and the
+   * parts' line ranges agree with what the learned parser makes of each line
+   */
+  public void testLearnStructure() throws IOException {
+    LearnStructure.EMIT_BATCH_SIZE = 16;
+    File inputFile = new File(testDir, "input.txt");
+    List<String> sample = readLines(new File(samplesDir, "angioplasty.txt"));
+    PrintWriter out = new PrintWriter(new FileWriter(inputFile));
+    try {
+      for (int i = 0; i < 40; i++) {
+        for (String line: sample) {
+          out.println(line);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    List<String> lines = readLines(inputFile);
+
+    for (int numThreads: new int[] {1, 3}) {
+      File outdir = new File(testDir, "learned" + numThreads);
+      outdir.mkdirs();
+      LearnStructure ls = new LearnStructure();
+      ls.setNumEmitThreads(numThreads);
+      ls.setRolling(0, 50);
+      PrintStream savedErr = System.err;
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      try {
+        ls.inferRecordFormat(inputFile, outdir, true);
+      } finally {
+        System.setErr(savedErr);
+      }
+      assertFalse(new File(outdir, LearnStructure.DATA_FILENAME).exists());
+
+      InferredType t = ParserFile.read(new File(outdir, LearnStructure.PARSER_FILENAME));
+      List<ManifestPart> parts = readManifest(outdir);
+      assertTrue(parts.size() > 3);
+      List<GenericContainer> records = checkParts(outdir, parts, lines.size(), t.getAvroSchema());
+
+      CompiledParser cp = new CompiledParser(t);
+      int next = 0;
+      for (ManifestPart part: parts) {
+        assertTrue(part.numRecords <= 50);
+        for (long i = part.firstLine; i <= part.lastLine; i++) {
+          GenericContainer gc = cp.parse(lines.get((int) i));
+          if (gc != null) {
+            assertEquals(gc, records.get(next++));
+          }
+        }
+      }
+      assertEquals(records.size(), next);
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.TokenMatcher;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests the fallback parse that forces union decisions, which runs when the
+ * greedy parse of a line fails.
+ */
+public class TestBacktrackingParse extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  /**
+   * An int, or an int '.' int.  The branches share a prefix, so their decision is forced.
+   */
+  static UnionType intOrPair() {
+    return union(struct(base(Token.INT_TOKENCLASSID, null)),
+                 struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "."), base(Token.INT_TOKENCLASSID, null)));
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  /**
+   * The original fallback: try every combination of the candidate decisions, the
+   * first decision varying slowest, and return the first that parses.
+   */
+  static GenericContainer fullProduct(InferredType t, String line) {
+    InferredType.UnionDecisions ud = t.getUnionDecisions();
+    int n = ud.unions.length;
+    if (n == 0) {
+      return null;
+    }
+    TokenMatcher m = new TokenMatcher();
+    m.reset(line);
+    int choices[] = new int[n];
+    while (true) {
+      m.setDecisions(ud, choices);
+      InferredType.ParseResult pr = t.internalParse(m, 0, true, null);
+      if (pr != null && pr.hasData()) {
+        return (GenericContainer) pr.getData();
+      }
+      int k = n - 1;
+      while (k >= 0 && ++choices[k] == ud.candidates[k].length) {
+        choices[k] = 0;
+        k--;
+      }
+      if (k < 0) {
+        return null;
+      }
+    }
+  }
+
+  static GenericContainer backtrack(InferredType t, String line) {
+    TokenMatcher m = new TokenMatcher();
+    m.reset(line);
+    return t.backtrackingParse(m);
+  }
+
+  public void testMatchesFullProduct() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType t = learn(lines);
+      for (String line: lines) {
+        assertEquals(sampleName + ": " + line, fullProduct(t, line), backtrack(t, line));
+      }
+    }
+  }
+
+  /**
+   * Several forced unions, some nested in a branch of another, where later
+   * decisions are often never consulted
+   */
+  public void testMatchesFullProductNested() {
+    InferredType t = struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, ":"),
+                            union(struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, "-")),
+                                  struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, "-"), intOrPair())),
+                            base(Token.CHAR_TOKENCLASSID, ";"), intOrPair());
+    assertEquals(6, t.getUnionDecisions().unions.length);
+    String lines[] = {"1:2-;3", "1.5:2-;3", "1:2.5-;3.5", "1.5:2-3;3", "1:2.5-3.5;3", "1.5:2.5-3.5;3.5",
+                      "1:2-3-;4", "1.5:x", "1:2.5-3.5;", "1.5.5:2-;3"};
+    int numParsed = 0;
+    for (String line: lines) {
+      GenericContainer expected = fullProduct(t, line);
+      assertEquals(line, expected, backtrack(t, line));
+      numParsed += (expected != null) ? 1 : 0;
+    }
+    assertEquals(6, numParsed);
+  }
+
+  /**
+   * The greedy parse takes the int, and the struct then fails at '.'.
+   * Forcing the union's second branch parses the line.
+   */
+  public void testForcedDecision() {
+    InferredType t = struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, "x"));
+    assertEquals(1, t.getUnionDecisions().unions.length);
+    assertEquals(2, t.getUnionDecisions().candidates[0].length);
+
+    TokenMatcher m = new TokenMatcher();
+    m.reset("1.5x");
+    assertNull(t.internalParse(m, 0, true, null));
+
+    GenericData.Record r = (GenericData.Record) t.parse("1.5x");
+    assertNotNull(r);
+    GenericData.Record pair = (GenericData.Record) r.get(0);
+    assertEquals(2, pair.getSchema().getFields().size());
+    assertEquals(1, pair.get(0));
+    assertEquals(5, pair.get(1));
+    assertEquals(r, fullProduct(t, "1.5x"));
+    assertEquals(r, new CompiledParser(t).parse("1.5x"));
+  }
+
+  /**
+   * A decision holds for the whole line, so the elements of an array all take the
+   * same branch.  A line whose elements need different branches does not parse,
+   * even though each element could.
+   */
+  public void testDecisionsAreGlobal() {
+    InferredType t = struct(new ArrayType(struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, ","))),
+                            base(Token.STRING_TOKENCLASSID, null));
+    GenericData.Record r = (GenericData.Record) t.parse("1.5,2.5,end");
+    assertNotNull(r);
+    assertEquals(2, ((GenericData.Array) r.get(0)).size());
+    assertNull(t.parse("1,2.5,end"));
+    assertNull(new CompiledParser(t).parse("1,2.5,end"));
+  }
+
+  /**
+   * Branches that start differently are never forced, and a tree without
+   * candidate decisions has no fallback.
+   */
+  public void testNoCandidates() {
+    InferredType t = struct(union(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "-")),
+                            base(Token.CHAR_TOKENCLASSID, "x"));
+    assertEquals(0, t.getUnionDecisions().unions.length);
+    assertNull(backtrack(t, "1.5x"));
+  }
+
+  /**
+   * Long arrays are parsed in a loop, not by recursion, when decisions are forced
+   */
+  public void testLongArray() {
+    InferredType t = struct(new ArrayType(struct(intOrPair(), base(Token.CHAR_TOKENCLASSID, ","))),
+                            base(Token.STRING_TOKENCLASSID, null));
+    int numElts = 50000;
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < numElts; i++) {
+      buf.append("1.5,");
+    }
+    buf.append("end");
+    GenericData.Record r = (GenericData.Record) t.parse(buf.toString());
+    assertNotNull(r);
+    assertEquals(numElts, ((GenericData.Array) r.get(0)).size());
+  }
+
+  /**
+   * Many ambiguous unions in a row, each an int or an int with optional x's.  On a
+   * line with junk at the end, every combination of decisions reaches the junk, so
+   * none is skipped; the search must give up rather than try all 2^24.
+   */
+  public void testFailingLineTime() {
+    int numUnions = 24;
+    List<InferredType> elts = new ArrayList<InferredType>();
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < numUnions; i++) {
+      elts.add(union(struct(base(Token.INT_TOKENCLASSID, null)),
+                     struct(base(Token.INT_TOKENCLASSID, null), new ArrayType(base(Token.CHAR_TOKENCLASSID, "x")))));
+      elts.add(base(Token.WHITESPACE_TOKENCLASSID, null));
+      buf.append(i + " ");
+    }
+    elts.add(base(Token.CHAR_TOKENCLASSID, ";"));
+    InferredType t = struct(elts.toArray(new InferredType[elts.size()]));
+    assertEquals(numUnions, t.getUnionDecisions().unions.length);
+    CompiledParser cp = new CompiledParser(t);
+    assertNotNull(t.parse(buf + ";"));
+    assertNotNull(cp.parse(buf + ";"));
+
+    String line = buf + "junk";
+    long start = System.currentTimeMillis();
+    assertNull(t.parse(line));
+    assertNull(cp.parse(line));
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue("Took " + elapsed + " ms", elapsed < 2000);
+  }
+
+  /**
+   * None of this sample's lines parse with the tree learned from it, with or without forced decisions
+   */
+  public void testCourseListing() throws IOException {
+    List<String> lines = readLines("courselisting.txt");
+    InferredType t = learn(lines);
+    CompiledParser cp = new CompiledParser(t);
+    for (String line: lines) {
+      assertNull(line, t.parse(line));
+      assertNull(line, cp.parse(line));
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IOUtils;
+
+import com.cloudera.recordbreaker.learnstructure.ColumnarReader;
+import com.cloudera.recordbreaker.learnstructure.ColumnarWriter;
+
+/**
+ * Tests that ColumnarReader reads back what ColumnarWriter wrote: the columns,
+ * each slot's repetition and definition levels and value, and each chunk's
+ * min and max.
+ */
+public class TestColumnar extends TestCase {
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "columnar");
+  Schema pairSchema;
+  Schema itemSchema;
+  Schema schema;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+
+    // {id: int, items: [int | string | pair {a: int, b: string}]}
+    pairSchema = Schema.createRecord("pair", "", "", false);
+    pairSchema.setFields(Arrays.asList(new Schema.Field("a", Schema.create(Schema.Type.INT), "", null),
+                                       new Schema.Field("b", Schema.create(Schema.Type.STRING), "", null)));
+    itemSchema = Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.INT), Schema.create(Schema.Type.STRING), pairSchema));
+    schema = Schema.createRecord("top", "", "", false);
+    schema.setFields(Arrays.asList(new Schema.Field("id", Schema.create(Schema.Type.INT), "", null),
+                                   new Schema.Field("items", Schema.createArray(itemSchema), "", null)));
+  }
+
+  GenericData.Record record(int id, Object... items) {
+    GenericData.Array<Object> arr = new GenericData.Array<Object>(items.length, schema.getField("items").schema());
+    for (Object item: items) {
+      arr.add(item);
+    }
+    GenericData.Record r = new GenericData.Record(schema);
+    r.put("id", id);
+    r.put("items", arr);
+    return r;
+  }
+  GenericData.Record pair(int a, String b) {
+    GenericData.Record r = new GenericData.Record(pairSchema);
+    r.put("a", a);
+    r.put("b", new Utf8(b));
+    return r;
+  }
+
+  /**
+   * A column's slots in one row group, as "rep/def" or "rep/def=value"
+   */
+  static List<String> scan(ColumnarReader reader, int rowGroup, int column) throws IOException {
+    List<String> slots = new ArrayList<String>();
+    ColumnarReader.ChunkScanner scanner = reader.scan(rowGroup, column);
+    while (scanner.next()) {
+      slots.add(scanner.getRep() + "/" + scanner.getDef() + (scanner.hasValue() ? "=" + scanner.getValue() : ""));
+    }
+    return slots;
+  }
+
+  /**
+   * Arrays of unions, including an empty array and a union of records, split
+   * into columns with the levels worked out by hand
+   */
+  public void testLevels() throws IOException {
+    File f = new File(testDir, ColumnarWriter.COLUMNS_FILENAME);
+    ColumnarWriter out = new ColumnarWriter(schema, f);
+    out.append(record(1, 5, new Utf8("x"), pair(7, "p")));
+    out.append(record(2));
+    out.append(record(3, new Utf8("y")));
+    out.close();
+
+    ColumnarReader reader = new ColumnarReader(f);
+    try {
+      assertEquals(schema, reader.getSchema());
+      assertEquals(1, reader.getNumRowGroups());
+      assertEquals(3, reader.getNumRows());
+      List<String> columns = new ArrayList<String>();
+      for (ColumnarWriter.Column column: reader.getColumns()) {
+        columns.add(column.toString());
+      }
+      assertEquals(Arrays.asList("id int r=0 d=0", "items.int int r=1 d=2", "items.string string r=1 d=2",
+                                 "items.pair.a int r=1 d=2", "items.pair.b string r=1 d=2"), columns);
+
+      // An empty array leaves 0/0 in every column below it, and a union branch
+      // not taken leaves its union's level, 1
+      assertEquals(Arrays.asList("0/0=1", "0/0=2", "0/0=3"), scan(reader, 0, 0));
+      assertEquals(Arrays.asList("0/2=5", "1/1", "1/1", "0/0", "0/1"), scan(reader, 0, 1));
+      assertEquals(Arrays.asList("0/1", "1/2=x", "1/1", "0/0", "0/2=y"), scan(reader, 0, 2));
+      assertEquals(Arrays.asList("0/1", "1/1", "1/2=7", "0/0", "0/1"), scan(reader, 0, 3));
+      assertEquals(Arrays.asList("0/1", "1/1", "1/2=p", "0/0", "0/1"), scan(reader, 0, 4));
+
+      assertEquals(1, reader.getMin(0, 0));
+      assertEquals(3, reader.getMax(0, 0));
+      assertEquals(5, reader.getMin(0, 1));
+      assertEquals(5, reader.getMax(0, 1));
+      assertEquals(new Utf8("x"), reader.getMin(0, 2));
+      assertEquals(new Utf8("y"), reader.getMax(0, 2));
+      assertEquals(2, reader.getNumValues(0, 2));
+      assertEquals(new Utf8("p"), reader.getMin(0, 4));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * A column with no values has no min or max
+   */
+  public void testEmptyColumn() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ColumnarWriter out = new ColumnarWriter(schema, bytes, 0);
+    out.append(record(4, 1, 2));
+    out.append(record(5));
+    out.close();
+    ColumnarReader reader = new ColumnarReader(ByteBuffer.wrap(bytes.toByteArray()));
+    int column = reader.getColumnIndex("items.string");
+    assertEquals(0, reader.getNumValues(0, column));
+    assertNull(reader.getMin(0, column));
+    assertNull(reader.getMax(0, column));
+    assertEquals(Arrays.asList("0/1", "1/1", "0/0"), scan(reader, 0, column));
+    assertEquals(1, reader.getMin(0, reader.getColumnIndex("items.int")));
+    assertEquals(2, reader.getMax(0, reader.getColumnIndex("items.int")));
+  }
+
+  /**
+   * Many random records in small row groups.  Each row group's values come
+   * back in order, with that group's min and max, and the same is true after
+   * the row groups are copied into another file.
+   */
+  public void testRowGroups() throws IOException {
+    Random r = new Random(7);
+    List<GenericData.Record> records = new ArrayList<GenericData.Record>();
+    for (int i = 0; i < 1000; i++) {
+      List<Object> items = new ArrayList<Object>();
+      int numItems = r.nextInt(4);
+      for (int j = 0; j < numItems; j++) {
+        switch (r.nextInt(3)) {
+        case 0:
+          items.add(r.nextInt(1000) - 500);
+          break;
+        case 1:
+          items.add(new Utf8("s" + r.nextInt(100000)));
+          break;
+        default:
+          items.add(pair(r.nextInt(), "b" + r.nextInt(10)));
+          break;
+        }
+      }
+      records.add(record(r.nextInt(1000000), items.toArray()));
+    }
+
+    File f = new File(testDir, "random.columns");
+    ColumnarWriter out = new ColumnarWriter(schema, new BufferedOutputStream(new FileOutputStream(f)), 1024);
+    for (GenericData.Record record: records) {
+      out.append(record);
+    }
+    out.close();
+    checkRowGroups(f, records);
+
+    // Copy the row groups, from a file and from a buffer
+    File copy = new File(testDir, "copy.columns");
+    ColumnarWriter copyOut = new ColumnarWriter(schema, new BufferedOutputStream(new FileOutputStream(copy)), 1024);
+    ColumnarReader in = new ColumnarReader(f);
+    try {
+      copyOut.appendAllFrom(in);
+    } finally {
+      in.close();
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FileInputStream fileIn = new FileInputStream(f);
+    try {
+      IOUtils.copyBytes(fileIn, bytes, 4096, false);
+    } finally {
+      fileIn.close();
+    }
+    copyOut.appendAllFrom(new ColumnarReader(ByteBuffer.wrap(bytes.toByteArray())));
+    copyOut.close();
+    List<GenericData.Record> twice = new ArrayList<GenericData.Record>(records);
+    twice.addAll(records);
+    checkRowGroups(copy, twice);
+  }
+
+  void checkRowGroups(File f, List<GenericData.Record> records) throws IOException {
+    ColumnarReader reader = new ColumnarReader(f);
+    try {
+      assertTrue(reader.getNumRowGroups() > 5);
+      assertEquals(records.size(), reader.getNumRows());
+      int idColumn = reader.getColumnIndex("id");
+      int stringColumn = reader.getColumnIndex("items.string");
+      int firstRow = 0;
+      for (int i = 0; i < reader.getNumRowGroups(); i++) {
+        int numRows = (int) reader.getNumRows(i);
+        List<Integer> ids = new ArrayList<Integer>();
+        List<Object> groupStrings = new ArrayList<Object>();
+        for (GenericData.Record record: records.subList(firstRow, firstRow + numRows)) {
+          ids.add((Integer) record.get("id"));
+          for (Object item: (Collection<?>) record.get("items")) {
+            if (item instanceof Utf8) {
+              groupStrings.add(item);
+            }
+          }
+        }
+        List<Object> scannedIds = new ArrayList<Object>();
+        ColumnarReader.ChunkScanner scanner = reader.scan(i, idColumn);
+        while (scanner.next()) {
+          scannedIds.add(scanner.getValue());
+        }
+        assertEquals(ids, scannedIds);
+        assertEquals(Collections.min(ids), reader.getMin(i, idColumn));
+        assertEquals(Collections.max(ids), reader.getMax(i, idColumn));
+
+        List<Object> scannedStrings = new ArrayList<Object>();
+        int numRecordStarts = 0;
+        scanner = reader.scan(i, stringColumn);
+        while (scanner.next()) {
+          if (scanner.getRep() == 0) {
+            numRecordStarts++;
+          }
+          if (scanner.hasValue()) {
+            scannedStrings.add(scanner.getValue());
+          }
+        }
+        assertEquals(numRows, numRecordStarts);
+        assertEquals(groupStrings, scannedStrings);
+        assertEquals(groupStrings.size(), reader.getNumValues(i, stringColumn));
+        if (groupStrings.size() > 0) {
+          Utf8 min = (Utf8) groupStrings.get(0);
+          Utf8 max = min;
+          for (Object s: groupStrings) {
+            min = (((Utf8) s).compareTo(min) < 0) ? (Utf8) s : min;
+            max = (((Utf8) s).compareTo(max) > 0) ? (Utf8) s : max;
+          }
+          assertEquals(min, reader.getMin(i, stringColumn));
+          assertEquals(max, reader.getMax(i, stringColumn));
+        }
+        firstRow += numRows;
+      }
+      assertEquals(records.size(), firstRow);
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * Tests that CompiledParser parses exactly what InferredType.parse() does,
+ * on type trees learned from the sample files.
+ */
+public class TestCompiledParser extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  public void testMatchesTreeParser() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType typeTree = learn(lines);
+      CompiledParser cp = new CompiledParser(typeTree);
+      int numParsed = 0;
+      for (String line: lines) {
+        GenericContainer expected = typeTree.parse(line);
+        assertEquals(sampleName + ": " + line, expected, cp.parse(line));
+        if (expected != null) {
+          numParsed++;
+        }
+      }
+      if (! "courselisting.txt".equals(sampleName)) {
+        assertTrue(sampleName, numParsed > 0);
+      }
+    }
+  }
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+
+  /**
+   * Runs parse() on another thread, so that a parser that loops forever fails the test
+   */
+  static Object parseWithTimeout(final InferredType t, final String s, final boolean compiled) throws InterruptedException {
+    final Object result[] = new Object[1];
+    Thread worker = new Thread() {
+        public void run() {
+          result[0] = compiled ? new CompiledParser(t).parse(s) : t.parse(s);
+        }
+      };
+    worker.setDaemon(true);
+    worker.start();
+    worker.join(10000);
+    assertFalse("Parse of '" + s + "' did not finish", worker.isAlive());
+    return result[0];
+  }
+
+  /**
+   * An array used to re-parse its original input on every iteration, and so
+   * never stopped once its body matched.
+   */
+  public void testArrayAdvances() throws InterruptedException {
+    InferredType t = struct(new ArrayType(struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ","))),
+                            base(Token.STRING_TOKENCLASSID, null));
+    for (boolean compiled: new boolean[] {false, true}) {
+      GenericData.Record r = (GenericData.Record) parseWithTimeout(t, "1,2,3,end", compiled);
+      assertNotNull(r);
+      assertEquals(3, ((GenericData.Array) r.get(0)).size());
+      assertEquals("end", r.get(1).toString());
+    }
+  }
+
+  /**
+   * An array whose body can match without consuming anything stops after no items
+   */
+  public void testArrayOfEmptyMatches() throws InterruptedException {
+    InferredType t = struct(new ArrayType(new ArrayType(base(Token.INT_TOKENCLASSID, null))),
+                            base(Token.STRING_TOKENCLASSID, null));
+    for (boolean compiled: new boolean[] {false, true}) {
+      GenericData.Record r = (GenericData.Record) parseWithTimeout(t, "end", compiled);
+      assertNotNull(r);
+      assertEquals(0, ((GenericData.Array) r.get(0)).size());
+    }
+  }
+}
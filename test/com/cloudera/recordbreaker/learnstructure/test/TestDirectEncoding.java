@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that CompiledParser.encode() writes exactly the bytes that a
+ * GenericDatumWriter writes for the record that parse() returns.
+ */
+public class TestDirectEncoding extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  /**
+   * Encode each line directly, to binary and JSON at once, and compare with
+   * writing the parsed record.  Returns the number of lines that parsed.
+   */
+  int checkLines(InferredType t, List<String> lines) throws IOException {
+    Schema schema = t.getAvroSchema();
+    GenericDatumWriter<Object> writer = new GenericDatumWriter<Object>(schema);
+    CompiledParser cp = new CompiledParser(t);
+    int numParsed = 0;
+    for (String line: lines) {
+      GenericContainer gct = t.parse(line);
+      ByteArrayOutputStream expectedBinary = new ByteArrayOutputStream();
+      ByteArrayOutputStream expectedJson = new ByteArrayOutputStream();
+      if (gct != null) {
+        Encoder binaryOut = EncoderFactory.get().directBinaryEncoder(expectedBinary, null);
+        Encoder jsonOut = EncoderFactory.get().jsonEncoder(schema, expectedJson);
+        writer.write(gct, binaryOut);
+        writer.write(gct, jsonOut);
+        binaryOut.flush();
+        jsonOut.flush();
+        numParsed++;
+      }
+
+      ByteArrayOutputStream actualBinary = new ByteArrayOutputStream();
+      ByteArrayOutputStream actualJson = new ByteArrayOutputStream();
+      Encoder binaryOut = EncoderFactory.get().directBinaryEncoder(actualBinary, null);
+      Encoder jsonOut = EncoderFactory.get().jsonEncoder(schema, actualJson);
+      assertEquals(line, gct != null, cp.encode(line, binaryOut, jsonOut));
+      binaryOut.flush();
+      jsonOut.flush();
+      assertTrue(line, Arrays.equals(expectedBinary.toByteArray(), actualBinary.toByteArray()));
+      assertEquals(line, expectedJson.toString("UTF-8"), actualJson.toString("UTF-8"));
+    }
+    return numParsed;
+  }
+
+  public void testSamples() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType t = learn(lines);
+      int numParsed = checkLines(t, lines);
+      if (! "courselisting.txt".equals(sampleName)) {
+        assertTrue(sampleName, numParsed > 0);
+      }
+    }
+  }
+
+  /**
+   * Unions, nested arrays, and lines that need forced decisions
+   */
+  public void testUnionsAndArrays() throws IOException {
+    UnionType intOrPair = union(struct(base(Token.INT_TOKENCLASSID, null)),
+                                struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "."), base(Token.INT_TOKENCLASSID, null)));
+    InferredType t = struct(base(Token.STRING_TOKENCLASSID, null), base(Token.WHITESPACE_TOKENCLASSID, null),
+                            new ArrayType(struct(union(base(Token.INT_TOKENCLASSID, null), base(Token.STRING_TOKENCLASSID, null)),
+                                                 base(Token.CHAR_TOKENCLASSID, ","))),
+                            intOrPair, base(Token.CHAR_TOKENCLASSID, "x"));
+    assertTrue(new CompiledParser(t).isDirectlyEncodable());
+    assertEquals(5, checkLines(t, Arrays.asList("ab 1x", "ab 1,cd,-3,1x", "ab 1.5x", "ab 1,caf\u00e9,1.5x", "ab ,1x", "cd 7,7x")));
+  }
+
+  /**
+   * A tree in which a union branch has no data is written through a record.
+   * (Neither writer can write a line that takes that branch.)
+   */
+  public void testNotDirectlyEncodable() throws IOException {
+    InferredType t = struct(base(Token.INT_TOKENCLASSID, null),
+                            union(struct(base(Token.CHAR_TOKENCLASSID, "-")), base(Token.STRING_TOKENCLASSID, null)));
+    assertFalse(new CompiledParser(t).isDirectlyEncodable());
+    assertEquals(2, checkLines(t, Arrays.asList("1ab", "2cd", "x")));
+  }
+
+  /**
+   * Records appended with appendEncoded() read back as the parsed records
+   */
+  public void testAppendEncoded() throws IOException {
+    List<String> lines = readLines("commonlog.txt");
+    InferredType t = learn(lines);
+    CompiledParser cp = new CompiledParser(t);
+    CompiledParser.EncodeBuffer encodeBuf = new CompiledParser.EncodeBuffer();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataFileWriter<GenericContainer> out = new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(t.getAvroSchema()));
+    out.setSyncInterval(64);
+    out.create(t.getAvroSchema(), bytes);
+    try {
+      for (String line: lines) {
+        encodeBuf.reset();
+        if (cp.encode(line, encodeBuf.getEncoder())) {
+          out.appendEncoded(encodeBuf.getByteBuffer());
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    DataFileStream<Object> in = new DataFileStream<Object>(new ByteArrayInputStream(bytes.toByteArray()), new GenericDatumReader<Object>());
+    try {
+      for (String line: lines) {
+        GenericContainer expected = t.parse(line);
+        if (expected != null) {
+          assertTrue(in.hasNext());
+          assertEquals(line, expected, in.next());
+        }
+      }
+      assertFalse(in.hasNext());
+    } finally {
+      in.close();
+    }
+  }
+}
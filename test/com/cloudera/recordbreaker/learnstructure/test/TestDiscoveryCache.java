@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * Tests TypeInference.DiscoveryCache.
+ */
+public class TestDiscoveryCache extends TestCase {
+  static List<List<Token.AbstractToken>> tokenize(String... lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      chunks.add(Tokenizer.tokenize(line));
+    }
+    return chunks;
+  }
+
+  public void testFingerprint() throws IOException {
+    String a = TypeInference.DiscoveryCache.fingerprint(tokenize("(10 20)", "(11 21)"));
+    assertEquals(a, TypeInference.DiscoveryCache.fingerprint(tokenize("(10 20)", "(11 21)")));
+    // Only the shapes count, not the samples or the chunk order
+    assertEquals(a, TypeInference.DiscoveryCache.fingerprint(tokenize("(30 40)", "(31 41)")));
+    assertEquals(a, TypeInference.DiscoveryCache.fingerprint(tokenize("(11 21)", "(10 20)")));
+    assertFalse(a.equals(TypeInference.DiscoveryCache.fingerprint(tokenize("(10 20)", "(11 x)"))));
+    assertFalse(a.equals(TypeInference.DiscoveryCache.fingerprint(tokenize("(10 20)", "(11 21)", "(12 22)"))));
+  }
+
+  /**
+   * Both bracketed payloads have the same shape, so the second is a hit, but
+   * each takes its samples from its own tokens
+   */
+  public void testSamplesNotShared() throws IOException {
+    TypeInference.DiscoveryCache cache = new TypeInference.DiscoveryCache();
+    InferredType t = TypeInference.infer(tokenize("(10 20) (30 40)", "(11 21) (31 41)", "(12 22) (32 42)"), cache);
+    assertTrue(cache.toString(), cache.getHits() > 0);
+    String schema = t.getAvroSchema().toString();
+    assertTrue(schema, schema.contains("'10', '11', '12'"));
+    assertTrue(schema, schema.contains("'20', '21', '22'"));
+    assertTrue(schema, schema.contains("'30', '31', '32'"));
+    assertTrue(schema, schema.contains("'40', '41', '42'"));
+    assertNotNull(t.parse("(13 23) (33 43)"));
+  }
+
+  /**
+   * Identical sub-chunksets are still found in the cache
+   */
+  public void testHits() throws IOException {
+    TypeInference.DiscoveryCache cache = new TypeInference.DiscoveryCache();
+    TypeInference.infer(tokenize("(10 20) (10 20)", "(11 21) (11 21)", "(12 22) (12 22)"), cache);
+    assertTrue(cache.toString(), cache.getHits() > 0);
+  }
+}
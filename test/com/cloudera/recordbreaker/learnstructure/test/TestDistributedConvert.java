@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
+
+import com.cloudera.recordbreaker.learnstructure.DistributedConvert;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+
+/**
+ * Runs DistributedConvert under the local job runner.
+ */
+public class TestDistributedConvert extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File sampleFile = new File(samplesDir, "angioplasty.txt");
+
+  public void testLocalJob() throws Exception {
+    File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "distconvert");
+    FileUtil.fullyDelete(testDir);
+    File learnDir = new File(testDir, "learned");
+    File inputDir = new File(testDir, "input");
+    File outdir = new File(testDir, "output");
+    learnDir.mkdirs();
+    new LearnStructure().inferRecordFormat(sampleFile, learnDir, false);
+    File parserFile = new File(learnDir, "parser.dat");
+
+    // What the parser makes of the sample, line by line
+    InferredType typeTree = ParserFile.read(parserFile);
+    List<String> expectedRecords = new ArrayList<String>();
+    List<String> expectedUnparsed = new ArrayList<String>();
+    BufferedReader lines = new BufferedReader(new FileReader(sampleFile));
+    try {
+      String line = lines.readLine();
+      while (line != null) {
+        GenericContainer record = typeTree.parse(line);
+        if (record == null) {
+          expectedUnparsed.add(line);
+        } else {
+          expectedRecords.add(record.toString());
+        }
+        line = lines.readLine();
+      }
+    } finally {
+      lines.close();
+    }
+
+    Configuration conf = new Configuration();
+    conf.set("mapred.job.tracker", "local");
+    conf.set("fs.default.name", "file:///");
+    // Two copies, so that the job sees more than one split
+    FileSystem localFs = FileSystem.getLocal(conf);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "a.txt"), false, conf);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "b.txt"), false, conf);
+    DistributedConvert dc = new DistributedConvert();
+    dc.setConf(conf);
+    dc.setAvroOptions("deflate", 0);
+    Counters counters = dc.convert(new Path(parserFile.getAbsolutePath()), new Path(inputDir.getAbsolutePath()), new Path(outdir.getAbsolutePath()));
+
+    assertEquals(2 * expectedRecords.size(), counters.getCounter(DistributedConvert.ConvertCounters.PARSED_LINES));
+    assertEquals(2 * expectedUnparsed.size(), counters.getCounter(DistributedConvert.ConvertCounters.UNPARSED_LINES));
+    assertEquals(2 * sampleFile.length(), counters.getCounter(DistributedConvert.ConvertCounters.INPUT_BYTES));
+    assertEquals(new File(outdir, "data-00000.avro").length() + new File(outdir, "data-00001.avro").length(),
+                 counters.getCounter(DistributedConvert.ConvertCounters.AVRO_BYTES));
+    assertTrue(new File(outdir, "schema.json").exists());
+
+    // One part per split, each holding that split's records in order
+    for (String partName: new String[] {"data-00000.avro", "data-00001.avro"}) {
+      List<String> found = new ArrayList<String>();
+      DataFileReader<GenericContainer> in = new DataFileReader<GenericContainer>(new File(outdir, partName), new GenericDatumReader<GenericContainer>());
+      try {
+        while (in.hasNext()) {
+          found.add(in.next().toString());
+        }
+      } finally {
+        in.close();
+      }
+      assertEquals(expectedRecords, found);
+    }
+    assertFalse(new File(outdir, "data-00002.avro").exists());
+
+    for (String unparsedName: new String[] {"unparsed-00000.txt", "unparsed-00001.txt"}) {
+      List<String> found = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new FileReader(new File(outdir, unparsedName)));
+      try {
+        String line = in.readLine();
+        while (line != null) {
+          found.add(line);
+          line = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+      assertEquals(expectedUnparsed, found);
+    }
+
+    // The output directory is not written over
+    try {
+      dc.convert(new Path(parserFile.getAbsolutePath()), new Path(inputDir.getAbsolutePath()), new Path(outdir.getAbsolutePath()));
+      fail("Converted into an existing directory");
+    } catch (IOException iex) {
+    }
+    assertTrue(new File(outdir, "data-00000.avro").exists());
+  }
+}
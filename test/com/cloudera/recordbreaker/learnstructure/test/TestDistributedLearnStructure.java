@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.DistributedLearnStructure;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+
+/**
+ * Runs DistributedLearnStructure under the local job runner, and checks that it
+ * learns what LearnStructure learns from the same lines in a single JVM.
+ */
+public class TestDistributedLearnStructure extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+
+  public void testFileListing() throws Exception {
+    runLocalJob("filelisting.txt");
+  }
+  public void testCommonLog() throws Exception {
+    runLocalJob("commonlog.txt");
+  }
+
+  void runLocalJob(String sampleName) throws Exception {
+    File sampleFile = new File(samplesDir, sampleName);
+    File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "distlearn");
+    FileUtil.fullyDelete(testDir);
+    File inputDir = new File(testDir, "input");
+    File outdir = new File(testDir, "output");
+    File localDir = new File(testDir, "local");
+
+    Configuration conf = new Configuration();
+    conf.set("mapred.job.tracker", "local");
+    conf.set("fs.default.name", "file:///");
+    // Two copies, so that the job sees more than one split
+    FileSystem localFs = FileSystem.getLocal(conf);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "a.txt"), false, conf);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "b.txt"), false, conf);
+    DistributedLearnStructure dls = new DistributedLearnStructure();
+    dls.setConf(conf);
+    dls.inferRecordFormat(new Path(inputDir.getAbsolutePath()), new Path(outdir.getAbsolutePath()));
+
+    assertTrue(new File(outdir, "schema.json").exists());
+    File parserFile = new File(outdir, "parser.dat");
+    assertTrue(parserFile.exists());
+
+    // The single-JVM result for the same lines
+    File bothCopies = new File(testDir, "both.txt");
+    FileUtil.copyMerge(localFs, new Path(inputDir.getAbsolutePath()), localFs, new Path(bothCopies.getAbsolutePath()), false, conf, null);
+    localDir.mkdirs();
+    new LearnStructure().inferRecordFormat(bothCopies, localDir, false);
+
+    // Names are numbered globally, so compare everything else
+    InferredType typeTree = ParserFile.read(parserFile);
+    InferredType localTree = ParserFile.read(new File(localDir, "parser.dat"));
+    assertEquals(describe(localTree.getAvroSchema()), describe(typeTree.getAvroSchema()));
+    BufferedReader lines = new BufferedReader(new FileReader(sampleFile));
+    try {
+      String line = lines.readLine();
+      while (line != null) {
+        Object expected = localTree.parse(line);
+        Object found = typeTree.parse(line);
+        assertEquals(line, describe(expected), describe(found));
+        if (line.trim().length() > 0) {
+          assertNotNull("Unparsed line: " + line, found);
+        }
+        line = lines.readLine();
+      }
+    } finally {
+      lines.close();
+    }
+  }
+
+  /**
+   * The schema's structure, without names or docs
+   */
+  static String describe(Schema s) {
+    StringBuffer buf = new StringBuffer();
+    switch (s.getType()) {
+    case RECORD:
+      buf.append("{");
+      for (Schema.Field f: s.getFields()) {
+        buf.append(describe(f.schema()) + ",");
+      }
+      buf.append("}");
+      break;
+    case ARRAY:
+      buf.append("[" + describe(s.getElementType()) + "]");
+      break;
+    case UNION:
+      buf.append("(");
+      for (Schema branch: s.getTypes()) {
+        buf.append(describe(branch) + "|");
+      }
+      buf.append(")");
+      break;
+    default:
+      buf.append(s.getType());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * The parsed values, without field names
+   */
+  static String describe(Object datum) {
+    if (datum instanceof GenericRecord) {
+      GenericRecord r = (GenericRecord) datum;
+      StringBuffer buf = new StringBuffer("{");
+      for (int i = 0; i < r.getSchema().getFields().size(); i++) {
+        buf.append(describe(r.get(i)) + ",");
+      }
+      return buf.append("}").toString();
+    } else if (datum instanceof Collection) {
+      StringBuffer buf = new StringBuffer("[");
+      for (Object elt: (Collection<?>) datum) {
+        buf.append(describe(elt) + ",");
+      }
+      return buf.append("]").toString();
+    }
+    return String.valueOf(datum);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.Histogram;
+import com.cloudera.recordbreaker.learnstructure.HistogramAccumulator;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.WeightedChunk;
+
+/**
+ * Tests HistogramAccumulator and the parallel path of Histogram.computeNormalizedHistograms().
+ */
+public class TestHistogramAccumulator extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+
+  List<List<Token.AbstractToken>> readChunks(String sampleName) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        List<Token.AbstractToken> chunk = Tokenizer.tokenize(s);
+        if (chunk != null && chunk.size() > 0) {
+          chunks.add(chunk);
+        }
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return chunks;
+  }
+
+  static String describe(List<Histogram> histograms) {
+    StringBuffer buf = new StringBuffer();
+    for (Histogram h: histograms) {
+      buf.append(h + "\n");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * With a low threshold, even a small chunkset is counted in parallel ranges,
+   * and the merged result is the same as counting on one thread.
+   */
+  public void testParallelMatchesSerial() throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    chunks.addAll(readChunks("filelisting.txt"));
+    chunks.addAll(readChunks("commonlog.txt"));
+    chunks.addAll(readChunks("flights.txt"));
+
+    HistogramAccumulator serial = new HistogramAccumulator();
+    serial.addAll(chunks, 0, chunks.size());
+    String expected = describe(serial.finish());
+
+    int numThreads = Histogram.getNumThreads();
+    int minChunks = Histogram.getMinChunksPerThread();
+    try {
+      Histogram.setParallelism(4, 3);
+      assertEquals(expected, describe(Histogram.computeNormalizedHistograms(chunks)));
+      assertTrue("The parallel path was not taken", Histogram.hasHistogramPool());
+    } finally {
+      Histogram.setParallelism(numThreads, minChunks);
+    }
+  }
+
+  public void testMerge() throws IOException {
+    List<List<Token.AbstractToken>> chunks = readChunks("angioplasty.txt");
+    HistogramAccumulator whole = new HistogramAccumulator();
+    whole.addAll(chunks, 0, chunks.size());
+
+    int mid = chunks.size() / 3;
+    HistogramAccumulator first = new HistogramAccumulator();
+    first.addAll(chunks, 0, mid);
+    HistogramAccumulator second = new HistogramAccumulator();
+    second.addAll(chunks, mid, chunks.size());
+    first.merge(second);
+    assertEquals(whole.getNumChunks(), first.getNumChunks());
+    assertEquals(describe(whole.finish()), describe(first.finish()));
+  }
+
+  /**
+   * A WeightedChunk counts as that many copies of itself
+   */
+  public void testWeightedChunks() throws IOException {
+    List<List<Token.AbstractToken>> chunks = readChunks("commonlog.txt");
+    HistogramAccumulator copies = new HistogramAccumulator();
+    HistogramAccumulator weighted = new HistogramAccumulator();
+    for (List<Token.AbstractToken> chunk: chunks) {
+      for (int i = 0; i < 3; i++) {
+        copies.add(chunk);
+      }
+      weighted.add(new WeightedChunk(chunk, 3));
+    }
+    assertEquals(3 * chunks.size(), weighted.getNumChunks());
+    assertEquals(describe(copies.finish()), describe(weighted.finish()));
+  }
+
+  /**
+   * Counts shipped out of one accumulator and added to another, as
+   * DistributedLearnStructure does, give the same histograms
+   */
+  public void testAddCounts() throws IOException {
+    List<List<Token.AbstractToken>> chunks = readChunks("wikipediatopics.txt");
+    HistogramAccumulator src = new HistogramAccumulator();
+    src.addAll(chunks, 0, chunks.size());
+    HistogramAccumulator dst = new HistogramAccumulator();
+    for (int typeId = 0; typeId < src.getTypeIdLimit(); typeId++) {
+      long freqCounts[] = src.getFrequencyCounts(typeId);
+      for (int freq = 1; freqCounts != null && freq < freqCounts.length; freq++) {
+        if (freqCounts[freq] != 0) {
+          dst.addCounts(typeId, freq, freqCounts[freq]);
+        }
+      }
+    }
+    dst.addChunkCount(src.getNumChunks());
+    assertEquals(describe(src.finish()), describe(dst.finish()));
+  }
+}
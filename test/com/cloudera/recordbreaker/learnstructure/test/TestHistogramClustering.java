@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.Histogram;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+
+/**
+ * Tests Histogram.clusterHistograms() against the original score-ordered
+ * agglomerative clustering.
+ */
+public class TestHistogramClustering extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  List<List<Token.AbstractToken>> readChunks(String sampleName) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        List<Token.AbstractToken> chunk = Tokenizer.tokenize(s);
+        if (chunk != null && chunk.size() > 0) {
+          chunks.add(chunk);
+        }
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return chunks;
+  }
+
+  /**
+   * The original algorithm: score every pair, then merge clusters in ascending score order.
+   * Returns each cluster as the set of its members' input indices.
+   */
+  static Set<Set<Integer>> referenceClusters(List<Histogram> inputHistograms) {
+    class Score implements Comparable<Score> {
+      double s;
+      int i;
+      int j;
+      public Score(double s, int i, int j) {
+        this.s = s;
+        this.i = i;
+        this.j = j;
+      }
+      public int compareTo(Score other) {
+        if (this.s < other.s) {
+          return -1;
+        } else if (this.s > other.s) {
+          return 1;
+        } else {
+          int cmp = this.i - other.i;
+          if (cmp == 0) {
+            cmp = this.j - other.j;
+          }
+          return cmp;
+        }
+      }
+    }
+    SortedSet<Score> scores = new TreeSet<Score>();
+    for (int i = 0; i < inputHistograms.size(); i++) {
+      for (int j = i+1; j < inputHistograms.size(); j++) {
+        double sre = inputHistograms.get(i).computeSymmetricRelativeEntropy(inputHistograms.get(j));
+        if (sre < Histogram.CLUSTER_TOLERANCE) {
+          scores.add(new Score(sre, i, j));
+        }
+      }
+    }
+    Map<Integer, Integer> histogramToCluster = new TreeMap<Integer, Integer>();
+    Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
+    for (int i = 0; i < inputHistograms.size(); i++) {
+      histogramToCluster.put(i, i);
+      Set<Integer> containedHistograms = new TreeSet<Integer>();
+      containedHistograms.add(i);
+      clusterToHistograms.put(i, containedHistograms);
+    }
+    for (Score s: scores) {
+      int cluster1 = histogramToCluster.get(s.i);
+      int cluster2 = histogramToCluster.get(s.j);
+      if (cluster1 == cluster2) {
+        continue;
+      }
+      for (Integer histogramId: clusterToHistograms.get(cluster2)) {
+        histogramToCluster.put(histogramId, cluster1);
+      }
+      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.get(cluster2));
+      clusterToHistograms.remove(cluster2);
+    }
+    return new HashSet<Set<Integer>>(clusterToHistograms.values());
+  }
+
+  /**
+   * Maps clusters of Histogram objects back to input indices, checking that
+   * each input appears exactly once and that members keep their input order.
+   */
+  static Set<Set<Integer>> toIndices(List<Histogram> inputHistograms, List<List<Histogram>> clusters) {
+    Map<Histogram, Integer> index = new IdentityHashMap<Histogram, Integer>();
+    for (int i = 0; i < inputHistograms.size(); i++) {
+      index.put(inputHistograms.get(i), i);
+    }
+    Set<Set<Integer>> result = new HashSet<Set<Integer>>();
+    int total = 0;
+    for (List<Histogram> cluster: clusters) {
+      Set<Integer> members = new TreeSet<Integer>();
+      int prev = -1;
+      for (Histogram h: cluster) {
+        int i = index.get(h);
+        assertTrue("Members out of input order", i > prev);
+        prev = i;
+        members.add(i);
+      }
+      result.add(members);
+      total += cluster.size();
+    }
+    assertEquals(inputHistograms.size(), total);
+    return result;
+  }
+
+  void checkClusters(String label, List<Histogram> histograms) {
+    Set<Set<Integer>> expected = referenceClusters(histograms);
+    assertEquals(label, expected, toIndices(histograms, Histogram.clusterHistograms(histograms)));
+    assertEquals(label, expected, toIndices(histograms, Histogram.clusterHistogramsExhaustive(histograms)));
+  }
+
+  public void testSamples() throws IOException {
+    for (String sampleName: sampleNames) {
+      checkClusters(sampleName, Histogram.computeNormalizedHistograms(readChunks(sampleName)));
+    }
+  }
+
+  /**
+   * Many CHAR types in groups that share a frequency pattern, so that there
+   * are clusters of several members and pairs near the tolerance.
+   */
+  public void testSynthetic() {
+    Random r = new Random(0);
+    int numTypes = 120;
+    int numGroups = numTypes / 8;
+    int groupRate[] = new int[numGroups];
+    int groupMaxFreq[] = new int[numGroups];
+    for (int g = 0; g < numGroups; g++) {
+      groupRate[g] = 1 + r.nextInt(100);
+      groupMaxFreq[g] = 1 + r.nextInt(4);
+    }
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (int i = 0; i < 2000; i++) {
+      List<Token.AbstractToken> chunk = new ArrayList<Token.AbstractToken>();
+      for (int g = 0; g < numGroups; g++) {
+        if (r.nextInt(100) < groupRate[g]) {
+          int freq = 1 + r.nextInt(groupMaxFreq[g]);
+          for (int t = g; t < numTypes; t += numGroups) {
+            // Some types occasionally drift from their group
+            int k = (r.nextInt(50) == 0) ? 1 : freq;
+            for (int j = 0; j < k; j++) {
+              chunk.add(new Token.CharToken((char) (0x100 + t)));
+            }
+          }
+        }
+      }
+      chunks.add(chunk);
+    }
+    List<Histogram> histograms = Histogram.computeNormalizedHistograms(chunks);
+    Set<Set<Integer>> expected = referenceClusters(histograms);
+    assertTrue("Expected some multi-member clusters", expected.size() < histograms.size());
+    checkClusters("synthetic", histograms);
+  }
+
+  public void testSingleton() throws IOException {
+    List<Histogram> histograms = Histogram.computeNormalizedHistograms(readChunks("commonlog.txt")).subList(0, 1);
+    assertEquals(1, Histogram.clusterHistograms(histograms).size());
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.hadoop.fs.FileUtil;
+
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnedParser;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that one LearnedParser can be shared by many threads, while union
+ * branches are counted and reordered underneath them.
+ */
+public class TestLearnedParser extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "learnedparser");
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+  int numThreads = 8;
+  int savedReorderInterval;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+    // Reorder often, so that it happens while other threads parse
+    savedReorderInterval = UnionType.REORDER_INTERVAL;
+    UnionType.REORDER_INTERVAL = 7;
+  }
+  protected void tearDown() {
+    UnionType.REORDER_INTERVAL = savedReorderInterval;
+  }
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  /**
+   * Run 'task' on 'numThreads' threads that start together, and rethrow any failure
+   */
+  void runConcurrently(final Callable<Void> task) throws Exception {
+    final CountDownLatch startGate = new CountDownLatch(1);
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < numThreads; i++) {
+        results.add(workers.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+              startGate.await();
+              return task.call();
+            }
+          }));
+      }
+      startGate.countDown();
+      for (Future<Void> result: results) {
+        try {
+          result.get(60, TimeUnit.SECONDS);
+        } catch (ExecutionException eex) {
+          Throwable cause = eex.getCause();
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw (Exception) cause;
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Each thread parses the lines many times, in its own order, with and without
+   * reuse, and must always get the single-threaded result
+   */
+  void checkConcurrentParses(final LearnedParser parser, final List<String> lines) throws Exception {
+    final List<GenericContainer> expected = new ArrayList<GenericContainer>();
+    CompiledParser reference = new CompiledParser(parser.getTypeTree());
+    for (String line: lines) {
+      expected.add(reference.parse(line));
+    }
+    runConcurrently(new Callable<Void>() {
+        public Void call() {
+          Random r = new Random(Thread.currentThread().getId());
+          GenericContainer reuse = null;
+          for (int round = 0; round < 2000; round++) {
+            int i = r.nextInt(lines.size());
+            GenericContainer gc = (round % 2 == 0) ? parser.parse(lines.get(i)) : parser.parseInto(lines.get(i), reuse);
+            assertEquals(lines.get(i), expected.get(i), gc);
+            if (gc != null) {
+              reuse = gc;
+            }
+          }
+          return null;
+        }
+      });
+  }
+
+  public void testSamples() throws Exception {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      checkConcurrentParses(new LearnedParser(learn(lines)), lines);
+    }
+  }
+
+  /**
+   * A union whose branch counts keep changing, so that its order is replaced
+   * again and again during the parses
+   */
+  public void testReordering() throws Exception {
+    List<InferredType> branches = new ArrayList<InferredType>();
+    String keys = "abcdefgh";
+    for (int i = 0; i < keys.length(); i++) {
+      branches.add(struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, keys.substring(i, i + 1)),
+                          base(Token.INT_TOKENCLASSID, null)));
+    }
+    branches.add(base(Token.INT_TOKENCLASSID, null));
+    UnionType u = new UnionType(branches);
+    InferredType t = struct(u, base(Token.CHAR_TOKENCLASSID, ";"));
+
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      int k = i % (keys.length() + 1);
+      lines.add((k < keys.length()) ? (i + "" + keys.charAt(k) + i + ";") : (i + ";"));
+    }
+    lines.add("1z1;");
+    checkConcurrentParses(new LearnedParser(t), lines);
+    long total = 0;
+    for (int i = 0; i < u.unionTypes.size(); i++) {
+      total += u.getBranchCount(i);
+    }
+    assertTrue(total >= 2000 * numThreads / 2);
+  }
+
+  /**
+   * Each thread has its own scratch parser
+   */
+  public void testThreadParsers() throws Exception {
+    final LearnedParser parser = new LearnedParser(learn(readLines("commonlog.txt")));
+    final Set<CompiledParser> seen = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<CompiledParser, Boolean>()));
+    runConcurrently(new Callable<Void>() {
+        public Void call() {
+          CompiledParser cp = parser.getThreadParser();
+          assertSame(cp, parser.getThreadParser());
+          seen.add(cp);
+          return null;
+        }
+      });
+    assertEquals(numThreads, seen.size());
+  }
+
+  /**
+   * Parser files can be loaded on several threads at once
+   */
+  public void testConcurrentLoads() throws Exception {
+    final List<String> lines = readLines("filelisting.txt");
+    final File parserFile = new File(testDir, "parser.dat");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(parserFile));
+    try {
+      ParserFile.write(learn(lines), out);
+    } finally {
+      out.close();
+    }
+    final LearnedParser expected = LearnedParser.load(parserFile);
+    runConcurrently(new Callable<Void>() {
+        public Void call() throws IOException {
+          LearnedParser parser = LearnedParser.load(parserFile);
+          assertEquals(expected.getSchema(), parser.getSchema());
+          for (String line: lines) {
+            assertEquals(line, expected.parse(line), parser.parse(line));
+          }
+          return null;
+        }
+      });
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TextOutputFormat;
+
+import com.cloudera.recordbreaker.learnstructure.DatumWrapper;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.LearnedParser;
+import com.cloudera.recordbreaker.learnstructure.LearnedStructureInputFormat;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+
+/**
+ * Reads text through LearnedStructureInputFormat under the local job runner.
+ */
+public class TestLearnedStructureInputFormat extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File sampleFile = new File(samplesDir, "angioplasty.txt");
+
+  /**
+   * Writes each record as text
+   */
+  public static class RecordTextMapper extends MapReduceBase implements Mapper<LongWritable, DatumWrapper<GenericContainer>, NullWritable, Text> {
+    public void map(LongWritable key, DatumWrapper<GenericContainer> value, OutputCollector<NullWritable, Text> out, Reporter reporter) throws IOException {
+      out.collect(NullWritable.get(), new Text(value.toString()));
+    }
+  }
+
+  File testDir;
+  File parserFile;
+  List<String> expected = new ArrayList<String>();
+  long numUnparsed = 0;
+
+  /**
+   * Learn a parser from the sample, and note what it makes of each line
+   */
+  protected void setUp() throws Exception {
+    testDir = new File(System.getProperty("test.build.data", "build/test/data"), "learnedinput");
+    FileUtil.fullyDelete(testDir);
+    File learnDir = new File(testDir, "learned");
+    learnDir.mkdirs();
+    new LearnStructure().inferRecordFormat(sampleFile, learnDir, false);
+    parserFile = new File(learnDir, "parser.dat");
+
+    InferredType typeTree = ParserFile.read(parserFile);
+    BufferedReader lines = new BufferedReader(new FileReader(sampleFile));
+    try {
+      String line = lines.readLine();
+      while (line != null) {
+        GenericContainer record = typeTree.parse(line);
+        if (record == null) {
+          numUnparsed++;
+        } else {
+          expected.add(record.toString());
+        }
+        line = lines.readLine();
+      }
+    } finally {
+      lines.close();
+    }
+  }
+
+  /**
+   * Lines that straddle split boundaries are read exactly once
+   */
+  public void testSplits() throws Exception {
+    JobConf job = new JobConf();
+    job.set("fs.default.name", "file:///");
+    FileInputFormat.setInputPaths(job, new Path(sampleFile.getAbsolutePath()));
+    LearnedStructureInputFormat.setParserFile(job, new Path(parserFile.getAbsolutePath()));
+    LearnedStructureInputFormat inputFormat = new LearnedStructureInputFormat();
+    inputFormat.configure(job);
+
+    InputSplit splits[] = inputFormat.getSplits(job, 5);
+    assertTrue(splits.length > 1);
+    List<String> found = new ArrayList<String>();
+    for (InputSplit split: splits) {
+      RecordReader<LongWritable, DatumWrapper<GenericContainer>> reader = inputFormat.getRecordReader(split, job, Reporter.NULL);
+      try {
+        LongWritable key = reader.createKey();
+        DatumWrapper<GenericContainer> value = reader.createValue();
+        while (reader.next(key, value)) {
+          found.add(value.toString());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(expected, found);
+  }
+
+  /**
+   * The parser is loaded once, and loaded again when its file changes
+   */
+  public void testParserCache() throws Exception {
+    JobConf job = new JobConf();
+    job.set("fs.default.name", "file:///");
+    LearnedStructureInputFormat.setParserFile(job, new Path(parserFile.getAbsolutePath()));
+    LearnedParser first = LearnedStructureInputFormat.getParser(job);
+    assertSame(first, LearnedStructureInputFormat.getParser(job));
+
+    assertTrue(parserFile.setLastModified(parserFile.lastModified() + 10000));
+    LearnedParser second = LearnedStructureInputFormat.getParser(job);
+    assertNotSame(first, second);
+    assertSame(second, LearnedStructureInputFormat.getParser(job));
+    assertEquals(first.getSchema(), second.getSchema());
+  }
+
+  public void testLocalJob() throws Exception {
+    File inputDir = new File(testDir, "input");
+    File outdir = new File(testDir, "output");
+    JobConf job = new JobConf(TestLearnedStructureInputFormat.class);
+    job.set("mapred.job.tracker", "local");
+    job.set("fs.default.name", "file:///");
+    // Two copies, so that the job sees more than one split
+    FileSystem localFs = FileSystem.getLocal(job);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "a.txt"), false, job);
+    FileUtil.copy(sampleFile, localFs, new Path(inputDir.getAbsolutePath(), "b.txt"), false, job);
+
+    FileInputFormat.setInputPaths(job, new Path(inputDir.getAbsolutePath()));
+    job.setInputFormat(LearnedStructureInputFormat.class);
+    LearnedStructureInputFormat.setParserFile(job, new Path(parserFile.getAbsolutePath()));
+    job.setMapperClass(RecordTextMapper.class);
+    job.setNumReduceTasks(0);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(Text.class);
+    job.setOutputFormat(TextOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, new Path(outdir.getAbsolutePath()));
+    RunningJob result = JobClient.runJob(job);
+
+    Counters counters = result.getCounters();
+    assertEquals(2 * expected.size(), counters.getCounter(LearnedStructureInputFormat.ParseCounters.PARSED_LINES));
+    assertEquals(2 * numUnparsed, counters.getCounter(LearnedStructureInputFormat.ParseCounters.UNPARSED_LINES));
+
+    // Every parsed line comes out once per copy, whatever split it fell in
+    List<String> found = new ArrayList<String>();
+    for (File part: outdir.listFiles()) {
+      if (! part.getName().startsWith("part-")) {
+        continue;
+      }
+      BufferedReader in = new BufferedReader(new FileReader(part));
+      try {
+        String line = in.readLine();
+        while (line != null) {
+          found.add(line);
+          line = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+    }
+    List<String> expectedTwice = new ArrayList<String>(expected);
+    expectedTwice.addAll(expected);
+    Collections.sort(expectedTwice);
+    Collections.sort(found);
+    assertEquals(expectedTwice, found);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * Tests the object-reuse parse mode of InferredType and CompiledParser, and
+ * that value schemas are shared rather than built per value.
+ */
+public class TestObjectReuse extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+
+  /**
+   * Parsing into the previous line's objects gives the same data as parsing fresh,
+   * for both parsers
+   */
+  public void testReuse() throws IOException {
+    int numReused = 0;
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType typeTree = learn(lines);
+      CompiledParser cp = new CompiledParser(typeTree);
+      GenericContainer treeReuse = null;
+      GenericContainer compiledReuse = null;
+      for (String line: lines) {
+        GenericContainer expected = typeTree.parse(line);
+        GenericContainer treeReused = typeTree.parse(line, treeReuse);
+        GenericContainer compiledReused = cp.parse(line, compiledReuse);
+        assertEquals(sampleName + ": " + line, expected, treeReused);
+        assertEquals(sampleName + ": " + line, expected, compiledReused);
+        if (treeReused != null && treeReused == treeReuse) {
+          numReused++;
+        }
+        if (compiledReused != null && compiledReused == compiledReuse) {
+          numReused++;
+        }
+        treeReuse = (treeReused != null) ? treeReused : treeReuse;
+        compiledReuse = (compiledReused != null) ? compiledReused : compiledReuse;
+      }
+    }
+    assertTrue(numReused > 0);
+  }
+
+  /**
+   * Records and arrays are filled in place; arrays shrink to the new line's length
+   */
+  public void testReuseInPlace() {
+    InferredType t = struct(base(Token.STRING_TOKENCLASSID, null), base(Token.WHITESPACE_TOKENCLASSID, null),
+                            new ArrayType(struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ","))));
+    for (boolean compiled: new boolean[] {false, true}) {
+      CompiledParser cp = new CompiledParser(t);
+      GenericData.Record first = (GenericData.Record) (compiled ? cp.parse("ab 1,2,3,") : t.parse("ab 1,2,3,"));
+      GenericData.Array<?> items = (GenericData.Array<?>) first.get(1);
+      assertEquals(3, items.size());
+
+      GenericData.Record second = (GenericData.Record) (compiled ? cp.parse("cd 4,", first) : t.parse("cd 4,", first));
+      assertSame(first, second);
+      assertSame(items, second.get(1));
+      assertEquals("cd", second.get(0).toString());
+      assertEquals(1, items.size());
+      assertEquals(4, ((GenericData.Record) items.get(0)).get(0));
+      assertEquals(second, t.parse("cd 4,"));
+    }
+  }
+
+  /**
+   * A reuse object with another schema is ignored
+   */
+  public void testReuseOtherSchema() {
+    InferredType t1 = struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ":"), base(Token.INT_TOKENCLASSID, null));
+    InferredType t2 = struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "-"), base(Token.INT_TOKENCLASSID, null));
+    GenericContainer other = t2.parse("1-2");
+    GenericContainer result = t1.parse("3:4", other);
+    assertNotSame(other, result);
+    assertEquals(t1.parse("3:4"), result);
+    assertEquals(t2.parse("1-2"), other);
+  }
+
+  /**
+   * Date and time values share one schema rather than building one per value
+   */
+  public void testValueSchemasShared() throws IOException {
+    List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>();
+    Tokenizer.attemptParse(Token.DATE_TOKENCLASSID, null, "Jan 12, 2011", toks);
+    Tokenizer.attemptParse(Token.DATE_TOKENCLASSID, null, "Feb 3, 2010", toks);
+    Tokenizer.attemptParse(Token.TIME_TOKENCLASSID, null, "12:30:45", toks);
+    assertEquals(3, toks.size());
+    assertSame(((GenericData.Record) toks.get(0).get()).getSchema(), ((GenericData.Record) toks.get(1).get()).getSchema());
+    assertSame(Token.TIME_SCHEMA, ((GenericData.Record) toks.get(2).get()).getSchema());
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IOUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.OutputSink;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+import com.cloudera.recordbreaker.learnstructure.PlainJsonWriter;
+
+/**
+ * Tests what each OutputSink format writes: Avro files with the chosen codec
+ * and sync interval, Avro JSON, plain NDJSON, and the same output from the
+ * multi-threaded emit mode.
+ */
+public class TestOutputSink extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "outputsink");
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "filelisting.txt", "flights.txt"};
+  ObjectMapper mapper = new ObjectMapper();
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+  }
+
+  List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Run LearnStructure with the given sink, quietly
+   */
+  File run(String sampleName, String label, OutputSink sink, int numThreads, boolean directEncode) throws IOException {
+    File outdir = new File(testDir, label);
+    outdir.mkdirs();
+    LearnStructure ls = new LearnStructure();
+    ls.setOutputSink(sink);
+    ls.setNumEmitThreads(numThreads);
+    PrintStream savedErr = System.err;
+    System.setErr(new PrintStream(new ByteArrayOutputStream()));
+    try {
+      ls.inferRecordFormat(new File(samplesDir, sampleName), outdir, true, false, directEncode);
+    } finally {
+      System.setErr(savedErr);
+    }
+    return outdir;
+  }
+
+  /**
+   * The records that the learned parser in 'outdir' makes of the sample
+   */
+  List<GenericContainer> expectedRecords(String sampleName, File outdir) throws IOException {
+    InferredType t = ParserFile.read(new File(outdir, LearnStructure.PARSER_FILENAME));
+    CompiledParser cp = new CompiledParser(t);
+    List<GenericContainer> records = new ArrayList<GenericContainer>();
+    for (String line: readLines(new File(samplesDir, sampleName))) {
+      GenericContainer gc = cp.parse(line);
+      if (gc != null) {
+        records.add(gc);
+      }
+    }
+    return records;
+  }
+
+  List<Object> readAvro(File f) throws IOException {
+    List<Object> records = new ArrayList<Object>();
+    DataFileStream<Object> in = new DataFileStream<Object>(new FileInputStream(f), new GenericDatumReader<Object>());
+    try {
+      while (in.hasNext()) {
+        records.add(in.next());
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+
+  /**
+   * Avro files hold the parsed records, with the sink's codec.  A small sync
+   * interval gives many blocks.
+   */
+  public void testAvro() throws IOException {
+    for (String sampleName: sampleNames) {
+      for (String codecName: new String[] {"null", "deflate:1", "snappy"}) {
+        File outdir = run(sampleName, sampleName + "-" + codecName, new OutputSink(OutputSink.Format.AVRO, codecName, 64), 1, false);
+        File dataFile = new File(outdir, LearnStructure.DATA_FILENAME);
+        assertFalse(new File(outdir, LearnStructure.JSONDATA_FILENAME).exists());
+        assertEquals(expectedRecords(sampleName, outdir), readAvro(dataFile));
+
+        DataFileReader<Object> in = new DataFileReader<Object>(dataFile, new GenericDatumReader<Object>());
+        try {
+          assertEquals(codecName.startsWith("deflate") ? "deflate" : codecName, in.getMetaString("avro.codec"));
+          Set<Long> syncs = new HashSet<Long>();
+          while (in.hasNext()) {
+            in.next();
+            syncs.add(in.previousSync());
+          }
+          assertTrue(sampleName, syncs.size() > 2);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * The Avro JSON file is what a JsonEncoder writes for each record, with unions
+   * wrapped in their branch types
+   */
+  public void testAvroJson() throws IOException {
+    String sampleName = "commonlog.txt";
+    File outdir = run(sampleName, "avrojson", new OutputSink(), 1, false);
+    assertEquals(expectedRecords(sampleName, outdir), readAvro(new File(outdir, LearnStructure.DATA_FILENAME)));
+
+    InferredType t = ParserFile.read(new File(outdir, LearnStructure.PARSER_FILENAME));
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    GenericDatumWriter<GenericContainer> writer = new GenericDatumWriter<GenericContainer>(t.getAvroSchema());
+    Encoder jsonOut = EncoderFactory.get().jsonEncoder(t.getAvroSchema(), expected);
+    for (GenericContainer gc: expectedRecords(sampleName, outdir)) {
+      writer.write(gc, jsonOut);
+    }
+    jsonOut.flush();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    IOUtils.copyBytes(new FileInputStream(new File(outdir, LearnStructure.JSONDATA_FILENAME)), actual, 4096, true);
+    assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+  }
+
+  /**
+   * Each line of data.json is one record as plain JSON, the same as Avro's own
+   * rendering of the record, with nothing written for unions
+   */
+  void checkNdjson(String sampleName, File outdir) throws IOException {
+    assertFalse(new File(outdir, LearnStructure.DATA_FILENAME).exists());
+    List<GenericContainer> expected = expectedRecords(sampleName, outdir);
+    File jsonFile = new File(outdir, OutputSink.NDJSON_FILENAME);
+    List<String> lines = readLines(jsonFile);
+    assertEquals(sampleName, expected.size(), lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      assertEquals(sampleName + ": " + lines.get(i), mapper.readTree(expected.get(i).toString()), mapper.readTree(lines.get(i)));
+    }
+    if (expected.size() > 0) {
+      assertEquals('\n', lastByte(jsonFile));
+    }
+  }
+  static int lastByte(File f) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(f, "r");
+    try {
+      in.seek(in.length() - 1);
+      return in.read();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testNdjson() throws IOException {
+    for (String sampleName: sampleNames) {
+      OutputSink sink = new OutputSink(OutputSink.Format.NDJSON, "null", 0);
+      checkNdjson(sampleName, run(sampleName, sampleName + "-ndjson", sink, 1, false));
+      checkNdjson(sampleName, run(sampleName, sampleName + "-ndjson-direct", sink, 1, true));
+      checkNdjson(sampleName, run(sampleName, sampleName + "-ndjson-parallel", sink, 3, false));
+    }
+  }
+
+  /**
+   * Union values are written bare: a number, a string, or an object
+   */
+  public void testPlainJsonUnions() throws IOException {
+    Schema pair = Schema.createRecord("pair", "", "", false);
+    pair.setFields(Arrays.asList(new Schema.Field("x", Schema.create(Schema.Type.INT), "", null),
+                                 new Schema.Field("y", Schema.create(Schema.Type.DOUBLE), "", null)));
+    Schema u = Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.INT), Schema.create(Schema.Type.STRING), pair));
+    Schema top = Schema.createRecord("top", "", "", false);
+    top.setFields(Arrays.asList(new Schema.Field("vals", Schema.createArray(u), "", null)));
+
+    GenericData.Record p = new GenericData.Record(pair);
+    p.put("x", 3);
+    p.put("y", 0.5);
+    GenericData.Array<Object> vals = new GenericData.Array<Object>(3, top.getField("vals").schema());
+    vals.add(7);
+    vals.add(new Utf8("a \"b\"\n"));
+    vals.add(p);
+    GenericData.Record r = new GenericData.Record(top);
+    r.put("vals", vals);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PlainJsonWriter out = new PlainJsonWriter(top, bytes);
+    out.write(r);
+    out.write(r);
+    out.flush();
+    String line = "{\"vals\":[7,\"a \\\"b\\\"\\n\",{\"x\":3,\"y\":0.5}]}";
+    assertEquals(line + "\n" + line, bytes.toString("UTF-8"));
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.hadoop.fs.FileUtil;
+
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+
+/**
+ * Tests that LearnStructure's multi-threaded emit mode writes the same records,
+ * in the same order, and reports the same unparsed lines as the single-threaded loop.
+ */
+public class TestParallelEmit extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "parallelemit");
+  File inputFile = new File(testDir, "input.txt");
+  int savedBatchSize;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+    savedBatchSize = LearnStructure.EMIT_BATCH_SIZE;
+    LearnStructure.EMIT_BATCH_SIZE = 16;
+
+    // Many copies of a sample with an unparseable line, so there are many batches
+    List<String> lines = readLines(new File(samplesDir, "angioplasty.txt"));
+    PrintWriter out = new PrintWriter(new FileWriter(inputFile));
+    try {
+      for (int i = 0; i < 40; i++) {
+        for (String line: lines) {
+          out.println(line);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+  protected void tearDown() {
+    LearnStructure.EMIT_BATCH_SIZE = savedBatchSize;
+  }
+
+  static List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * The records of an Avro file, as text without field names (which differ between runs)
+   */
+  static List<String> readRecords(File f) throws IOException {
+    List<String> records = new ArrayList<String>();
+    DataFileStream<GenericContainer> in = new DataFileStream<GenericContainer>(new FileInputStream(f), new GenericDatumReader<GenericContainer>());
+    try {
+      while (in.hasNext()) {
+        records.add(in.next().toString().replaceAll("\"[a-z]+_[0-9]+\": ", ""));
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+
+  /**
+   * Run LearnStructure into a new directory, and return the unparsed lines and
+   * parse count that it reported
+   */
+  List<String> run(LearnStructure ls, File outdir) throws IOException {
+    outdir.mkdirs();
+    PrintStream savedErr = System.err;
+    ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(errBytes, true));
+    try {
+      ls.inferRecordFormat(inputFile, outdir, true);
+    } finally {
+      System.setErr(savedErr);
+    }
+    List<String> unparsed = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new StringReader(errBytes.toString()));
+    String s = in.readLine();
+    while (s != null) {
+      if (s.startsWith("unparsed line: ") || s.startsWith("Total # lines parsed correctly: ")) {
+        unparsed.add(s);
+      }
+      s = in.readLine();
+    }
+    return unparsed;
+  }
+
+  public void testSingleFile() throws IOException {
+    File serialDir = new File(testDir, "serial");
+    List<String> serialReport = run(new LearnStructure(), serialDir);
+    List<String> expected = readRecords(new File(serialDir, LearnStructure.DATA_FILENAME));
+    assertTrue(expected.size() > 100);
+    assertTrue(serialReport.size() > 40);
+
+    for (int numThreads: new int[] {2, 5}) {
+      File parallelDir = new File(testDir, "parallel" + numThreads);
+      LearnStructure ls = new LearnStructure();
+      ls.setNumEmitThreads(numThreads);
+      assertEquals(serialReport, run(ls, parallelDir));
+      assertEquals(expected, readRecords(new File(parallelDir, LearnStructure.DATA_FILENAME)));
+    }
+  }
+
+  /**
+   * Part files hold contiguous ranges of the records, in order
+   */
+  public void testPartFiles() throws IOException {
+    File serialDir = new File(testDir, "serial");
+    List<String> serialReport = run(new LearnStructure(), serialDir);
+    List<String> expected = readRecords(new File(serialDir, LearnStructure.DATA_FILENAME));
+
+    int numThreads = 3;
+    File partsDir = new File(testDir, "parts");
+    LearnStructure ls = new LearnStructure();
+    ls.setNumEmitThreads(numThreads);
+    ls.setEmitPartFiles(true);
+    assertEquals(serialReport, run(ls, partsDir));
+    assertFalse(new File(partsDir, LearnStructure.DATA_FILENAME).exists());
+
+    List<String> actual = new ArrayList<String>();
+    for (int i = 0; i < numThreads; i++) {
+      List<String> part = readRecords(new File(partsDir, String.format(LearnStructure.PART_FILENAME_FORMAT, i)));
+      assertTrue(part.size() > 0);
+      actual.addAll(part);
+    }
+    assertFalse(new File(partsDir, String.format(LearnStructure.PART_FILENAME_FORMAT, numThreads)).exists());
+    assertEquals(expected, actual);
+  }
+}
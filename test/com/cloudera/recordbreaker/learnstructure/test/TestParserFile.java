@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.ParserFile;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests reading and writing parser.dat, in the current format and in the
+ * original one written by InferredType.write().
+ */
+public class TestParserFile extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  static ByteBuffer writeCurrent(InferredType t) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    ParserFile.write(t, out);
+    out.close();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+  static ByteBuffer writeOriginal(InferredType t) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    t.write(out);
+    out.close();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  /**
+   * Schemas and records as text, without their names.  A tree loaded from the
+   * original format has new names.
+   */
+  static String withoutNames(Object o) {
+    return String.valueOf(o).replaceAll("\"(record|base|array|union)_[0-9]+\"", "\"\"");
+  }
+
+  /**
+   * Both trees have the same schema and parse every line the same way.  If
+   * 'sameNames' is false, names may differ.
+   */
+  void checkSameParser(String label, InferredType expected, InferredType actual, List<String> lines, boolean sameNames) {
+    if (sameNames) {
+      assertEquals(label, expected.getAvroSchema(), actual.getAvroSchema());
+    } else {
+      assertEquals(label, withoutNames(expected.getAvroSchema()), withoutNames(actual.getAvroSchema()));
+    }
+    CompiledParser cp = new CompiledParser(actual);
+    for (String line: lines) {
+      GenericContainer gct = expected.parse(line);
+      if (sameNames) {
+        assertEquals(label + ": " + line, gct, actual.parse(line));
+        assertEquals(label + ": " + line, gct, cp.parse(line));
+      } else {
+        assertEquals(label + ": " + line, withoutNames(gct), withoutNames(actual.parse(line)));
+        assertEquals(label + ": " + line, withoutNames(gct), withoutNames(cp.parse(line)));
+      }
+    }
+  }
+
+  /**
+   * A parser.dat and data.avro written by LearnStructure before the current format
+   * existed, when BaseType.write() also left out the kind byte.  The parser loads,
+   * and parses the input into the records it wrote then.
+   */
+  public void testOriginalFormatFile() throws IOException {
+    InferredType t = ParserFile.read(new File(samplesDir, "commonlog-v0.parser.dat"));
+    List<String> lines = readLines("commonlog.txt");
+    CompiledParser cp = new CompiledParser(t);
+    DataFileStream<GenericContainer> in = new DataFileStream<GenericContainer>(new FileInputStream(new File(samplesDir, "commonlog-v0.data.avro")),
+                                                                               new GenericDatumReader<GenericContainer>());
+    try {
+      assertEquals(withoutNames(in.getSchema()), withoutNames(t.getAvroSchema()));
+      for (String line: lines) {
+        assertTrue(in.hasNext());
+        String expected = withoutNames(in.next());
+        assertEquals(line, expected, withoutNames(t.parse(line)));
+        assertEquals(line, expected, withoutNames(cp.parse(line)));
+      }
+      assertFalse(in.hasNext());
+    } finally {
+      in.close();
+    }
+
+    // Rewritten in the current format, it is the same parser
+    ByteBuffer buf = writeCurrent(t);
+    assertEquals(ParserFile.MAGIC, buf.getInt(0));
+    checkSameParser("rewritten", t, ParserFile.read(buf), lines, true);
+  }
+
+  /**
+   * Trees learned from the samples survive both formats
+   */
+  public void testSamples() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType t = learn(lines);
+      checkSameParser(sampleName + " original", t, ParserFile.read(writeOriginal(t)), lines, false);
+      checkSameParser(sampleName + " current", t, ParserFile.read(writeCurrent(t)), lines, true);
+      checkSameParser(sampleName + " stream", t, ParserFile.read(new ByteArrayInputStream(writeCurrent(t).array())), lines, true);
+    }
+  }
+
+  /**
+   * The unions of a tree, in preorder
+   */
+  static void findUnions(InferredType t, List<UnionType> unions) {
+    if (t instanceof StructType) {
+      for (InferredType subelt: ((StructType) t).structTypes) {
+        findUnions(subelt, unions);
+      }
+    } else if (t instanceof ArrayType) {
+      findUnions(((ArrayType) t).bodyType, unions);
+    } else if (t instanceof UnionType) {
+      unions.add((UnionType) t);
+      for (InferredType branch: ((UnionType) t).unionTypes) {
+        findUnions(branch, unions);
+      }
+    }
+  }
+
+  /**
+   * Union branch counts are kept by both formats
+   */
+  public void testBranchCounts() throws IOException {
+    List<String> lines = readLines("commonlog.txt");
+    InferredType t = learn(lines);
+    for (String line: lines) {
+      t.parse(line);
+    }
+    List<UnionType> unions = new ArrayList<UnionType>();
+    findUnions(t, unions);
+    assertTrue(unions.size() > 0);
+
+    for (ByteBuffer buf: new ByteBuffer[] {writeOriginal(t), writeCurrent(t)}) {
+      List<UnionType> loaded = new ArrayList<UnionType>();
+      findUnions(ParserFile.read(buf), loaded);
+      assertEquals(unions.size(), loaded.size());
+      for (int i = 0; i < unions.size(); i++) {
+        for (int j = 0; j < unions.get(i).unionTypes.size(); j++) {
+          assertEquals(unions.get(i).getBranchCount(j), loaded.get(i).getBranchCount(j));
+        }
+        assertTrue(Arrays.equals(unions.get(i).getBranchOrder(), loaded.get(i).getBranchOrder()));
+      }
+    }
+  }
+
+  public void testNewerVersion() throws IOException {
+    ByteBuffer buf = writeCurrent(learn(readLines("commonlog.txt")));
+    buf.putInt(4, ParserFile.VERSION + 1);
+    try {
+      ParserFile.read(buf);
+      fail("Read a file from a newer version");
+    } catch (IOException iex) {
+    }
+  }
+}
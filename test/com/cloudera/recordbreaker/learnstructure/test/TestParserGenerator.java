@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import junit.framework.TestCase;
+import javax.tools.ToolProvider;
+import org.apache.hadoop.fs.FileUtil;
+
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.ParserGenerator;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * Tests the generated parser classes and the cache they are kept in.
+ */
+public class TestParserGenerator extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "parsergenerator");
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  boolean haveCompiler() {
+    return ToolProvider.getSystemJavaCompiler() != null;
+  }
+
+  public void testMatchesCompiledParser() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType typeTree = learn(lines);
+      File sampleDir = new File(testDir, sampleName);
+      sampleDir.mkdirs();
+      CompiledParser generated = ParserGenerator.loadParser(typeTree, new File(sampleDir, "parser.dat"));
+      if (haveCompiler()) {
+        assertTrue(sampleName, generated.getClass() != CompiledParser.class);
+      }
+      CompiledParser interpreter = new CompiledParser(typeTree);
+      for (String line: lines) {
+        assertEquals(sampleName + ": " + line, interpreter.parse(line), generated.parse(line));
+      }
+    }
+  }
+
+  /**
+   * The class is named by a SHA-256 digest of its source, and is built without
+   * leaving anything but class files behind.  A second load uses the cached class.
+   */
+  public void testCache() throws IOException {
+    if (! haveCompiler()) {
+      return;
+    }
+    InferredType typeTree = learn(readLines("commonlog.txt"));
+    File parserFile = new File(testDir, "parser.dat");
+    CompiledParser first = ParserGenerator.loadParser(typeTree, parserFile);
+    String className = first.getClass().getSimpleName();
+    assertEquals(ParserGenerator.CLASSNAME_PREFIX.length() + 64, className.length());
+
+    File classesDir = new File(testDir, ParserGenerator.CLASSES_DIRNAME);
+    File packageDir = new File(classesDir, ParserGenerator.PACKAGE_NAME.replace('.', File.separatorChar));
+    File classFile = new File(packageDir, className + ".class");
+    assertTrue(classFile.exists());
+    for (File f: packageDir.listFiles()) {
+      assertTrue(f.getName(), f.getName().endsWith(".class"));
+    }
+    assertEquals(1, classesDir.listFiles().length);
+
+    long modified = classFile.lastModified();
+    CompiledParser second = ParserGenerator.loadParser(typeTree, parserFile);
+    assertEquals(first.getClass().getName(), second.getClass().getName());
+    assertEquals(modified, classFile.lastModified());
+  }
+
+  /**
+   * Parsers made from one loaded class share that class, but not their state.
+   * Without a class, newParser() gives the interpreted parser.
+   */
+  public void testNewParser() throws IOException {
+    if (! haveCompiler()) {
+      return;
+    }
+    List<String> lines = readLines("commonlog.txt");
+    InferredType typeTree = learn(lines);
+    Constructor<? extends CompiledParser> parserConstructor = ParserGenerator.loadParserClass(typeTree, new File(testDir, "parser.dat"));
+    assertNotNull(parserConstructor);
+    CompiledParser first = ParserGenerator.newParser(parserConstructor, typeTree);
+    CompiledParser second = ParserGenerator.newParser(parserConstructor, typeTree);
+    assertNotSame(first, second);
+    assertSame(first.getClass(), second.getClass());
+    assertNotSame(CompiledParser.class, first.getClass());
+    assertEquals(CompiledParser.class, ParserGenerator.newParser(null, typeTree).getClass());
+
+    CompiledParser interpreter = new CompiledParser(typeTree);
+    for (String line: lines) {
+      assertEquals(line, interpreter.parse(line), first.parse(line));
+      assertEquals(line, interpreter.parse(line), second.parse(line));
+    }
+  }
+
+  /**
+   * A damaged class in the cache gives the interpreted parser, not an exception
+   */
+  public void testCorruptClassFallsBack() throws IOException {
+    if (! haveCompiler()) {
+      return;
+    }
+    List<String> lines = readLines("filelisting.txt");
+    InferredType typeTree = learn(lines);
+    File parserFile = new File(testDir, "parser.dat");
+    String className = ParserGenerator.loadParser(typeTree, parserFile).getClass().getSimpleName();
+
+    File packageDir = new File(new File(testDir, ParserGenerator.CLASSES_DIRNAME), ParserGenerator.PACKAGE_NAME.replace('.', File.separatorChar));
+    OutputStream out = new FileOutputStream(new File(packageDir, className + ".class"));
+    try {
+      out.write(new byte[] {(byte) 0xca, (byte) 0xfe, 0, 1, 2});
+    } finally {
+      out.close();
+    }
+    CompiledParser parser = ParserGenerator.loadParser(typeTree, parserFile);
+    assertEquals(CompiledParser.class, parser.getClass());
+    assertNotNull(parser.parse(lines.get(0)));
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.fs.FileUtil;
+
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.OutputSink;
+import com.cloudera.recordbreaker.learnstructure.PartitionedWriter;
+
+/**
+ * Tests that PartitionedWriter puts each branch of the top-level union in its
+ * own directory, named by the branch's structure, and keeps the sink's settings
+ * when it reopens a file.
+ */
+public class TestPartitionedWriter extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  File testDir = new File(System.getProperty("test.build.data", "build/test/data"), "partitionedwriter");
+  int savedMaxOpenFiles;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+    savedMaxOpenFiles = PartitionedWriter.MAX_OPEN_FILES;
+  }
+  protected void tearDown() {
+    PartitionedWriter.MAX_OPEN_FILES = savedMaxOpenFiles;
+  }
+
+  /**
+   * A record with one field for each of the given types, with names that
+   * start with 'prefix'
+   */
+  static Schema record(String prefix, Schema.Type... types) {
+    Schema s = Schema.createRecord(prefix + "record", "", "", false);
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (int i = 0; i < types.length; i++) {
+      fields.add(new Schema.Field(prefix + "base_" + i, Schema.create(types[i]), "", null));
+    }
+    s.setFields(fields);
+    return s;
+  }
+  static GenericData.Record datum(Schema s, Object... values) {
+    GenericData.Record r = new GenericData.Record(s);
+    for (int i = 0; i < values.length; i++) {
+      r.put(i, values[i]);
+    }
+    return r;
+  }
+
+  /**
+   * A branch's directory depends on its structure, not on its names or its
+   * place in the union.  Branches of the same structure get a suffix.
+   */
+  public void testBranchKeys() throws IOException {
+    OutputSink sink = new OutputSink(OutputSink.Format.AVRO, "null", 0);
+    Schema a1 = record("a1", Schema.Type.INT, Schema.Type.STRING);
+    Schema b1 = record("b1", Schema.Type.STRING);
+    Schema c1 = record("c1", Schema.Type.INT, Schema.Type.STRING);
+    List<String> keys1 = new PartitionedWriter(Schema.createUnion(Arrays.asList(a1, b1, c1)), null, sink, null).getBranchKeys();
+    assertTrue(keys1.get(0).matches("branch_[0-9a-f]{16}"));
+    assertFalse(keys1.get(0).equals(keys1.get(1)));
+    assertEquals(keys1.get(0) + "-2", keys1.get(2));
+
+    // Renamed and reordered
+    Schema a2 = record("a2", Schema.Type.INT, Schema.Type.STRING);
+    Schema b2 = record("b2", Schema.Type.STRING);
+    List<String> keys2 = new PartitionedWriter(Schema.createUnion(Arrays.asList(b2, a2)), null, sink, null).getBranchKeys();
+    assertEquals(Arrays.asList(keys1.get(1), keys1.get(0)), keys2);
+
+    // A schema without a union is one branch
+    assertEquals(Arrays.asList(keys1.get(1)), new PartitionedWriter(b2, null, sink, null).getBranchKeys());
+  }
+
+  /**
+   * A sample learned twice gets the same directories, although its nodes are
+   * named differently the second time
+   */
+  public void testLearnedTwice() throws IOException {
+    File inputFile = new File(samplesDir, "commonlog.txt");
+    List<List<String>> listings = new ArrayList<List<String>>();
+    for (int run = 0; run < 2; run++) {
+      File outdir = new File(testDir, "run" + run);
+      outdir.mkdirs();
+      LearnStructure ls = new LearnStructure();
+      ls.setOutputSink(new OutputSink(OutputSink.Format.AVRO, "null", 0));
+      ls.setPartitioning(true, null);
+      PrintStream savedErr = System.err;
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      try {
+        ls.inferRecordFormat(inputFile, outdir, true);
+      } finally {
+        System.setErr(savedErr);
+      }
+      List<String> listing = new ArrayList<String>(Arrays.asList(new File(outdir, PartitionedWriter.PARTITION_DIRNAME).list()));
+      Collections.sort(listing);
+      listings.add(listing);
+    }
+    assertTrue(listings.get(0).size() > 0);
+    assertEquals(listings.get(0), listings.get(1));
+  }
+
+  /**
+   * A partition that is closed to make room and then reopened is still written
+   * with the sink's sync interval and codec
+   */
+  public void testReopen() throws IOException {
+    PartitionedWriter.MAX_OPEN_FILES = 1;
+    Schema a = record("a", Schema.Type.INT, Schema.Type.STRING);
+    Schema b = record("b", Schema.Type.STRING);
+    Schema u = Schema.createUnion(Arrays.asList(a, b));
+    File dir = new File(testDir, PartitionedWriter.PARTITION_DIRNAME);
+    PartitionedWriter pw = new PartitionedWriter(u, null, new OutputSink(OutputSink.Format.AVRO, "deflate:1", 64), dir);
+    int n = 200;
+    for (int i = 0; i < n; i++) {
+      pw.append(datum(a, i, new Utf8("first " + i)));
+    }
+    pw.append(datum(b, new Utf8("evicts a")));
+    for (int i = 0; i < n; i++) {
+      pw.append(datum(a, n + i, new Utf8("second " + i)));
+    }
+    pw.close();
+    assertEquals(2 * n, pw.getRecordCounts().get(pw.getBranchKeys().get(0)).longValue());
+
+    File aFile = new File(new File(dir, pw.getBranchKeys().get(0)), LearnStructure.DATA_FILENAME);
+    DataFileReader<Object> in = new DataFileReader<Object>(aFile, new GenericDatumReader<Object>());
+    try {
+      assertEquals("deflate", in.getMetaString("avro.codec"));
+      Set<Long> reopenedSyncs = new HashSet<Long>();
+      for (int i = 0; i < 2 * n; i++) {
+        assertTrue(in.hasNext());
+        GenericData.Record r = (GenericData.Record) in.next();
+        assertEquals(i, r.get(0));
+        if (i >= n) {
+          reopenedSyncs.add(in.previousSync());
+        }
+      }
+      assertFalse(in.hasNext());
+      assertTrue(reopenedSyncs.size() > 2);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Partitioning cannot be combined with part files or rolling
+   */
+  public void testRejectedArguments() throws IOException {
+    File input = new File(samplesDir, "commonlog.txt");
+    String combinations[][] = {{"-partitionByBranch", "true", "-rollRecords", "10"},
+                               {"-partitionField", "@date", "-rollBytes", "1000"},
+                               {"-partitionByBranch", "true", "-emitPartFiles", "true"}};
+    for (String args[]: combinations) {
+      List<String> argv = new ArrayList<String>(Arrays.asList(input.getPath(), new File(testDir, "rejected").getPath()));
+      argv.addAll(Arrays.asList(args));
+      try {
+        LearnStructure.main(argv.toArray(new String[argv.size()]));
+        fail("Accepted " + argv);
+      } catch (IllegalArgumentException iae) {
+      }
+      assertFalse(new File(testDir, "rejected").exists());
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericData;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.RefinementRule;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests the refinement pass over hand-built type trees.
+ */
+public class TestRefinementRule extends TestCase {
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  public void testFactorUnionPrefix() {
+    InferredType t = union(struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ":"), base(Token.STRING_TOKENCLASSID, null)),
+                           struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ":"), base(Token.FLOAT_TOKENCLASSID, null)));
+    InferredType refined = t.refine(RefinementRule.getDefaultRules());
+    assertTrue(refined.toString(), refined instanceof StructType);
+    List<InferredType> elts = ((StructType) refined).structTypes;
+    assertEquals(3, elts.size());
+    assertTrue(elts.get(2) instanceof UnionType);
+    assertEquals(2, ((UnionType) elts.get(2)).unionTypes.size());
+    assertTrue(refined.getRefinementScore() < t.getRefinementScore());
+    assertNotNull(refined.parse("12:abc"));
+    assertNotNull(refined.parse("12:1.5"));
+  }
+
+  /**
+   * Prefixes are compared by token class and parameter, not by name or samples
+   */
+  public void testSameType() {
+    BaseType a = new BaseType(Token.CHAR_TOKENCLASSID, Arrays.asList("-"), "--");
+    BaseType b = new BaseType(Token.CHAR_TOKENCLASSID, Arrays.asList("+"), "--");
+    assertTrue(RefinementRule.FactorUnionPrefixRule.sameType(a, b));
+    assertFalse(RefinementRule.FactorUnionPrefixRule.sameType(a, base(Token.CHAR_TOKENCLASSID, "-+")));
+    assertFalse(RefinementRule.FactorUnionPrefixRule.sameType(a, base(Token.CHAR_TOKENCLASSID, null)));
+    assertTrue(RefinementRule.FactorUnionPrefixRule.sameType(struct(a, base(Token.INT_TOKENCLASSID, null)),
+                                                             struct(b, base(Token.INT_TOKENCLASSID, null))));
+    assertFalse(RefinementRule.FactorUnionPrefixRule.sameType(struct(a, base(Token.INT_TOKENCLASSID, null)),
+                                                              struct(a, base(Token.INT_TOKENCLASSID, null), base(Token.INT_TOKENCLASSID, null))));
+    assertFalse(RefinementRule.FactorUnionPrefixRule.sameType(new ArrayType(a), a));
+  }
+
+  /**
+   * Branches that differ only in a merged literal share no prefix
+   */
+  public void testNoFactorOnDifferentLiterals() {
+    InferredType t = union(struct(base(Token.CHAR_TOKENCLASSID, "--"), base(Token.INT_TOKENCLASSID, null)),
+                           struct(base(Token.CHAR_TOKENCLASSID, "-+"), base(Token.INT_TOKENCLASSID, null)));
+    assertNull(new RefinementRule.FactorUnionPrefixRule().apply(t));
+  }
+
+  /**
+   * A tree that no rule improves comes back as the same objects, names included
+   */
+  public void testRefineKeepsUnchangedNodes() {
+    InferredType inner = new ArrayType(struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ",")));
+    InferredType t = struct(base(Token.STRING_TOKENCLASSID, null), base(Token.WHITESPACE_TOKENCLASSID, null), inner);
+    String name = t.getName();
+    InferredType refined = t.refine(RefinementRule.getDefaultRules());
+    assertSame(t, refined);
+    assertEquals(name, refined.getName());
+    assertSame(inner, ((StructType) refined).structTypes.get(2));
+  }
+
+  /**
+   * A merged literal yields one CHAR token per character, as tokenize() does
+   */
+  public void testMergedCharsTokenize() {
+    List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>();
+    assertEquals("x", Tokenizer.attemptParse(Token.CHAR_TOKENCLASSID, "-+", "-+x", toks));
+    assertEquals(2, toks.size());
+    assertEquals("-", toks.get(0).getParameter());
+    assertEquals("+", toks.get(1).getParameter());
+    assertNull(Tokenizer.attemptParse(Token.CHAR_TOKENCLASSID, "-+", "--x", toks));
+  }
+
+  /**
+   * The last element of a struct must consume what the struct must, so a
+   * trailing union keeps trying branches until one reaches the end of the line.
+   * Earlier elements need not.
+   */
+  public void testLastElementMustConsumeStr() {
+    InferredType t = struct(base(Token.STRING_TOKENCLASSID, null),
+                            base(Token.WHITESPACE_TOKENCLASSID, null),
+                            union(base(Token.INT_TOKENCLASSID, null), base(Token.FLOAT_TOKENCLASSID, null)));
+    GenericData.Record r = (GenericData.Record) t.parse("abc 7");
+    assertEquals(7, r.get(1));
+    r = (GenericData.Record) t.parse("abc 1.5");
+    assertNotNull(r);
+    assertEquals(1.5, r.get(1));
+    assertNull(t.parse("abc 1.5x"));
+
+    // Not last: the struct element "1" is followed by ".5"
+    InferredType notLast = struct(union(base(Token.INT_TOKENCLASSID, null), base(Token.STRING_TOKENCLASSID, null)),
+                                  base(Token.CHAR_TOKENCLASSID, "."),
+                                  base(Token.INT_TOKENCLASSID, null));
+    r = (GenericData.Record) notLast.parse("1.5");
+    assertNotNull(r);
+    assertEquals(1, r.get(0));
+    assertEquals(5, r.get(1));
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.Schema;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that Avro schemas are built only when asked for, once per node, and
+ * that union branches with equal schemas share one position in the union.
+ */
+public class TestSchemaBuilding extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  /**
+   * A base that counts how often its schema is built, and can be given a
+   * fixed schema hash so that different schemas collide
+   */
+  static class CountingBase extends BaseType {
+    int numBuilt = 0;
+    Integer fixedHash;
+    CountingBase(int tokenClassId, Integer fixedHash) {
+      super(tokenClassId, new ArrayList<String>(), null);
+      this.fixedHash = fixedHash;
+    }
+    protected Schema computeAvroSchema() {
+      numBuilt++;
+      return super.computeAvroSchema();
+    }
+    protected int computeSchemaHash() {
+      return (fixedHash != null) ? fixedHash.intValue() : super.computeSchemaHash();
+    }
+  }
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  /**
+   * Building, hoisting and copying a tree build no schemas.  The first request
+   * on the root builds each schema once, and later requests reuse them.
+   */
+  public void testLazySchemas() {
+    CountingBase a = new CountingBase(Token.INT_TOKENCLASSID, null);
+    CountingBase b = new CountingBase(Token.STRING_TOKENCLASSID, null);
+    CountingBase c = new CountingBase(Token.FLOAT_TOKENCLASSID, null);
+    List<CountingBase> bases = Arrays.asList(a, b, c);
+    InferredType t = struct(a, new ArrayType(struct(b, base(Token.CHAR_TOKENCLASSID, ","))),
+                            union(struct(c), base(Token.WHITESPACE_TOKENCLASSID, null)));
+    t.hoistUnions();
+    t.duplicate();
+    t.materializeWithoutUnions();
+    for (CountingBase cb: bases) {
+      assertEquals(0, cb.numBuilt);
+    }
+
+    Schema s = t.getAvroSchema();
+    for (CountingBase cb: bases) {
+      assertEquals(1, cb.numBuilt);
+    }
+    assertSame(s, t.getAvroSchema());
+    assertSame(a.getAvroSchema(), s.getFields().get(0).schema());
+    new CompiledParser(t);
+    t.parse("1 ab,cd,2.5");
+    for (CountingBase cb: bases) {
+      assertEquals(1, cb.numBuilt);
+    }
+  }
+
+  /**
+   * Branches with the same schema take the same position in the union.
+   * Branches without data have none.
+   */
+  public void testBranchDedupe() {
+    UnionType u = union(base(Token.INT_TOKENCLASSID, null), base(Token.STRING_TOKENCLASSID, null),
+                        base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "-"),
+                        base(Token.STRING_TOKENCLASSID, null), base(Token.FLOAT_TOKENCLASSID, null));
+    Schema s = u.getAvroSchema();
+    assertEquals(3, s.getTypes().size());
+    assertTrue(Arrays.equals(new int[] {0, 1, 0, -1, 1, 2}, u.getBranchSchemaIndices()));
+    assertEquals(Schema.Type.INT, s.getTypes().get(0).getType());
+    assertEquals(Schema.Type.STRING, s.getTypes().get(1).getType());
+    assertEquals(Schema.Type.DOUBLE, s.getTypes().get(2).getType());
+  }
+
+  /**
+   * Equal hashes alone do not merge branches; their schemas must be equal too
+   */
+  public void testHashCollisions() {
+    UnionType u = union(new CountingBase(Token.INT_TOKENCLASSID, 7), new CountingBase(Token.STRING_TOKENCLASSID, 7),
+                        new CountingBase(Token.INT_TOKENCLASSID, 7), new CountingBase(Token.FLOAT_TOKENCLASSID, 7));
+    Schema s = u.getAvroSchema();
+    assertEquals(3, s.getTypes().size());
+    assertTrue(Arrays.equals(new int[] {0, 1, 0, 2}, u.getBranchSchemaIndices()));
+  }
+
+  /**
+   * Every union in the tree, outermost first
+   */
+  static void findUnions(InferredType t, List<UnionType> unions) {
+    if (t instanceof StructType) {
+      for (InferredType elt: ((StructType) t).structTypes) {
+        findUnions(elt, unions);
+      }
+    } else if (t instanceof ArrayType) {
+      findUnions(((ArrayType) t).bodyType, unions);
+    } else if (t instanceof UnionType) {
+      unions.add((UnionType) t);
+      for (InferredType branch: ((UnionType) t).unionTypes) {
+        findUnions(branch, unions);
+      }
+    }
+  }
+
+  /**
+   * The positions each union chose, as the rendered-JSON comparison used to
+   * choose them
+   */
+  static int[] indicesByJson(UnionType u) {
+    List<String> seen = new ArrayList<String>();
+    int indices[] = new int[u.unionTypes.size()];
+    for (int i = 0; i < indices.length; i++) {
+      Schema branchSchema = u.unionTypes.get(i).getAvroSchema();
+      if (branchSchema == null) {
+        indices[i] = -1;
+        continue;
+      }
+      String json = branchSchema.toString();
+      indices[i] = seen.indexOf(json);
+      if (indices[i] < 0) {
+        indices[i] = seen.size();
+        seen.add(json);
+      }
+    }
+    return indices;
+  }
+
+  /**
+   * On the samples, hashing picks the same union positions as comparing JSON,
+   * and nodes with equal schemas have equal hashes
+   */
+  public void testSamples() throws IOException {
+    for (String sampleName: sampleNames) {
+      InferredType t = learn(readLines(sampleName));
+      Schema s = t.getAvroSchema();
+      assertEquals(sampleName, s, Schema.parse(s.toString()));
+      List<UnionType> unions = new ArrayList<UnionType>();
+      findUnions(t, unions);
+      for (UnionType u: unions) {
+        assertTrue(sampleName, Arrays.equals(indicesByJson(u), u.getBranchSchemaIndices()));
+        for (InferredType b1: u.unionTypes) {
+          for (InferredType b2: u.unionTypes) {
+            if (b1.getAvroSchema() != null && b1.getAvroSchema().equals(b2.getAvroSchema())) {
+              assertEquals(sampleName, b1.getSchemaHash(), b2.getSchemaHash());
+            }
+          }
+        }
+      }
+    }
+  }
+}
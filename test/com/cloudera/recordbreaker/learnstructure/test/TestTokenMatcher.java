@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.TokenMatcher;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+
+/**
+ * Tests that the cursor-based TokenMatcher accepts the same text as
+ * Tokenizer.attemptParse() on the remaining string, and yields the same values.
+ */
+public class TestTokenMatcher extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+  int classIds[] = {Token.IPADDR_TOKENCLASSID, Token.PERMISSIONS_TOKENCLASSID, Token.DATE_TOKENCLASSID, Token.TIME_TOKENCLASSID,
+                    Token.INT_TOKENCLASSID, Token.FLOAT_TOKENCLASSID, Token.STRING_TOKENCLASSID, Token.WHITESPACE_TOKENCLASSID};
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Compare one match at 'start' with attemptParse() on the rest of the line
+   */
+  void checkMatch(TokenMatcher m, String line, int tokenClassId, String tokenParameter, int start) {
+    List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>();
+    String rest = Tokenizer.attemptParse(tokenClassId, tokenParameter, line.substring(start), toks);
+    int end = m.match(tokenClassId, tokenParameter, start);
+    String label = Token.AbstractToken.getStrDesc(tokenClassId, tokenParameter) + " at " + start + " of '" + line + "'";
+    if (rest == null) {
+      assertEquals(label, -1, end);
+      return;
+    }
+    assertEquals(label, line.length() - rest.length(), end);
+    if (Token.AbstractToken.hasData(tokenClassId) && tokenClassId != Token.DATE_TOKENCLASSID && tokenClassId != Token.TIME_TOKENCLASSID) {
+      BaseType bt = new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+      assertEquals(label, toks.get(0).get().toString(), bt.getValue(line, start, end, null).toString());
+    }
+  }
+
+  public void testSamples() throws IOException {
+    TokenMatcher m = new TokenMatcher();
+    for (String sampleName: sampleNames) {
+      for (String line: readLines(sampleName)) {
+        m.reset(line);
+        for (int start = 0; start <= line.length(); start++) {
+          for (int tokenClassId: classIds) {
+            checkMatch(m, line, tokenClassId, null, start);
+          }
+          checkMatch(m, line, Token.CHAR_TOKENCLASSID, null, start);
+          if (start < line.length()) {
+            checkMatch(m, line, Token.CHAR_TOKENCLASSID, line.substring(start, start + 1), start);
+            checkMatch(m, line, Token.CHAR_TOKENCLASSID, (line.charAt(start) == '#') ? "@" : "#", start);
+          }
+          assertEquals(line.substring(start).trim().length() == 0, m.isBlankFrom(start));
+        }
+      }
+    }
+  }
+
+  public void testEdgeCases() {
+    TokenMatcher m = new TokenMatcher();
+    String lines[] = {"", " ", "\t12", "-12.5e3x", "192.168.0.1:80", "drwxr-xr-x 2", "12:30:45 PM", "Jan 12, 2011",
+                      "2011-01-12T", "31/12/2011", "abc_def-ghi", "99999999999", "+7", "-", "a\u00e9b"};
+    for (String line: lines) {
+      m.reset(line);
+      for (int start = 0; start <= line.length(); start++) {
+        for (int tokenClassId: classIds) {
+          checkMatch(m, line, tokenClassId, null, start);
+        }
+        checkMatch(m, line, Token.CHAR_TOKENCLASSID, null, start);
+      }
+    }
+  }
+
+  /**
+   * A merged literal matches its whole run of characters, or nothing
+   */
+  public void testMergedChars() {
+    TokenMatcher m = new TokenMatcher();
+    m.reset("a--+b");
+    assertEquals(4, m.match(Token.CHAR_TOKENCLASSID, "--+", 1));
+    assertEquals(-1, m.match(Token.CHAR_TOKENCLASSID, "-+", 1));
+    assertEquals(-1, m.match(Token.CHAR_TOKENCLASSID, "+b-", 3));
+  }
+}
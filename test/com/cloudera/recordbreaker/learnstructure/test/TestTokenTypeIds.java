@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.Histogram;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+
+/**
+ * Tests dense token type ids, and that histograms counted by type id match
+ * the ones counted by token id string.
+ */
+public class TestTokenTypeIds extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  List<List<Token.AbstractToken>> readChunks(String sampleName) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        List<Token.AbstractToken> chunk = Tokenizer.tokenize(s);
+        if (chunk != null && chunk.size() > 0) {
+          chunks.add(chunk);
+        }
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return chunks;
+  }
+
+  /**
+   * The histograms as computed before type ids: keyed by getId(), with boxed counts
+   */
+  static List<Histogram> stringKeyedHistograms(List<List<Token.AbstractToken>> chunks) {
+    SortedMap<String, Map<Integer, Long>> allHistograms = new TreeMap<String, Map<Integer, Long>>();
+    for (List<Token.AbstractToken> chunk: chunks) {
+      Map<String, Integer> localFreq = new HashMap<String, Integer>();
+      for (Token.AbstractToken tok: chunk) {
+        Integer count = localFreq.get(tok.getId());
+        localFreq.put(tok.getId(), (count == null) ? 1 : count + 1);
+      }
+      for (Map.Entry<String, Integer> e: localFreq.entrySet()) {
+        Map<Integer, Long> perTokenTypeHistogram = allHistograms.get(e.getKey());
+        if (perTokenTypeHistogram == null) {
+          perTokenTypeHistogram = new HashMap<Integer, Long>();
+          allHistograms.put(e.getKey(), perTokenTypeHistogram);
+        }
+        Long count = perTokenTypeHistogram.get(e.getValue());
+        perTokenTypeHistogram.put(e.getValue(), (count == null) ? 1L : count + 1);
+      }
+    }
+    return Histogram.normalizeHistograms(allHistograms, chunks.size());
+  }
+
+  static SortedMap<String, String> byType(List<Histogram> histograms) {
+    SortedMap<String, String> m = new TreeMap<String, String>();
+    for (Histogram h: histograms) {
+      assertNull("Duplicate histogram type " + h.getHistogramType(), m.put(h.getHistogramType(), h.toString()));
+    }
+    return m;
+  }
+
+  public void testTypeDescRoundTrip() throws IOException {
+    for (String sampleName: sampleNames) {
+      for (List<Token.AbstractToken> chunk: readChunks(sampleName)) {
+        for (Token.AbstractToken tok: chunk) {
+          assertEquals(tok.getTypeId(), Token.AbstractToken.getTypeId(tok.getClassId(), tok.getParameter()));
+          assertEquals(tok.getId(), Token.AbstractToken.getTypeDesc(tok.getTypeId()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Each character gets its own id, above the class ids; other classes use the class id
+   */
+  public void testDistinctIds() {
+    Set<Integer> ids = new HashSet<Integer>();
+    for (char c: new char[] {'a', '-', ':', '\u00e9', '\u4e2d'}) {
+      Token.CharToken tok = new Token.CharToken(c);
+      assertTrue(tok.getTypeId() >= Token.NUM_TOKENCLASSIDS);
+      assertTrue(ids.add(tok.getTypeId()));
+      assertEquals(tok.getId(), Token.AbstractToken.getTypeDesc(tok.getTypeId()));
+    }
+    assertEquals(Token.INT_TOKENCLASSID, Token.AbstractToken.getTypeId(Token.INT_TOKENCLASSID, null));
+    assertEquals(Token.STRING_TOKENCLASSID, Token.AbstractToken.getTypeId(Token.STRING_TOKENCLASSID, null));
+  }
+
+  public void testHistogramsMatchStringKeyed() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<List<Token.AbstractToken>> chunks = readChunks(sampleName);
+      assertEquals(sampleName, byType(stringKeyedHistograms(chunks)), byType(Histogram.computeNormalizedHistograms(chunks)));
+    }
+  }
+}
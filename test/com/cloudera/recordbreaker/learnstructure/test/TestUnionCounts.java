@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that union branches are counted only for lines that parse, and that
+ * the counts reorder the branches without changing what parses.
+ */
+public class TestUnionCounts extends TestCase {
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+  static UnionType intOrPair() {
+    return union(struct(base(Token.INT_TOKENCLASSID, null)),
+                 struct(base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, "."), base(Token.INT_TOKENCLASSID, null)));
+  }
+  static long[] counts(UnionType u) {
+    long counts[] = new long[u.unionTypes.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = u.getBranchCount(i);
+    }
+    return counts;
+  }
+
+  /**
+   * The greedy parse takes branch 0 before the struct fails at '.', and forced
+   * branch 0 fails the same way.  Only the branch of the final parse counts.
+   */
+  public void testOnlyCommittedBranches() {
+    for (boolean compiled: new boolean[] {false, true}) {
+      UnionType u = intOrPair();
+      InferredType t = struct(u, base(Token.CHAR_TOKENCLASSID, "x"));
+      CompiledParser cp = new CompiledParser(t);
+      assertNotNull(compiled ? cp.parse("1.5x") : t.parse("1.5x"));
+      assertTrue(Arrays.equals(new long[] {0, 1}, counts(u)));
+
+      assertNotNull(compiled ? cp.parse("1x") : t.parse("1x"));
+      assertTrue(Arrays.equals(new long[] {1, 1}, counts(u)));
+
+      // Lines that do not parse count nothing
+      assertNull(compiled ? cp.parse("1.5y") : t.parse("1.5y"));
+      assertNull(compiled ? cp.parse("1y") : t.parse("1y"));
+      assertTrue(Arrays.equals(new long[] {1, 1}, counts(u)));
+    }
+  }
+
+  /**
+   * A line that matches without data does not parse, so the branch it took does
+   * not count, while the same branch counts in a line that has data
+   */
+  public void testNoDataBranches() {
+    for (boolean compiled: new boolean[] {false, true}) {
+      UnionType u = union(base(Token.CHAR_TOKENCLASSID, "a"), base(Token.CHAR_TOKENCLASSID, "b"));
+      InferredType t = struct(u, base(Token.INT_TOKENCLASSID, null));
+      InferredType noData = struct(u);
+      CompiledParser cp = new CompiledParser(t);
+      CompiledParser noDataCp = new CompiledParser(noData);
+      assertNull(compiled ? noDataCp.parse("a") : noData.parse("a"));
+      assertTrue(Arrays.equals(new long[] {0, 0}, counts(u)));
+      assertNotNull(compiled ? cp.parse("a1") : t.parse("a1"));
+      assertTrue(Arrays.equals(new long[] {1, 0}, counts(u)));
+    }
+  }
+
+  /**
+   * A union in an array element that is later abandoned is not counted, and each
+   * element that is kept counts once
+   */
+  public void testArrayElements() {
+    UnionType u = union(base(Token.INT_TOKENCLASSID, null), base(Token.STRING_TOKENCLASSID, null));
+    InferredType t = struct(new ArrayType(struct(u, base(Token.CHAR_TOKENCLASSID, ","))),
+                            base(Token.CHAR_TOKENCLASSID, ";"));
+    assertNotNull(t.parse("1,ab,2,;"));
+    assertTrue(Arrays.equals(new long[] {2, 1}, counts(u)));
+    assertNull(t.parse("1,ab,2,cd;"));
+    assertTrue(Arrays.equals(new long[] {2, 1}, counts(u)));
+  }
+
+  /**
+   * A trailing union's branch that does not reach the end of the line is not counted
+   */
+  public void testMustConsume() {
+    UnionType u = union(base(Token.INT_TOKENCLASSID, null), base(Token.FLOAT_TOKENCLASSID, null));
+    InferredType t = struct(base(Token.STRING_TOKENCLASSID, null), base(Token.WHITESPACE_TOKENCLASSID, null), u);
+    assertNotNull(t.parse("abc 1.5"));
+    assertTrue(Arrays.equals(new long[] {0, 1}, counts(u)));
+  }
+
+  /**
+   * Once the counts favor a later branch that cannot be confused with an earlier
+   * one, it moves ahead; results are unchanged.
+   */
+  public void testReorder() {
+    UnionType u = union(struct(base(Token.CHAR_TOKENCLASSID, "x"), base(Token.INT_TOKENCLASSID, null)), base(Token.INT_TOKENCLASSID, null));
+    InferredType t = struct(u, base(Token.CHAR_TOKENCLASSID, ";"));
+    for (int i = 0; i < UnionType.REORDER_INTERVAL; i++) {
+      assertNotNull(t.parse(i + ";"));
+    }
+    assertEquals(1, u.getBranchOrder()[0]);
+    assertNotNull(t.parse("x5;"));
+    assertEquals(t.parse("7;"), new CompiledParser(t).parse("7;"));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.apache.avro.generic.GenericContainer;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that unions only try the branches that could start at the next
+ * character, and that this never changes what a line parses to.
+ */
+public class TestUnionDispatch extends TestCase {
+  File samplesDir = new File(System.getProperty("test.samples.data", "src/samples/textdata"));
+  String sampleNames[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  List<String> readLines(String sampleName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(samplesDir, sampleName)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static InferredType learn(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String line: lines) {
+      List<Token.AbstractToken> chunk = Tokenizer.tokenize(line);
+      if (chunk != null) {
+        chunks.add(chunk);
+      }
+    }
+    return TypeInference.infer(chunks, new TypeInference.DiscoveryCache());
+  }
+
+  /**
+   * Every union in the tree, outermost first
+   */
+  static void findUnions(InferredType t, List<UnionType> unions) {
+    if (t instanceof StructType) {
+      for (InferredType elt: ((StructType) t).structTypes) {
+        findUnions(elt, unions);
+      }
+    } else if (t instanceof ArrayType) {
+      findUnions(((ArrayType) t).bodyType, unions);
+    } else if (t instanceof UnionType) {
+      unions.add((UnionType) t);
+      for (InferredType branch: ((UnionType) t).unionTypes) {
+        findUnions(branch, unions);
+      }
+    }
+  }
+
+  /**
+   * Make every union in the tree try all its branches at every slot
+   */
+  static void disableDispatch(InferredType t) {
+    List<UnionType> unions = new ArrayList<UnionType>();
+    findUnions(t, unions);
+    for (UnionType u: unions) {
+      boolean starts[][] = new boolean[UnionType.NUM_SLOTS][u.unionTypes.size()];
+      for (boolean slotStarts[]: starts) {
+        Arrays.fill(slotStarts, true);
+      }
+      u.setBranchStarts(starts);
+    }
+  }
+
+  public void testDispatchSlot() {
+    String s = "a\u00e9 ~";
+    assertEquals('a', UnionType.dispatchSlot(s, s.length(), 0));
+    assertEquals(UnionType.NONASCII_SLOT, UnionType.dispatchSlot(s, s.length(), 1));
+    assertEquals(' ', UnionType.dispatchSlot(s, s.length(), 2));
+    assertEquals('~', UnionType.dispatchSlot(s, s.length(), 3));
+    assertEquals(UnionType.END_SLOT, UnionType.dispatchSlot(s, s.length(), 4));
+    assertEquals(UnionType.END_SLOT, UnionType.dispatchSlot(s, 2, 2));
+  }
+
+  /**
+   * Each branch is tried only where its first token could start.  A branch that
+   * can match nothing, such as an array, is tried everywhere.
+   */
+  public void testBranchStarts() {
+    UnionType u = union(base(Token.INT_TOKENCLASSID, null),
+                        struct(base(Token.CHAR_TOKENCLASSID, "["), base(Token.INT_TOKENCLASSID, null)),
+                        base(Token.STRING_TOKENCLASSID, null),
+                        struct(new ArrayType(struct(base(Token.WHITESPACE_TOKENCLASSID, null), base(Token.INT_TOKENCLASSID, null))), base(Token.CHAR_TOKENCLASSID, "#")),
+                        new ArrayType(base(Token.FLOAT_TOKENCLASSID, null)));
+    int orders[][] = u.getDispatchOrders();
+    assertTrue(Arrays.equals(new int[] {0, 2, 4}, orders['7']));
+    assertTrue(Arrays.equals(new int[] {0, 2, 4}, orders['-']));
+    assertTrue(Arrays.equals(new int[] {1, 4}, orders['[']));
+    assertTrue(Arrays.equals(new int[] {2, 4}, orders['x']));
+    assertTrue(Arrays.equals(new int[] {2, 4}, orders[UnionType.NONASCII_SLOT]));
+    assertTrue(Arrays.equals(new int[] {3, 4}, orders[' ']));
+    assertTrue(Arrays.equals(new int[] {2, 3, 4}, orders['#']));
+    assertTrue(Arrays.equals(new int[] {4}, orders[UnionType.END_SLOT]));
+  }
+
+  /**
+   * Dispatching on the next character gives the same results as trying every
+   * branch, on the sample files
+   */
+  public void testSamplesMatchUndispatched() throws IOException {
+    for (String sampleName: sampleNames) {
+      List<String> lines = readLines(sampleName);
+      InferredType t = learn(lines);
+      CompiledParser cp = new CompiledParser(t);
+      List<GenericContainer> dispatched = new ArrayList<GenericContainer>();
+      List<GenericContainer> compiled = new ArrayList<GenericContainer>();
+      for (String line: lines) {
+        dispatched.add(t.parse(line));
+        compiled.add(cp.parse(line));
+      }
+      disableDispatch(t);
+      for (int i = 0; i < lines.size(); i++) {
+        GenericContainer expected = t.parse(lines.get(i));
+        assertEquals(sampleName + ": " + lines.get(i), expected, dispatched.get(i));
+        assertEquals(sampleName + ": " + lines.get(i), expected, compiled.get(i));
+      }
+    }
+  }
+
+  /**
+   * With many branches, each starting with its own literal, only one is tried
+   */
+  public void testManyBranches() {
+    String keys = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!@$%&*";
+    List<InferredType> branches = new ArrayList<InferredType>();
+    for (int i = 0; i < keys.length(); i++) {
+      branches.add(struct(base(Token.CHAR_TOKENCLASSID, keys.substring(i, i + 1)), base(Token.INT_TOKENCLASSID, null)));
+    }
+    UnionType u = new UnionType(branches);
+    InferredType t = struct(u, base(Token.CHAR_TOKENCLASSID, ";"));
+    for (int i = 0; i < keys.length(); i++) {
+      assertEquals(1, u.getDispatchOrders()[keys.charAt(i)].length);
+    }
+    assertEquals(0, u.getDispatchOrders()['7'].length);
+    assertNull(t.parse("7;"));
+
+    List<GenericContainer> dispatched = new ArrayList<GenericContainer>();
+    for (int i = 0; i < keys.length(); i++) {
+      dispatched.add(t.parse(keys.charAt(i) + "" + i + ";"));
+      assertNotNull(dispatched.get(i));
+    }
+    disableDispatch(t);
+    for (int i = 0; i < keys.length(); i++) {
+      assertEquals(dispatched.get(i), t.parse(keys.charAt(i) + "" + i + ";"));
+    }
+  }
+}
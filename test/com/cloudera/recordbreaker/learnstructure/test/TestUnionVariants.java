@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.util.*;
+import junit.framework.TestCase;
+
+import com.cloudera.recordbreaker.learnstructure.ArrayType;
+import com.cloudera.recordbreaker.learnstructure.BaseType;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.StructType;
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.UnionType;
+
+/**
+ * Tests that iterateWithoutUnions() produces the union-free variants of a tree
+ * one at a time, in odometer order, so that a caller can stop early.
+ */
+public class TestUnionVariants extends TestCase {
+  static BaseType base(int tokenClassId, String tokenParameter) {
+    return new BaseType(tokenClassId, new ArrayList<String>(), tokenParameter);
+  }
+  static StructType struct(InferredType... elts) {
+    return new StructType(new ArrayList<InferredType>(Arrays.asList(elts)));
+  }
+  static UnionType union(InferredType... branches) {
+    return new UnionType(new ArrayList<InferredType>(Arrays.asList(branches)));
+  }
+
+  /**
+   * A struct of 'numUnions' unions, each between "a" and "b" followed by a number
+   */
+  static StructType pairs(int numUnions) {
+    List<InferredType> elts = new ArrayList<InferredType>();
+    for (int i = 0; i < numUnions; i++) {
+      elts.add(union(struct(base(Token.CHAR_TOKENCLASSID, "a"), base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ",")),
+                     struct(base(Token.CHAR_TOKENCLASSID, "b"), base(Token.INT_TOKENCLASSID, null), base(Token.CHAR_TOKENCLASSID, ","))));
+    }
+    return new StructType(elts);
+  }
+
+  /**
+   * The line that variant 'k' of pairs() parses: union i takes "b" when bit i
+   * of k is set, since the first union varies fastest
+   */
+  static String pairsLine(int numUnions, long k) {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < numUnions; i++) {
+      buf.append(((k >> i) & 1) != 0 ? "b" : "a").append(i).append(",");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Every variant of a small tree, in order.  Union-free parts are shared with
+   * the original tree.
+   */
+  public void testSmallTree() {
+    BaseType first = base(Token.INT_TOKENCLASSID, null);
+    BaseType a = base(Token.CHAR_TOKENCLASSID, "a");
+    BaseType b = base(Token.CHAR_TOKENCLASSID, "b");
+    BaseType c = base(Token.CHAR_TOKENCLASSID, "c");
+    StructType d = struct(base(Token.CHAR_TOKENCLASSID, "d"), base(Token.INT_TOKENCLASSID, null));
+    InferredType t = struct(first, union(a, b), new ArrayType(union(c, d)));
+
+    List<InferredType> variants = t.materializeWithoutUnions();
+    assertEquals(4, variants.size());
+    InferredType expected[][] = {{a, c}, {b, c}, {a, d}, {b, d}};
+    for (int i = 0; i < variants.size(); i++) {
+      StructType v = (StructType) variants.get(i);
+      assertFalse(v.hasUnions());
+      assertSame(first, v.structTypes.get(0));
+      assertSame(expected[i][0], v.structTypes.get(1));
+      assertSame(expected[i][1], ((ArrayType) v.structTypes.get(2)).bodyType);
+    }
+
+    // A tree without unions is its own only variant
+    Iterator<InferredType> it = d.iterateWithoutUnions();
+    assertSame(d, it.next());
+    assertFalse(it.hasNext());
+  }
+
+  /**
+   * The first variants of a tree with 2^30 of them come out right away
+   */
+  public void testFirstVariants() {
+    int numUnions = 30;
+    StructType t = pairs(numUnions);
+    Iterator<InferredType> it = t.iterateWithoutUnions();
+    for (int k = 0; k < 100; k++) {
+      assertTrue(it.hasNext());
+      InferredType v = it.next();
+      assertFalse(v.hasUnions());
+      assertNotNull(v.parse(pairsLine(numUnions, k)));
+      assertNull(v.parse(pairsLine(numUnions, k + 1)));
+    }
+  }
+
+  /**
+   * Stop at the first variant that parses a line
+   */
+  public void testStopAtFirstParse() {
+    int numUnions = 30;
+    StructType t = pairs(numUnions);
+    String line = pairsLine(numUnions, 11);
+    int numTried = 0;
+    InferredType found = null;
+    for (Iterator<InferredType> it = t.iterateWithoutUnions(); it.hasNext() && found == null && numTried < 1000; ) {
+      InferredType v = it.next();
+      numTried++;
+      if (v.parse(line) != null) {
+        found = v;
+      }
+    }
+    assertNotNull(found);
+    assertEquals(12, numTried);
+  }
+
+  /**
+   * The last variant of a smaller product comes after all the others
+   */
+  public void testCount() {
+    int numUnions = 10;
+    Iterator<InferredType> it = pairs(numUnions).iterateWithoutUnions();
+    InferredType last = null;
+    int count = 0;
+    while (it.hasNext()) {
+      last = it.next();
+      count++;
+    }
+    assertEquals(1 << numUnions, count);
+    assertNotNull(last.parse(pairsLine(numUnions, (1 << numUnions) - 1)));
+    try {
+      it.next();
+      fail("Iterated past the last variant");
+    } catch (NoSuchElementException nsee) {
+    }
+  }
+}